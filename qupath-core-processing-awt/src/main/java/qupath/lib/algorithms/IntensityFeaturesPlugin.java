@@ -240,32 +240,48 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			}
 		}
 		
-		public float[] getTransformedPixels(final BufferedImage img, int[] buf, final ColorDeconvolutionStains stains, float[] pixels) {
-			if (pixels == null)
-				pixels = new float[img.getWidth() * img.getHeight()];
-			
+		/**
+		 * Get the method used to compute this transform from packed RGB values, or null if the transform 
+		 * uses the channels of a non-RGB image.
+		 * 
+		 * @return
+		 */
+		public ColorTransformMethod getColorTransformMethod() {
 			switch (this) {
 			case BRIGHTNESS:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Brightness, pixels, stains);
+				return ColorTransformMethod.Brightness;
 			case HUE:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Hue, pixels, stains);
+				return ColorTransformMethod.Hue;
 			case OD:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Optical_density_sum, pixels, stains);
+				return ColorTransformMethod.Optical_density_sum;
 			case RED:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Red, pixels, stains);
+				return ColorTransformMethod.Red;
 			case GREEN:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Green, pixels, stains);
+				return ColorTransformMethod.Green;
 			case BLUE:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Blue, pixels, stains);
+				return ColorTransformMethod.Blue;
 			case SATURATION:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Saturation, pixels, stains);
+				return ColorTransformMethod.Saturation;
 			case STAIN_1:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Stain_1, pixels, stains);
+				return ColorTransformMethod.Stain_1;
 			case STAIN_2:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Stain_2, pixels, stains);
+				return ColorTransformMethod.Stain_2;
 			case STAIN_3:
-				return ColorTransformer.getTransformedPixels(buf, ColorTransformMethod.Stain_3, pixels, stains);
-				
+				return ColorTransformMethod.Stain_3;
+			default:
+				return null;
+			}
+		}
+		
+		public float[] getTransformedPixels(final BufferedImage img, int[] buf, final ColorDeconvolutionStains stains, float[] pixels) {
+			if (pixels == null)
+				pixels = new float[img.getWidth() * img.getHeight()];
+			
+			ColorTransformMethod method = getColorTransformMethod();
+			if (method != null)
+				return ColorTransformer.getTransformedPixels(buf, method, pixels, stains);
+			
+			switch (this) {
 			case CHANNEL_1:
 				return img.getRaster().getSamples(0, 0, img.getWidth(), img.getHeight(), 0, pixels);
 			case CHANNEL_2:
@@ -551,13 +567,35 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			int w = img.getWidth();
 	 		int h = img.getHeight();
 			int[] rgbBuffer = isRGB ? img.getRGB(0, 0, w, h, null, 0, w) : null;
+			
+			// For RGB images, compute all the requested transforms together - 
+			// since color deconvolution can then be applied in a single pass
+			Map<FeatureColorTransform, float[]> rgbTransformed = new LinkedHashMap<>();
+			if (isRGB) {
+				List<FeatureColorTransform> rgbTransforms = new ArrayList<>();
+				for (FeatureColorTransform transform : FeatureColorTransform.values()) {
+					if (transform.getColorTransformMethod() != null && Boolean.TRUE.equals(params.getBooleanParameterValue(transform.getKey())))
+						rgbTransforms.add(transform);
+				}
+				if (rgbTransforms.size() > 1) {
+					ColorTransformMethod[] methods = rgbTransforms.stream().map(t -> t.getColorTransformMethod()).toArray(ColorTransformMethod[]::new);
+					float[][] transformed = ColorTransformer.getTransformedPixels(rgbBuffer, methods, null, stains);
+					for (int i = 0; i < methods.length; i++)
+						rgbTransformed.put(rgbTransforms.get(i), transformed[i]);
+				}
+			}
+			
 			float[] pixels = null;
 			for (FeatureColorTransform transform : FeatureColorTransform.values()) {
 				// Check if the color transform is requested
 				if (Boolean.TRUE.equals(params.getBooleanParameterValue(transform.getKey()))) {
 					
-					// Transform the pixels
-					pixels = transform.getTransformedPixels(img, rgbBuffer, stains, pixels);
+					// Transform the pixels (the previous array can be reused, since the features have already been computed)
+					float[] pixelsTransformed = rgbTransformed.get(transform);
+					if (pixelsTransformed != null)
+						pixels = pixelsTransformed;
+					else
+						pixels = transform.getTransformedPixels(img, rgbBuffer, stains, pixels);
 					
 					// Create the simple image
 					FloatArraySimpleImage pixelImage = new FloatArraySimpleImage(pixels, w, h);
@@ -67,11 +67,9 @@ public class EstimateStainVectors {
 		int[] buf = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
 		int[] rgb = buf;
 		
-		float[] red = ColorDeconvolutionHelper.getRedOpticalDensities(rgb, stainsOriginal.getMaxRed(), null);
-		float[] green = ColorDeconvolutionHelper.getGreenOpticalDensities(rgb, stainsOriginal.getMaxGreen(), null);
-		float[] blue = ColorDeconvolutionHelper.getBlueOpticalDensities(rgb, stainsOriginal.getMaxBlue(), null);
+		float[][] rgbOD = ColorDeconvolutionHelper.getOpticalDensities(rgb, stainsOriginal.getMaxRed(), stainsOriginal.getMaxGreen(), stainsOriginal.getMaxBlue(), null);
 		
-		return estimateStains(buf, red, green, blue, stainsOriginal, minStain, maxStain, ignorePercentage, checkColors);
+		return estimateStains(buf, rgbOD[0], rgbOD[1], rgbOD[2], stainsOriginal, minStain, maxStain, ignorePercentage, checkColors);
 	}
 	
 	/**
@@ -956,6 +956,31 @@ public interface ChannelDisplayInfo {
 //			this.rgb = (r << 16) + (g << 8) + b;
 		}
 
+		/**
+		 * Get the band of the image that is displayed.
+		 * 
+		 * @return
+		 */
+		int getChannel() {
+			return channel;
+		}
+		
+		/**
+		 * Get the 256-entry lookup table of packed RGB values used to display scaled pixel values, 
+		 * either using the channel color or grayscale.
+		 * 
+		 * @param useColorLUT
+		 * @return
+		 */
+		int[] getLUT(boolean useColorLUT) {
+			if (useColorLUT)
+				return rgbLUT;
+			int[] lut = new int[256];
+			for (int i = 0; i < 256; i++)
+				lut[i] = (i << 16) + (i << 8) + i;
+			return lut;
+		}
+
 		@Override
 		public float getValue(BufferedImage img, int x, int y) {
 			return img.getRaster().getSampleFloat(x, y, channel);
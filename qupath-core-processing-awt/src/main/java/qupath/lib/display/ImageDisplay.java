@@ -26,6 +26,8 @@ package qupath.lib.display;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,26 +35,34 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.analysis.stats.Histogram;
+import qupath.lib.analysis.stats.HistogramAccumulator;
 import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.color.ColorDeconvolutionStains.DEFAULT_CD_STAINS;
 import qupath.lib.color.ColorTransformer;
 import qupath.lib.color.ColorTransformer.ColorTransformMethod;
 import qupath.lib.common.ColorTools;
+import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.display.ChannelDisplayInfo.MultiChannelInfo;
 import qupath.lib.display.ChannelDisplayInfo.RGBDirectChannelInfo;
 import qupath.lib.display.ChannelDisplayInfo.SingleChannelDisplayInfo;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.stores.ImageRegionStore;
+import qupath.lib.regions.RegionRequest;
 
 /**
  * Class used to look after the color transforms that may be applied to an image,
@@ -65,6 +75,39 @@ import qupath.lib.images.stores.ImageRegionStore;
 public class ImageDisplay {
 
 	final static Logger logger = LoggerFactory.getLogger(ImageDisplay.class);
+	
+	/**
+	 * Number of bins used for channel histograms
+	 */
+	private final static int N_BINS = 1024;
+	
+	/**
+	 * Maximum number of pixels (across all z-slices) to read when refining histograms at a higher resolution
+	 */
+	private final static long MAX_REFINEMENT_PIXELS = 2048L * 2048L;
+	
+	/**
+	 * Width &amp; height of the (downsampled) tiles read when refining histograms
+	 */
+	private final static int REFINEMENT_TILE_SIZE = 512;
+	
+	/**
+	 * Proportion of the thumbnail histogram range added on each side when refining histograms, 
+	 * since higher-resolution tiles can contain more extreme values than the thumbnails
+	 */
+	private final static double REFINEMENT_MARGIN = 0.5;
+	
+	/**
+	 * Maximum proportion of values that may fall outside the (widened) range for a refined histogram to be used
+	 */
+	private final static double MAX_REFINEMENT_OUTSIDE_RANGE = 0.001;
+	
+	/**
+	 * Thread pool used for reading thumbnails &amp; tiles, so that blocking I/O stays off the common pool
+	 */
+	private final static ExecutorService pool = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors()),
+			new SimpleThreadFactory("image-display-", true));
 
 	// Lists to store the different kinds of channels we might need
 	private ChannelDisplayInfo rgbDirectChannel = new ChannelDisplayInfo.RGBDirectChannelInfo();
@@ -78,7 +121,8 @@ public class ImageDisplay {
 	private ImageData<BufferedImage> imageData;
 	private List<ChannelDisplayInfo> channelOptions = new ArrayList<>();
 
-	private List<ChannelDisplayInfo> selectedChannels = new ArrayList<>();
+	// Channels may be selected on one thread while transforms are applied for painting on another
+	private List<ChannelDisplayInfo> selectedChannels = new CopyOnWriteArrayList<>();
 	private ChannelDisplayInfo lastSelectedChannel = null;
 
 
@@ -90,6 +134,12 @@ public class ImageDisplay {
 	private boolean showAllRGBTransforms = true;
 
 	transient private List<BufferedImage> imgList = Collections.synchronizedList(new ArrayList<>());
+	
+	transient private HistogramRefinement refinement;
+	
+	transient private Executor updateExecutor;
+	
+	transient private PropertyChangeSupport pcs = new PropertyChangeSupport(this);
 
 
 	public ImageDisplay(final ImageData<BufferedImage> imageData, final ImageRegionStore<BufferedImage> regionStore, final boolean showAllRGBTransforms) {
@@ -99,9 +149,43 @@ public class ImageDisplay {
 		setImageData(imageData);
 	}
 
+	/**
+	 * Set the executor used to apply histograms that have been refined in the background, 
+	 * e.g. so that the display ranges are only ever changed on the application thread.
+	 * <p>
+	 * If no executor is set, histograms are not refined - since there would be no way to apply them.
+	 * 
+	 * @param executor
+	 */
+	public void setUpdateExecutor(final Executor executor) {
+		this.updateExecutor = executor;
+	}
+	
+	/**
+	 * Add a listener to be notified of changes to the display.
+	 * <p>
+	 * Currently, the only property fired is "histograms" - after the histograms (and possibly 
+	 * display ranges) have been updated using higher-resolution tiles.  This is fired using the 
+	 * update executor.
+	 * 
+	 * @param listener
+	 * @see #setUpdateExecutor(Executor)
+	 */
+	public void addPropertyChangeListener(final PropertyChangeListener listener) {
+		pcs.addPropertyChangeListener(listener);
+	}
+
+	public void removePropertyChangeListener(final PropertyChangeListener listener) {
+		pcs.removePropertyChangeListener(listener);
+	}
+
 	public void setImageData(ImageData<BufferedImage> imageData) {
 		if (this.imageData == imageData)
 			return;
+		if (refinement != null) {
+			refinement.cancel();
+			refinement = null;
+		}
 		this.imageData = imageData;
 		//		updateChannelOptions(true);		
 		updateHistogramMap();
@@ -341,14 +425,18 @@ public class ImageDisplay {
 	 * imgInput should always be an image of the kind that matches the imgData, e.g. RGB/non-RGB, same number of channels,
 	 * same bit-depth.
 	 * 
-	 * Warning: This is not thread-safe.
-	 * Warning #2: imgOutput should be TYPE_INT_RGB
+	 * The selected channels are copied at the start, so this may be called while channels are being selected 
+	 * on another thread - although changes to the display range of a channel may still be seen part way through.
+	 * 
+	 * Warning: imgOutput should be TYPE_INT_RGB
 	 * 
 	 * @param imgInput
 	 * @param imgOutput
 	 * @return
 	 */
 	public BufferedImage applyTransforms(BufferedImage imgInput, BufferedImage imgOutput) {
+		List<ChannelDisplayInfo> selectedChannels = new ArrayList<>(this.selectedChannels);
+		boolean useColorLUTs = this.useColorLUTs;
 		int width = imgInput.getWidth();
 		int height = imgInput.getHeight();
 
@@ -392,12 +480,17 @@ public class ImageDisplay {
 		// I don't know exactly why, but I can't set this to null if there are multiple channels displayed additively...
 		int[] pixels = selectedChannels.size() <= 1 ? null : new int[imgInput.getWidth() * imgInput.getHeight()];
 
-		for (ChannelDisplayInfo info : selectedChannels) {
-			if (firstChannel) {
-				pixels = info.getRGB(imgInput, pixels, useColorLUTs);
-				firstChannel = false;
-			} else
-				info.updateRGBAdditive(imgInput, pixels, useColorLUTs);
+		// Composite all channels in a single pass where we can, rather than one channel at a time
+		if (MultiChannelCompositor.canComposite(selectedChannels)) {
+			pixels = MultiChannelCompositor.composite(imgInput.getRaster(), selectedChannels, useColorLUTs, pixels);
+		} else {
+			for (ChannelDisplayInfo info : selectedChannels) {
+				if (firstChannel) {
+					pixels = info.getRGB(imgInput, pixels, useColorLUTs);
+					firstChannel = false;
+				} else
+					info.updateRGBAdditive(imgInput, pixels, useColorLUTs);
+			}
 		}
 
 		imgOutput.getRaster().setDataElements(0, 0, imgOutput.getWidth(), imgOutput.getHeight(), pixels);
@@ -452,43 +545,30 @@ public class ImageDisplay {
 			}
 		}
 
-		histogramMap = new LinkedHashMap<>();
+		// Histograms may be replaced by refined versions from a background thread
+		histogramMap = Collections.synchronizedMap(new LinkedHashMap<>());
 
 		final ImageServer<BufferedImage> server = imageData.getServer();
 
-		final AtomicInteger nPixels = new AtomicInteger();
 		imgList.clear();
 		//		if (server.nTimepoints() * server.nZSlices() == 1) {
 		if (server.nZSlices() == 1) {
 			BufferedImage img = regionStore.getThumbnail(server, 0, 0, true);
 			imgList.add(img);
-			nPixels.set(img.getWidth() * img.getHeight());
 		} else {
-			// If we have multiple z-slices, load thumbnails in parallel
-			ExecutorService pool = Executors.newFixedThreadPool(Math.min(Runtime.getRuntime().availableProcessors(), server.nZSlices()));
+			// If we have multiple z-slices, load thumbnails in parallel (keeping them in z-order)
 			final int t = 0;
-			//			for (int t = 0; t < server.nTimepoints(); t++) {
+			List<Future<BufferedImage>> futures = new ArrayList<>();
 			for (int z = 0; z < server.nZSlices(); z++) {
 				final int zCoord = z;
-				final int tCoord = t;
-				pool.submit(new Runnable() {
-
-					@Override
-					public void run() {
-						BufferedImage img = regionStore.getThumbnail(server, zCoord, tCoord, true);
-						imgList.add(img);
-						nPixels.addAndGet(img.getWidth() * img.getHeight());
-					}
-
-				});
+				futures.add(pool.submit(() -> regionStore.getThumbnail(server, zCoord, t, true)));
 			}
-			//			}
-			pool.shutdown();
-			try {
-				pool.awaitTermination(30, TimeUnit.SECONDS);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			for (Future<BufferedImage> future : futures) {
+				try {
+					imgList.add(future.get());
+				} catch (InterruptedException | ExecutionException e) {
+					logger.error("Unable to read thumbnail", e);
+				}
 			}
 		}
 
@@ -506,7 +586,51 @@ public class ImageDisplay {
 		for (ChannelDisplayInfo info : selectedChannels)
 			autoSetDisplayRange(info);
 		
-		
+		// Refine the histograms in the background from higher-resolution tiles
+		if (updateExecutor != null) {
+			refinement = HistogramRefinement.createRefinement(server, regionStore, histogramMap, selectedChannels, imgList, this::refinementComplete);
+			if (refinement != null)
+				refinement.start();
+		}
+	}
+	
+	
+	private void refinementComplete(final HistogramRefinement refinement) {
+		Executor executor = updateExecutor;
+		if (executor != null)
+			executor.execute(() -> applyRefinement(refinement));
+	}
+	
+	/**
+	 * Replace the thumbnail histograms with refined versions, updating display ranges that haven't been changed 
+	 * since they were set from the thumbnails.
+	 * 
+	 * @param refinement
+	 */
+	private void applyRefinement(final HistogramRefinement refinement) {
+		if (this.refinement != refinement)
+			return;
+		this.refinement = null;
+		boolean changed = false;
+		for (int c = 0; c < refinement.channels.size(); c++) {
+			SingleChannelDisplayInfo info = refinement.channels.get(c);
+			Histogram histogram = refinement.histogramsRefined.get(c);
+			if (histogram == null)
+				continue;
+			synchronized (histogramMap) {
+				// Only replace the histogram we started from
+				if (histogramMap.get(info) != refinement.histogramsOriginal.get(c))
+					continue;
+				histogramMap.put(info, histogram);
+			}
+			boolean rangeUnchanged = info.getMinDisplay() == refinement.minDisplay[c] && info.getMaxDisplay() == refinement.maxDisplay[c];
+			updateAllowedRange(info, histogram);
+			if (rangeUnchanged)
+				autoSetDisplayRange(info, histogram);
+			changed = true;
+		}
+		if (changed)
+			pcs.firePropertyChange("histograms", null, null);
 	}
 
 
@@ -577,58 +701,30 @@ public class ImageDisplay {
 
 	private void setHistograms(final Collection<ChannelDisplayInfo> channels) {
 
-		int nPixels = 0;
-		for (BufferedImage img : imgList)
-			nPixels += img.getWidth() * img.getHeight();
-
-		float[] values = null; // Array needed for values for a particular channel
-		float[] pixels = null; // Array needed for all values if there are multiple thumbnails
-		if (imgList.size() > 1)
-			pixels = new float[nPixels];
-
-
 		long startTime = System.currentTimeMillis();
 
 //		updateChannelOptions(true);
 
+		// Compute the histograms for different channels in parallel
+		// (Each channel has its own buffers, so this is safe)
+		List<BufferedImage> images = new ArrayList<>(imgList);
+		Map<ChannelDisplayInfo, Histogram> histograms = channels.parallelStream()
+				.filter(info -> info instanceof SingleChannelDisplayInfo)
+				.collect(Collectors.toMap(info -> info, info -> createHistogram((SingleChannelDisplayInfo)info, images, N_BINS), (h1, h2) -> h1));
 
 		for (ChannelDisplayInfo info : channels) {
-			if (!(info instanceof SingleChannelDisplayInfo)) {
+			Histogram histogram = histograms.get(info);
+			if (histogram == null) {
 				histogramMap.put(info, null);
 				continue;
 			}
-			int counter = 0;
-			for (BufferedImage img : imgList) {
-				SingleChannelDisplayInfo infoSingle = (SingleChannelDisplayInfo)info;
-				values = infoSingle.getValues(img, 0, 0, img.getWidth(), img.getHeight(), values);
-				if (pixels != null) {
-					System.arraycopy(values, 0, pixels, counter, values.length);
-				}
-				counter += values.length;
-			}
-
-			Histogram histogram;
-			// Create the histogram
-			if (pixels == null)
-				histogram = new Histogram(values, 1024);
-			else
-				histogram = new Histogram(pixels, 1024);
 			histogram.setNormalizeCounts(true);
 			logger.debug("{} {}", info, histogram);
 			//			System.out.println(info.toString() + " " + histogram.toString());
 			histogramMap.put(info, histogram);
 
-			// Update the possible display range for the channel
-			float min = (float)histogram.getEdgeMin();
-			float max = (float)histogram.getEdgeMax();
-			float minAllowed = min < 0 ? min : 0;
-			// If the default maximum is 255, and we have an integer histogram, that's probably a sensible default... otherwise, use the actual maximum
-			boolean probably8Bit = info.getMaxAllowed() == 255 && histogram.isInteger() && histogram.getEdgeMax() <= 255 && histogram.getEdgeMin() >= 0;
-			float maxAllowed = probably8Bit ? 255 : max;
-			info.setMinMaxAllowed(minAllowed, maxAllowed);
-
 			// Default to the full range of probably-not-8-bit data
-			if (!probably8Bit) {
+			if (!updateAllowedRange(info, histogram)) {
 				autoSetDisplayRange(info, histogram);
 			}
 		}
@@ -637,8 +733,200 @@ public class ImageDisplay {
 		logger.debug("Histogram creation time: {} seconds", (endTime - startTime)/1000.);
 
 	}
+	
+	/**
+	 * Update the possible display range for a channel according to its histogram.
+	 * 
+	 * @param info
+	 * @param histogram
+	 * @return true if the channel probably contains 8-bit data, false otherwise
+	 */
+	private static boolean updateAllowedRange(final ChannelDisplayInfo info, final Histogram histogram) {
+		float min = (float)histogram.getEdgeMin();
+		float max = (float)histogram.getEdgeMax();
+		float minAllowed = min < 0 ? min : 0;
+		// If the default maximum is 255, and we have an integer histogram, that's probably a sensible default... otherwise, use the actual maximum
+		boolean probably8Bit = info.getMaxAllowed() == 255 && histogram.isInteger() && histogram.getEdgeMax() <= 255 && histogram.getEdgeMin() >= 0;
+		float maxAllowed = probably8Bit ? 255 : max;
+		info.setMinMaxAllowed(minAllowed, maxAllowed);
+		return probably8Bit;
+	}
 
 
+	/**
+	 * Create a histogram for a channel from a list of (thumbnail) images.
+	 * <p>
+	 * The channel values are extracted from each image once, and retained while the range is determined - 
+	 * which is acceptable for thumbnails, but not for higher-resolution tiles (see {@link HistogramRefinement}).
+	 * 
+	 * @param info
+	 * @param images
+	 * @param nBins
+	 * @return
+	 */
+	private static Histogram createHistogram(final SingleChannelDisplayInfo info, final List<BufferedImage> images, final int nBins) {
+		List<float[]> valuesList = new ArrayList<>();
+		HistogramAccumulator accumulator = new HistogramAccumulator();
+		for (BufferedImage img : images) {
+			float[] values = info.getValues(img, 0, 0, img.getWidth(), img.getHeight(), null);
+			accumulator.addValues(values, 0, img.getWidth() * img.getHeight());
+			valuesList.add(values);
+		}
+		HistogramAccumulator accumulatorBinned = accumulator.createBinnedAccumulator(nBins);
+		for (int i = 0; i < valuesList.size(); i++) {
+			BufferedImage img = images.get(i);
+			accumulatorBinned.addValues(valuesList.get(i), 0, img.getWidth() * img.getHeight());
+		}
+		return accumulatorBinned.toHistogram();
+	}
+	
+	
+	/**
+	 * Helper class to refine histograms computed from thumbnails, using tiles read at a higher resolution.
+	 * <p>
+	 * Tiles are read through the region store (so that its cache can be used) &amp; processed in parallel on the 
+	 * display thread pool.  Each tile is binned in a single pass, using bins of the same width as the thumbnail histogram 
+	 * but spanning a wider range.  Values outside even the wider range are counted separately, rather than in the end bins; 
+	 * if there are too many of these, the thumbnail histogram is retained for that channel.
+	 * <p>
+	 * Once all tiles have been processed, the refined histograms are passed to a callback - 
+	 * it is up to the callback to apply them to the display on an appropriate thread.
+	 */
+	static class HistogramRefinement {
+		
+		private final ImageServer<BufferedImage> server;
+		private final ImageRegionStore<BufferedImage> store;
+		private final Consumer<HistogramRefinement> callback;
+		private final List<SingleChannelDisplayInfo> channels = new ArrayList<>();
+		private final List<Histogram> histogramsOriginal = new ArrayList<>();
+		private final List<HistogramAccumulator> accumulators = new ArrayList<>();
+		private final List<Histogram> histogramsRefined = new ArrayList<>();
+		private final List<RegionRequest> requests = new ArrayList<>();
+		private final AtomicInteger nRemaining = new AtomicInteger();
+		private float[] minDisplay, maxDisplay;
+		private volatile boolean cancelled = false;
+		
+		private HistogramRefinement(final ImageServer<BufferedImage> server, final ImageRegionStore<BufferedImage> store, final Consumer<HistogramRefinement> callback) {
+			this.server = server;
+			this.store = store;
+			this.callback = callback;
+		}
+		
+		/**
+		 * Create a refinement for the specified channels, or null if no refinement is worthwhile 
+		 * (e.g. because the image is not much larger than its thumbnails).
+		 * 
+		 * @param server
+		 * @param store region store used to read tiles, or null if tiles should be read from the server directly
+		 * @param histogramMap
+		 * @param channels
+		 * @param thumbnails
+		 * @param callback called (from a background thread) once all tiles have been processed
+		 * @return
+		 */
+		static HistogramRefinement createRefinement(final ImageServer<BufferedImage> server, final ImageRegionStore<BufferedImage> store, final Map<ChannelDisplayInfo, Histogram> histogramMap, final Collection<ChannelDisplayInfo> channels, final Collection<BufferedImage> thumbnails, final Consumer<HistogramRefinement> callback) {
+			HistogramRefinement refinement = new HistogramRefinement(server, store, callback);
+			for (ChannelDisplayInfo info : channels) {
+				Histogram histogram = histogramMap.get(info);
+				if (!(info instanceof SingleChannelDisplayInfo) || histogram == null || histogram.nBins() == 0)
+					continue;
+				refinement.channels.add((SingleChannelDisplayInfo)info);
+				refinement.histogramsOriginal.add(histogram);
+				refinement.accumulators.add(HistogramAccumulator.createWidenedAccumulator(histogram, REFINEMENT_MARGIN));
+			}
+			if (refinement.channels.isEmpty())
+				return null;
+			
+			// Record the display ranges, so we can tell if they are changed before the refinement is complete
+			int nChannels = refinement.channels.size();
+			refinement.minDisplay = new float[nChannels];
+			refinement.maxDisplay = new float[nChannels];
+			for (int c = 0; c < nChannels; c++) {
+				refinement.minDisplay[c] = refinement.channels.get(c).getMinDisplay();
+				refinement.maxDisplay[c] = refinement.channels.get(c).getMaxDisplay();
+			}
+			
+			// Choose a downsample so that we don't read too many pixels, and check this is a worthwhile improvement
+			long nThumbnailPixels = 0;
+			for (BufferedImage img : thumbnails)
+				nThumbnailPixels += (long)img.getWidth() * img.getHeight();
+			int nZSlices = server.nZSlices();
+			double nPixels = (double)server.getWidth() * server.getHeight() * nZSlices;
+			double downsample = Math.max(1.0, Math.sqrt(nPixels / MAX_REFINEMENT_PIXELS));
+			if (nPixels / (downsample * downsample) < nThumbnailPixels * 4)
+				return null;
+			
+			int tileSize = (int)Math.round(REFINEMENT_TILE_SIZE * downsample);
+			for (int z = 0; z < nZSlices; z++) {
+				for (int y = 0; y < server.getHeight(); y += tileSize) {
+					for (int x = 0; x < server.getWidth(); x += tileSize) {
+						int w = Math.min(tileSize, server.getWidth() - x);
+						int h = Math.min(tileSize, server.getHeight() - y);
+						refinement.requests.add(RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h, z, 0));
+					}
+				}
+			}
+			return refinement;
+		}
+		
+		void start() {
+			nRemaining.set(requests.size());
+			for (RegionRequest request : requests)
+				pool.submit(() -> processTile(request));
+		}
+		
+		void cancel() {
+			cancelled = true;
+		}
+		
+		private void processTile(final RegionRequest request) {
+			if (cancelled)
+				return;
+			try {
+				BufferedImage img = store == null ? server.readBufferedImage(request) : store.getImage(server, request, -1, false);
+				if (img != null && !cancelled) {
+					int n = img.getWidth() * img.getHeight();
+					float[] values = null;
+					for (int c = 0; c < channels.size(); c++) {
+						values = channels.get(c).getValues(img, 0, 0, img.getWidth(), img.getHeight(), values);
+						HistogramAccumulator accumulatorTile = HistogramAccumulator.createWidenedAccumulator(histogramsOriginal.get(c), REFINEMENT_MARGIN);
+						accumulatorTile.addValues(values, 0, n);
+						HistogramAccumulator accumulator = accumulators.get(c);
+						synchronized (accumulator) {
+							accumulator.merge(accumulatorTile);
+						}
+					}
+				}
+			} catch (Exception e) {
+				logger.warn("Unable to refine histogram with {}: {}", request, e.getLocalizedMessage());
+				cancelled = true;
+			} finally {
+				if (nRemaining.decrementAndGet() == 0 && !cancelled) {
+					createHistograms();
+					callback.accept(this);
+				}
+			}
+		}
+		
+		private void createHistograms() {
+			for (int c = 0; c < channels.size(); c++) {
+				ChannelDisplayInfo info = channels.get(c);
+				HistogramAccumulator accumulator = accumulators.get(c);
+				long nOutside = accumulator.getCountBelowRange() + accumulator.getCountAboveRange();
+				if (nOutside > accumulator.nValues() * MAX_REFINEMENT_OUTSIDE_RANGE) {
+					logger.debug("Unable to refine histogram for {} - {} of {} values outside the expected range", info, nOutside, accumulator.nValues());
+					histogramsRefined.add(null);
+					continue;
+				}
+				Histogram histogram = accumulator.toTrimmedHistogram();
+				histogram.setNormalizeCounts(true);
+				histogramsRefined.add(histogram);
+				logger.debug("Refined histogram for {} from {} tiles: {}", info, requests.size(), histogram);
+			}
+		}
+		
+	}
+
 
 
 }
@@ -0,0 +1,302 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.display;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import qupath.lib.display.ChannelDisplayInfo.MultiChannelInfo;
+
+/**
+ * Helper class to composite multiple additive channels (e.g. for fluorescence images) into a packed RGB array.
+ * <p>
+ * This gives the same result as calling {@link ChannelDisplayInfo#getRGB(java.awt.image.BufferedImage, int[], boolean)} 
+ * for the first channel, then {@link ChannelDisplayInfo#updateRGBAdditive(java.awt.image.BufferedImage, int[], boolean)} 
+ * for each subsequent channel - but reads the raw pixel values directly from the raster where possible, 
+ * accumulates the contribution of all channels before clipping, and processes bands of rows in parallel for large images.
+ */
+class MultiChannelCompositor {
+	
+	/**
+	 * Approximate number of pixels to process in each parallel task.
+	 */
+	final private static int PIXELS_PER_TASK = 64 * 1024;
+	
+	/**
+	 * Check whether all the specified channels are supported, so that {@link #composite(Raster, List, boolean, int[])} may be used.
+	 * 
+	 * @param channels
+	 * @return
+	 */
+	static boolean canComposite(final List<? extends ChannelDisplayInfo> channels) {
+		if (channels.isEmpty())
+			return false;
+		for (ChannelDisplayInfo info : channels) {
+			if (!(info instanceof MultiChannelInfo))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Composite the specified channels, writing the output into a packed RGB array.
+	 * 
+	 * @param raster raster containing the pixel values, with one band per channel
+	 * @param channels the channels to display; all must be supported according to {@link #canComposite(List)}
+	 * @param useColorLUT if true, use the color of each channel - otherwise use grayscale
+	 * @param rgb array to store the output; a new array will be created if this is null or too short
+	 * @return
+	 */
+	static int[] composite(final Raster raster, final List<? extends ChannelDisplayInfo> channels, final boolean useColorLUT, int[] rgb) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		if (rgb == null || rgb.length < width * height)
+			rgb = new int[width * height];
+		
+		// Extract the parameters needed for each channel up front
+		int nChannels = channels.size();
+		ChannelParams[] params = new ChannelParams[nChannels];
+		for (int c = 0; c < nChannels; c++)
+			params[c] = new ChannelParams((MultiChannelInfo)channels.get(c), useColorLUT, c == 0);
+		
+		// Process bands of rows, in parallel if there are enough of them
+		int rowsPerTask = Math.max(1, PIXELS_PER_TASK / Math.max(1, width));
+		int nTasks = (height + rowsPerTask - 1) / rowsPerTask;
+		int[] output = rgb;
+		IntStream stream = IntStream.range(0, nTasks);
+		if (nTasks > 1)
+			stream = stream.parallel();
+		stream.forEach(t -> {
+			int y = t * rowsPerTask;
+			int nRows = Math.min(rowsPerTask, height - y);
+			compositeRows(raster, params, y, nRows, output);
+		});
+		return rgb;
+	}
+	
+	
+	private static void compositeRows(final Raster raster, final ChannelParams[] params, final int y, final int nRows, final int[] rgb) {
+		int width = raster.getWidth();
+		int n = width * nRows;
+		// Accumulate red, green & blue sums for all channels, packed into 16 bits each
+		long[] sums = new long[n];
+		float[] values = null;
+		
+		SampleModel sampleModel = raster.getSampleModel();
+		DataBuffer buffer = raster.getDataBuffer();
+		int dataType = buffer.getDataType();
+		boolean direct = sampleModel instanceof ComponentSampleModel && 
+				(dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_USHORT);
+		
+		for (ChannelParams p : params) {
+			if (p.skip)
+				continue;
+			if (direct) {
+				// Use the raw integer values to look up the result directly
+				ComponentSampleModel model = (ComponentSampleModel)sampleModel;
+				int bank = model.getBankIndices()[p.band];
+				int pixelStride = model.getPixelStride();
+				int scanlineStride = model.getScanlineStride();
+				int startOffset = getStartOffset(raster, model, p.band, y);
+				long[] table = p.getIntegerTable(dataType);
+				int i = 0;
+				if (dataType == DataBuffer.TYPE_BYTE) {
+					byte[] bytes = ((DataBufferByte)buffer).getData(bank);
+					for (int yy = 0; yy < nRows; yy++) {
+						int ind = startOffset + yy * scanlineStride;
+						for (int x = 0; x < width; x++) {
+							sums[i++] += table[bytes[ind] & 0xff];
+							ind += pixelStride;
+						}
+					}
+				} else {
+					short[] shorts = ((DataBufferUShort)buffer).getData(bank);
+					for (int yy = 0; yy < nRows; yy++) {
+						int ind = startOffset + yy * scanlineStride;
+						for (int x = 0; x < width; x++) {
+							sums[i++] += table[shorts[ind] & 0xffff];
+							ind += pixelStride;
+						}
+					}
+				}
+			} else {
+				values = readSamples(raster, p.band, y, nRows, values);
+				for (int i = 0; i < n; i++)
+					sums[i] += p.getPackedValue(values[i]);
+			}
+		}
+		
+		// Since all contributions are positive, clipping once at the end is equivalent to clipping after each channel
+		int offset = y * width;
+		for (int i = 0; i < n; i++) {
+			long sum = sums[i];
+			int r = (int)((sum >> 32) & 0xffff);
+			int g = (int)((sum >> 16) & 0xffff);
+			int b = (int)(sum & 0xffff);
+			rgb[offset + i] = (255 << 24) | 
+					((r > 255 ? 255 : r) << 16) | 
+					((g > 255 ? 255 : g) << 8) | 
+					(b > 255 ? 255 : b);
+		}
+	}
+	
+	
+	private static int getStartOffset(final Raster raster, final ComponentSampleModel model, final int band, final int y) {
+		int bank = model.getBankIndices()[band];
+		return raster.getDataBuffer().getOffsets()[bank] + model.getBandOffsets()[band] +
+				(raster.getMinX() - raster.getSampleModelTranslateX()) * model.getPixelStride() +
+				(raster.getMinY() + y - raster.getSampleModelTranslateY()) * model.getScanlineStride();
+	}
+	
+	
+	/**
+	 * Read all the samples for a band of rows, using the underlying data array directly where possible.
+	 * 
+	 * @param raster
+	 * @param band
+	 * @param y
+	 * @param nRows
+	 * @param values
+	 * @return
+	 */
+	private static float[] readSamples(final Raster raster, final int band, final int y, final int nRows, float[] values) {
+		int width = raster.getWidth();
+		if (values == null || values.length < width * nRows)
+			values = new float[width * nRows];
+		SampleModel sampleModel = raster.getSampleModel();
+		DataBuffer buffer = raster.getDataBuffer();
+		if (!(sampleModel instanceof ComponentSampleModel))
+			return raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, nRows, band, values);
+		
+		ComponentSampleModel model = (ComponentSampleModel)sampleModel;
+		int bank = model.getBankIndices()[band];
+		int pixelStride = model.getPixelStride();
+		int scanlineStride = model.getScanlineStride();
+		int startOffset = getStartOffset(raster, model, band, y);
+		
+		int i = 0;
+		switch (buffer.getDataType()) {
+		case DataBuffer.TYPE_SHORT:
+			short[] shorts = ((DataBufferShort)buffer).getData(bank);
+			for (int yy = 0; yy < nRows; yy++) {
+				int ind = startOffset + yy * scanlineStride;
+				for (int x = 0; x < width; x++) {
+					values[i++] = shorts[ind];
+					ind += pixelStride;
+				}
+			}
+			return values;
+		case DataBuffer.TYPE_FLOAT:
+			float[] floats = ((DataBufferFloat)buffer).getData(bank);
+			for (int yy = 0; yy < nRows; yy++) {
+				int ind = startOffset + yy * scanlineStride;
+				for (int x = 0; x < width; x++) {
+					values[i++] = floats[ind];
+					ind += pixelStride;
+				}
+			}
+			return values;
+		default:
+			return raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, nRows, band, values);
+		}
+	}
+	
+	
+	/**
+	 * Display parameters for a single channel.
+	 */
+	private static class ChannelParams {
+		
+		private final int band;
+		private final long[] packedLUT;
+		private final float offset;
+		private final float scale;
+		private final boolean threshold;
+		private final boolean skip;
+		
+		private long[] integerTable;
+		
+		ChannelParams(final MultiChannelInfo info, final boolean useColorLUT, final boolean firstChannel) {
+			this.band = info.getChannel();
+			int[] lut = info.getLUT(useColorLUT);
+			this.packedLUT = new long[lut.length];
+			for (int i = 0; i < lut.length; i++) {
+				int val = lut[i];
+				packedLUT[i] = ((long)((val >> 16) & 0xff) << 32) | ((long)((val >> 8) & 0xff) << 16) | (val & 0xff);
+			}
+			this.offset = info.getMinDisplay();
+			this.scale = 255.f / (info.getMaxDisplay() - info.getMinDisplay());
+			// With a display range of 0, the first channel is effectively thresholded - 
+			// while additional channels are ignored
+			boolean zeroRange = info.getMaxDisplay() == info.getMinDisplay();
+			this.threshold = zeroRange && firstChannel;
+			this.skip = zeroRange && !firstChannel;
+		}
+		
+		/**
+		 * Get the red, green &amp; blue contributions for a pixel value, each packed into 16 bits.
+		 * 
+		 * @param v
+		 * @return
+		 */
+		long getPackedValue(final float v) {
+			int ind;
+			if (threshold)
+				ind = v > offset ? 255 : 0;
+			else {
+				float s = (v - offset) * scale;
+				ind = s < 0 ? 0 : (s > 255 ? 255 : (int)s);
+			}
+			return packedLUT[ind];
+		}
+		
+		/**
+		 * Get a table giving the packed value for every possible unsigned 8-bit or 16-bit value.
+		 * 
+		 * @param dataType
+		 * @return
+		 */
+		synchronized long[] getIntegerTable(final int dataType) {
+			int n = dataType == DataBuffer.TYPE_BYTE ? 256 : 65536;
+			if (integerTable == null || integerTable.length != n) {
+				long[] table = new long[n];
+				for (int i = 0; i < n; i++)
+					table[i] = getPackedValue(i);
+				integerTable = table;
+			}
+			return integerTable;
+		}
+		
+	}
+
+}
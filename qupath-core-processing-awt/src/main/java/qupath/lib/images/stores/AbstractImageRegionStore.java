@@ -23,22 +23,30 @@
 
 package qupath.lib.images.stores;
 
+import java.awt.Rectangle;
 import java.awt.Shape;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -86,16 +94,50 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	// Cache image thumbnails
 	protected RegionCache<T> thumbnailCache;
 	
+	// Optional second-level cache, used before requesting tiles from the server
+	private volatile PersistentTileCache<T> persistentCache;
+	
 	private int thumbnailWidth;
 
 	
 	private TileRequestManager manager = new TileRequestManager(10);
 	
+	/**
+	 * Priority for requests that a caller is waiting for - these are handled first.
+	 */
+	static final int PRIORITY_BLOCKING = 0;
+	
+	/**
+	 * Priority for requests for tiles that are currently visible.
+	 */
+	static final int PRIORITY_VISIBLE = 1;
+	
+	/**
+	 * Priority for requests that are made in anticipation of tiles being needed soon.
+	 */
+	static final int PRIORITY_PREFETCH = 2;
+	
+	final private static AtomicLong requestCounter = new AtomicLong();
+	
 	// Create two threadpools: a larger one for images that need to be fetched (e.g. from disk, cloud storage), and a smaller one
 	// for painting image tiles... the reason being that the high latency of distantly-stored images otherwise risks lowering
 	// repainting performance
-	private ExecutorService pool = Executors.newFixedThreadPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), new SimpleThreadFactory("region-store-", false));
-	private ExecutorService poolLocal = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new SimpleThreadFactory("region-store-local-", false));
+	// Queued tasks are ordered by priority (see TilePriorityComparator) rather than first-come-first-served
+	private ThreadPoolExecutor pool = createPriorityPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), "region-store-");
+	private ThreadPoolExecutor poolLocal = createPriorityPool(Runtime.getRuntime().availableProcessors(), "region-store-local-");
+	
+	// Workers requested for visible tiles, which may be cancelled if they are no longer visible before they start
+	// (Modified only while synchronized on the waitingMap)
+	private Set<DefaultTileWorker> visibleWorkers = ConcurrentHashMap.newKeySet();
+	
+	private LongAdder cancelledRequestCount = new LongAdder();
+	
+	
+	private static ThreadPoolExecutor createPriorityPool(final int nThreads, final String prefix) {
+		return new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<>(64, new TilePriorityComparator()),
+				new SimpleThreadFactory(prefix, false));
+	}
 	
 	
 
@@ -190,6 +232,47 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	}
 	
 	
+	/**
+	 * Set a second-level cache, which will be checked before reading any tile from an ImageServer 
+	 * (apart from GeneratingImageServers), and updated with any tile that is read.
+	 * 
+	 * @param persistentCache the cache, or null if no second-level cache should be used
+	 */
+	public void setPersistentTileCache(final PersistentTileCache<T> persistentCache) {
+		this.persistentCache = persistentCache;
+	}
+	
+	/**
+	 * Get the second-level cache, if one has been set.
+	 * 
+	 * @return
+	 */
+	public PersistentTileCache<T> getPersistentTileCache() {
+		return persistentCache;
+	}
+	
+	
+	/**
+	 * Read a tile from the server, checking the persistent cache first (if available).
+	 * 
+	 * @param server
+	 * @param request
+	 * @return
+	 */
+	protected T readTile(final ImageServer<T> server, final RegionRequest request) {
+		PersistentTileCache<T> persistentCache = this.persistentCache;
+		if (persistentCache == null || server instanceof GeneratingImageServer)
+			return server.readBufferedImage(request);
+		T img = persistentCache.getTile(server, request);
+		if (img != null)
+			return img;
+		img = server.readBufferedImage(request);
+		if (img != null)
+			persistentCache.putTile(server, request, img);
+		return img;
+	}
+	
+	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.ImageRegionStore#removeTileListener(qupath.lib.images.stores.TileListener)
 	 */
@@ -222,6 +305,7 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	 */
 	protected void workerComplete(final TileWorker<T> worker) {
 		workers.remove(worker);
+		visibleWorkers.remove(worker);
 		manager.taskCompleted(worker);
    		if (worker.isCancelled() || !stopWaiting(worker.getRequest())) {
    			return;
@@ -247,12 +331,30 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	
 	
 	protected T getCachedRegion(final ImageServer<T> server, final RegionRequest request) {
+		return getCachedRegion(server, request, Double.NaN, Double.NaN, null);
+	}
+	
+	/**
+	 * Get a cached tile, or request it with the priority of a visible tile if it isn't available.
+	 * <p>
+	 * Visible tiles are requested with coarser resolutions first, then according to their distance 
+	 * from the specified center (if available).
+	 * 
+	 * @param server
+	 * @param request
+	 * @param xCenter x-coordinate of the center of the visible region, or NaN if unknown
+	 * @param yCenter y-coordinate of the center of the visible region, or NaN if unknown
+	 * @param viewKey key identifying the view (e.g. viewer) for which the tile is visible, or null if unknown; 
+	 * 				  see {@link #cancelInvisibleRequests(Object, String, Rectangle, int, int)}
+	 * @return
+	 */
+	protected T getCachedRegion(final ImageServer<T> server, final RegionRequest request, final double xCenter, final double yCenter, final Object viewKey) {
 		if (server == null)
 			return null;
 		// Only need to use server path & region as the hash key, because we are relying on the tile size never changing...
 		// so different requests should never end up wanting the same region
 		// If this gives trouble, the downsample could be added
-		Object result = requestImageTile(server, request, cache, false);
+		Object result = requestImageTile(server, request, cache, false, PRIORITY_VISIBLE, getDistance(request, xCenter, yCenter), viewKey);
 		if (!(result == null || result instanceof TileWorker<?>)) {
 			@SuppressWarnings("unchecked")
 			T img = (T)result;
@@ -279,11 +381,27 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	 * 	- a T for the tile
 	 * 	- the TileWorker<T> object currently charged with fetching the tile
 	 * 	- null, if this is the value stored in the TiledImageCache (i.e. the tile has previously been fetched, and there is no image corresponding to the request)
+	 * <p>
+	 * The cache handles its own concurrency, so only starting a new worker requires locking (on the waiting map) - 
+	 * this avoids tile requests from different threads queuing up behind one another.
+	 * 
 	 * @param server
 	 * @param request
 	 * @return
 	 */
-	protected synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
+	protected Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
+		return requestImageTile(server, request, cache, ensureTileReturned, ensureTileReturned ? PRIORITY_BLOCKING : PRIORITY_PREFETCH, 0, null);
+	}
+	
+	private static double getDistance(final RegionRequest request, final double xCenter, final double yCenter) {
+		if (Double.isNaN(xCenter) || Double.isNaN(yCenter))
+			return 0;
+		double dx = request.getX() + request.getWidth() / 2.0 - xCenter;
+		double dy = request.getY() + request.getHeight() / 2.0 - yCenter;
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+	
+	private Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned, final int priority, final double distance, final Object viewKey) {
 		T img = cache.get(request);
 		if (img != null)
 			return img;
@@ -298,27 +416,24 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 			return null;
 		}
 		// Start a worker & add to the list
-		TileWorker<T> worker = null;
-		worker = (TileWorker<T>)waitingMap.get(request); // TODO: Consider if this is a bad idea...
-		if (worker == null) {
-			worker = createTileWorker(server, request, cache, ensureTileReturned);
-			workers.add(worker);
-			if (server instanceof GeneratingImageServer) {
-				if (poolLocal.isShutdown())
+		synchronized (waitingMap) {
+			TileWorker<T> worker = null;
+			worker = (TileWorker<T>)waitingMap.get(request); // TODO: Consider if this is a bad idea...
+			if (worker == null) {
+				ExecutorService poolToUse = server instanceof GeneratingImageServer ? poolLocal : pool;
+				if (poolToUse.isShutdown())
 					return null;
-				poolLocal.execute(worker);
-			}
-			else {
-				if (pool.isShutdown())
-					return null;
-				pool.execute(worker);
-			}
-//			worker.execute();
-//				System.out.println("Event dispatch putting: " + SwingUtilities.isEventDispatchThread());
-			waitingMap.put(request, worker);
+				worker = createTileWorker(server, request, cache, ensureTileReturned);
+				setPriority(worker, priority, distance, viewKey);
+				workers.add(worker);
+				// Register as waiting before executing, so that a fast worker can't complete first
+				waitingMap.put(request, worker);
+				poolToUse.execute(worker);
+			} else
+				raisePriority(worker, priority, distance, viewKey);
+	//		workersToWait.add(worker);
+			return worker;
 		}
-//		workersToWait.add(worker);
-		return worker;
 	}
 	
 	
@@ -328,6 +443,113 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	protected TileWorker<T> createTileWorker(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
 		return new DefaultTileWorker(server, request, cache, ensureTileReturned);
 	}
+	
+	/**
+	 * Set the priority of a worker, which must not yet have been submitted for execution.
+	 * <p>
+	 * This must be called while synchronized on the waitingMap.
+	 * 
+	 * @param worker
+	 * @param priority
+	 * @param distance
+	 * @param viewKey
+	 */
+	private void setPriority(final TileWorker<T> worker, final int priority, final double distance, final Object viewKey) {
+		if (!(worker instanceof AbstractImageRegionStore.DefaultTileWorker))
+			return;
+		@SuppressWarnings("unchecked")
+		DefaultTileWorker defaultWorker = (DefaultTileWorker)worker;
+		defaultWorker.priority = priority;
+		defaultWorker.distance = distance;
+		// Don't track completed workers, since they would never be removed
+		if (priority == PRIORITY_VISIBLE && !defaultWorker.isDone()) {
+			if (viewKey != null)
+				defaultWorker.viewKeys.add(viewKey);
+			visibleWorkers.add(defaultWorker);
+		}
+	}
+	
+	/**
+	 * Update the priority of a worker that has already been submitted, because another caller has requested the same tile.
+	 * <p>
+	 * If the new request is more urgent (e.g. a blocking caller is joining a prefetch request), the worker is moved 
+	 * within the queue.  Workers with blocking callers are never cancelled by {@link #cancelInvisibleRequests(Object, String, Rectangle, int, int)}.
+	 * <p>
+	 * This must be called while synchronized on the waitingMap.
+	 * 
+	 * @param worker
+	 * @param priority
+	 * @param distance
+	 * @param viewKey
+	 */
+	private void raisePriority(final TileWorker<T> worker, final int priority, final double distance, final Object viewKey) {
+		if (!(worker instanceof AbstractImageRegionStore.DefaultTileWorker))
+			return;
+		@SuppressWarnings("unchecked")
+		DefaultTileWorker defaultWorker = (DefaultTileWorker)worker;
+		if (priority == PRIORITY_VISIBLE && defaultWorker.priority == PRIORITY_VISIBLE && viewKey != null)
+			defaultWorker.viewKeys.add(viewKey);
+		if (priority >= defaultWorker.priority)
+			return;
+		// The queue order can't be updated in place, so the worker needs to be removed & resubmitted
+		ThreadPoolExecutor poolToUse = null;
+		if (pool.remove(defaultWorker))
+			poolToUse = pool;
+		else if (poolLocal.remove(defaultWorker))
+			poolToUse = poolLocal;
+		if (priority == PRIORITY_BLOCKING)
+			visibleWorkers.remove(defaultWorker);
+		setPriority(defaultWorker, priority, distance, viewKey);
+		if (poolToUse != null)
+			poolToUse.execute(defaultWorker);
+	}
+	
+	/**
+	 * Cancel requests for visible tiles that have not yet started, if they were requested for a specified view 
+	 * but do not overlap the region that is now visible within it.
+	 * <p>
+	 * This avoids continuing to fetch tiles for regions that have been panned or zoomed away from.
+	 * Requests that are still visible for another view, or that a blocking caller is waiting for, are not cancelled.
+	 * 
+	 * @param viewKey key identifying the view (e.g. viewer), as passed to {@link #getCachedRegion(ImageServer, RegionRequest, double, double, Object)}
+	 * @param serverPath path of the server currently shown in the view
+	 * @param visibleBounds bounds of the visible region, in full-resolution image coordinates
+	 * @param zPosition
+	 * @param tPosition
+	 */
+	protected void cancelInvisibleRequests(final Object viewKey, final String serverPath, final Rectangle visibleBounds, final int zPosition, final int tPosition) {
+		if (viewKey == null)
+			return;
+		synchronized (waitingMap) {
+			for (DefaultTileWorker worker : visibleWorkers) {
+				if (!worker.viewKeys.contains(viewKey))
+					continue;
+				RegionRequest request = worker.getRequest();
+				if (serverPath.equals(request.getPath()) && request.getZ() == zPosition && request.getT() == tPosition && 
+						visibleBounds.intersects(request.getX(), request.getY(), request.getWidth(), request.getHeight()))
+					continue;
+				worker.viewKeys.remove(viewKey);
+				if (!worker.viewKeys.isEmpty() || worker.priority != PRIORITY_VISIBLE)
+					continue;
+				// Only cancel tasks that are still queued
+				if (pool.remove(worker) || poolLocal.remove(worker)) {
+					waitingMap.remove(request, worker);
+					visibleWorkers.remove(worker);
+					worker.cancel(false);
+					cancelledRequestCount.increment();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of tile requests that have been cancelled because they were no longer visible.
+	 * 
+	 * @return
+	 */
+	public long getCancelledRequestCount() {
+		return cancelledRequestCount.sum();
+	}
 
 	
 	
@@ -366,7 +588,7 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	public synchronized void clearCacheForServer(final ImageServer<T> server) {
 		clearingCache = true;
 		// Ensure any current requests are discarded
-		if (!waitingMap.isEmpty()) {
+		synchronized (waitingMap) {
 			String serverPath = server.getPath();
 			Iterator<Entry<RegionRequest, TileWorker<T>>> iter = waitingMap.entrySet().iterator();
 			while (iter.hasNext()) {
@@ -390,7 +612,7 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	@Override
 	public synchronized void clearCacheForRequestOverlap(final RegionRequest request) {
 		// Ensure any current requests are discarded
-		if (!waitingMap.isEmpty()) {
+		synchronized (waitingMap) {
 			Iterator<Entry<RegionRequest, TileWorker<T>>> iter = waitingMap.entrySet().iterator();
 			while (iter.hasNext()) {
 				Entry<RegionRequest, TileWorker<T>> entry = iter.next();
@@ -416,6 +638,9 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 			worker.cancel(true);
 		pool.shutdownNow();
 		poolLocal.shutdownNow();
+		logger.debug("Closing region store - {}", cache);
+		if (persistentCache != null)
+			logger.debug("Closing region store - {}", persistentCache);
 		cache.clear();
 	}
 	
@@ -493,17 +718,22 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 					continue;
 				}
 				RegionRequest request = temp.nextTileRequest();
-				if (cache.containsKey(request) || waitingMap.containsKey(request))
+				if (cache.containsKey(request))
 					continue;
 				
-				TileWorker<T> worker = createTileWorker(temp.server, request, cache, false);
-				waitingMap.put(request, worker);
-				if (temp.server instanceof GeneratingImageServer) {
-					if (!poolLocal.isShutdown())
-						poolLocal.execute(worker);
-				} else {
-					if (!pool.isShutdown())
-						pool.execute(worker);
+				TileWorker<T> worker;
+				synchronized (waitingMap) {
+					if (waitingMap.containsKey(request))
+						continue;
+					worker = createTileWorker(temp.server, request, cache, false);
+					waitingMap.put(request, worker);
+					if (temp.server instanceof GeneratingImageServer) {
+						if (!poolLocal.isShutdown())
+							poolLocal.execute(worker);
+					} else {
+						if (!pool.isShutdown())
+							pool.execute(worker);
+					}
 				}
 //				worker.execute();
 				requestedWorkers.add(worker);
@@ -630,16 +860,82 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	
 	
 	
+	/**
+	 * Task with a priority, used to order tile requests waiting to be executed.
+	 */
+	static interface PrioritizedTask {
+		
+		/**
+		 * Priority level, where lower values are more urgent.
+		 * @return
+		 */
+		int getPriority();
+		
+		/**
+		 * Downsample of the tile being requested.
+		 * @return
+		 */
+		double getDownsample();
+		
+		/**
+		 * Distance of the requested tile from the center of the visible region, or 0 if this is not known.
+		 * @return
+		 */
+		double getDistance();
+		
+		/**
+		 * Sequence number of the request, used to maintain the order of requests that are otherwise equal.
+		 * @return
+		 */
+		long getSequence();
+		
+	}
+	
+	
+	/**
+	 * Comparator to order tile requests by priority, then with coarser resolutions first, 
+	 * then closest to the center of the visible region.
+	 */
+	static class TilePriorityComparator implements Comparator<Runnable> {
+
+		@Override
+		public int compare(Runnable r1, Runnable r2) {
+			if (!(r1 instanceof PrioritizedTask) || !(r2 instanceof PrioritizedTask))
+				return Boolean.compare(r2 instanceof PrioritizedTask, r1 instanceof PrioritizedTask);
+			PrioritizedTask t1 = (PrioritizedTask)r1;
+			PrioritizedTask t2 = (PrioritizedTask)r2;
+			int cmp = Integer.compare(t1.getPriority(), t2.getPriority());
+			if (cmp != 0)
+				return cmp;
+			cmp = -Double.compare(t1.getDownsample(), t2.getDownsample());
+			if (cmp != 0)
+				return cmp;
+			cmp = Double.compare(t1.getDistance(), t2.getDistance());
+			if (cmp != 0)
+				return cmp;
+			return Long.compare(t1.getSequence(), t2.getSequence());
+		}
+		
+	}
+	
+	
 	/**
 	 * Worker for fetching image tiles asynchronously & adding to the tile cache.
 	 * 
 	 * @author Pete Bankhead
 	 *
 	 */
-	class DefaultTileWorker extends FutureTask<T> implements TileWorker<T> {
+	class DefaultTileWorker extends FutureTask<T> implements TileWorker<T>, PrioritizedTask {
 		
 		private final RegionCache<T> cache;
 		private final RegionRequest request;
+		private final long sequence = requestCounter.incrementAndGet();
+		
+		private int priority = PRIORITY_PREFETCH;
+		private double distance = 0;
+		
+		// Views for which this (visible) tile was requested; modified only while synchronized on the waitingMap
+		private final Set<Object> viewKeys = new HashSet<>();
 		
 		DefaultTileWorker(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
 			super(new Callable<T>() {
@@ -653,12 +949,12 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 			    		return imgTile;
 			    	// TODO: Investigate the (current) purpose of ensureTileReturned... doesn't seem to do anything here
 			    	if (ensureTileReturned)
-			    		return server.readBufferedImage(request);	
+			    		return readTile(server, request);	
 			    	// Check if we still need the tile... if not, and we go searching, there can be a backlog
 			    	// making any requests slower to fulfill
 			    	// (Also, grab a snapshot of the listener list to avoid concurrent modifications)
 //			    	long t1 = System.currentTimeMillis();
-			    	T img = server.readBufferedImage(request);
+			    	T img = readTile(server, request);
 //			    	long t2 = System.currentTimeMillis();
 //			    	System.out.println("Tile request time: " + (t2 - t1));
 			    	return img;
@@ -679,6 +975,26 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 		public RegionCache<T> getRequestedCache() {
 	    	return cache;
 	    }
+	    
+	    @Override
+	    public int getPriority() {
+	    	return priority;
+	    }
+	    
+	    @Override
+	    public double getDownsample() {
+	    	return request.getDownsample();
+	    }
+	    
+	    @Override
+	    public double getDistance() {
+	    	return distance;
+	    }
+	    
+	    @Override
+	    public long getSequence() {
+	    	return sequence;
+	    }
 
 	    
 	    @Override
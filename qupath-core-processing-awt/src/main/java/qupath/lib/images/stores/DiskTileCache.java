@@ -0,0 +1,515 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.images.stores;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * A {@link PersistentTileCache} that stores decoded tiles as compressed (deflated) files within a directory.
+ * <p>
+ * Each file is identified by the server path and the region request, along with the modification time of the 
+ * image file for local images.  Hosted images (with http or https URLs) are assumed not to change.
+ * The least-recently-used files are deleted whenever the total size exceeds the specified maximum.
+ * <p>
+ * Tiles are written on a single background thread, so that reading tiles isn't held up by writing them; 
+ * if too many writes are pending, further tiles are skipped.  {@link #close()} waits for any pending writes.
+ * <p>
+ * Only standard BufferedImage types backed by a single int, byte or ushort bank are supported (e.g. TYPE_INT_RGB, 
+ * as returned when reading whole slide images); other tiles are simply not stored.
+ * <p>
+ * Access order is only tracked while the cache is open; when it is reopened, files are ordered by the time they were written.
+ */
+public class DiskTileCache implements PersistentTileCache<BufferedImage> {
+	
+	final private static Logger logger = LoggerFactory.getLogger(DiskTileCache.class);
+	
+	private static final int MAGIC = 0x51505443; // QPTC
+	private static final int VERSION = 2;
+	private static final String EXTENSION = ".tile";
+	
+	/**
+	 * Maximum number of tiles waiting to be written
+	 */
+	private static final int MAX_PENDING_WRITES = 128;
+	
+	private final Path dir;
+	private final long maxBytes;
+	
+	// Map of file names to file sizes, in access order
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(64, 0.75f, true);
+	private long currentBytes = 0;
+	
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder writeCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder errorCount = new LongAdder();
+	private final LongAdder skippedCount = new LongAdder();
+	
+	private final Set<String> pendingWrites = ConcurrentHashMap.newKeySet();
+	private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(MAX_PENDING_WRITES), new SimpleThreadFactory("disk-tile-cache-", true));
+	
+	/**
+	 * Create a cache using a specified directory, which will be created if necessary.
+	 * Any tiles already in the directory (from a previous session) will be reused.
+	 * 
+	 * @param dir
+	 * @param maxBytes maximum total size of all cached files
+	 * @throws IOException 
+	 */
+	public DiskTileCache(final File dir, final long maxBytes) throws IOException {
+		this.dir = dir.toPath();
+		this.maxBytes = maxBytes;
+		Files.createDirectories(this.dir);
+		
+		// Index the existing files, oldest first
+		long startTime = System.currentTimeMillis();
+		List<Path> existing;
+		try (Stream<Path> stream = Files.walk(this.dir, 2)) {
+			existing = stream.filter(p -> p.getFileName().toString().endsWith(EXTENSION)).collect(Collectors.toList());
+		}
+		List<File> files = new ArrayList<>();
+		for (Path p : existing)
+			files.add(p.toFile());
+		files.sort(Comparator.comparingLong(File::lastModified));
+		synchronized (this) {
+			for (File file : files) {
+				long size = file.length();
+				index.put(file.getName(), size);
+				currentBytes += size;
+			}
+			ensureWithinLimit();
+		}
+		long endTime = System.currentTimeMillis();
+		logger.debug("Indexed {} cached tiles in {} ms", files.size(), endTime - startTime);
+	}
+	
+	
+	@Override
+	public BufferedImage getTile(final ImageServer<BufferedImage> server, final RegionRequest request) {
+		String key = getKey(server, request);
+		if (key == null)
+			return null;
+		String name = getFileName(key);
+		synchronized (this) {
+			if (index.get(name) == null) {
+				missCount.increment();
+				return null;
+			}
+		}
+		Path path = getPath(name);
+		try {
+			// Read the whole file rather than mapping it, so that it can always be deleted afterwards
+			BufferedImage img = readImage(ByteBuffer.wrap(Files.readAllBytes(path)), key);
+			if (img != null) {
+				hitCount.increment();
+				return img;
+			}
+		} catch (Exception e) {
+			logger.debug("Unable to read cached tile " + path, e);
+			errorCount.increment();
+		}
+		// Something was wrong with the file, so remove it
+		missCount.increment();
+		remove(name);
+		return null;
+	}
+	
+	
+	@Override
+	public void putTile(final ImageServer<BufferedImage> server, final RegionRequest request, final BufferedImage img) {
+		if (img == null || !isSupported(img))
+			return;
+		String key = getKey(server, request);
+		if (key == null)
+			return;
+		String name = getFileName(key);
+		synchronized (this) {
+			if (index.containsKey(name))
+				return;
+		}
+		if (!pendingWrites.add(name))
+			return;
+		try {
+			writer.execute(() -> {
+				try {
+					writeTile(name, key, img);
+				} finally {
+					pendingWrites.remove(name);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Too many pending writes, or the cache has been closed
+			pendingWrites.remove(name);
+			skippedCount.increment();
+		}
+	}
+	
+	
+	private void writeTile(final String name, final String key, final BufferedImage img) {
+		Path path = getPath(name);
+		Path pathTemp = null;
+		try {
+			Files.createDirectories(path.getParent());
+			pathTemp = Files.createTempFile(path.getParent(), name, ".tmp");
+			try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(pathTemp))) {
+				writeImage(stream, img, key);
+			}
+			Files.move(pathTemp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			pathTemp = null;
+			long size = Files.size(path);
+			synchronized (this) {
+				Long previous = index.put(name, size);
+				if (previous != null)
+					currentBytes -= previous;
+				currentBytes += size;
+				ensureWithinLimit();
+			}
+			writeCount.increment();
+		} catch (IOException e) {
+			logger.debug("Unable to write cached tile " + path, e);
+			errorCount.increment();
+		} finally {
+			if (pathTemp != null) {
+				try {
+					Files.deleteIfExists(pathTemp);
+				} catch (IOException e) {
+					logger.debug("Unable to delete temp file {}", pathTemp);
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Write any pending tiles, and stop accepting new ones.
+	 * <p>
+	 * Tiles already written remain available when the cache is next opened.
+	 */
+	@Override
+	public void close() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(30, TimeUnit.SECONDS))
+				logger.warn("Timed out writing tiles to {}", dir);
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while writing tiles to {}", dir);
+			Thread.currentThread().interrupt();
+		}
+		logger.debug("Closed {}", this);
+	}
+	
+	
+	/**
+	 * Delete all cached tiles.
+	 */
+	public synchronized void clear() {
+		for (String name : new ArrayList<>(index.keySet()))
+			remove(name);
+	}
+	
+	
+	private synchronized void remove(final String name) {
+		Long size = index.remove(name);
+		if (size != null)
+			currentBytes -= size;
+		try {
+			Files.deleteIfExists(getPath(name));
+		} catch (IOException e) {
+			logger.debug("Unable to delete cached tile {}", name);
+		}
+	}
+	
+	
+	private synchronized void ensureWithinLimit() {
+		Iterator<Entry<String, Long>> iter = index.entrySet().iterator();
+		while (currentBytes > maxBytes && iter.hasNext()) {
+			Entry<String, Long> entry = iter.next();
+			iter.remove();
+			currentBytes -= entry.getValue();
+			evictionCount.increment();
+			try {
+				Files.deleteIfExists(getPath(entry.getKey()));
+			} catch (IOException e) {
+				logger.debug("Unable to delete cached tile {}", entry.getKey());
+			}
+		}
+	}
+	
+	
+	private Path getPath(final String name) {
+		return dir.resolve(name.substring(0, 2)).resolve(name);
+	}
+	
+	
+	/**
+	 * Get a key that uniquely identifies the tile, or null if the tile shouldn't be cached.
+	 */
+	static String getKey(final ImageServer<?> server, final RegionRequest request) {
+		String serverPath = server.getPath();
+		long lastModified = getLastModified(serverPath);
+		if (lastModified <= 0) {
+			// We can't check if hosted images have changed, so use the URL alone
+			if (serverPath.startsWith("http://") || serverPath.startsWith("https://"))
+				lastModified = 0;
+			else
+				return null;
+		}
+		return String.format("%s|%d|%s|%d|%d|%d|%d|%d|%d", 
+				request.getPath(), lastModified, Double.toString(request.getDownsample()),
+				request.getX(), request.getY(), request.getWidth(), request.getHeight(), request.getZ(), request.getT());
+	}
+	
+	
+	private static long getLastModified(final String serverPath) {
+		File file = new File(serverPath);
+		if (!file.isFile()) {
+			// Paths can include a suffix, e.g. for a series within a file
+			int ind = serverPath.lastIndexOf("::");
+			if (ind <= 0)
+				return -1;
+			file = new File(serverPath.substring(0, ind));
+			if (!file.isFile())
+				return -1;
+		}
+		return file.lastModified();
+	}
+	
+	
+	private static String getFileName(final String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length * 2 + EXTENSION.length());
+			for (byte b : digest)
+				sb.append(String.format("%02x", b & 0xff));
+			sb.append(EXTENSION);
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is required to be available on every Java platform
+			throw new RuntimeException(e);
+		}
+	}
+	
+	
+	static boolean isSupported(final BufferedImage img) {
+		int elementsPerPixel;
+		switch (img.getType()) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_ARGB_PRE:
+		case BufferedImage.TYPE_INT_BGR:
+		case BufferedImage.TYPE_BYTE_GRAY:
+		case BufferedImage.TYPE_USHORT_GRAY:
+			elementsPerPixel = 1;
+			break;
+		case BufferedImage.TYPE_3BYTE_BGR:
+			elementsPerPixel = 3;
+			break;
+		case BufferedImage.TYPE_4BYTE_ABGR:
+		case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+			elementsPerPixel = 4;
+			break;
+		default:
+			return false;
+		}
+		// Require that the raster uses the entire (single) bank, with no offsets (i.e. it isn't a child raster)
+		WritableRaster raster = img.getRaster();
+		DataBuffer data = raster.getDataBuffer();
+		return data.getNumBanks() == 1 && data.getOffset() == 0 &&
+				raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0 &&
+				data.getSize() == img.getWidth() * img.getHeight() * elementsPerPixel;
+	}
+	
+	
+	/**
+	 * Write an image to a stream: a short uncompressed header, followed by the deflated pixel data.
+	 */
+	private static void writeImage(final OutputStream stream, final BufferedImage img, final String key) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		DataBuffer data = img.getRaster().getDataBuffer();
+		int bytesPerElement = DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+		ByteBuffer buffer = ByteBuffer.allocate(data.getSize() * bytesPerElement);
+		if (data instanceof DataBufferInt)
+			buffer.asIntBuffer().put(((DataBufferInt)data).getData());
+		else if (data instanceof DataBufferUShort)
+			buffer.asShortBuffer().put(((DataBufferUShort)data).getData());
+		else
+			buffer.put(((DataBufferByte)data).getData());
+		
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(keyBytes.length);
+		out.write(keyBytes);
+		out.writeInt(img.getType());
+		out.writeInt(img.getWidth());
+		out.writeInt(img.getHeight());
+		out.writeInt(data.getSize());
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			DeflaterOutputStream outDeflated = new DeflaterOutputStream(out, deflater);
+			outDeflated.write(buffer.array());
+			outDeflated.finish();
+		} finally {
+			deflater.end();
+		}
+		out.flush();
+	}
+	
+	
+	private static BufferedImage readImage(final ByteBuffer buffer, final String key) throws DataFormatException {
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			return null;
+		byte[] keyBytes = new byte[buffer.getInt()];
+		buffer.get(keyBytes);
+		// Check for a hash collision
+		if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8)))
+			return null;
+		int type = buffer.getInt();
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		int size = buffer.getInt();
+		BufferedImage img = new BufferedImage(width, height, type);
+		DataBuffer data = img.getRaster().getDataBuffer();
+		if (data.getSize() != size)
+			return null;
+		
+		int bytesPerElement = DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+		byte[] bytes = new byte[size * bytesPerElement];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(buffer.array(), buffer.position(), buffer.remaining());
+			int n = 0;
+			while (n < bytes.length && !inflater.finished()) {
+				int nRead = inflater.inflate(bytes, n, bytes.length - n);
+				if (nRead == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					return null;
+				n += nRead;
+			}
+			if (n != bytes.length)
+				return null;
+		} finally {
+			inflater.end();
+		}
+		
+		ByteBuffer pixels = ByteBuffer.wrap(bytes);
+		if (data instanceof DataBufferInt)
+			pixels.asIntBuffer().get(((DataBufferInt)data).getData());
+		else if (data instanceof DataBufferUShort)
+			pixels.asShortBuffer().get(((DataBufferUShort)data).getData());
+		else
+			pixels.get(((DataBufferByte)data).getData());
+		return img;
+	}
+	
+	
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getWriteCount() {
+		return writeCount.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+	
+	/**
+	 * Number of tiles that weren't written because too many writes were already pending.
+	 * @return
+	 */
+	public long getSkippedCount() {
+		return skippedCount.sum();
+	}
+	
+	public synchronized int size() {
+		return index.size();
+	}
+	
+	public synchronized long getSizeBytes() {
+		return currentBytes;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Disk tile cache %s: %d tiles, %.1f/%.1f MB, hits: %d, misses: %d, writes: %d, skipped: %d, evictions: %d, errors: %d",
+				dir, size(), getSizeBytes()/(1024.*1024.), maxBytes/(1024.*1024.),
+				getHitCount(), getMissCount(), getWriteCount(), getSkippedCount(), getEvictionCount(), getErrorCount());
+	}
+
+}
@@ -27,7 +27,12 @@ import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.common.GeneralTools;
@@ -47,6 +52,92 @@ import qupath.lib.regions.RegionRequest;
  */
 public class ImageRegionStoreHelpers {
 	
+	/**
+	 * Maximum number of tile grids to retain, where each grid corresponds to one resolution level of one image.
+	 */
+	final private static int MAX_TILE_GRIDS = 64;
+	
+	/**
+	 * Maximum number of tile requests retained for each grid; when exceeded, the grid is trimmed back to 3/4 of this.
+	 */
+	final private static int MAX_TILES_PER_GRID = 1024;
+	
+	/**
+	 * Tiles within this many tiles of the latest request (in the same plane) are preferred when trimming a grid.
+	 */
+	final private static int TRIM_TILE_RADIUS = 12;
+	
+	/**
+	 * Number of bits used for each tile index, and for each of z &amp; t, within a packed tile key.
+	 */
+	final private static int TILE_INDEX_BITS = 20;
+	final private static int PLANE_BITS = 12;
+	
+	/**
+	 * Previously-created tile requests, so that the same instances can be returned whenever the same tile is needed
+	 * (e.g. for every repaint) rather than allocating new requests each time.
+	 * <p>
+	 * Each grid is shared by all requests for one resolution level of one image.
+	 */
+	final private static Map<TileGridKey, TileGrid> tileGrids = new ConcurrentHashMap<>();
+	
+	/**
+	 * Most recently used grid, which is almost always the one needed for the next repaint.
+	 */
+	private static volatile TileGrid lastGrid;
+	
+	/**
+	 * Counter used to determine which grid has been used least recently.
+	 */
+	final private static AtomicLong gridAccessCounter = new AtomicLong();
+	
+	
+	/**
+	 * Get the grid used to store tile requests for one resolution level of an image, creating it if necessary.
+	 */
+	private static TileGrid getTileGrid(final String path, final double downsample) {
+		TileGrid grid = lastGrid;
+		if (grid == null || !grid.matches(path, downsample)) {
+			TileGridKey key = new TileGridKey(path, downsample);
+			grid = tileGrids.get(key);
+			if (grid == null) {
+				grid = tileGrids.computeIfAbsent(key, k -> new TileGrid(k));
+				if (tileGrids.size() > MAX_TILE_GRIDS)
+					removeLeastRecentlyUsedGrid();
+			}
+			lastGrid = grid;
+		}
+		grid.lastAccess = gridAccessCounter.incrementAndGet();
+		return grid;
+	}
+	
+	/**
+	 * Remove the grid that was used least recently; this only happens when a new grid is created, so a linear search is fine.
+	 */
+	private static void removeLeastRecentlyUsedGrid() {
+		TileGrid eldest = null;
+		for (TileGrid grid : tileGrids.values()) {
+			if (eldest == null || grid.lastAccess < eldest.lastAccess)
+				eldest = grid;
+		}
+		if (eldest != null)
+			tileGrids.remove(eldest.key, eldest);
+	}
+	
+	/**
+	 * Pack tile indices &amp; plane into a single key, or return -1 if any value is out of range (in which case the request isn't retained).
+	 */
+	private static long packTileKey(final int tileX, final int tileY, final int z, final int t) {
+		if (tileX < 0 || tileY < 0 || z < 0 || t < 0 || 
+				tileX >= (1 << TILE_INDEX_BITS) || tileY >= (1 << TILE_INDEX_BITS) || 
+				z >= (1 << PLANE_BITS) || t >= (1 << PLANE_BITS))
+			return -1L;
+		return ((long)tileX << (TILE_INDEX_BITS + 2 * PLANE_BITS)) | 
+				((long)tileY << (2 * PLANE_BITS)) | 
+				((long)z << PLANE_BITS) | 
+				t;
+	}
+	
 	
 	public static List<RegionRequest> getTilesToRequest(ImageServer<?> server, RegionRequest request, List<RegionRequest> regions) {
 		return getTilesToRequest(server, AwtTools.getBounds(request), request.getDownsample(), request.getZ(), request.getT(), regions);
@@ -143,6 +234,8 @@ public class ImageRegionStoreHelpers {
 		int xc = nx/2;
 		int yc = ny/2;
 		int maxDisplacement = Math.max(nx - xc, ny - yc);
+		
+		TileGrid grid = getTileGrid(server.getPath(), downsamplePreferred);
 
 		for (int d = 0; d <= maxDisplacement; d++) {
 
@@ -174,9 +267,8 @@ public class ImageRegionStoreHelpers {
 						hh = serverHeight - yy;
 					}
 
-					RegionRequest request = RegionRequest.createInstance(server.getPath(), downsamplePreferred, xx, yy,
-							ww, hh,
-							zPosition, tPosition);
+					// Reuse an existing request for the tile if we can
+					RegionRequest request = grid.getTileRequest(xx / tileWidthForLevel, yy / tileHeightForLevel, xx, yy, ww, hh, zPosition, tPosition);
 
 					// Check if this is worth loading - might be outside the clip bounds
 					if (clipShape == null || clipShape.intersects(request.getX(), request.getY(), request.getWidth(), request.getHeight()))
@@ -248,5 +340,109 @@ public class ImageRegionStoreHelpers {
 				(int)Math.min(serverHeight, (yy+tileHeightForLevel))-yy, zPosition, tPosition);
 		return request;
 	}
+	
+	
+	/**
+	 * Reusable tile requests for one resolution level of one image, keyed by packed tile indices &amp; plane.
+	 * <p>
+	 * Lookups take no lock; when the grid becomes too large, it is trimmed by a single thread while others continue.
+	 */
+	private static class TileGrid {
+		
+		private final TileGridKey key;
+		private final Map<Long, RegionRequest> tiles = new ConcurrentHashMap<>();
+		private final AtomicBoolean trimming = new AtomicBoolean(false);
+		private volatile long lastAccess;
+		
+		TileGrid(final TileGridKey key) {
+			this.key = key;
+		}
+		
+		boolean matches(final String path, final double downsample) {
+			return key.path.equals(path) && Double.doubleToLongBits(key.downsample) == Double.doubleToLongBits(downsample);
+		}
+		
+		/**
+		 * Get a previously-created request for a tile, or create a new one (and retain it) if necessary.
+		 */
+		RegionRequest getTileRequest(final int tileX, final int tileY, final int xx, final int yy, final int ww, final int hh, final int z, final int t) {
+			long tileKey = packTileKey(tileX, tileY, z, t);
+			if (tileKey < 0)
+				return RegionRequest.createInstance(key.path, key.downsample, xx, yy, ww, hh, z, t);
+			RegionRequest request = tiles.get(tileKey);
+			// The tile bounds can differ for the same indices if the image is smaller than a tile, 
+			// or when a grid has been shifted to include a full tile - so check before reusing
+			if (request != null && request.getX() == xx && request.getY() == yy && request.getWidth() == ww && request.getHeight() == hh)
+				return request;
+			request = RegionRequest.createInstance(key.path, key.downsample, xx, yy, ww, hh, z, t);
+			tiles.put(tileKey, request);
+			if (tiles.size() > MAX_TILES_PER_GRID)
+				trim(tileX, tileY, z, t);
+			return request;
+		}
+		
+		/**
+		 * Reduce the number of retained requests, discarding first those far from the specified tile or in another plane.
+		 */
+		private void trim(final int tileX, final int tileY, final int z, final int t) {
+			if (!trimming.compareAndSet(false, true))
+				return;
+			try {
+				int targetSize = MAX_TILES_PER_GRID * 3 / 4;
+				long indexMask = (1L << TILE_INDEX_BITS) - 1;
+				long planeMask = (1L << (2 * PLANE_BITS)) - 1;
+				long plane = packTileKey(0, 0, z, t);
+				Iterator<Long> iter = tiles.keySet().iterator();
+				while (iter.hasNext()) {
+					long tileKey = iter.next();
+					int x = (int)((tileKey >>> (TILE_INDEX_BITS + 2 * PLANE_BITS)) & indexMask);
+					int y = (int)((tileKey >>> (2 * PLANE_BITS)) & indexMask);
+					if ((tileKey & planeMask) != plane || Math.abs(x - tileX) > TRIM_TILE_RADIUS || Math.abs(y - tileY) > TRIM_TILE_RADIUS)
+						iter.remove();
+				}
+				iter = tiles.keySet().iterator();
+				while (tiles.size() > targetSize && iter.hasNext()) {
+					iter.next();
+					iter.remove();
+				}
+			} finally {
+				trimming.set(false);
+			}
+		}
+		
+	}
+	
+	
+	private static class TileGridKey {
+		
+		private final String path;
+		private final double downsample;
+		
+		TileGridKey(final String path, final double downsample) {
+			this.path = path;
+			this.downsample = downsample;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = path.hashCode();
+			long temp = Double.doubleToLongBits(downsample);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileGridKey))
+				return false;
+			TileGridKey other = (TileGridKey)obj;
+			return path.equals(other.path) && 
+					Double.doubleToLongBits(downsample) == Double.doubleToLongBits(other.downsample);
+		}
+		
+	}
 
 }
@@ -0,0 +1,467 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.projects;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store for project thumbnails, keeping every thumbnail at several sizes within a single file.
+ * 
+ * Each thumbnail is stored as a 'pyramid' of encoded images, starting with the image provided and halving the size
+ * until it is below {@link #MIN_LEVEL_SIZE}.  This means small previews can be read without decoding a large image.
+ * 
+ * Records are only ever appended to the file; an index of the latest record for each key is built when the file is opened.
+ * Replaced or removed thumbnails leave unused space behind, which is reclaimed when the store is closed if it makes
+ * up more than half of the file.
+ */
+public class ProjectThumbnailStore implements Closeable {
+	
+	final private static Logger logger = LoggerFactory.getLogger(ProjectThumbnailStore.class);
+	
+	/**
+	 * Thumbnails are successively downsampled by 2 until their largest dimension is smaller than this.
+	 */
+	public static final int MIN_LEVEL_SIZE = 32;
+	
+	private static final int FILE_MAGIC = 0x51505448; // QPTH
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_LENGTH = 8;
+	
+	/**
+	 * Maximum number of levels in a valid record (enough for any image with int dimensions).
+	 */
+	private static final int MAX_LEVELS = 32;
+	
+	private static final String DEFAULT_FORMAT = "jpg";
+	
+	private File file;
+	private RandomAccessFile raf;
+	private Map<String, Record> index = new LinkedHashMap<>();
+	private long wastedBytes = 0;
+	
+	
+	private static class Level {
+		
+		private final int width;
+		private final int height;
+		private final long offset;
+		private final int length;
+		
+		Level(final int width, final int height, final long offset, final int length) {
+			this.width = width;
+			this.height = height;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+	}
+	
+	
+	private static class Record {
+		
+		private final Level[] levels;
+		private final long length;
+		
+		Record(final Level[] levels, final long length) {
+			this.levels = levels;
+			this.length = length;
+		}
+		
+	}
+	
+	
+	private ProjectThumbnailStore(final File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		if (raf.length() == 0) {
+			raf.writeInt(FILE_MAGIC);
+			raf.writeInt(FILE_VERSION);
+		} else
+			readIndex();
+	}
+	
+	/**
+	 * Open a thumbnail store, creating a new file if necessary.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException if the file exists but is not a thumbnail store, or cannot be read
+	 */
+	public static ProjectThumbnailStore open(final File file) throws IOException {
+		return new ProjectThumbnailStore(file);
+	}
+	
+	
+	private void readIndex() throws IOException {
+		raf.seek(0);
+		if (raf.readInt() != FILE_MAGIC)
+			throw new IOException(file + " is not a thumbnail store");
+		int version = raf.readInt();
+		if (version != FILE_VERSION)
+			throw new IOException("Unsupported thumbnail store version " + version);
+		long length = raf.length();
+		long pos = HEADER_LENGTH;
+		try {
+			while (pos < length) {
+				raf.seek(pos);
+				String key = raf.readUTF();
+				int nLevels = raf.readInt();
+				if (nLevels < 0 || nLevels > MAX_LEVELS) {
+					discardIndex(pos);
+					return;
+				}
+				Level[] levels = new Level[nLevels];
+				long levelPos = raf.getFilePointer();
+				for (int i = 0; i < nLevels; i++) {
+					raf.seek(levelPos);
+					int width = raf.readInt();
+					int height = raf.readInt();
+					int levelLength = raf.readInt();
+					if (width <= 0 || height <= 0 || levelLength <= 0) {
+						discardIndex(pos);
+						return;
+					}
+					levels[i] = new Level(width, height, levelPos + 12, levelLength);
+					levelPos += 12 + levelLength;
+					if (levelPos > length)
+						throw new EOFException();
+				}
+				long recordLength = levelPos - pos;
+				Record previous = nLevels == 0 ? index.remove(key) : index.put(key, new Record(levels, recordLength));
+				if (previous != null)
+					wastedBytes += previous.length;
+				if (nLevels == 0)
+					wastedBytes += recordLength;
+				pos = levelPos;
+			}
+		} catch (EOFException e) {
+			// Discard any incomplete record, e.g. if writing was interrupted
+			logger.warn("Truncating incomplete thumbnail record in {}", file);
+			raf.setLength(pos);
+		} catch (UTFDataFormatException e) {
+			discardIndex(pos);
+		}
+	}
+	
+	/**
+	 * Discard all thumbnails if a record can't be interpreted, since its length (and therefore the position 
+	 * of all later records) can't be trusted; thumbnails will be regenerated as needed.
+	 */
+	private void discardIndex(final long pos) throws IOException {
+		logger.warn("Invalid thumbnail record at position {} in {} - all thumbnails will be discarded", pos, file);
+		index.clear();
+		wastedBytes = 0;
+		raf.setLength(HEADER_LENGTH);
+	}
+	
+	private void ensureOpen() throws IOException {
+		if (raf == null)
+			throw new IOException("Thumbnail store " + file + " has been closed");
+	}
+	
+	
+	/**
+	 * Check if a thumbnail is available for a key.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public synchronized boolean containsKey(final String key) {
+		return index.containsKey(key);
+	}
+	
+	/**
+	 * Get the keys for all stored thumbnails.
+	 * 
+	 * @return
+	 */
+	public synchronized Set<String> getKeys() {
+		return Collections.unmodifiableSet(new LinkedHashSet<>(index.keySet()));
+	}
+	
+	/**
+	 * Get the number of stored thumbnails.
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+	
+	
+	/**
+	 * Read the smallest stored version of a thumbnail that has at least the requested width and height,
+	 * or the largest version if none are big enough.
+	 * 
+	 * @param key
+	 * @param minWidth
+	 * @param minHeight
+	 * @return the thumbnail, or null if no thumbnail is stored for the key
+	 * @throws IOException
+	 */
+	public BufferedImage getThumbnail(final String key, final int minWidth, final int minHeight) throws IOException {
+		byte[] bytes;
+		synchronized (this) {
+			ensureOpen();
+			Record record = index.get(key);
+			if (record == null)
+				return null;
+			Level selected = record.levels[0];
+			for (Level level : record.levels) {
+				if (level.width >= minWidth && level.height >= minHeight)
+					selected = level;
+			}
+			bytes = new byte[selected.length];
+			raf.seek(selected.offset);
+			raf.readFully(bytes);
+		}
+		return ImageIO.read(new ByteArrayInputStream(bytes));
+	}
+	
+	/**
+	 * Read the largest stored version of a thumbnail.
+	 * 
+	 * @param key
+	 * @return the thumbnail, or null if no thumbnail is stored for the key
+	 * @throws IOException
+	 */
+	public BufferedImage getThumbnail(final String key) throws IOException {
+		return getThumbnail(key, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+	
+	
+	/**
+	 * Store a thumbnail, replacing any existing thumbnail for the same key.
+	 * 
+	 * Smaller versions are created &amp; all are encoded before the store is locked, so that several thumbnails
+	 * can be prepared in parallel.
+	 * 
+	 * @param key
+	 * @param img
+	 * @throws IOException
+	 */
+	public void putThumbnail(final String key, final BufferedImage img) throws IOException {
+		List<BufferedImage> pyramid = createPyramid(img, MIN_LEVEL_SIZE);
+		List<byte[]> encoded = new ArrayList<>();
+		for (BufferedImage level : pyramid)
+			encoded.add(encode(level));
+		
+		synchronized (this) {
+			ensureOpen();
+			long pos = raf.length();
+			Level[] levels = new Level[pyramid.size()];
+			try {
+				raf.seek(pos);
+				raf.writeUTF(key);
+				raf.writeInt(pyramid.size());
+				for (int i = 0; i < levels.length; i++) {
+					BufferedImage level = pyramid.get(i);
+					byte[] bytes = encoded.get(i);
+					raf.writeInt(level.getWidth());
+					raf.writeInt(level.getHeight());
+					raf.writeInt(bytes.length);
+					levels[i] = new Level(level.getWidth(), level.getHeight(), raf.getFilePointer(), bytes.length);
+					raf.write(bytes);
+				}
+			} catch (IOException e) {
+				// Don't leave an incomplete record behind
+				raf.setLength(pos);
+				throw e;
+			}
+			Record previous = index.put(key, new Record(levels, raf.getFilePointer() - pos));
+			if (previous != null)
+				wastedBytes += previous.length;
+		}
+	}
+	
+	
+	/**
+	 * Remove the thumbnail for a key, if one is stored.
+	 * 
+	 * @param key
+	 * @return true if a thumbnail was removed, false otherwise
+	 * @throws IOException
+	 */
+	public synchronized boolean remove(final String key) throws IOException {
+		ensureOpen();
+		Record previous = index.remove(key);
+		if (previous == null)
+			return false;
+		long pos = raf.length();
+		raf.seek(pos);
+		raf.writeUTF(key);
+		raf.writeInt(0);
+		wastedBytes += previous.length + (raf.length() - pos);
+		return true;
+	}
+	
+	
+	/**
+	 * Rewrite the file so that it only contains the current thumbnails.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		ensureOpen();
+		File fileTemp = new File(file.getParentFile(), file.getName() + ".tmp");
+		Map<String, Record> indexNew = new LinkedHashMap<>();
+		try (RandomAccessFile rafTemp = new RandomAccessFile(fileTemp, "rw")) {
+			rafTemp.setLength(0);
+			rafTemp.writeInt(FILE_MAGIC);
+			rafTemp.writeInt(FILE_VERSION);
+			for (Map.Entry<String, Record> entry : index.entrySet()) {
+				long pos = rafTemp.getFilePointer();
+				Level[] levels = entry.getValue().levels;
+				Level[] levelsNew = new Level[levels.length];
+				rafTemp.writeUTF(entry.getKey());
+				rafTemp.writeInt(levels.length);
+				for (int i = 0; i < levels.length; i++) {
+					Level level = levels[i];
+					byte[] bytes = new byte[level.length];
+					raf.seek(level.offset);
+					raf.readFully(bytes);
+					rafTemp.writeInt(level.width);
+					rafTemp.writeInt(level.height);
+					rafTemp.writeInt(level.length);
+					levelsNew[i] = new Level(level.width, level.height, rafTemp.getFilePointer(), level.length);
+					rafTemp.write(bytes);
+				}
+				indexNew.put(entry.getKey(), new Record(levelsNew, rafTemp.getFilePointer() - pos));
+			}
+		}
+		raf.close();
+		try {
+			Files.move(fileTemp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(fileTemp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			raf = new RandomAccessFile(file, "rw");
+		}
+		index = indexNew;
+		wastedBytes = 0;
+	}
+	
+	
+	/**
+	 * Get the length of the file, in bytes.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized long getFileLength() throws IOException {
+		ensureOpen();
+		return raf.length();
+	}
+	
+	
+	/**
+	 * Close the store, compacting the file first if more than half of it is unused.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (raf == null)
+			return;
+		try {
+			if (wastedBytes > 0 && wastedBytes * 2 > raf.length())
+				compact();
+		} finally {
+			raf.close();
+			raf = null;
+		}
+	}
+	
+	
+	/**
+	 * Create a list of images, starting with the input image and successively downsampling by 2
+	 * until the largest dimension is less than minSize.
+	 * 
+	 * @param img
+	 * @param minSize
+	 * @return
+	 */
+	static List<BufferedImage> createPyramid(final BufferedImage img, final int minSize) {
+		List<BufferedImage> pyramid = new ArrayList<>();
+		BufferedImage current = toRGB(img);
+		pyramid.add(current);
+		while (Math.max(current.getWidth(), current.getHeight()) / 2 >= minSize) {
+			int width = Math.max(1, current.getWidth() / 2);
+			int height = Math.max(1, current.getHeight() / 2);
+			BufferedImage imgSmaller = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2d = imgSmaller.createGraphics();
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.drawImage(current, 0, 0, width, height, null);
+			g2d.dispose();
+			pyramid.add(imgSmaller);
+			current = imgSmaller;
+		}
+		return pyramid;
+	}
+	
+	/**
+	 * Ensure an image is RGB without alpha, as required for JPEG encoding.
+	 */
+	private static BufferedImage toRGB(final BufferedImage img) {
+		if (img.getType() == BufferedImage.TYPE_INT_RGB)
+			return img;
+		BufferedImage imgRGB = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = imgRGB.createGraphics();
+		g2d.drawImage(img, 0, 0, null);
+		g2d.dispose();
+		return imgRGB;
+	}
+	
+	private static byte[] encode(final BufferedImage img) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		if (!ImageIO.write(img, DEFAULT_FORMAT, stream))
+			throw new IOException("Unable to encode thumbnail as " + DEFAULT_FORMAT);
+		return stream.toByteArray();
+	}
+
+}
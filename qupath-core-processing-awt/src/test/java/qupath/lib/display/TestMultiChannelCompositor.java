@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.display;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import qupath.lib.display.ChannelDisplayInfo.MultiChannelInfo;
+
+public class TestMultiChannelCompositor {
+	
+	private static final String BENCHMARK_PROPERTY = "qupath.benchmark";
+	
+	private static final int[][] COLORS = {
+			{255, 0, 0}, {0, 255, 0}, {0, 0, 255}, {255, 255, 0}, {0, 255, 255}, {255, 0, 255}
+	};
+	
+	private static WritableRaster createRaster(int dataType, int width, int height, int nChannels, int maxValue) {
+		WritableRaster raster = Raster.createWritableRaster(new BandedSampleModel(dataType, width, height, nChannels), null);
+		Random random = new Random(100L);
+		for (int c = 0; c < nChannels; c++) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					raster.setSample(x, y, c, random.nextInt(maxValue + 1));
+			}
+		}
+		return raster;
+	}
+	
+	private static List<ChannelDisplayInfo> createChannels(int nBits, int nChannels, int maxValue) {
+		List<ChannelDisplayInfo> channels = new ArrayList<>();
+		for (int c = 0; c < nChannels; c++) {
+			int[] color = COLORS[c % COLORS.length];
+			MultiChannelInfo info = new MultiChannelInfo("Channel " + c, nBits, c, color[0], color[1], color[2]);
+			info.setMinDisplay(maxValue * c / (nChannels * 4f));
+			info.setMaxDisplay(maxValue * (1f - c / (nChannels * 2f)));
+			channels.add(info);
+		}
+		return channels;
+	}
+	
+	/**
+	 * Composite channels one at a time, in the same way as ImageDisplay did previously.
+	 */
+	private static int[] compositeByChannel(Raster raster, List<ChannelDisplayInfo> channels, boolean useColorLUT) {
+		int[] rgb = null;
+		float[] values = null;
+		for (ChannelDisplayInfo info : channels) {
+			MultiChannelInfo multiInfo = (MultiChannelInfo)info;
+			values = raster.getSamples(0, 0, raster.getWidth(), raster.getHeight(), multiInfo.getChannel(), values);
+			if (rgb == null)
+				rgb = multiInfo.getRGB(values, null, useColorLUT);
+			else
+				multiInfo.updateRGBAdditive(values, rgb, useColorLUT);
+		}
+		return rgb;
+	}
+	
+	private static void checkSameRGB(int[] expected, int[] actual) {
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(expected[i] & 0xffffff, actual[i] & 0xffffff);
+	}
+
+	@Test
+	public void test_composite() {
+		for (int dataType : new int[] {DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT, DataBuffer.TYPE_FLOAT}) {
+			int nBits = dataType == DataBuffer.TYPE_BYTE ? 8 : 16;
+			int maxValue = (1 << nBits) - 1;
+			for (int nChannels : new int[] {1, 3, 6}) {
+				WritableRaster raster = createRaster(dataType, 300, 500, nChannels, maxValue);
+				List<ChannelDisplayInfo> channels = createChannels(nBits, nChannels, maxValue);
+				assertTrue(MultiChannelCompositor.canComposite(channels));
+				for (boolean useColorLUT : new boolean[] {true, false}) {
+					int[] expected = compositeByChannel(raster, channels, useColorLUT);
+					int[] actual = MultiChannelCompositor.composite(raster, channels, useColorLUT, null);
+					checkSameRGB(expected, actual);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void test_zeroDisplayRange() {
+		WritableRaster raster = createRaster(DataBuffer.TYPE_USHORT, 100, 100, 3, 100);
+		List<ChannelDisplayInfo> channels = createChannels(16, 3, 100);
+		for (ChannelDisplayInfo info : channels) {
+			info.setMinDisplay(50);
+			info.setMaxDisplay(50);
+		}
+		checkSameRGB(compositeByChannel(raster, channels, true), MultiChannelCompositor.composite(raster, channels, true, null));
+	}
+	
+	/**
+	 * Compare the time taken to composite a 6-channel, 16-bit image using both approaches.
+	 * <p>
+	 * This only runs if the system property {@code qupath.benchmark} is true, 
+	 * e.g. {@code mvn test -Dqupath.benchmark=true}.
+	 */
+	@Test
+	public void benchmark_composite() {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+		
+		int nChannels = 6;
+		WritableRaster raster = createRaster(DataBuffer.TYPE_USHORT, 1024, 1024, nChannels, 65535);
+		List<ChannelDisplayInfo> channels = createChannels(16, nChannels, 65535);
+		int nRepeats = 5;
+		
+		long startTime = System.nanoTime();
+		for (int i = 0; i < nRepeats; i++)
+			compositeByChannel(raster, channels, true);
+		long timeByChannel = System.nanoTime() - startTime;
+		
+		startTime = System.nanoTime();
+		int[] rgb = null;
+		for (int i = 0; i < nRepeats; i++)
+			rgb = MultiChannelCompositor.composite(raster, channels, true, rgb);
+		long timeComposite = System.nanoTime() - startTime;
+		
+		System.out.println(String.format("Compositing %d channels (1024x1024): %.1f ms by channel, %.1f ms combined", 
+				nChannels, timeByChannel / 1e6 / nRepeats, timeComposite / 1e6 / nRepeats));
+	}
+
+}
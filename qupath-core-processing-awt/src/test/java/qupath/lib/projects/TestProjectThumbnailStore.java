@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.projects;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test reading &amp; writing thumbnails with a ProjectThumbnailStore.
+ */
+public class TestProjectThumbnailStore {
+	
+	@Test
+	public void test_storeAndReopen() throws IOException {
+		File file = File.createTempFile("thumbnails", ".qpthumbs");
+		file.delete();
+		try {
+			ProjectThumbnailStore store = ProjectThumbnailStore.open(file);
+			for (int i = 0; i < 10; i++)
+				store.putThumbnail("image " + i, createImage(400 + i * 10, 300, new Color(i * 20, 100, 50)));
+			assertEquals(10, store.size());
+			
+			// Smallest level that is big enough should be returned
+			BufferedImage img = store.getThumbnail("image 0", 50, 40);
+			assertEquals(100, img.getWidth());
+			assertEquals(75, img.getHeight());
+			img = store.getThumbnail("image 0", 1000, 1000);
+			assertEquals(400, img.getWidth());
+			assertNull(store.getThumbnail("missing", 10, 10));
+			
+			// Replace & remove some thumbnails
+			store.putThumbnail("image 3", createImage(80, 60, Color.RED));
+			assertTrue(store.remove("image 5"));
+			assertFalse(store.remove("image 5"));
+			long lengthBefore = store.getFileLength();
+			store.close();
+			
+			store = ProjectThumbnailStore.open(file);
+			assertEquals(9, store.size());
+			assertFalse(store.containsKey("image 5"));
+			img = store.getThumbnail("image 3");
+			assertEquals(80, img.getWidth());
+			assertColorEquals(Color.RED, img.getRGB(40, 30));
+			assertColorEquals(new Color(180, 100, 50), store.getThumbnail("image 9", 50, 50).getRGB(20, 20));
+			
+			// Replacing most thumbnails (and restoring one) should cause the file to be compacted when closed
+			for (int i = 0; i < 10; i++)
+				store.putThumbnail("image " + i, createImage(40, 30, Color.BLUE));
+			assertTrue(store.getFileLength() > lengthBefore);
+			store.close();
+			assertTrue(file.length() < lengthBefore);
+			
+			store = ProjectThumbnailStore.open(file);
+			assertEquals(10, store.size());
+			assertEquals(40, store.getThumbnail("image 0").getWidth());
+			assertColorEquals(Color.BLUE, store.getThumbnail("image 0").getRGB(20, 15));
+			store.close();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	@Test
+	public void test_incompleteRecord() throws IOException {
+		File file = File.createTempFile("thumbnails", ".qpthumbs");
+		file.delete();
+		try {
+			ProjectThumbnailStore store = ProjectThumbnailStore.open(file);
+			store.putThumbnail("first", createImage(200, 100, Color.GREEN));
+			store.putThumbnail("second", createImage(200, 100, Color.GREEN));
+			long length = store.getFileLength();
+			store.close();
+			
+			// Simulate an interrupted write
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length - 100);
+			}
+			store = ProjectThumbnailStore.open(file);
+			assertTrue(store.containsKey("first"));
+			assertFalse(store.containsKey("second"));
+			store.putThumbnail("third", createImage(200, 100, Color.GREEN));
+			store.close();
+			
+			store = ProjectThumbnailStore.open(file);
+			assertEquals(2, store.size());
+			assertEquals(200, store.getThumbnail("third").getWidth());
+			store.close();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	@Test
+	public void test_invalidRecord() throws IOException {
+		File file = File.createTempFile("thumbnails", ".qpthumbs");
+		file.delete();
+		try {
+			ProjectThumbnailStore store = ProjectThumbnailStore.open(file);
+			store.putThumbnail("first", createImage(200, 100, Color.GREEN));
+			long pos = store.getFileLength();
+			store.putThumbnail("second", createImage(200, 100, Color.GREEN));
+			store.close();
+			
+			// An impossible number of levels shouldn't be allocated - the whole index is unusable
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(pos);
+				raf.readUTF();
+				raf.writeInt(Integer.MAX_VALUE);
+			}
+			store = ProjectThumbnailStore.open(file);
+			assertEquals(0, store.size());
+			store.putThumbnail("first", createImage(200, 100, Color.GREEN));
+			pos = store.getFileLength();
+			store.putThumbnail("second", createImage(200, 100, Color.GREEN));
+			store.close();
+			
+			// Same for a negative level length
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(pos);
+				raf.readUTF();
+				raf.readInt();
+				raf.readInt();
+				raf.readInt();
+				raf.writeInt(-1000);
+			}
+			store = ProjectThumbnailStore.open(file);
+			assertEquals(0, store.size());
+			store.putThumbnail("third", createImage(200, 100, Color.GREEN));
+			store.close();
+			
+			store = ProjectThumbnailStore.open(file);
+			assertEquals(1, store.size());
+			assertEquals(200, store.getThumbnail("third").getWidth());
+			store.close();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	@Test
+	public void test_pyramid() {
+		List<BufferedImage> pyramid = ProjectThumbnailStore.createPyramid(createImage(1000, 600, Color.WHITE), 32);
+		int[] widths = {1000, 500, 250, 125, 62};
+		assertEquals(widths.length, pyramid.size());
+		for (int i = 0; i < widths.length; i++)
+			assertEquals(widths[i], pyramid.get(i).getWidth());
+		assertEquals(37, pyramid.get(4).getHeight());
+		assertEquals(1, ProjectThumbnailStore.createPyramid(createImage(40, 10, Color.WHITE), 32).size());
+	}
+	
+	
+	private static BufferedImage createImage(int width, int height, Color color) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.setColor(color);
+		g2d.fillRect(0, 0, width, height);
+		g2d.dispose();
+		return img;
+	}
+	
+	private static void assertColorEquals(Color expected, int rgb) {
+		Color actual = new Color(rgb);
+		// Allow for JPEG compression
+		assertEquals(expected.getRed(), actual.getRed(), 8);
+		assertEquals(expected.getGreen(), actual.getGreen(), 8);
+		assertEquals(expected.getBlue(), actual.getBlue(), 8);
+	}
+
+}
@@ -0,0 +1,411 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+/**
+ * Block-based morphological reconstruction (8-connectivity) operating directly on float arrays.
+ * <p>
+ * The region being reconstructed is split into blocks, each of which is first reconstructed independently
+ * (and in parallel) using the hybrid raster scan + FIFO method of Vincent (1993), restricted to the block.
+ * Values are then exchanged across block borders: any border pixel that could be raised by a neighbour in an
+ * adjacent block is seeded, and propagation continues from the seeds within each block.  This is repeated
+ * until no further seeds are found.
+ * <p>
+ * Because the reconstruction is the unique smallest fixed point above the marker, the order in which updates
+ * are applied does not matter - the output is identical to that of a single sequential pass over the whole region.
+ */
+class BlockMorphologicalReconstruction {
+	
+	/**
+	 * Minimum block width &amp; height, in pixels.
+	 */
+	static final int MIN_BLOCK_SIZE = 256;
+	
+	private final float[] marker;
+	private final float[] mask;
+	private final int stride;
+	private final int rx1, ry1, rx2, ry2;
+	private final Thread caller;
+	private final AtomicBoolean interrupted = new AtomicBoolean(false);
+	
+	private BlockMorphologicalReconstruction(final float[] marker, final float[] mask, final int stride, final int x, final int y, final int width, final int height) {
+		this.marker = marker;
+		this.mask = mask;
+		this.stride = stride;
+		this.rx1 = x;
+		this.ry1 = y;
+		this.rx2 = x + width;
+		this.ry2 = y + height;
+		this.caller = Thread.currentThread();
+	}
+	
+	/**
+	 * Apply morphological reconstruction within a rectangular region of an image, updating the marker in-place.
+	 * 
+	 * @param marker marker pixels
+	 * @param mask mask pixels
+	 * @param stride width of the full image
+	 * @param x region x origin
+	 * @param y region y origin
+	 * @param width region width
+	 * @param height region height
+	 * @param blockSize block width &amp; height
+	 * @return true if the reconstruction completed, false if the calling thread was interrupted
+	 */
+	static boolean reconstruct(final float[] marker, final float[] mask, final int stride, final int x, final int y, final int width, final int height, final int blockSize) {
+		if (width <= 0 || height <= 0)
+			return true;
+		return new BlockMorphologicalReconstruction(marker, mask, stride, x, y, width, height).run(blockSize);
+	}
+	
+	
+	/**
+	 * Get a block size giving a few blocks per available processor, or a single block if there is only one processor
+	 * (in which case the border exchange would only add overhead).
+	 * 
+	 * @param width region width
+	 * @param height region height
+	 * @return
+	 */
+	static int getDefaultBlockSize(final int width, final int height) {
+		final int nProcessors = Runtime.getRuntime().availableProcessors();
+		final int maxDim = Math.max(width, height);
+		if (nProcessors <= 1)
+			return maxDim;
+		final int blockSize = (int)Math.ceil(Math.sqrt((double)width * height / (nProcessors * 4)));
+		return Math.min(maxDim, Math.max(MIN_BLOCK_SIZE, blockSize));
+	}
+	
+	
+	private boolean run(final int blockSize) {
+		List<Block> blocks = new ArrayList<>();
+		for (int y = ry1; y < ry2; y += blockSize) {
+			for (int x = rx1; x < rx2; x += blockSize) {
+				blocks.add(new Block(x, y, Math.min(x + blockSize, rx2), Math.min(y + blockSize, ry2)));
+			}
+		}
+		
+		// Single block - no need to exchange anything
+		if (blocks.size() == 1) {
+			reconstructBlock(blocks.get(0));
+			return !interrupted.get();
+		}
+		
+		// Reconstruct each block independently
+		forEachBlock(blocks, b -> reconstructBlock(b));
+		
+		// Exchange values across block borders until nothing changes.
+		// Seeds are found in a read-only pass, then applied & propagated with each block writing only its own pixels.
+		while (!interrupted.get()) {
+			forEachBlock(blocks, b -> findSeeds(b));
+			boolean hasSeeds = false;
+			for (Block block : blocks) {
+				if (block.nSeeds > 0) {
+					hasSeeds = true;
+					break;
+				}
+			}
+			if (!hasSeeds)
+				break;
+			forEachBlock(blocks, b -> propagateSeeds(b));
+		}
+		return !interrupted.get();
+	}
+	
+	
+	private void forEachBlock(final List<Block> blocks, final BlockTask task) {
+		IntStream.range(0, blocks.size()).parallel().forEach(i -> {
+			if (!interrupted.get())
+				task.process(blocks.get(i));
+		});
+	}
+	
+	
+	private void reconstructBlock(final Block block) {
+		// Apply forward propagation
+		dilateAndCompare(block, false, null);
+		// Apply backwards propagation, filling the queue
+		IntDequeue queue = new IntDequeue(Math.max(16, block.nPixels()/4));
+		dilateAndCompare(block, true, queue);
+		// Process pixels in the queue (FIFO)
+		processQueue(block, queue);
+	}
+	
+	
+	private int dilateAndCompare(final Block block, final boolean reverse, final IntDequeue queue) {
+		int inc, hStart, vStart, hEnd, vEnd;
+		if (reverse) {
+			inc = -1;
+			hStart = block.x2 - 1;
+			vStart = block.y2 - 1;
+			hEnd = block.x1 - 1;
+			vEnd = block.y1 - 1;
+		} else {
+			inc = 1;
+			hStart = block.x1;
+			vStart = block.y1;
+			hEnd = block.x2;
+			vEnd = block.y2;
+		}
+		final boolean populateQueue = queue != null;
+		final int rowInc = inc * stride;
+		
+		int changes = 0;
+		// valPrevious is the last processed value, valP1-3 are those from the previous row
+		float valPrevious, valP1, valP2, valP3, valCurrent;
+		boolean firstRow = true;
+		for (int y = vStart; y != vEnd; y += inc) {
+			final int rowStart = y * stride;
+			valPrevious = marker[rowStart + hStart];
+			if (firstRow) {
+				valP1 = valPrevious;
+				valP2 = valPrevious;
+			} else {
+				valP2 = marker[rowStart - rowInc + hStart];
+				valP1 = valP2;
+			}
+			boolean firstColumn = true;
+			for (int x = hStart; x != hEnd; x += inc) {
+				final int ind = rowStart + x;
+				valCurrent = marker[ind];
+				
+				if (firstRow) {
+					valP1 = valCurrent;
+					valP2 = valCurrent;
+					valP3 = valCurrent;
+				} else if (x+inc != hEnd)
+					valP3 = marker[ind - rowInc + inc];
+				else
+					valP3 = valCurrent;
+				
+				float valNeighbourMax = (valP1 >= valP2) ? valP1 : valP2;
+				valNeighbourMax = (valNeighbourMax >= valP3) ? valNeighbourMax : valP3;
+				valNeighbourMax = (valNeighbourMax >= valPrevious) ? valNeighbourMax : valPrevious;
+				
+				// If the current value is less than the neighbourhood maximum, try to update it while remaining under the mask
+				if (valCurrent < valNeighbourMax) {
+					final float valMask = mask[ind];
+					final float valNew = (valNeighbourMax >= valMask) ? valMask : valNeighbourMax;
+					if (valNew > valCurrent) {
+						valCurrent = valNew;
+						marker[ind] = valCurrent;
+						changes++;
+					}
+				}
+				
+				// Test whether any previously-visited neighbour could still be raised from here
+				if (populateQueue) {
+					boolean addToQueue = false;
+					if (!firstColumn && valPrevious < valCurrent && valPrevious < mask[ind - inc]) {
+						addToQueue = true;
+					}
+					else if (!firstRow) {
+						if (!firstColumn && valP1 < valCurrent && valP1 < mask[ind - rowInc - inc]) {
+							addToQueue = true;
+						}
+						else if (valP2 < valCurrent && valP2 < mask[ind - rowInc]) {
+							addToQueue = true;
+						}
+						else if (valP3 < valCurrent && valP3 < mask[ind - rowInc + inc]) {
+							addToQueue = true;
+						}
+					}
+					if (addToQueue)
+						queue.add(ind);
+				}
+				
+				valPrevious = valCurrent;
+				valP1 = valP2;
+				valP2 = valP3;
+				firstColumn = false;
+			}
+			firstRow = false;
+		}
+		return changes;
+	}
+	
+	
+	private void processPoint(final int ind, final float val, final IntDequeue queue) {
+		final float valTempMarker = marker[ind];
+		if (valTempMarker < val) {
+			final float valTempMask = mask[ind];
+			if (valTempMarker < valTempMask) {
+				marker[ind] = valTempMask <= val ? valTempMask : val;
+				queue.add(ind);
+			}
+		}
+	}
+	
+	
+	private void processQueue(final Block block, final IntDequeue queue) {
+		final int x1 = block.x1;
+		final int y1 = block.y1;
+		final int x2 = block.x2;
+		final int y2 = block.y2;
+		final int width = stride;
+		
+		long counter = 0;
+		while (!queue.isEmpty()) {
+			counter++;
+
+			// If we were interrupted, stop
+			if (counter % 2500 == 0 && (caller.isInterrupted() || interrupted.get())) {
+				interrupted.set(true);
+				return;
+			}
+			
+			final int ind = queue.remove();
+			final int x = ind % width;
+			final int y = ind / width;
+			
+			final float val = marker[ind];
+			if (x > x1) {
+				processPoint(ind-1, val, queue);
+				if (y > y1)
+					processPoint(ind-width-1, val, queue);
+				if (y < y2-1)
+					processPoint(ind+width-1, val, queue);
+			}
+			if (x < x2-1) {
+				processPoint(ind+1, val, queue);
+				if (y > y1)
+					processPoint(ind-width+1, val, queue);
+				if (y < y2-1)
+					processPoint(ind+width+1, val, queue);
+			}
+			if (y > y1)
+				processPoint(ind-width, val, queue);
+			if (y < y2-1)
+				processPoint(ind+width, val, queue);
+		}
+		if (caller.isInterrupted())
+			interrupted.set(true);
+	}
+	
+	
+	/**
+	 * Find border pixels of a block that could be raised by a neighbour belonging to another block.
+	 * Only reads the marker, so may be run for all blocks concurrently.
+	 */
+	private void findSeeds(final Block block) {
+		block.nSeeds = 0;
+		for (int x = block.x1; x < block.x2; x++) {
+			testSeed(block, x, block.y1);
+			if (block.y2 - 1 > block.y1)
+				testSeed(block, x, block.y2 - 1);
+		}
+		for (int y = block.y1 + 1; y < block.y2 - 1; y++) {
+			testSeed(block, block.x1, y);
+			if (block.x2 - 1 > block.x1)
+				testSeed(block, block.x2 - 1, y);
+		}
+	}
+	
+	private void testSeed(final Block block, final int x, final int y) {
+		final int ind = y * stride + x;
+		final float valCurrent = marker[ind];
+		final float valMask = mask[ind];
+		if (!(valCurrent < valMask))
+			return;
+		float valNeighbourMax = Float.NEGATIVE_INFINITY;
+		for (int yy = Math.max(y-1, ry1); yy < Math.min(y+2, ry2); yy++) {
+			for (int xx = Math.max(x-1, rx1); xx < Math.min(x+2, rx2); xx++) {
+				if (block.contains(xx, yy))
+					continue;
+				final float val = marker[yy * stride + xx];
+				if (val > valNeighbourMax)
+					valNeighbourMax = val;
+			}
+		}
+		final float valNew = (valNeighbourMax >= valMask) ? valMask : valNeighbourMax;
+		if (valNew > valCurrent)
+			block.addSeed(ind, valNew);
+	}
+	
+	/**
+	 * Apply the seeds found for a block, then propagate them within the block.
+	 */
+	private void propagateSeeds(final Block block) {
+		if (block.nSeeds == 0)
+			return;
+		final IntDequeue queue = new IntDequeue(Math.max(16, block.nSeeds * 4));
+		for (int i = 0; i < block.nSeeds; i++) {
+			final int ind = block.seedIndices[i];
+			marker[ind] = block.seedValues[i];
+			queue.add(ind);
+		}
+		processQueue(block, queue);
+	}
+	
+	
+	@FunctionalInterface
+	private static interface BlockTask {
+		void process(Block block);
+	}
+	
+	
+	private static class Block {
+		
+		private final int x1, y1, x2, y2;
+		
+		private int nSeeds = 0;
+		private int[] seedIndices = new int[0];
+		private float[] seedValues = new float[0];
+		
+		Block(final int x1, final int y1, final int x2, final int y2) {
+			this.x1 = x1;
+			this.y1 = y1;
+			this.x2 = x2;
+			this.y2 = y2;
+		}
+		
+		int nPixels() {
+			return (x2 - x1) * (y2 - y1);
+		}
+		
+		boolean contains(final int x, final int y) {
+			return x >= x1 && x < x2 && y >= y1 && y < y2;
+		}
+		
+		void addSeed(final int ind, final float val) {
+			if (nSeeds == seedIndices.length) {
+				int n = Math.max(16, nSeeds * 2);
+				seedIndices = Arrays.copyOf(seedIndices, n);
+				seedValues = Arrays.copyOf(seedValues, n);
+			}
+			seedIndices[nSeeds] = ind;
+			seedValues[nSeeds] = val;
+			nSeeds++;
+		}
+		
+	}
+
+}
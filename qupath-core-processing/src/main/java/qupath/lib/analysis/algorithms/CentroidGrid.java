@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * A uniform grid index over a fixed set of 2D points (usually object centroids), 
+ * to support fast neighborhood queries.
+ * <p>
+ * Points are stored in primitive arrays, and bucketed into square cells using a compressed 
+ * (start index + point index) representation, so that no objects are created per point or per cell.
+ * Once built, the grid is immutable and may be queried safely from multiple threads.
+ * <p>
+ * For best performance, the cell size should be similar to the search distance commonly used.
+ */
+public class CentroidGrid {
+	
+	/**
+	 * Visitor used when iterating through the neighbors of a point.
+	 */
+	public static interface NeighborVisitor {
+		
+		/**
+		 * Called for each neighbor found.
+		 * 
+		 * @param i index of the query point
+		 * @param j index of the neighbor
+		 * @param distSq squared distance between the two points
+		 */
+		public void visit(int i, int j, double distSq);
+		
+	}
+	
+	private final float[] x;
+	private final float[] y;
+	
+	private final double cellSize;
+	private final double minX, minY;
+	private final int nCellsX, nCellsY;
+	
+	// Indices into 'cellPoints', giving the start for each cell (with one extra entry for the end of the last cell)
+	private final int[] cellStart;
+	// Point indices, sorted by cell
+	private final int[] cellPoints;
+	
+	/**
+	 * Create a grid for the specified coordinates.
+	 * <p>
+	 * Points with NaN coordinates are retained (so that indices remain valid), but never returned as neighbors.
+	 * 
+	 * @param x x coordinates
+	 * @param y y coordinates
+	 * @param cellSize width and height of each grid cell
+	 */
+	public CentroidGrid(final float[] x, final float[] y, final double cellSize) {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Number of x & y coordinates must be the same!");
+		if (!(cellSize > 0))
+			throw new IllegalArgumentException("Cell size must be > 0!");
+		this.x = x;
+		this.y = y;
+		
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < x.length; i++) {
+			if (isValid(i)) {
+				minX = Math.min(minX, x[i]);
+				minY = Math.min(minY, y[i]);
+				maxX = Math.max(maxX, x[i]);
+				maxY = Math.max(maxY, y[i]);
+			}
+		}
+		if (minX > maxX) {
+			minX = 0; minY = 0; maxX = 0; maxY = 0;
+		}
+		this.minX = minX;
+		this.minY = minY;
+		// Avoid creating a huge number of cells if the cell size is tiny compared to the spread of points
+		double maxCellsPerDim = Math.max(1, Math.sqrt(x.length) * 4);
+		double minCellSize = Math.max(maxX - minX, maxY - minY) / maxCellsPerDim;
+		this.cellSize = Math.max(cellSize, minCellSize);
+		this.nCellsX = (int)((maxX - minX) / this.cellSize) + 1;
+		this.nCellsY = (int)((maxY - minY) / this.cellSize) + 1;
+		
+		// Count points per cell, then use the cumulative sum to fill the cells
+		int nCells = nCellsX * nCellsY;
+		int[] cellInds = new int[x.length];
+		cellStart = new int[nCells + 1];
+		for (int i = 0; i < x.length; i++) {
+			if (isValid(i)) {
+				int c = getCellX(x[i]) + getCellY(y[i]) * nCellsX;
+				cellInds[i] = c;
+				cellStart[c+1]++;
+			} else
+				cellInds[i] = -1;
+		}
+		for (int c = 0; c < nCells; c++)
+			cellStart[c+1] += cellStart[c];
+		cellPoints = new int[cellStart[nCells]];
+		int[] cellCounts = Arrays.copyOf(cellStart, nCells);
+		for (int i = 0; i < x.length; i++) {
+			int c = cellInds[i];
+			if (c >= 0)
+				cellPoints[cellCounts[c]++] = i;
+		}
+	}
+	
+	/**
+	 * Create a grid using the ROI centroids of a list of objects.
+	 * The indices used by the grid correspond to the indices within the list.
+	 * 
+	 * @param pathObjects
+	 * @param cellSize
+	 * @return
+	 */
+	public static CentroidGrid createFromObjects(final List<? extends PathObject> pathObjects, final double cellSize) {
+		int n = pathObjects.size();
+		float[] x = new float[n];
+		float[] y = new float[n];
+		for (int i = 0; i < n; i++) {
+			ROI roi = pathObjects.get(i).getROI();
+			if (roi == null) {
+				x[i] = Float.NaN;
+				y[i] = Float.NaN;
+			} else {
+				x[i] = (float)roi.getCentroidX();
+				y[i] = (float)roi.getCentroidY();
+			}
+		}
+		return new CentroidGrid(x, y, cellSize);
+	}
+	
+	/**
+	 * Returns true if the point has valid (non-NaN) coordinates, and so is included in the grid.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public boolean isValid(final int i) {
+		return !(Float.isNaN(x[i]) || Float.isNaN(y[i]));
+	}
+	
+	private int getCellX(final double xx) {
+		return Math.max(0, Math.min(nCellsX-1, (int)((xx - minX) / cellSize)));
+	}
+
+	private int getCellY(final double yy) {
+		return Math.max(0, Math.min(nCellsY-1, (int)((yy - minY) / cellSize)));
+	}
+	
+	/**
+	 * Number of points stored in the grid (including any with NaN coordinates).
+	 * @return
+	 */
+	public int size() {
+		return x.length;
+	}
+	
+	public double getX(final int i) {
+		return x[i];
+	}
+
+	public double getY(final int i) {
+		return y[i];
+	}
+	
+	/**
+	 * Visit all points within a specified distance of point i (excluding i itself).
+	 * 
+	 * @param i
+	 * @param maxDist
+	 * @param visitor
+	 */
+	public void forEachNeighbor(final int i, final double maxDist, final NeighborVisitor visitor) {
+		if (!isValid(i))
+			return;
+		double xi = x[i];
+		double yi = y[i];
+		double maxDistSq = maxDist * maxDist;
+		int cx1 = getCellX(xi - maxDist);
+		int cx2 = getCellX(xi + maxDist);
+		int cy1 = getCellY(yi - maxDist);
+		int cy2 = getCellY(yi + maxDist);
+		for (int cy = cy1; cy <= cy2; cy++) {
+			int row = cy * nCellsX;
+			int start = cellStart[row + cx1];
+			int end = cellStart[row + cx2 + 1];
+			// Cells in the same row are contiguous, so can be scanned in one go
+			for (int k = start; k < end; k++) {
+				int j = cellPoints[k];
+				if (j == i)
+					continue;
+				double dx = x[j] - xi;
+				double dy = y[j] - yi;
+				double distSq = dx*dx + dy*dy;
+				if (distSq <= maxDistSq)
+					visitor.visit(i, j, distSq);
+			}
+		}
+	}
+	
+	/**
+	 * Count the number of points within a specified distance of point i (excluding i itself).
+	 * 
+	 * @param i
+	 * @param maxDist
+	 * @return
+	 */
+	public int countNeighbors(final int i, final double maxDist) {
+		int[] count = new int[1];
+		forEachNeighbor(i, maxDist, (ii, j, distSq) -> count[0]++);
+		return count[0];
+	}
+	
+	/**
+	 * Find the nearest point to point i that satisfies a filter, searching outwards ring by ring.
+	 * 
+	 * @param i
+	 * @param maxDist maximum search distance (may be infinite)
+	 * @param filter optional filter, applied to the indices of potential neighbors
+	 * @return index of the nearest neighbor, or -1 if none was found within maxDist
+	 */
+	public int getNearestNeighbor(final int i, final double maxDist, final IntPredicate filter) {
+		if (!isValid(i))
+			return -1;
+		double xi = x[i];
+		double yi = y[i];
+		int cx = getCellX(xi);
+		int cy = getCellY(yi);
+		int maxRing = Math.max(nCellsX, nCellsY);
+		if (maxDist < Double.POSITIVE_INFINITY)
+			maxRing = Math.min(maxRing, (int)Math.ceil(maxDist / cellSize) + 1);
+		int bestInd = -1;
+		double bestDistSq = maxDist * maxDist;
+		for (int r = 0; r <= maxRing; r++) {
+			// Any point in ring r is at least (r-1)*cellSize away
+			double minDist = (r - 1) * cellSize;
+			if (minDist > 0 && minDist * minDist > bestDistSq)
+				break;
+			for (int yy = cy - r; yy <= cy + r; yy++) {
+				if (yy < 0 || yy >= nCellsY)
+					continue;
+				boolean edgeRow = yy == cy - r || yy == cy + r;
+				for (int xx = cx - r; xx <= cx + r; xx += edgeRow ? 1 : Math.max(1, 2*r)) {
+					if (xx < 0 || xx >= nCellsX)
+						continue;
+					int c = yy * nCellsX + xx;
+					for (int k = cellStart[c]; k < cellStart[c+1]; k++) {
+						int j = cellPoints[k];
+						if (j == i || (filter != null && !filter.test(j)))
+							continue;
+						double dx = x[j] - xi;
+						double dy = y[j] - yi;
+						double distSq = dx*dx + dy*dy;
+						if (distSq <= bestDistSq) {
+							bestDistSq = distSq;
+							bestInd = j;
+						}
+					}
+				}
+			}
+		}
+		return bestInd;
+	}
+	
+	/**
+	 * Apply a function to every point index, in parallel.
+	 * <p>
+	 * Only points with valid coordinates are included; see {@link #isValid(int)}.
+	 * <p>
+	 * Points are processed in cell order, so that indices handled by the same thread tend to be close together spatially.
+	 * 
+	 * @param consumer
+	 */
+	public void processInParallel(final IntConsumer consumer) {
+		IntStream.range(0, cellPoints.length).parallel().forEach(k -> consumer.accept(cellPoints[k]));
+	}
+
+}
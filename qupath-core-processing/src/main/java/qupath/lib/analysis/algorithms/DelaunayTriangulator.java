@@ -0,0 +1,602 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Pure-Java Delaunay triangulation of 2D points, using a sweep-hull algorithm.
+ * <p>
+ * Points are added in order of distance from a seed triangle, and the triangulation is made Delaunay 
+ * by edge flipping as each point is added.  All data is stored in primitive arrays (triangles as 
+ * triplets of point indices, plus half-edge links), and the result can be converted to a compact 
+ * {@link NeighborGraph}.
+ * <p>
+ * The approach follows the 'Delaunator' algorithm by Volodymyr Agafonkin (ISC license), 
+ * which is itself based on 'S-hull' by David Sinclair.
+ * <p>
+ * Exact duplicate points (and points with NaN coordinates) are skipped, and have no neighbors.
+ */
+public class DelaunayTriangulator {
+	
+	private static final double EPSILON = Math.ulp(1.0);
+	
+	private final double[] x;
+	private final double[] y;
+	private final int n;
+	
+	private int[] triangles;
+	private int[] halfedges;
+	private int trianglesLen = 0;
+	
+	private int hashSize;
+	private int[] hullPrev;
+	private int[] hullNext;
+	private int[] hullTri;
+	private int[] hullHash;
+	private int hullStart;
+	
+	private double cx, cy;
+	
+	private int[] edgeStack = new int[512];
+	
+	// Used only if all the points are collinear
+	private int[] collinearIds = null;
+	
+	private DelaunayTriangulator(final double[] x, final double[] y) {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Number of x & y coordinates must be the same!");
+		this.x = x;
+		this.y = y;
+		this.n = x.length;
+	}
+	
+	/**
+	 * Compute the Delaunay triangulation for the specified points, returning a graph that connects 
+	 * each point to its neighbors.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public static NeighborGraph createGraph(final double[] x, final double[] y) {
+		DelaunayTriangulator triangulator = new DelaunayTriangulator(x, y);
+		triangulator.triangulate();
+		return triangulator.buildGraph();
+	}
+	
+	/**
+	 * Compute the Delaunay triangulation for the specified points, returning the triangles as consecutive 
+	 * triplets of point indices (in counter-clockwise order).
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public static int[] computeTriangles(final double[] x, final double[] y) {
+		DelaunayTriangulator triangulator = new DelaunayTriangulator(x, y);
+		triangulator.triangulate();
+		return Arrays.copyOf(triangulator.triangles, triangulator.trianglesLen);
+	}
+	
+	
+	private void triangulate() {
+		int maxTriangles = Math.max(2 * n - 5, 0);
+		triangles = new int[maxTriangles * 3];
+		halfedges = new int[maxTriangles * 3];
+		
+		// Find the valid points & their bounds
+		int[] ids = new int[n];
+		int nValid = 0;
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			double xx = x[i];
+			double yy = y[i];
+			if (Double.isNaN(xx) || Double.isNaN(yy))
+				continue;
+			if (xx < minX) minX = xx;
+			if (yy < minY) minY = yy;
+			if (xx > maxX) maxX = xx;
+			if (yy > maxY) maxY = yy;
+			ids[nValid++] = i;
+		}
+		if (nValid < 3) {
+			collinearIds = Arrays.copyOf(ids, nValid);
+			return;
+		}
+		ids = Arrays.copyOf(ids, nValid);
+		double centerX = (minX + maxX) / 2;
+		double centerY = (minY + maxY) / 2;
+		
+		// Pick a seed point close to the center
+		int i0 = -1, i1 = -1, i2 = -1;
+		double minDist = Double.POSITIVE_INFINITY;
+		for (int i : ids) {
+			double d = dist(centerX, centerY, x[i], y[i]);
+			if (d < minDist) {
+				i0 = i;
+				minDist = d;
+			}
+		}
+		double i0x = x[i0];
+		double i0y = y[i0];
+		
+		// Find the point closest to the seed
+		minDist = Double.POSITIVE_INFINITY;
+		for (int i : ids) {
+			if (i == i0)
+				continue;
+			double d = dist(i0x, i0y, x[i], y[i]);
+			if (d < minDist && d > 0) {
+				i1 = i;
+				minDist = d;
+			}
+		}
+		if (i1 < 0) {
+			// All points are duplicates
+			collinearIds = new int[] {i0};
+			return;
+		}
+		double i1x = x[i1];
+		double i1y = y[i1];
+		
+		// Find the third point that forms the smallest circumcircle with the first two
+		double minRadius = Double.POSITIVE_INFINITY;
+		for (int i : ids) {
+			if (i == i0 || i == i1)
+				continue;
+			double r = circumradius(i0x, i0y, i1x, i1y, x[i], y[i]);
+			if (r < minRadius) {
+				i2 = i;
+				minRadius = r;
+			}
+		}
+		if (minRadius == Double.POSITIVE_INFINITY) {
+			// All points are collinear - order them by x (or y if all x are identical)
+			double[] dists = new double[nValid];
+			for (int k = 0; k < nValid; k++) {
+				int i = ids[k];
+				dists[k] = (x[i] - x[ids[0]]) != 0 ? x[i] - x[ids[0]] : y[i] - y[ids[0]];
+			}
+			sortByDistance(ids, dists, 0, nValid - 1);
+			collinearIds = ids;
+			return;
+		}
+		double i2x = x[i2];
+		double i2y = y[i2];
+		
+		// Swap the order of the seed points for counter-clockwise orientation
+		if (orient(i0x, i0y, i1x, i1y, i2x, i2y)) {
+			int i = i1;
+			double xx = i1x;
+			double yy = i1y;
+			i1 = i2;
+			i1x = i2x;
+			i1y = i2y;
+			i2 = i;
+			i2x = xx;
+			i2y = yy;
+		}
+		
+		circumcenter(i0x, i0y, i1x, i1y, i2x, i2y);
+		
+		// Sort the points by distance from the seed triangle circumcenter
+		double[] dists = new double[nValid];
+		for (int k = 0; k < nValid; k++) {
+			int i = ids[k];
+			dists[k] = dist(x[i], y[i], cx, cy);
+		}
+		sortByDistance(ids, dists, 0, nValid - 1);
+		
+		// Set up the seed triangle as the starting hull
+		hashSize = (int)Math.ceil(Math.sqrt(nValid));
+		hullPrev = new int[n];
+		hullNext = new int[n];
+		hullTri = new int[n];
+		hullHash = new int[hashSize];
+		Arrays.fill(hullHash, -1);
+		
+		hullStart = i0;
+		hullNext[i0] = hullPrev[i2] = i1;
+		hullNext[i1] = hullPrev[i0] = i2;
+		hullNext[i2] = hullPrev[i1] = i0;
+		
+		hullTri[i0] = 0;
+		hullTri[i1] = 1;
+		hullTri[i2] = 2;
+		
+		hullHash[hashKey(i0x, i0y)] = i0;
+		hullHash[hashKey(i1x, i1y)] = i1;
+		hullHash[hashKey(i2x, i2y)] = i2;
+		
+		addTriangle(i0, i1, i2, -1, -1, -1);
+		
+		double xp = Double.NaN, yp = Double.NaN;
+		for (int k = 0; k < nValid; k++) {
+			int i = ids[k];
+			double xx = x[i];
+			double yy = y[i];
+			
+			// Skip near-duplicate points
+			if (k > 0 && Math.abs(xx - xp) <= EPSILON && Math.abs(yy - yp) <= EPSILON)
+				continue;
+			xp = xx;
+			yp = yy;
+			
+			// Skip seed triangle points
+			if (i == i0 || i == i1 || i == i2)
+				continue;
+			
+			// Find a visible edge on the convex hull using the edge hash
+			int start = 0;
+			int key = hashKey(xx, yy);
+			for (int j = 0; j < hashSize; j++) {
+				start = hullHash[(key + j) % hashSize];
+				if (start != -1 && start != hullNext[start])
+					break;
+			}
+			
+			start = hullPrev[start];
+			int e = start;
+			int q = hullNext[e];
+			while (!orient(xx, yy, x[e], y[e], x[q], y[q])) {
+				e = q;
+				if (e == start) {
+					e = -1;
+					break;
+				}
+				q = hullNext[e];
+			}
+			// Likely a near-duplicate point - skip it
+			if (e == -1)
+				continue;
+			
+			// Add the first triangle from the point
+			int t = addTriangle(e, i, hullNext[e], -1, -1, hullTri[e]);
+			
+			// Recursively flip triangles from the point until they satisfy the Delaunay condition
+			hullTri[i] = legalize(t + 2);
+			// Keep track of boundary triangles on the hull
+			hullTri[e] = t;
+			
+			// Walk forward through the hull, adding more triangles and flipping recursively
+			int next = hullNext[e];
+			q = hullNext[next];
+			while (orient(xx, yy, x[next], y[next], x[q], y[q])) {
+				t = addTriangle(next, i, q, hullTri[i], -1, hullTri[next]);
+				hullTri[i] = legalize(t + 2);
+				// Mark as removed
+				hullNext[next] = next;
+				next = q;
+				q = hullNext[next];
+			}
+			
+			// Walk backward from the other side, adding more triangles and flipping
+			if (e == start) {
+				q = hullPrev[e];
+				while (orient(xx, yy, x[q], y[q], x[e], y[e])) {
+					t = addTriangle(q, i, e, -1, hullTri[e], hullTri[q]);
+					legalize(t + 2);
+					hullTri[q] = t;
+					// Mark as removed
+					hullNext[e] = e;
+					e = q;
+					q = hullPrev[e];
+				}
+			}
+			
+			// Update the hull indices
+			hullStart = hullPrev[i] = e;
+			hullNext[e] = hullPrev[next] = i;
+			hullNext[i] = next;
+			
+			// Save the two new edges in the hash table
+			hullHash[hashKey(xx, yy)] = i;
+			hullHash[hashKey(x[e], y[e])] = e;
+		}
+	}
+	
+	
+	private NeighborGraph buildGraph() {
+		if (collinearIds != null) {
+			// Connect consecutive points only
+			int nEdges = Math.max(0, collinearIds.length - 1);
+			int[] edges = new int[nEdges * 2];
+			int ind = 0;
+			for (int k = 0; k < nEdges; k++) {
+				int a = collinearIds[k];
+				int b = collinearIds[k+1];
+				if (x[a] == x[b] && y[a] == y[b])
+					continue;
+				edges[ind++] = a;
+				edges[ind++] = b;
+			}
+			return NeighborGraph.createFromEdges(n, edges, ind / 2);
+		}
+		// Each internal edge is represented by two half-edges; only add it once
+		int[] edges = new int[trianglesLen * 2];
+		int ind = 0;
+		for (int e = 0; e < trianglesLen; e++) {
+			if (e > halfedges[e]) {
+				edges[ind++] = triangles[e];
+				edges[ind++] = triangles[nextHalfedge(e)];
+			}
+		}
+		return NeighborGraph.createFromEdges(n, edges, ind / 2);
+	}
+	
+	private static int nextHalfedge(final int e) {
+		return (e % 3 == 2) ? e - 2 : e + 1;
+	}
+	
+	private int hashKey(final double xx, final double yy) {
+		int key = (int)Math.floor(pseudoAngle(xx - cx, yy - cy) * hashSize) % hashSize;
+		return key < 0 ? 0 : key;
+	}
+	
+	private int legalize(int a) {
+		int i = 0;
+		int ar = 0;
+		
+		// Recursion eliminated with a stack
+		while (true) {
+			int b = halfedges[a];
+			
+			/*
+			 * If the pair of triangles doesn't satisfy the Delaunay condition
+			 * (p1 is inside the circumcircle of [p0, pl, pr]), flip them,
+			 * then do the same check/flip recursively for the new pair of triangles
+			 *
+			 *           pl                    pl
+			 *          /||\                  /  \
+			 *       al/ || \bl            al/    \a
+			 *        /  ||  \              /      \
+			 *       /  a||b  \    flip    /___ar___\
+			 *     p0\   ||   /p1   =>   p0\---bl---/p1
+			 *        \  ||  /              \      /
+			 *       ar\ || /br             b\    /br
+			 *          \||/                  \  /
+			 *           pr                    pr
+			 */
+			int a0 = a - a % 3;
+			ar = a0 + (a + 2) % 3;
+			
+			if (b == -1) {
+				// Convex hull edge
+				if (i == 0)
+					break;
+				a = edgeStack[--i];
+				continue;
+			}
+			
+			int b0 = b - b % 3;
+			int al = a0 + (a + 1) % 3;
+			int bl = b0 + (b + 2) % 3;
+			
+			int p0 = triangles[ar];
+			int pr = triangles[a];
+			int pl = triangles[al];
+			int p1 = triangles[bl];
+			
+			boolean illegal = inCircle(
+					x[p0], y[p0],
+					x[pr], y[pr],
+					x[pl], y[pl],
+					x[p1], y[p1]);
+			
+			if (illegal) {
+				triangles[a] = p1;
+				triangles[b] = p0;
+				
+				int hbl = halfedges[bl];
+				
+				// Edge swapped on the other side of the hull (rare) - fix the half-edge reference
+				if (hbl == -1) {
+					int e = hullStart;
+					do {
+						if (hullTri[e] == bl) {
+							hullTri[e] = a;
+							break;
+						}
+						e = hullPrev[e];
+					} while (e != hullStart);
+				}
+				link(a, hbl);
+				link(b, halfedges[ar]);
+				link(ar, bl);
+				
+				int br = b0 + (b + 1) % 3;
+				
+				if (i >= edgeStack.length)
+					edgeStack = Arrays.copyOf(edgeStack, edgeStack.length * 2);
+				edgeStack[i++] = br;
+			} else {
+				if (i == 0)
+					break;
+				a = edgeStack[--i];
+			}
+		}
+		
+		return ar;
+	}
+	
+	private void link(final int a, final int b) {
+		halfedges[a] = b;
+		if (b != -1)
+			halfedges[b] = a;
+	}
+	
+	/**
+	 * Add a new triangle given vertex indices and adjacent half-edge IDs.
+	 */
+	private int addTriangle(final int i0, final int i1, final int i2, final int a, final int b, final int c) {
+		int t = trianglesLen;
+		
+		triangles[t] = i0;
+		triangles[t + 1] = i1;
+		triangles[t + 2] = i2;
+		
+		link(t, a);
+		link(t + 1, b);
+		link(t + 2, c);
+		
+		trianglesLen += 3;
+		
+		return t;
+	}
+	
+	/**
+	 * Monotonically increases with real angle, but doesn't need expensive trigonometry.
+	 */
+	private static double pseudoAngle(final double dx, final double dy) {
+		double p = dx / (Math.abs(dx) + Math.abs(dy));
+		// Result in range [0, 1]
+		return (dy > 0 ? 3 - p : 1 + p) / 4;
+	}
+	
+	private static double dist(final double ax, final double ay, final double bx, final double by) {
+		double dx = ax - bx;
+		double dy = ay - by;
+		return dx * dx + dy * dy;
+	}
+	
+	private static boolean orient(final double px, final double py, final double qx, final double qy, final double rx, final double ry) {
+		return (qy - py) * (rx - qx) - (qx - px) * (ry - qy) < 0;
+	}
+	
+	private static boolean inCircle(final double ax, final double ay, final double bx, final double by, final double cx, final double cy, final double px, final double py) {
+		double dx = ax - px;
+		double dy = ay - py;
+		double ex = bx - px;
+		double ey = by - py;
+		double fx = cx - px;
+		double fy = cy - py;
+		
+		double ap = dx * dx + dy * dy;
+		double bp = ex * ex + ey * ey;
+		double cp = fx * fx + fy * fy;
+		
+		return dx * (ey * cp - bp * fy) -
+				dy * (ex * cp - bp * fx) +
+				ap * (ex * fy - ey * fx) < 0;
+	}
+	
+	private static double circumradius(final double ax, final double ay, final double bx, final double by, final double cx, final double cy) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double ex = cx - ax;
+		double ey = cy - ay;
+		
+		double bl = dx * dx + dy * dy;
+		double cl = ex * ex + ey * ey;
+		double d = 0.5 / (dx * ey - dy * ex);
+		
+		double xx = (ey * bl - dy * cl) * d;
+		double yy = (dx * cl - ex * bl) * d;
+		
+		double r = xx * xx + yy * yy;
+		return Double.isNaN(r) ? Double.POSITIVE_INFINITY : r;
+	}
+	
+	/**
+	 * Compute the circumcenter of a triangle, storing the result in cx &amp; cy.
+	 */
+	private void circumcenter(final double ax, final double ay, final double bx, final double by, final double cx, final double cy) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double ex = cx - ax;
+		double ey = cy - ay;
+		
+		double bl = dx * dx + dy * dy;
+		double cl = ex * ex + ey * ey;
+		double d = 0.5 / (dx * ey - dy * ex);
+		
+		this.cx = ax + (ey * bl - dy * cl) * d;
+		this.cy = ay + (dx * cl - ex * bl) * d;
+	}
+	
+	/**
+	 * Sort ids by their corresponding distances (sorting both arrays in place).
+	 */
+	private static void sortByDistance(final int[] ids, final double[] dists, final int left, final int right) {
+		if (right - left <= 20) {
+			for (int i = left + 1; i <= right; i++) {
+				int temp = ids[i];
+				double tempDist = dists[i];
+				int j = i - 1;
+				while (j >= left && dists[j] > tempDist) {
+					ids[j + 1] = ids[j];
+					dists[j + 1] = dists[j];
+					j--;
+				}
+				ids[j + 1] = temp;
+				dists[j + 1] = tempDist;
+			}
+		} else {
+			int median = (left + right) >>> 1;
+			int i = left + 1;
+			int j = right;
+			swap(ids, dists, median, i);
+			if (dists[left] > dists[right]) swap(ids, dists, left, right);
+			if (dists[i] > dists[right]) swap(ids, dists, i, right);
+			if (dists[left] > dists[i]) swap(ids, dists, left, i);
+			
+			int temp = ids[i];
+			double tempDist = dists[i];
+			while (true) {
+				do i++; while (dists[i] < tempDist);
+				do j--; while (dists[j] > tempDist);
+				if (j < i)
+					break;
+				swap(ids, dists, i, j);
+			}
+			ids[left + 1] = ids[j];
+			dists[left + 1] = dists[j];
+			ids[j] = temp;
+			dists[j] = tempDist;
+			
+			if (right - i + 1 >= j - left) {
+				sortByDistance(ids, dists, i, right);
+				sortByDistance(ids, dists, left, j - 1);
+			} else {
+				sortByDistance(ids, dists, left, j - 1);
+				sortByDistance(ids, dists, i, right);
+			}
+		}
+	}
+	
+	private static void swap(final int[] ids, final double[] dists, final int i, final int j) {
+		int tmp = ids[i];
+		ids[i] = ids[j];
+		ids[j] = tmp;
+		double tmpDist = dists[i];
+		dists[i] = dists[j];
+		dists[j] = tmpDist;
+	}
+
+}
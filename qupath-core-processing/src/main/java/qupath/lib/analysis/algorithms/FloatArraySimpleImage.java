@@ -47,6 +47,13 @@ public class FloatArraySimpleImage implements SimpleModifiableImage {
 		this.height = height;
 	}
 	
+	/**
+	 * Direct access to the backing array (not copied).
+	 */
+	float[] getArray() {
+		return data;
+	}
+	
 	@Override
 	public float getValue(int x, int y) {
 		return data[y * width + x];
@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.analysis.algorithms;
+
+/**
+ * Simple first-in-first-out queue of int values, backed by an array that is expanded (or shifted) as needed.
+ * <p>
+ * Used to store pixel indices during morphological reconstruction.
+ */
+class IntDequeue {
+	
+	private int[] array;
+	private int head = 0; // Points to location of first element in queue
+	private int tail = 0; // Points to location of *next* insert
+	private static int MAX_EXPANSION = 1024*10;
+	
+	public IntDequeue(int capacity) {
+//		IJ.log("Using INT DEQUE!");
+		array = new int[capacity];
+		head = 0;
+		tail = 0;
+	}
+	
+	public boolean isEmpty() {
+		return tail == head;
+	}
+	
+	/**
+	 * Performs no check that the output will be valid (caller should use isEmpty first to check this)
+	 * @return
+	 */
+	public int remove() {
+		head++;
+		return array[head-1];
+	}
+	
+	public void add(int val) {
+		// Do a normal add if we can
+		if (tail < array.length) {
+			array[tail] = val;
+			tail++;
+			return;
+		}
+		// Shift everything back if that's an option
+		if (head != 0) {
+//			IJ.log("Shifting with head at " + head);
+			if (tail > head)
+				System.arraycopy(array, head, array, 0, tail-head);
+			tail -= head;
+			head = 0;
+			array[tail] = val;
+			tail++;
+			return;
+		}
+		// We need to expand the array
+		int[] array2 = new int[Math.max(array.length*2, MAX_EXPANSION)];
+		System.arraycopy(array, 0, array2, 0, array.length);
+		array = array2;
+		array[tail] = val;
+		tail++;
+//		IJ.log("Expanding IntDeque to length " + array.length);
+	}
+	
+}
@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compact, immutable undirected graph, where nodes are identified by integer indices.
+ * <p>
+ * Adjacency is stored in compressed sparse row (CSR) form: the neighbors of node i are 
+ * found in {@code neighbors[offsets[i]]} to {@code neighbors[offsets[i+1]-1]}, sorted in ascending order.
+ * This requires two int arrays in total, rather than one list per node, which makes it suitable for graphs 
+ * with millions of nodes (e.g. connecting neighboring cells).
+ * <p>
+ * Because the graph is immutable, it can be queried from multiple threads.
+ * 
+ * @see DelaunayTriangulator
+ */
+public class NeighborGraph implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Test used to decide whether an edge should be retained when filtering a graph.
+	 */
+	public static interface EdgeFilter {
+		
+		/**
+		 * Returns true if the edge between nodes i and j should be kept.
+		 * <p>
+		 * This may be called with the nodes in either order, and should give the same result for both.
+		 * 
+		 * @param i
+		 * @param j
+		 * @return
+		 */
+		public boolean accept(int i, int j);
+		
+	}
+	
+	private final int[] offsets;
+	private final int[] neighbors;
+	
+	private NeighborGraph(final int[] offsets, final int[] neighbors) {
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+	}
+	
+	/**
+	 * Create a graph from a list of edges.
+	 * <p>
+	 * Edges are provided as consecutive pairs of node indices, i.e. edge k connects 
+	 * {@code edges[k*2]} and {@code edges[k*2+1]}.  Each edge should be given only once; 
+	 * it will be added to both nodes.  Duplicate edges are removed.
+	 * 
+	 * @param nNodes total number of nodes
+	 * @param edges node indices for each edge
+	 * @param nEdges number of edges
+	 * @return
+	 */
+	public static NeighborGraph createFromEdges(final int nNodes, final int[] edges, final int nEdges) {
+		int[] counts = new int[nNodes + 1];
+		for (int k = 0; k < nEdges; k++) {
+			counts[edges[k*2] + 1]++;
+			counts[edges[k*2+1] + 1]++;
+		}
+		for (int i = 0; i < nNodes; i++)
+			counts[i+1] += counts[i];
+		
+		int[] neighbors = new int[counts[nNodes]];
+		int[] fill = Arrays.copyOf(counts, nNodes);
+		for (int k = 0; k < nEdges; k++) {
+			int a = edges[k*2];
+			int b = edges[k*2+1];
+			neighbors[fill[a]++] = b;
+			neighbors[fill[b]++] = a;
+		}
+		
+		// Sort neighbors, removing any duplicates
+		int[] offsets = new int[nNodes + 1];
+		int ind = 0;
+		for (int i = 0; i < nNodes; i++) {
+			int start = counts[i];
+			int end = counts[i+1];
+			Arrays.sort(neighbors, start, end);
+			offsets[i] = ind;
+			for (int k = start; k < end; k++) {
+				int j = neighbors[k];
+				if (j == i || (k > start && j == neighbors[k-1]))
+					continue;
+				neighbors[ind++] = j;
+			}
+		}
+		offsets[nNodes] = ind;
+		return new NeighborGraph(offsets, ind == neighbors.length ? neighbors : Arrays.copyOf(neighbors, ind));
+	}
+	
+	/**
+	 * Total number of nodes in the graph (including those without any neighbors).
+	 * @return
+	 */
+	public int nNodes() {
+		return offsets.length - 1;
+	}
+	
+	/**
+	 * Total number of (undirected) edges in the graph.
+	 * @return
+	 */
+	public int nEdges() {
+		return neighbors.length / 2;
+	}
+	
+	/**
+	 * Number of neighbors for node i.
+	 * @param i
+	 * @return
+	 */
+	public int nNeighbors(final int i) {
+		return offsets[i+1] - offsets[i];
+	}
+	
+	/**
+	 * Get the index of the kth neighbor of node i, where 0 &lt;= k &lt; nNeighbors(i).
+	 * 
+	 * @param i
+	 * @param k
+	 * @return
+	 */
+	public int getNeighbor(final int i, final int k) {
+		return neighbors[offsets[i] + k];
+	}
+	
+	/**
+	 * Returns true if nodes i and j are connected by an edge.
+	 * 
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public boolean isConnected(final int i, final int j) {
+		return Arrays.binarySearch(neighbors, offsets[i], offsets[i+1], j) >= 0;
+	}
+	
+	/**
+	 * Create a new graph, retaining only the edges that pass a filter.
+	 * 
+	 * @param filter
+	 * @return
+	 */
+	public NeighborGraph filter(final EdgeFilter filter) {
+		int nNodes = nNodes();
+		int[] newOffsets = new int[nNodes + 1];
+		int[] newNeighbors = new int[neighbors.length];
+		int ind = 0;
+		for (int i = 0; i < nNodes; i++) {
+			newOffsets[i] = ind;
+			for (int k = offsets[i]; k < offsets[i+1]; k++) {
+				int j = neighbors[k];
+				// Apply filter only once per edge, so the result is always symmetric
+				if (i < j ? filter.accept(i, j) : isAccepted(newNeighbors, newOffsets, j, i))
+					newNeighbors[ind++] = j;
+			}
+		}
+		newOffsets[nNodes] = ind;
+		return new NeighborGraph(newOffsets, Arrays.copyOf(newNeighbors, ind));
+	}
+	
+	private static boolean isAccepted(final int[] newNeighbors, final int[] newOffsets, final int j, final int i) {
+		// Node j has already been processed, so we can check whether i was kept as its neighbor
+		return Arrays.binarySearch(newNeighbors, newOffsets[j], newOffsets[j+1], i) >= 0;
+	}
+	
+	/**
+	 * Label connected components within the graph.
+	 * <p>
+	 * Every node receives a label, starting from 0; nodes without neighbors form their own component.
+	 * 
+	 * @return an array of length nNodes() containing the component label for each node
+	 */
+	public int[] getConnectedComponentLabels() {
+		int nNodes = nNodes();
+		int[] labels = new int[nNodes];
+		Arrays.fill(labels, -1);
+		int[] stack = new int[Math.max(1, nNodes)];
+		int label = 0;
+		for (int i = 0; i < nNodes; i++) {
+			if (labels[i] >= 0)
+				continue;
+			int stackSize = 0;
+			stack[stackSize++] = i;
+			labels[i] = label;
+			while (stackSize > 0) {
+				int current = stack[--stackSize];
+				for (int k = offsets[current]; k < offsets[current+1]; k++) {
+					int j = neighbors[k];
+					if (labels[j] < 0) {
+						labels[j] = label;
+						stack[stackSize++] = j;
+					}
+				}
+			}
+			label++;
+		}
+		return labels;
+	}
+
+}
@@ -186,6 +186,26 @@ public class Histogram { // implements Serializable {
 	}
 	
 	
+	/**
+	 * Create a histogram from previously-computed counts and statistics.
+	 * <p>
+	 * Used by {@link HistogramAccumulator}.
+	 */
+	Histogram(final double[] edges, final double[] counts, final double edgeMin, final double edgeMax, final RunningStatistics stats, final boolean isInteger) {
+		this.edges = edges;
+		this.counts = counts;
+		this.edgeMin = edgeMin;
+		this.edgeMax = edgeMax;
+		this.stats = stats;
+		this.isInteger = isInteger;
+		for (double c : counts) {
+			if (c > maxCount)
+				maxCount = c;
+			countSum += c;
+		}
+	}
+	
+	
 	@Override
 	public String toString() {
 		double count = getCountSum();
@@ -0,0 +1,323 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.stats;
+
+import java.util.Arrays;
+
+/**
+ * Helper class for building a {@link Histogram} incrementally, e.g. from tiles or image planes as they become available.
+ * <p>
+ * Accumulators can be merged, so that different parts of an image can be handled independently (possibly in parallel) 
+ * without ever needing to store all the values in a single array.
+ * <p>
+ * Because the bins need to be known in advance, a histogram spanning the full data range is usually created in two passes:
+ * <ol>
+ *   <li>Add all values to an accumulator created with {@link #HistogramAccumulator()}, which only computes statistics</li>
+ *   <li>Add all values again to the accumulator returned by {@link #createBinnedAccumulator(int)}, and call {@link #toHistogram()}</li>
+ * </ol>
+ * The result is then the same as if all values were passed to {@link Histogram#Histogram(float[], int)}.
+ * <p>
+ * Alternatively, if the range is already known approximately (e.g. from a histogram of a lower-resolution image), 
+ * a single pass is enough by using {@link #HistogramAccumulator(double, double, int, boolean, boolean)} 
+ * to clamp values outside the range into the first or last bin - or, if clamping would skew the histogram, 
+ * by using {@link #createWidenedAccumulator(Histogram, double)} and checking how many values fell outside 
+ * the range with {@link #getCountBelowRange()} and {@link #getCountAboveRange()}.
+ */
+public class HistogramAccumulator {
+	
+	private RunningStatistics stats = new RunningStatistics();
+	private boolean isInteger = true;
+	
+	private double edgeMin, edgeMax;
+	private double binWidth;
+	private double[] edges;
+	private double[] counts;
+	private boolean clampToRange;
+	private long nBelow, nAbove;
+	
+	/**
+	 * Create an accumulator that computes statistics only, without any histogram bins.
+	 */
+	public HistogramAccumulator() {
+		this(Double.NaN, Double.NaN, 0, false);
+	}
+	
+	/**
+	 * Create an accumulator with bins spanning a specified range.
+	 * <p>
+	 * Values outside the range contribute to the statistics, but not the bin counts.
+	 * 
+	 * @param edgeMin minimum (edge) value to include in the histogram
+	 * @param edgeMax maximum (edge) value to include in the histogram
+	 * @param nBins number of histogram bins
+	 * @param integerValues if true, bins will not be narrower than 1 (as with {@link Histogram} for integer data)
+	 */
+	public HistogramAccumulator(final double edgeMin, final double edgeMax, int nBins, final boolean integerValues) {
+		this(edgeMin, edgeMax, nBins, integerValues, false);
+	}
+	
+	/**
+	 * Create an accumulator with bins spanning a specified range, optionally counting values outside the range 
+	 * in the first or last bin.
+	 * <p>
+	 * Values outside the range always contribute to the statistics.  If they are not clamped, they are 
+	 * counted separately - see {@link #getCountBelowRange()} and {@link #getCountAboveRange()}.
+	 * 
+	 * @param edgeMin minimum (edge) value to include in the histogram
+	 * @param edgeMax maximum (edge) value to include in the histogram
+	 * @param nBins number of histogram bins
+	 * @param integerValues if true, bins will not be narrower than 1 (as with {@link Histogram} for integer data)
+	 * @param clampToRange if true, values below edgeMin are counted in the first bin and values above edgeMax in the last bin
+	 */
+	public HistogramAccumulator(final double edgeMin, final double edgeMax, int nBins, final boolean integerValues, final boolean clampToRange) {
+		this.clampToRange = clampToRange;
+		this.edgeMin = edgeMin;
+		this.edgeMax = edgeMax;
+		
+		binWidth = (edgeMax - edgeMin)/nBins;
+		if (!Double.isFinite(binWidth))
+			nBins = 0;
+		else if (binWidth < 1 && integerValues) {
+			binWidth = 1;
+			nBins = (int)(edgeMax - edgeMin + 1);
+		}
+		edges = new double[nBins+1];
+		counts = new double[nBins];
+		if (nBins > 0) {
+			for (int i = 0; i <= nBins; i++)
+				edges[i] = edgeMin + i * binWidth;
+		}
+	}
+	
+	/**
+	 * Create a new, empty accumulator with the same bins as an existing histogram, 
+	 * clamping values outside its range into the first or last bin.
+	 * 
+	 * @param histogram
+	 * @return
+	 */
+	public static HistogramAccumulator createClampedAccumulator(final Histogram histogram) {
+		int nBins = histogram.nBins();
+		return new HistogramAccumulator(histogram.getBinLeftEdge(0), histogram.getBinRightEdge(nBins-1), nBins, false, true);
+	}
+	
+	/**
+	 * Create a new, empty accumulator with bins of the same width as an existing histogram, 
+	 * but with the range extended on both sides.
+	 * <p>
+	 * Values outside the extended range are not clamped, but rather counted separately.
+	 * 
+	 * @param histogram
+	 * @param margin proportion of the histogram range to add below the minimum edge &amp; above the maximum edge
+	 * @return
+	 */
+	public static HistogramAccumulator createWidenedAccumulator(final Histogram histogram, final double margin) {
+		int nBins = histogram.nBins();
+		double edgeMin = histogram.getBinLeftEdge(0);
+		double edgeMax = histogram.getBinRightEdge(nBins-1);
+		double binWidth = (edgeMax - edgeMin) / nBins;
+		int nExtra = (int)Math.ceil(nBins * margin);
+		return new HistogramAccumulator(edgeMin - nExtra * binWidth, edgeMax + nExtra * binWidth, nBins + nExtra * 2, false, false);
+	}
+	
+	/**
+	 * Create a new, empty accumulator with bins spanning the range of values added to this one.
+	 * 
+	 * @param nBins
+	 * @return
+	 */
+	public HistogramAccumulator createBinnedAccumulator(final int nBins) {
+		return new HistogramAccumulator(stats.getMin(), stats.getMax(), nBins, isInteger);
+	}
+	
+	/**
+	 * Add a single value.  NaNs contribute to the count of missing values only.
+	 * 
+	 * @param v
+	 */
+	public void addValue(final double v) {
+		stats.addValue(v);
+		if (isInteger && v != Math.rint(v))
+			isInteger = false;
+		if (counts.length == 0 || Double.isNaN(v))
+			return;
+		if (!clampToRange) {
+			if (v < edgeMin) {
+				nBelow++;
+				return;
+			} else if (v > edgeMax) {
+				nAbove++;
+				return;
+			}
+		}
+		int bin = (int)((v - edgeMin) / binWidth);
+		if (bin < 0)
+			bin = 0;
+		else if (bin >= counts.length)
+			bin = counts.length - 1;
+		counts[bin]++;
+	}
+	
+	/**
+	 * Add values from an array.
+	 * 
+	 * @param values
+	 * @param startInd first index to include
+	 * @param endInd last index to include (exclusive)
+	 */
+	public void addValues(final float[] values, final int startInd, final int endInd) {
+		for (int i = startInd; i < endInd; i++)
+			addValue(values[i]);
+	}
+	
+	/**
+	 * Add all values from an array.
+	 * 
+	 * @param values
+	 */
+	public void addValues(final float[] values) {
+		addValues(values, 0, values.length);
+	}
+	
+	/**
+	 * Merge the values added to another accumulator into this one.
+	 * <p>
+	 * Both accumulators must have been created with the same bins.
+	 * 
+	 * @param accumulator
+	 * @return this accumulator
+	 * @throws IllegalArgumentException if the bins are not the same
+	 */
+	public HistogramAccumulator merge(final HistogramAccumulator accumulator) {
+		if (counts.length != accumulator.counts.length || 
+				(counts.length > 0 && (edgeMin != accumulator.edgeMin || edgeMax != accumulator.edgeMax)))
+			throw new IllegalArgumentException("Cannot merge histogram accumulators with different bins");
+		stats.merge(accumulator.stats);
+		isInteger = isInteger && accumulator.isInteger;
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += accumulator.counts[i];
+		nBelow += accumulator.nBelow;
+		nAbove += accumulator.nAbove;
+		return this;
+	}
+	
+	/**
+	 * Returns true if all the values added so far are integers.
+	 * 
+	 * @return
+	 */
+	public boolean isInteger() {
+		return isInteger;
+	}
+	
+	/**
+	 * Number of non-NaN values added.
+	 * 
+	 * @return
+	 */
+	public long nValues() {
+		return stats.size();
+	}
+	
+	/**
+	 * Number of values added that were below the minimum edge, and therefore not counted in any bin.
+	 * <p>
+	 * This is always 0 if values are clamped to the range.
+	 * 
+	 * @return
+	 */
+	public long getCountBelowRange() {
+		return nBelow;
+	}
+	
+	/**
+	 * Number of values added that were above the maximum edge, and therefore not counted in any bin.
+	 * <p>
+	 * This is always 0 if values are clamped to the range.
+	 * 
+	 * @return
+	 */
+	public long getCountAboveRange() {
+		return nAbove;
+	}
+	
+	public double getMinValue() {
+		return stats.getMin();
+	}
+
+	public double getMaxValue() {
+		return stats.getMax();
+	}
+
+	public double getMeanValue() {
+		return stats.getMean();
+	}
+
+	public double getStdDev() {
+		return stats.getStdDev();
+	}
+	
+	/**
+	 * Create a histogram from the values added so far.
+	 * <p>
+	 * The histogram is a snapshot; values added to the accumulator later will not be reflected in it.
+	 * 
+	 * @return
+	 */
+	public Histogram toHistogram() {
+		RunningStatistics statsCopy = new RunningStatistics();
+		statsCopy.merge(stats);
+		// Without bins, the edges are determined by the data
+		if (counts.length == 0 && Double.isNaN(edgeMin))
+			return new Histogram(edges.clone(), counts.clone(), stats.getMin(), stats.getMax(), statsCopy, isInteger);
+		return new Histogram(edges.clone(), counts.clone(), edgeMin, edgeMax, statsCopy, isInteger);
+	}
+	
+	/**
+	 * Create a histogram from the values added so far, omitting any bins below the minimum value 
+	 * or above the maximum value.
+	 * <p>
+	 * This is useful if the range was widened (e.g. with {@link #createWidenedAccumulator(Histogram, double)}), 
+	 * and so may include bins that could not possibly contain any values.
+	 * 
+	 * @return
+	 */
+	public Histogram toTrimmedHistogram() {
+		if (counts.length == 0 || stats.size() == 0)
+			return toHistogram();
+		int first = (int)((Math.max(stats.getMin(), edgeMin) - edgeMin) / binWidth);
+		int last = (int)((Math.min(stats.getMax(), edgeMax) - edgeMin) / binWidth);
+		first = Math.max(0, Math.min(first, counts.length - 1));
+		last = Math.max(0, Math.min(last, counts.length - 1));
+		if (first > last)
+			return toHistogram();
+		RunningStatistics statsCopy = new RunningStatistics();
+		statsCopy.merge(stats);
+		double[] edgesTrimmed = Arrays.copyOfRange(edges, first, last + 2);
+		double[] countsTrimmed = Arrays.copyOfRange(counts, first, last + 1);
+		return new Histogram(edgesTrimmed, countsTrimmed, edgesTrimmed[0], edgesTrimmed[edgesTrimmed.length-1], statsCopy, isInteger);
+	}
+
+}
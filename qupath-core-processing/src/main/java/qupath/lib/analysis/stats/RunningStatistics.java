@@ -91,6 +91,40 @@ public class RunningStatistics {
 		}
 	}
 	
+	/**
+	 * Merge the values summarized by another RunningStatistics object into this one.
+	 * <p>
+	 * This makes it possible to compute statistics for different parts of an image (e.g. tiles) independently, 
+	 * possibly in parallel, and combine the results afterwards.
+	 * 
+	 * @param stats
+	 */
+	public void merge(final RunningStatistics stats) {
+		numNaNs += stats.numNaNs;
+		if (stats.size == 0)
+			return;
+		if (size == 0) {
+			size = stats.size;
+			sum = stats.sum;
+			min = stats.min;
+			max = stats.max;
+			m1 = stats.m1;
+			s1 = stats.s1;
+			return;
+		}
+		// See https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Parallel_algorithm
+		long sizeNew = size + stats.size;
+		double delta = stats.m1 - m1;
+		m1 = m1 + delta * stats.size / sizeNew;
+		s1 = s1 + stats.s1 + delta * delta * ((double)size * stats.size / sizeNew);
+		size = sizeNew;
+		sum += stats.sum;
+		if (stats.min < min)
+			min = stats.min;
+		if (stats.max > max)
+			max = stats.max;
+	}
+	
 	public long getNumNaNs() {
 		return numNaNs;
 	}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.stats.survival;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+
+/**
+ * Compute log-rank test p-values for every possible threshold used to split samples into 'low' and 'high' groups by score.
+ * <p>
+ * This gives the same results as splitting the data into two {@link KaplanMeierData} objects for each threshold and 
+ * calling {@link LogRankTest#computeLogRankTest(KaplanMeierData, KaplanMeierData)}, but avoids rebuilding the groups each time.
+ * <p>
+ * The trick is that the expected number of events in a group is the sum, over each sample in that group, of the pooled 
+ * (Nelson-Aalen) cumulative hazard at that sample's time - and the pooled data doesn't depend upon the threshold.
+ * So after sorting once by time (to get the hazard) and once by score, each threshold only requires moving the 
+ * samples with the next score from the high to the low group.  The full curve is then O(n log n).
+ */
+public class LogRankSweep {
+
+	private static ChiSquaredDistribution chi2 = new ChiSquaredDistribution(1);
+
+	private double[] thresholds;
+	private double[] pValues;
+	private double[] hazardRatios;
+
+	private LogRankSweep(final double[] thresholds, final double[] pValues, final double[] hazardRatios) {
+		this.thresholds = thresholds;
+		this.pValues = pValues;
+		this.hazardRatios = hazardRatios;
+	}
+
+	/**
+	 * Compute log-rank p-values for all thresholds.
+	 * <p>
+	 * Each distinct score is used as a threshold, with samples having scores &lt; threshold assigned to the low group 
+	 * and all others assigned to the high group (matching the convention used when displaying Kaplan-Meier curves).
+	 * Thresholds for which the test isn't defined (e.g. because one group is empty) are omitted.
+	 * <p>
+	 * Samples with NaN scores or survival times are ignored.
+	 * 
+	 * @param scores
+	 * @param survival
+	 * @param censored
+	 * @param censorThreshold if &gt; 0, all times after this are treated as censored at this time
+	 * @return
+	 */
+	public static LogRankSweep compute(final double[] scores, final double[] survival, final boolean[] censored, final double censorThreshold) {
+		// Extract the valid samples, applying any censoring
+		int n = 0;
+		int[] inds = new int[scores.length];
+		for (int i = 0; i < scores.length; i++) {
+			if (!Double.isNaN(scores[i]) && !Double.isNaN(survival[i]))
+				inds[n++] = i;
+		}
+		double[] times = new double[n];
+		boolean[] observed = new boolean[n];
+		double[] validScores = new double[n];
+		for (int k = 0; k < n; k++) {
+			int i = inds[k];
+			validScores[k] = scores[i];
+			if (censorThreshold > 0 && survival[i] > censorThreshold) {
+				times[k] = censorThreshold;
+				observed[k] = false;
+			} else {
+				times[k] = survival[i];
+				observed[k] = !censored[i];
+			}
+		}
+
+		// Compute the pooled cumulative hazard at the time of each sample,
+		// which gives its contribution to the expected number of events in whichever group it belongs to
+		double[] weights = new double[n];
+		Integer[] byTime = sortedIndices(times, n);
+		double cumulativeHazard = 0;
+		double totalExpected = 0;
+		int totalObserved = 0;
+		int k = 0;
+		while (k < n) {
+			double t = times[byTime[k]];
+			int end = k;
+			int nEvents = 0;
+			while (end < n && times[byTime[end]] == t) {
+				if (observed[byTime[end]])
+					nEvents++;
+				end++;
+			}
+			// Everything from here onwards is still at risk
+			cumulativeHazard += (double)nEvents / (n - k);
+			for (int j = k; j < end; j++) {
+				weights[byTime[j]] = cumulativeHazard;
+				totalExpected += cumulativeHazard;
+			}
+			totalObserved += nEvents;
+			k = end;
+		}
+
+		// Sweep through in order of score, moving samples from the high to the low group
+		Integer[] byScore = sortedIndices(validScores, n);
+		double[] thresholds = new double[n];
+		double[] pValues = new double[n];
+		double[] hazardRatios = new double[n];
+		int count = 0;
+		double e1 = 0;
+		double d1 = 0;
+		k = 0;
+		while (k < n) {
+			double threshold = validScores[byScore[k]];
+			// Low group contains everything before k - and must not be empty
+			if (k > 0) {
+				double e2 = totalExpected - e1;
+				double d2 = totalObserved - d1;
+				double stat = (d1-e1)*(d1-e1)/e1 + (d2-e2)*(d2-e2)/e2;
+				double pValue = 1 - chi2.cumulativeProbability(Math.abs(stat));
+				if (Double.isFinite(pValue)) {
+					thresholds[count] = threshold;
+					pValues[count] = pValue;
+					hazardRatios[count] = (d1/e1)/(d2/e2);
+					count++;
+				}
+			}
+			while (k < n && validScores[byScore[k]] == threshold) {
+				int ind = byScore[k];
+				e1 += weights[ind];
+				if (observed[ind])
+					d1++;
+				k++;
+			}
+		}
+		return new LogRankSweep(
+				Arrays.copyOf(thresholds, count),
+				Arrays.copyOf(pValues, count),
+				Arrays.copyOf(hazardRatios, count));
+	}
+
+	private static Integer[] sortedIndices(final double[] values, final int n) {
+		Integer[] inds = new Integer[n];
+		for (int i = 0; i < n; i++)
+			inds[i] = i;
+		Arrays.sort(inds, (i1, i2) -> Double.compare(values[i1], values[i2]));
+		return inds;
+	}
+
+	/**
+	 * Number of thresholds for which a p-value could be computed.
+	 * 
+	 * @return
+	 */
+	public int nThresholds() {
+		return thresholds.length;
+	}
+
+	/**
+	 * Get the thresholds, in ascending order.
+	 * 
+	 * @return
+	 */
+	public double[] getThresholds() {
+		return thresholds.clone();
+	}
+
+	/**
+	 * Get the log-rank p-values, corresponding to the thresholds returned by {@link #getThresholds()}.
+	 * 
+	 * @return
+	 */
+	public double[] getPValues() {
+		return pValues.clone();
+	}
+
+	/**
+	 * Get the hazard ratios (low vs. high), corresponding to the thresholds returned by {@link #getThresholds()}.
+	 * 
+	 * @return
+	 */
+	public double[] getHazardRatios() {
+		return hazardRatios.clone();
+	}
+
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.classifiers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import qupath.lib.measurements.MeasurementList;
+
+/**
+ * Helper class to extract a fixed list of features from many MeasurementLists, without looking up each feature by name.
+ * 
+ * Most objects share the same measurement names (often the same list instance, once MeasurementLists are closed),
+ * so the index of every feature is computed only once per distinct list of names and then reused.
+ * Changing the features clears the stored indices, but otherwise they remain valid as labels or training
+ * objects change.
+ * 
+ * Values are always read from the MeasurementList itself, so measurements that are updated in place are handled
+ * correctly.  Features missing from a list are returned as NaN, as with {@link MeasurementList#getMeasurementValue(String)}.
+ */
+public class FeatureIndexCache {
+	
+	/**
+	 * Maximum number of distinct lists of measurement names for which indices are stored.
+	 */
+	private static final int MAX_CACHED_NAME_LISTS = 64;
+	
+	private List<String> features = Collections.emptyList();
+	private Map<List<String>, int[]> indexMap = new HashMap<>();
+	
+	// Most recently-used entries, to avoid hashing the names list for each object
+	private List<String> lastNames = null;
+	private int[] lastIndices = null;
+	private boolean lastComplete = false;
+	
+	/**
+	 * Create a cache to extract the specified features.
+	 * 
+	 * @param features
+	 */
+	public FeatureIndexCache(final List<String> features) {
+		setFeatures(features);
+	}
+	
+	/**
+	 * Set the features to extract, in order.  Stored indices are only discarded if the features are different.
+	 * 
+	 * @param features
+	 * @return true if the features changed, false otherwise
+	 */
+	public synchronized boolean setFeatures(final List<String> features) {
+		if (this.features.equals(features))
+			return false;
+		this.features = Collections.unmodifiableList(new ArrayList<>(features));
+		indexMap.clear();
+		lastNames = null;
+		lastIndices = null;
+		lastComplete = false;
+		return true;
+	}
+	
+	/**
+	 * Get the features that will be extracted.
+	 * 
+	 * @return
+	 */
+	public synchronized List<String> getFeatures() {
+		return features;
+	}
+	
+	/**
+	 * Get the number of features that will be extracted.
+	 * 
+	 * @return
+	 */
+	public synchronized int nFeatures() {
+		return features.size();
+	}
+	
+	/**
+	 * Get the index of each feature within a MeasurementList, or -1 if the feature is not present.
+	 * 
+	 * The returned array should not be modified.
+	 * 
+	 * @param measurementList
+	 * @return
+	 */
+	public synchronized int[] getFeatureIndices(final MeasurementList measurementList) {
+		// If the last indices found every feature, it is enough to check the names at those indices
+		if (lastComplete && containsFeaturesAt(measurementList, lastIndices))
+			return lastIndices;
+		List<String> names = measurementList.getMeasurementNames();
+		if (lastNames != null && lastNames.equals(names))
+			return lastIndices;
+		int[] indices = indexMap.get(names);
+		// Store a copy of the names, since the list may be a view of a MeasurementList that is still open
+		names = new ArrayList<>(names);
+		if (indices == null) {
+			indices = computeFeatureIndices(names);
+			if (indexMap.size() >= MAX_CACHED_NAME_LISTS)
+				indexMap.clear();
+			indexMap.put(names, indices);
+		}
+		lastNames = names;
+		lastIndices = indices;
+		lastComplete = true;
+		for (int ind : indices) {
+			if (ind < 0) {
+				lastComplete = false;
+				break;
+			}
+		}
+		return indices;
+	}
+	
+	private boolean containsFeaturesAt(final MeasurementList measurementList, final int[] indices) {
+		int n = measurementList.size();
+		for (int k = 0; k < indices.length; k++) {
+			int ind = indices[k];
+			if (ind >= n || !features.get(k).equals(measurementList.getMeasurementName(ind)))
+				return false;
+		}
+		return true;
+	}
+	
+	private int[] computeFeatureIndices(final List<String> names) {
+		Map<String, Integer> nameIndices = new HashMap<>();
+		int i = 0;
+		for (String name : names) {
+			nameIndices.put(name, i);
+			i++;
+		}
+		int[] indices = new int[features.size()];
+		int k = 0;
+		for (String feature : features) {
+			Integer ind = nameIndices.get(feature);
+			indices[k] = ind == null ? -1 : ind;
+			k++;
+		}
+		return indices;
+	}
+	
+	/**
+	 * Extract the feature values from a MeasurementList.
+	 * 
+	 * @param measurementList
+	 * @param values array to store the values, or null if a new array should be created
+	 * @return array containing the values, in the order of {@link #getFeatures()}
+	 */
+	public double[] getFeatureValues(final MeasurementList measurementList, double[] values) {
+		int[] indices = getFeatureIndices(measurementList);
+		if (values == null || values.length < indices.length)
+			values = new double[indices.length];
+		for (int k = 0; k < indices.length; k++) {
+			int ind = indices[k];
+			values[k] = ind < 0 ? Double.NaN : measurementList.getMeasurementValue(ind);
+		}
+		return values;
+	}
+
+}
@@ -35,6 +35,7 @@ import java.util.Random;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -188,12 +189,26 @@ public class PathClassificationLabellingHelper {
 	 * @param pointsOnly If true, only Point annotations will be used for training.
 
 	 * @return
+	 * 
+	 * @see TrainingDataCache
 	 */
 	public static Map<PathClass, List<PathObject>> getClassificationMap(final PathObjectHierarchy hierarchy, final boolean pointsOnly) {
+		return getClassificationMap(getAnnotations(hierarchy), pointsOnly, pathObject -> getDetectionsForPoints(hierarchy, pathObject));
+	}
+	
+	/**
+	 * Get a map of training data from the specified annotations.
+	 * 
+	 * @param allAnnotations all the annotations in the hierarchy
+	 * @param pointsOnly If true, only Point annotations will be used for training.
+	 * @param pointDetections function to get the detections at each location of a Point annotation
+	 * @return
+	 */
+	static Map<PathClass, List<PathObject>> getClassificationMap(final Collection<PathObject> allAnnotations, final boolean pointsOnly, final Function<PathObject, List<Collection<PathObject>>> pointDetections) {
 		Map<PathClass, List<PathObject>> classifications = new TreeMap<>();
 		
 		// Get the annotations & filter out those that are useful
-		List<PathObject> annotations = getAnnotations(hierarchy);
+		List<PathObject> annotations = new ArrayList<>(allAnnotations);
 		Iterator<PathObject> iter = annotations.iterator();
 		while (iter.hasNext()) {
 			PathObject pathObject = iter.next();
@@ -244,10 +259,7 @@ public class PathClassificationLabellingHelper {
 			list.addAll(pathObject.getChildObjects());
 //			sb.append(list.size() + ", ");
 			if (pathObject.isPoint()) {
-				for (Point2 p : ((PointsROI)pathObject.getROI()).getPointList()) {
-					// TODO: Pay attention to z & t position!
-					Collection<PathObject> pathObjectsTemp = PathObjectTools.getObjectsForLocation(hierarchy, p.getX(), p.getY(), 0, 0);
-					pathObjectsTemp = PathObjectTools.getObjectsOfClass(pathObjectsTemp, PathDetectionObject.class);
+				for (Collection<PathObject> pathObjectsTemp : pointDetections.apply(pathObject)) {
 					list.removeAll(pathObjectsTemp); // Clumsy way to avoid duplicates...
 					list.addAll(pathObjectsTemp);
 				}
@@ -263,6 +275,24 @@ public class PathClassificationLabellingHelper {
 	
 	
 	
+	/**
+	 * Get the detections at each location of a Point annotation.
+	 * 
+	 * @param hierarchy
+	 * @param pathObject a Point annotation
+	 * @return a list containing the detections for each point, in order
+	 */
+	static List<Collection<PathObject>> getDetectionsForPoints(final PathObjectHierarchy hierarchy, final PathObject pathObject) {
+		List<Collection<PathObject>> detections = new ArrayList<>();
+		for (Point2 p : ((PointsROI)pathObject.getROI()).getPointList()) {
+			// TODO: Pay attention to z & t position!
+			Collection<PathObject> pathObjectsTemp = PathObjectTools.getObjectsForLocation(hierarchy, p.getX(), p.getY(), 0, 0);
+			detections.add(PathObjectTools.getObjectsOfClass(pathObjectsTemp, PathDetectionObject.class));
+		}
+		return detections;
+	}
+
+	
 	/**
 	 * Resample a training map (PathClass label & lists of PathObjects that should have the specified classifications) so that
 	 * it contains only a specified proportion of entries.
@@ -0,0 +1,176 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.classifiers;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+
+/**
+ * Cache of the information needed to (re)train a classifier from the annotations in a hierarchy.
+ * <p>
+ * {@link PathClassificationLabellingHelper#getClassificationMap(PathObjectHierarchy, boolean)} needs to find every 
+ * annotation in the hierarchy (visiting all the detections on the way) and look up the detections under each point of 
+ * Point annotations, while finding the available features requires checking the measurements of every detection.
+ * When a classifier is updated repeatedly as training objects are added, most of this work gives the same result each time.
+ * <p>
+ * This class listens for hierarchy changes and updates its stored annotations incrementally as they are added or removed, 
+ * recomputing the detections for Point annotations and the available features only when something relevant has changed.
+ * Classifications are always read from the objects themselves when the map is requested, so label changes do not 
+ * require any further updates.
+ * <p>
+ * {@link #close()} should be called when the cache is no longer needed, to stop listening to the hierarchy.
+ */
+public class TrainingDataCache implements PathObjectHierarchyListener {
+	
+	private final PathObjectHierarchy hierarchy;
+	
+	// All the annotations in the hierarchy, or null if these need to be found again
+	private Set<PathObject> annotations = null;
+	// Detections for each point of Point annotations
+	private Map<PathObject, List<Collection<PathObject>>> pointDetections = new HashMap<>();
+	// Features available for detections, or null if these need to be found again
+	private Set<String> features = null;
+	
+	/**
+	 * Create a cache for the specified hierarchy.  This will immediately start listening for changes.
+	 * 
+	 * @param hierarchy
+	 */
+	public TrainingDataCache(final PathObjectHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+		hierarchy.addPathObjectListener(this);
+	}
+	
+	/**
+	 * Get the hierarchy for which training data is cached.
+	 * 
+	 * @return
+	 */
+	public PathObjectHierarchy getHierarchy() {
+		return hierarchy;
+	}
+	
+	/**
+	 * Get a map of training data, as would be returned by 
+	 * {@link PathClassificationLabellingHelper#getClassificationMap(PathObjectHierarchy, boolean)}.
+	 * <p>
+	 * The map and lists are newly created, and so may be modified by the caller.
+	 * 
+	 * @param pointsOnly If true, only Point annotations will be used for training.
+	 * @return
+	 */
+	public synchronized Map<PathClass, List<PathObject>> getClassificationMap(final boolean pointsOnly) {
+		if (annotations == null)
+			annotations = new HashSet<>(hierarchy.getObjects(null, PathAnnotationObject.class));
+		return PathClassificationLabellingHelper.getClassificationMap(annotations, pointsOnly, 
+				pathObject -> pointDetections.computeIfAbsent(pathObject, p -> PathClassificationLabellingHelper.getDetectionsForPoints(hierarchy, p)));
+	}
+	
+	/**
+	 * Get the names of all measurements found for detections in the hierarchy, 
+	 * as would be returned by {@link PathClassificationLabellingHelper#getAvailableFeatures(PathObjectHierarchy, Class)}.
+	 * 
+	 * @return an unmodifiable set of measurement names
+	 */
+	public synchronized Set<String> getAvailableFeatures() {
+		if (features == null)
+			features = Collections.unmodifiableSet(PathClassificationLabellingHelper.getAvailableFeatures(hierarchy, PathDetectionObject.class));
+		return features;
+	}
+	
+	/**
+	 * Stop listening for changes to the hierarchy.
+	 */
+	public void close() {
+		hierarchy.removePathObjectListener(this);
+	}
+
+	@Override
+	public synchronized void hierarchyChanged(final PathObjectHierarchyEvent event) {
+		switch (event.getEventType()) {
+		case ADDED:
+		case REMOVED:
+			for (PathObject pathObject : event.getChangedObjects()) {
+				// If descendants might have been added or removed too, it's easiest to start again
+				if (pathObject.hasChildren()) {
+					resetAll();
+					return;
+				}
+				if (pathObject instanceof PathAnnotationObject) {
+					pointDetections.remove(pathObject);
+					if (annotations != null) {
+						if (event.getEventType() == PathObjectHierarchyEvent.HierarchyEventType.ADDED)
+							annotations.add(pathObject);
+						else
+							annotations.remove(pathObject);
+					}
+				} else {
+					pointDetections.clear();
+					features = null;
+				}
+			}
+			return;
+		case CHANGE_MEASUREMENTS:
+			features = null;
+			return;
+		case CHANGE_CLASSIFICATION:
+			return;
+		case CHANGE_OTHER:
+			// Objects may have moved, or points been edited
+			for (PathObject pathObject : event.getChangedObjects()) {
+				if (pathObject instanceof PathAnnotationObject)
+					pointDetections.remove(pathObject);
+				else {
+					pointDetections.clear();
+					features = null;
+				}
+			}
+			return;
+		case OTHER_STRUCTURE_CHANGE:
+		default:
+			resetAll();
+		}
+	}
+	
+	private void resetAll() {
+		annotations = null;
+		pointDetections.clear();
+		features = null;
+	}
+
+}
@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.objects;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.analysis.algorithms.NeighborGraph;
+
+/**
+ * PathObjectConnectionGroup backed by a compact {@link NeighborGraph}.
+ * <p>
+ * This stores one array of objects and the graph adjacency arrays, rather than a list of connections 
+ * for each object - which makes it much more efficient for large numbers of objects than {@link DefaultPathObjectConnectionGroup}.
+ */
+public class NeighborGraphConnectionGroup implements PathObjectConnectionGroup, Externalizable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final Logger logger = LoggerFactory.getLogger(NeighborGraphConnectionGroup.class);
+	
+	private PathObject[] pathObjects;
+	private NeighborGraph graph;
+	
+	private transient volatile Map<PathObject, Integer> indexMap;
+	
+	public NeighborGraphConnectionGroup() {}
+	
+	/**
+	 * Create a connection group, where the node indices of the graph correspond to the indices of the list.
+	 * 
+	 * @param pathObjects
+	 * @param graph
+	 */
+	public NeighborGraphConnectionGroup(final List<PathObject> pathObjects, final NeighborGraph graph) {
+		if (pathObjects.size() != graph.nNodes())
+			throw new IllegalArgumentException("Number of objects (" + pathObjects.size() + ") does not match the number of nodes (" + graph.nNodes() + ")");
+		this.pathObjects = pathObjects.toArray(new PathObject[pathObjects.size()]);
+		this.graph = graph;
+	}
+	
+	/**
+	 * Get the graph used to store connections.
+	 * @return
+	 */
+	public NeighborGraph getGraph() {
+		return graph;
+	}
+	
+	/**
+	 * Get the object corresponding to a node in the graph.
+	 * @param i
+	 * @return
+	 */
+	public PathObject getPathObject(final int i) {
+		return pathObjects[i];
+	}
+	
+	/**
+	 * Get the node index for an object, or -1 if the object is not part of this group.
+	 * @param pathObject
+	 * @return
+	 */
+	public int getIndex(final PathObject pathObject) {
+		Integer ind = getIndexMap().get(pathObject);
+		return ind == null ? -1 : ind.intValue();
+	}
+	
+	private Map<PathObject, Integer> getIndexMap() {
+		if (indexMap == null) {
+			synchronized (this) {
+				if (indexMap == null) {
+					Map<PathObject, Integer> map = new HashMap<>(pathObjects.length * 2);
+					for (int i = 0; i < pathObjects.length; i++)
+						map.put(pathObjects[i], i);
+					indexMap = map;
+				}
+			}
+		}
+		return indexMap;
+	}
+
+	@Override
+	public boolean containsObject(final PathObject pathObject) {
+		return getIndexMap().containsKey(pathObject);
+	}
+
+	@Override
+	public Collection<PathObject> getPathObjects() {
+		return Collections.unmodifiableList(Arrays.asList(pathObjects));
+	}
+
+	@Override
+	public List<PathObject> getConnectedObjects(final PathObject pathObject) {
+		int i = getIndex(pathObject);
+		if (i < 0)
+			return Collections.emptyList();
+		return new AbstractList<PathObject>() {
+
+			@Override
+			public PathObject get(int k) {
+				if (k < 0 || k >= size())
+					throw new IndexOutOfBoundsException("Index " + k + " out of range for " + size() + " connections");
+				return pathObjects[graph.getNeighbor(i, k)];
+			}
+
+			@Override
+			public int size() {
+				return graph.nNeighbors(i);
+			}
+			
+		};
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(1);
+		out.writeObject(pathObjects);
+		out.writeObject(graph);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		long version = in.readLong();
+		if (version != 1) {
+			logger.warn("Unexpected {} version number {}", NeighborGraphConnectionGroup.class, version);
+		}
+		pathObjects = (PathObject[])in.readObject();
+		graph = (NeighborGraph)in.readObject();
+		indexMap = null;
+	}
+
+}
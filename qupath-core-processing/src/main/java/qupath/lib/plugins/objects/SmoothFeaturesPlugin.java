@@ -25,14 +25,14 @@ package qupath.lib.plugins.objects;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.analysis.algorithms.CentroidGrid;
 import qupath.lib.classifiers.PathClassificationLabellingHelper;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
@@ -49,7 +49,6 @@ import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.AbstractInteractivePlugin;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
-import qupath.lib.roi.interfaces.ROI;
 
 /**
  * Plugin to supplement the measurements for detection objects with the weighted sum of measurements 
@@ -187,19 +186,20 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 	/**
 	 * Using the centroids of the ROIs within PathObjects, 'smooth' measurements by summing up the corresponding measurements of
 	 * nearby objects, weighted by centroid distance.
+	 * <p>
+	 * Neighbors are found using a {@link CentroidGrid}, and objects are processed in parallel - with the smoothed values 
+	 * written directly to each object's measurement list.
 	 * 
 	 * @param pathObjects
-	 * @param pathClasses
-	 * @param sigmaPixels
-	 * 
-//	 * @return A set containing names for all the measurements that were added
+	 * @param measurements
+	 * @param fwhmPixels
+	 * @param fwhmString
+	 * @param withinClass
+	 * @param useLegacyNames
 	 */
-//	public static Set<String> smoothMeasurements(List<PathObject> pathObjects, List<String> measurements, double fwhmPixels) {
 	public static void smoothMeasurements(List<PathObject> pathObjects, List<String> measurements, double fwhmPixels, String fwhmString, boolean withinClass, boolean useLegacyNames) {
 		if (measurements.isEmpty() || pathObjects.size() <= 1)
-			return; //Collections.emptySet();
-		
-//		Set<String> measurementsAdded = new LinkedHashSet<>();
+			return;
 		
 		if (fwhmString == null)
 			fwhmString = String.format("%.2f px", fwhmPixels);
@@ -208,33 +208,9 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 		double sigmaPixels = fwhmPixels / Math.sqrt(8 * Math.log(2));
 		double sigma2 = 2 * sigmaPixels * sigmaPixels;
 		double maxDist = sigmaPixels * 3;
-		double maxDistSq = maxDist * maxDist; // Maximum separation
 
 		int nObjects = pathObjects.size();
-		//		int counter = 0;
-
-		// Sort by x-coordinate - this gives us a method of breaking early
-		Collections.sort(pathObjects, new Comparator<PathObject>() {
-			@Override
-			public int compare(PathObject o1, PathObject o2) {
-				double x1 = o1.getROI().getCentroidX();
-				double x2 = o2.getROI().getCentroidX();
-//				int value = Double.compare(x1, x2);
-//				if (value == 0) {
-//					System.out.println(x1 + " vs. " + x2);
-//					System.out.println(String.format("(%.2f, %.2f) vs (%.2f, %.2f)", o1.getROI().getCentroidX(), o1.getROI().getCentroidY(), o2.getROI().getCentroidX(), o2.getROI().getCentroidY()));				}
-				return Double.compare(x1, x2);
-//				if (x1 > x2)
-//					return 1;
-//				if (x2 < x1)
-//					return -1;
-//				System.out.println(x1 + " vs. " + x2);
-//				System.out.println(String.format("(%.2f, %.2f) vs (%.2f, %.2f)", o1.getROI().getCentroidX(), o1.getROI().getCentroidY(), o2.getROI().getCentroidX(), o2.getROI().getCentroidY()));
-//				return 0;
-//				return (int)Math.signum(o1.getROI().getCentroidX() - o2.getROI().getCentroidX());
-			}
-		});
-		
+		int nMeasurements = measurements.size();
 		
 		// Create a LUT for distances - calculating exp every time is expensive
 		double[] distanceWeights = new double[(int)(maxDist + .5) + 1];
@@ -242,34 +218,22 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 			distanceWeights[i] = Math.exp(-(i * i)/sigma2);
 		}
 		
-
-		System.currentTimeMillis();
+		long startTime = System.currentTimeMillis();
+		
+		CentroidGrid grid = CentroidGrid.createFromObjects(pathObjects, maxDist);
 		
-		float[] xCentroids = new float[nObjects];
-		float[] yCentroids = new float[nObjects];
+		// Cache measurement values in a single array (one row per object), since looking them up by name is slow
 		PathClass[] pathClasses = new PathClass[nObjects];
-		int[] nearbyDetectionCounts = new int[nObjects];
-		float[][] measurementsWeighted = new float[nObjects][measurements.size()];
-		float[][] measurementDenominators = new float[nObjects][measurements.size()];
-		float[][] measurementValues = new float[nObjects][measurements.size()];
-		for (int i = 0; i < nObjects; i++) {
+		float[] measurementValues = new float[nObjects * nMeasurements];
+		IntStream.range(0, nObjects).parallel().forEach(i -> {
 			PathObject pathObject = pathObjects.get(i);
 			if (withinClass)
 				pathClasses[i] = pathObject.getPathClass() == null ? null : pathObject.getPathClass().getBaseClass();
-			ROI roi = pathObject.getROI();
-			xCentroids[i] = (float)roi.getCentroidX();
-			yCentroids[i] = (float)roi.getCentroidY();
 			MeasurementList measurementList = pathObject.getMeasurementList();
-			int ind = 0;
-			for (String name : measurements) {
-				float value = (float)measurementList.getMeasurementValue(name);
-				
-				measurementValues[i][ind] = value;   // Used to cache values
-				measurementsWeighted[i][ind] = value; // Based on distances and measurements
-				measurementDenominators[i][ind] = 1; // Based on distances along
-				ind++;
-			}
-		}
+			int ind = i * nMeasurements;
+			for (String name : measurements)
+				measurementValues[ind++] = (float)measurementList.getMeasurementValue(name);
+		});
 
 		String prefix, postfix, denomName, countsName;
 		
@@ -287,101 +251,82 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 //			denomName = prefix + "Denominator (local density)";
 //			countsName = prefix + "Nearby detection counts";
 		}
+		String[] namesToAdd = new String[nMeasurements];
+		for (int ind = 0; ind < nMeasurements; ind++)
+			namesToAdd[ind] = prefix + measurements.get(ind) + postfix;
 		
-		// Loop through objects, computing predominant class based on distance weighting
-		for (int i = 0; i < nObjects; i++) {
-			// Extract the current class index
+		// Loop through objects in parallel, accumulating weighted values from neighbors
+		grid.processInParallel(i -> {
 			PathObject pathObject = pathObjects.get(i);
 			PathClass pathClass = pathClasses[i];
-			MeasurementList measurementList = pathObject.getMeasurementList();
-			float[] mValues = measurementValues[i];
-			float[] mWeighted = measurementsWeighted[i];
-			float[] mDenominator = measurementDenominators[i];
+			double[] mWeighted = new double[nMeasurements];
+			double[] mDenominator = new double[nMeasurements];
+			int[] nearbyDetectionCount = new int[1];
 			
-			// Compute centroid distances
-			double xi = xCentroids[i];
-			double yi = yCentroids[i];
-			for (int j = i+1; j < nObjects; j++) {
-				
-				double xj = xCentroids[j];
-				double yj = yCentroids[j];
-				//				counter++;
-				// Break early if we are already too far away
-				if (Math.abs(xj - xi) > maxDist) {
-					break;
-				}
-
-				double distSq = (xj - xi)*(xj - xi) + (yj - yi)*(yj - yi);
-//				// Check if we are close enough to have an influence
-				if (distSq > maxDistSq || Double.isNaN(distSq))
-					continue;
-				
+			int offset = i * nMeasurements;
+			for (int ind = 0; ind < nMeasurements; ind++) {
+				mWeighted[ind] = measurementValues[offset + ind];
+				mDenominator[ind] = 1;
+			}
+			
+			grid.forEachNeighbor(i, maxDist, (ii, j, distSq) -> {
 				// Check if the class is ok, if check needed
 				if (withinClass && pathClass != pathClasses[j])
-					continue;
+					return;
 				
 				// Update the counts, if close enough
-				if (distSq < fwhmPixels2) {
-					nearbyDetectionCounts[i]++;
-					nearbyDetectionCounts[j]++;
-				}
-
-				// Update the class weights for both objects currently being tested
+				if (distSq < fwhmPixels2)
+					nearbyDetectionCount[0]++;
+				
 				// Compute weight based on centroid distances
-//				double weight = Math.exp(-distSq/sigma2);
-				double weight = distanceWeights[(int)(Math.sqrt(distSq) + .5)];// * pathObjects.get(j).getClassProbability();
-				float [] temp = measurementValues[j];
-				float [] tempWeighted = measurementsWeighted[j];
-				float [] tempDenominator = measurementDenominators[j];
-				for (int ind = 0; ind < measurements.size(); ind++) {
-					float tempVal = temp[ind];
+				double weight = distanceWeights[(int)(Math.sqrt(distSq) + .5)];
+				int offsetNeighbor = j * nMeasurements;
+				for (int ind = 0; ind < nMeasurements; ind++) {
+					float tempVal = measurementValues[offsetNeighbor + ind];
 					if (Float.isNaN(tempVal))
 						continue;
 					mWeighted[ind] += tempVal * weight;
 					mDenominator[ind] += weight;
-					
-					float tempVal2 = mValues[ind];
-					if (Float.isNaN(tempVal2))
-						continue;
-					tempWeighted[ind] += tempVal2 * weight;
-					tempDenominator[ind] += weight;
 				}
-			}
+			});
 			
 			// Store the measurements
-			int ind = 0;
-			float maxDenominator = Float.NEGATIVE_INFINITY;
-			for (String name : measurements) {
-//				if (name.contains(" - Smoothed (FWHM ") || name.startsWith("Smoothed denominator (local density, ") || name.startsWith("Nearby detection counts"))
-//					continue;
-				float denominator = mDenominator[ind];
+			MeasurementList measurementList = pathObject.getMeasurementList();
+			double maxDenominator = Double.NEGATIVE_INFINITY;
+			for (int ind = 0; ind < nMeasurements; ind++) {
+				double denominator = mDenominator[ind];
 				if (denominator > maxDenominator)
 					maxDenominator = denominator;
-				
-				String nameToAdd = prefix + name + postfix;
-				measurementList.putMeasurement(nameToAdd, mWeighted[ind] / denominator);
-				
-//				measurementsAdded.add(nameToAdd);
-//				measurementList.putMeasurement(name + " - weighted sum", mWeighted[ind]); // TODO: Support optionally providing weighted sums
-				
-//				measurementList.addMeasurement(name + " - smoothed", mWeighted[ind] / mDenominator[ind]);
-				ind++;
+				measurementList.putMeasurement(namesToAdd[ind], mWeighted[ind] / denominator);
 			}
 			if (pathObject instanceof PathDetectionObject && denomName != null) {
 				measurementList.putMeasurement(denomName, maxDenominator);
-//				measurementsAdded.add(denomName);
 			}
 			if (pathObject instanceof PathDetectionObject && countsName != null) {
-				measurementList.putMeasurement(countsName, nearbyDetectionCounts[i]);
-//				measurementsAdded.add(countsName);
+				measurementList.putMeasurement(countsName, nearbyDetectionCount[0]);
 			}
 			measurementList.closeList();
-		}
+		});
 		
-		System.currentTimeMillis();
+		// Objects without a centroid aren't in the grid, but should still have the same measurements
+		for (int i = 0; i < nObjects; i++) {
+			if (grid.isValid(i))
+				continue;
+			PathObject pathObject = pathObjects.get(i);
+			MeasurementList measurementList = pathObject.getMeasurementList();
+			for (String name : namesToAdd)
+				measurementList.putMeasurement(name, Double.NaN);
+			if (pathObject instanceof PathDetectionObject && denomName != null)
+				measurementList.putMeasurement(denomName, Double.NaN);
+			if (pathObject instanceof PathDetectionObject && countsName != null)
+				measurementList.putMeasurement(countsName, Double.NaN);
+			measurementList.closeList();
+		}
 		
-//		return measurementsAdded;
+		logger.debug("Smoothed {} measurements for {} objects in {} ms", nMeasurements, nObjects, System.currentTimeMillis() - startTime);
 	}
+	
+	
 
 	@Override
 	public ParameterList getDefaultParameterList(final ImageData<T> imageData) {
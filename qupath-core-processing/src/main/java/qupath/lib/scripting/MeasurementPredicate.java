@@ -0,0 +1,649 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.scripting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+
+/**
+ * A predicate for selecting objects based upon their measurements, compiled from a text expression.
+ * <p>
+ * Expressions contain comparisons between measurements and/or numeric values, 
+ * optionally combined with AND, OR and NOT and grouped using parentheses, e.g.
+ * <pre>
+ * 	Nucleus: Area &gt; 50 AND (Nucleus: DAB OD mean &gt;= 0.2 OR NOT Cell: Eccentricity &lt; 0.5)
+ * </pre>
+ * As with {@link QP#parsePredicate(String)}, AND and OR have the same precedence and are combined from left to right - 
+ * so {@code A OR B AND C} means {@code (A OR B) AND C}.  Parentheses should be used if a different grouping is needed.
+ * <p>
+ * The measurement name on the left of a comparison is read up to the comparison operator, and so may itself contain 
+ * the words 'and', 'or' and 'not'.
+ * Either side of a comparison may also be an arithmetic expression using +, -, * and /, 
+ * e.g. {@code Nucleus: Area / Cell: Area > 0.5}.  Arithmetic operators need to be separated 
+ * from unquoted measurement names by whitespace, since otherwise they are treated as part of the name.
+ * Measurement names may be enclosed in double or single quotes if they would otherwise be ambiguous.
+ * <p>
+ * Supported comparisons are &gt;, &lt;, &gt;=, &lt;=, = (or ==) and != (or ~=).  As with {@link QP#parsePredicate(String)}, 
+ * any comparison involving a missing measurement (or NaN) evaluates to false.
+ * <p>
+ * The expression is parsed only once, and measurement names are resolved to indices within each {@link MeasurementList} 
+ * lazily - so that evaluating the predicate for many objects sharing the same measurements does not require 
+ * any further lookups by name.  Instances are thread-safe, and {@link #filter(Collection)} makes use of this 
+ * to test large numbers of objects in parallel.
+ */
+public class MeasurementPredicate implements Predicate<PathObject> {
+	
+	/**
+	 * Minimum number of objects before filtering is done in parallel.
+	 */
+	final private static int MIN_PARALLEL_SIZE = 10000;
+	
+	private final String expression;
+	private final BooleanNode root;
+	
+	private MeasurementPredicate(final String expression, final BooleanNode root) {
+		this.expression = expression;
+		this.root = root;
+	}
+	
+	/**
+	 * Compile a predicate from a text expression.
+	 * 
+	 * @param expression
+	 * @return
+	 * @throws NoSuchElementException if the expression could not be parsed
+	 */
+	public static MeasurementPredicate compile(final String expression) throws NoSuchElementException {
+		String s = expression == null ? "" : expression.trim();
+		if (s.isEmpty())
+			throw new NoSuchElementException("No command provided!");
+		Parser parser = new Parser(s);
+		return new MeasurementPredicate(s, parser.parse());
+	}
+	
+	/**
+	 * Get the expression from which this predicate was compiled.
+	 * 
+	 * @return
+	 */
+	public String getExpression() {
+		return expression;
+	}
+	
+	@Override
+	public boolean test(final PathObject pathObject) {
+		return root.test(pathObject.getMeasurementList());
+	}
+	
+	/**
+	 * Test the measurements in a {@link MeasurementList} directly.
+	 * 
+	 * @param measurements
+	 * @return
+	 */
+	public boolean test(final MeasurementList measurements) {
+		return root.test(measurements);
+	}
+	
+	/**
+	 * Get all objects in a collection for which this predicate returns true.
+	 * <p>
+	 * Large collections are tested in parallel; the order of the objects is preserved.
+	 * 
+	 * @param pathObjects
+	 * @return
+	 */
+	public List<PathObject> filter(final Collection<? extends PathObject> pathObjects) {
+		if (pathObjects.isEmpty())
+			return Collections.emptyList();
+		if (pathObjects.size() < MIN_PARALLEL_SIZE) {
+			List<PathObject> list = new ArrayList<>();
+			for (PathObject pathObject : pathObjects) {
+				if (test(pathObject))
+					list.add(pathObject);
+			}
+			return list;
+		}
+		return pathObjects.parallelStream().filter(p -> test(p)).collect(Collectors.toList());
+	}
+	
+	@Override
+	public String toString() {
+		return expression;
+	}
+	
+	
+	
+	private static interface BooleanNode {
+		
+		boolean test(MeasurementList list);
+		
+	}
+	
+	private static interface ValueNode {
+		
+		double getValue(MeasurementList list);
+		
+	}
+	
+	
+	private static class ConstantNode implements ValueNode {
+		
+		private final double value;
+		
+		ConstantNode(final double value) {
+			this.value = value;
+		}
+
+		@Override
+		public double getValue(MeasurementList list) {
+			return value;
+		}
+		
+	}
+	
+	
+	/**
+	 * Request a measurement by name, caching the index where it was last found.
+	 * <p>
+	 * Closed measurement lists typically share their names, so the cached index can be confirmed 
+	 * with a reference comparison and reused without searching.
+	 */
+	private static class MeasurementNode implements ValueNode {
+		
+		private final String name;
+		
+		/**
+		 * Last index & name instance found; these are updated together so that threads always see a consistent pair.
+		 */
+		private volatile ResolvedIndex resolved;
+		
+		MeasurementNode(final String name) {
+			this.name = name;
+			this.resolved = new ResolvedIndex(name, -1);
+		}
+
+		@Override
+		public double getValue(final MeasurementList list) {
+			ResolvedIndex r = resolved;
+			int ind = r.index;
+			if (ind >= 0 && ind < list.size()) {
+				String nameAtIndex = list.getMeasurementName(ind);
+				if (nameAtIndex == r.name || name.equals(nameAtIndex)) {
+					if (nameAtIndex != r.name)
+						resolved = new ResolvedIndex(nameAtIndex, ind);
+					return list.getMeasurementValue(ind);
+				}
+			}
+			int n = list.size();
+			for (int i = 0; i < n; i++) {
+				String nameAtIndex = list.getMeasurementName(i);
+				if (name.equals(nameAtIndex)) {
+					resolved = new ResolvedIndex(nameAtIndex, i);
+					return list.getMeasurementValue(i);
+				}
+			}
+			return Double.NaN;
+		}
+		
+	}
+	
+	private static class ResolvedIndex {
+		
+		private final String name;
+		private final int index;
+		
+		ResolvedIndex(final String name, final int index) {
+			this.name = name;
+			this.index = index;
+		}
+		
+	}
+	
+	
+	private static enum ArithmeticOp {ADD, SUBTRACT, MULTIPLY, DIVIDE}
+	
+	private static class ArithmeticNode implements ValueNode {
+		
+		private final ValueNode left, right;
+		private final ArithmeticOp op;
+		
+		ArithmeticNode(final ValueNode left, final ArithmeticOp op, final ValueNode right) {
+			this.left = left;
+			this.op = op;
+			this.right = right;
+		}
+
+		@Override
+		public double getValue(MeasurementList list) {
+			double a = left.getValue(list);
+			double b = right.getValue(list);
+			switch (op) {
+			case ADD:
+				return a + b;
+			case SUBTRACT:
+				return a - b;
+			case MULTIPLY:
+				return a * b;
+			case DIVIDE:
+				return a / b;
+			default:
+				return Double.NaN;
+			}
+		}
+		
+	}
+	
+	private static class NegateValueNode implements ValueNode {
+		
+		private final ValueNode node;
+		
+		NegateValueNode(final ValueNode node) {
+			this.node = node;
+		}
+
+		@Override
+		public double getValue(MeasurementList list) {
+			return -node.getValue(list);
+		}
+		
+	}
+	
+	
+	private static enum ComparisonOp {GT, LT, GE, LE, EQ, NE}
+	
+	private static class ComparisonNode implements BooleanNode {
+		
+		private final ValueNode left, right;
+		private final ComparisonOp op;
+		
+		ComparisonNode(final ValueNode left, final ComparisonOp op, final ValueNode right) {
+			this.left = left;
+			this.op = op;
+			this.right = right;
+		}
+
+		@Override
+		public boolean test(MeasurementList list) {
+			double a = left.getValue(list);
+			if (Double.isNaN(a))
+				return false;
+			double b = right.getValue(list);
+			if (Double.isNaN(b))
+				return false;
+			int cmp = Double.compare(a, b);
+			switch (op) {
+			case GT:
+				return cmp > 0;
+			case LT:
+				return cmp < 0;
+			case GE:
+				return cmp >= 0;
+			case LE:
+				return cmp <= 0;
+			case EQ:
+				return cmp == 0;
+			case NE:
+				return cmp != 0;
+			default:
+				return false;
+			}
+		}
+		
+	}
+	
+	private static class AndNode implements BooleanNode {
+		
+		private final BooleanNode left, right;
+		
+		AndNode(final BooleanNode left, final BooleanNode right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public boolean test(MeasurementList list) {
+			return left.test(list) && right.test(list);
+		}
+		
+	}
+	
+	private static class OrNode implements BooleanNode {
+		
+		private final BooleanNode left, right;
+		
+		OrNode(final BooleanNode left, final BooleanNode right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public boolean test(MeasurementList list) {
+			return left.test(list) || right.test(list);
+		}
+		
+	}
+	
+	private static class NotNode implements BooleanNode {
+		
+		private final BooleanNode node;
+		
+		NotNode(final BooleanNode node) {
+			this.node = node;
+		}
+
+		@Override
+		public boolean test(MeasurementList list) {
+			return !node.test(list);
+		}
+		
+	}
+	
+	
+	/**
+	 * Simple recursive descent parser.
+	 * <p>
+	 * Since measurement names may contain spaces, parentheses and other symbols, names are read word-by-word 
+	 * until reaching a comparison operator, a standalone arithmetic operator or an unmatched closing parenthesis.
+	 * Keywords only end a name on the right of a comparison, since on the left the comparison operator must follow.
+	 */
+	private static class Parser {
+		
+		private final String s;
+		private int pos = 0;
+		private boolean keywordsEndNames = false;
+		
+		Parser(final String s) {
+			this.s = s;
+		}
+		
+		BooleanNode parse() throws NoSuchElementException {
+			BooleanNode node = parseCombination();
+			skipWhitespace();
+			if (pos < s.length()) {
+				if (isComparisonStart(s.charAt(pos)) || isWordStart())
+					throw new NoSuchElementException("Missing combiner (AND, OR) between comparisons!");
+				throw new NoSuchElementException("Unexpected '" + s.charAt(pos) + "' at position " + pos + " in \"" + s + "\"");
+			}
+			return node;
+		}
+		
+		private boolean isWordStart() {
+			char c = s.charAt(pos);
+			return c != ')' && !Character.isWhitespace(c);
+		}
+		
+		/**
+		 * Parse comparisons joined by AND or OR, combining them strictly from left to right.
+		 */
+		private BooleanNode parseCombination() {
+			BooleanNode node = parseNot();
+			while (true) {
+				if (nextKeyword("AND"))
+					node = new AndNode(node, parseNot());
+				else if (nextKeyword("OR"))
+					node = new OrNode(node, parseNot());
+				else
+					return node;
+			}
+		}
+		
+		private BooleanNode parseNot() {
+			if (nextKeyword("NOT"))
+				return new NotNode(parseNot());
+			skipWhitespace();
+			// Parentheses might enclose either a boolean or an arithmetic expression - so try boolean first
+			if (pos < s.length() && s.charAt(pos) == '(') {
+				int start = pos;
+				try {
+					pos++;
+					BooleanNode node = parseCombination();
+					skipWhitespace();
+					if (pos < s.length() && s.charAt(pos) == ')') {
+						pos++;
+						return node;
+					}
+				} catch (NoSuchElementException e) {
+					// Try again as a comparison
+				}
+				pos = start;
+			}
+			return parseComparison();
+		}
+		
+		private BooleanNode parseComparison() {
+			int start = pos;
+			boolean previousKeywordsEndNames = keywordsEndNames;
+			try {
+				keywordsEndNames = false;
+				ValueNode left = parseSum();
+				ComparisonOp op = nextComparison();
+				if (op == null)
+					throw new NoSuchElementException("Missing comparison operator (<, >, <=, >=, ==) for measurement \"" + s.substring(start, pos).trim() + "\"");
+				int startRight = pos;
+				ValueNode right;
+				try {
+					keywordsEndNames = true;
+					right = parseSum();
+				} catch (NoSuchElementException e) {
+					throw new NoSuchElementException("Missing comparison value after \"" + s.substring(start, startRight).trim() + "\"");
+				}
+				return new ComparisonNode(left, op, right);
+			} finally {
+				keywordsEndNames = previousKeywordsEndNames;
+			}
+		}
+		
+		private ValueNode parseSum() {
+			ValueNode node = parseProduct();
+			while (true) {
+				if (nextOperator('+'))
+					node = new ArithmeticNode(node, ArithmeticOp.ADD, parseProduct());
+				else if (nextOperator('-'))
+					node = new ArithmeticNode(node, ArithmeticOp.SUBTRACT, parseProduct());
+				else
+					return node;
+			}
+		}
+		
+		private ValueNode parseProduct() {
+			ValueNode node = parseFactor();
+			while (true) {
+				if (nextOperator('*'))
+					node = new ArithmeticNode(node, ArithmeticOp.MULTIPLY, parseFactor());
+				else if (nextOperator('/'))
+					node = new ArithmeticNode(node, ArithmeticOp.DIVIDE, parseFactor());
+				else
+					return node;
+			}
+		}
+		
+		private ValueNode parseFactor() {
+			skipWhitespace();
+			if (pos >= s.length())
+				throw new NoSuchElementException("Unexpected end of expression \"" + s + "\"");
+			char c = s.charAt(pos);
+			if (c == '(') {
+				pos++;
+				ValueNode node = parseSum();
+				skipWhitespace();
+				if (pos >= s.length() || s.charAt(pos) != ')')
+					throw new NoSuchElementException("Missing closing parenthesis in \"" + s + "\"");
+				pos++;
+				return node;
+			}
+			if (c == '"' || c == '\'') {
+				int end = s.indexOf(c, pos + 1);
+				if (end < 0)
+					throw new NoSuchElementException("Missing closing quote in \"" + s + "\"");
+				String name = s.substring(pos + 1, end);
+				pos = end + 1;
+				return new MeasurementNode(name);
+			}
+			if (nextOperator('-'))
+				return new NegateValueNode(parseFactor());
+			
+			String name = readName();
+			if (name.isEmpty())
+				throw new NoSuchElementException("Expected a measurement or value at position " + pos + " in \"" + s + "\"");
+			try {
+				return new ConstantNode(Double.parseDouble(name));
+			} catch (NumberFormatException e) {
+				return new MeasurementNode(name);
+			}
+		}
+		
+		/**
+		 * Read words until reaching something that cannot be part of a measurement name.
+		 * 
+		 * @return
+		 */
+		private String readName() {
+			int start = pos;
+			int end = pos;
+			while (true) {
+				int wordStart = end;
+				while (wordStart < s.length() && Character.isWhitespace(s.charAt(wordStart)))
+					wordStart++;
+				int wordEnd = wordStart;
+				int depth = 0;
+				while (wordEnd < s.length()) {
+					char c = s.charAt(wordEnd);
+					if (Character.isWhitespace(c) && depth == 0)
+						break;
+					if (isComparisonStart(c))
+						break;
+					if (c == '(')
+						depth++;
+					else if (c == ')') {
+						if (depth == 0)
+							break;
+						depth--;
+					}
+					wordEnd++;
+				}
+				if (wordEnd == wordStart)
+					break;
+				String word = s.substring(wordStart, wordEnd);
+				if ((keywordsEndNames && isKeyword(word)) || (word.length() == 1 && "+-*/".indexOf(word.charAt(0)) >= 0))
+					break;
+				end = wordEnd;
+			}
+			pos = end;
+			return s.substring(start, end).trim();
+		}
+		
+		private static boolean isComparisonStart(final char c) {
+			return c == '<' || c == '>' || c == '=' || c == '!' || c == '~';
+		}
+		
+		private static boolean isKeyword(final String word) {
+			switch (word) {
+			case "and":
+			case "AND":
+			case "or":
+			case "OR":
+			case "not":
+			case "NOT":
+				return true;
+			default:
+				return false;
+			}
+		}
+		
+		/**
+		 * Consume a standalone arithmetic operator, if it is next.
+		 */
+		private boolean nextOperator(final char op) {
+			skipWhitespace();
+			if (pos < s.length() && s.charAt(pos) == op) {
+				int next = pos + 1;
+				// An operator directly followed by a digit is part of a number
+				if (op == '-' && next < s.length() && (Character.isDigit(s.charAt(next)) || s.charAt(next) == '.'))
+					return false;
+				if (next == s.length() || Character.isWhitespace(s.charAt(next)) || s.charAt(next) == '(' || s.charAt(next) == '"' || s.charAt(next) == '\'') {
+					pos = next;
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		private boolean nextKeyword(final String keyword) {
+			skipWhitespace();
+			int end = pos + keyword.length();
+			if (end > s.length() || !s.regionMatches(true, pos, keyword, 0, keyword.length()))
+				return false;
+			if (!isKeyword(s.substring(pos, end)))
+				return false;
+			if (end < s.length() && !Character.isWhitespace(s.charAt(end)) && s.charAt(end) != '(')
+				return false;
+			pos = end;
+			return true;
+		}
+		
+		private ComparisonOp nextComparison() {
+			skipWhitespace();
+			if (s.startsWith(">=", pos)) {
+				pos += 2;
+				return ComparisonOp.GE;
+			} else if (s.startsWith("<=", pos)) {
+				pos += 2;
+				return ComparisonOp.LE;
+			} else if (s.startsWith("==", pos)) {
+				pos += 2;
+				return ComparisonOp.EQ;
+			} else if (s.startsWith("!=", pos) || s.startsWith("~=", pos)) {
+				pos += 2;
+				return ComparisonOp.NE;
+			} else if (s.startsWith("=", pos)) {
+				pos++;
+				return ComparisonOp.EQ;
+			} else if (s.startsWith(">", pos)) {
+				pos++;
+				return ComparisonOp.GT;
+			} else if (s.startsWith("<", pos)) {
+				pos++;
+				return ComparisonOp.LT;
+			}
+			return null;
+		}
+		
+		private void skipWhitespace() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+				pos++;
+		}
+		
+	}
+
+}
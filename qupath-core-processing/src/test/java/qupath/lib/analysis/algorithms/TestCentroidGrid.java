@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCentroidGrid {
+	private final int n = 2000;
+	private final double maxDist = 25.0;
+	float[] x = new float[n];
+	float[] y = new float[n];
+	CentroidGrid grid;
+	
+	@Before
+	public void initPoints() {
+		Random rand = new Random(100L);
+		for (int i = 0; i < n; i++) {
+			x[i] = (float)(rand.nextDouble() * 1000);
+			y[i] = (float)(rand.nextDouble() * 500);
+		}
+		x[10] = Float.NaN; // point that should never be returned
+		grid = new CentroidGrid(x, y, maxDist);
+	}
+	
+	@Test
+	public void test_countNeighbors() {
+		for (int i = 0; i < n; i++) {
+			int count = 0;
+			for (int j = 0; j < n; j++) {
+				if (i != j && distSq(i, j) <= maxDist*maxDist)
+					count++;
+			}
+			assertEquals(count, grid.countNeighbors(i, maxDist));
+		}
+	}
+	
+	@Test
+	public void test_nearestNeighbor() {
+		for (int i = 0; i < n; i += 7) {
+			int best = -1;
+			double bestDistSq = Double.POSITIVE_INFINITY;
+			for (int j = 0; j < n; j++) {
+				// Only look for even neighbors, to check the filter is applied
+				if (i == j || j % 2 != 0 || Double.isNaN(distSq(i, j)))
+					continue;
+				double d = distSq(i, j);
+				if (d < bestDistSq) {
+					bestDistSq = d;
+					best = j;
+				}
+			}
+			int nearest = grid.getNearestNeighbor(i, Double.POSITIVE_INFINITY, j -> j % 2 == 0);
+			if (i == 10)
+				assertEquals(-1, nearest);
+			else
+				assertEquals(bestDistSq, distSq(i, nearest), 1e-6);
+		}
+	}
+	
+	@Test
+	public void test_processInParallel() {
+		AtomicIntegerArray visits = new AtomicIntegerArray(n);
+		grid.processInParallel(i -> visits.incrementAndGet(i));
+		for (int i = 0; i < n; i++) {
+			assertEquals(i != 10, grid.isValid(i));
+			assertEquals(grid.isValid(i) ? 1 : 0, visits.get(i));
+		}
+	}
+	
+	private double distSq(int i, int j) {
+		double dx = x[i] - x[j];
+		double dy = y[i] - y[j];
+		return dx*dx + dy*dy;
+	}
+
+}
@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestDelaunayTriangulator {
+	
+	@Test
+	public void test_emptyCircumcircles() {
+		Random rand = new Random(1L);
+		int n = 300;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = rand.nextDouble() * 1000;
+			y[i] = rand.nextDouble() * 1000;
+		}
+		int[] triangles = DelaunayTriangulator.computeTriangles(x, y);
+		assertTrue(triangles.length > 0);
+		for (int t = 0; t < triangles.length; t += 3) {
+			int a = triangles[t], b = triangles[t+1], c = triangles[t+2];
+			for (int p = 0; p < n; p++) {
+				if (p == a || p == b || p == c)
+					continue;
+				assertFalse("Point " + p + " inside circumcircle of triangle " + t/3, 
+						inCircumcircle(x[a], y[a], x[b], y[b], x[c], y[c], x[p], y[p]));
+			}
+		}
+	}
+	
+	@Test
+	public void test_graph() {
+		// Jittered grid - every point should be connected
+		int w = 20, h = 15;
+		int n = w * h;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		Random rand = new Random(2L);
+		for (int i = 0; i < n; i++) {
+			// Jitter slightly to avoid ambiguous (co-circular) cases
+			x[i] = (i % w) * 10 + rand.nextDouble() * 0.1;
+			y[i] = (i / w) * 10 + rand.nextDouble() * 0.1;
+		}
+		NeighborGraph graph = DelaunayTriangulator.createGraph(x, y);
+		assertEquals(n, graph.nNodes());
+		// Euler's formula: with h hull points, there are 3n-3-h edges and 2n-2-h triangles
+		int nTriangles = DelaunayTriangulator.computeTriangles(x, y).length / 3;
+		assertEquals(n - 1, graph.nEdges() - nTriangles);
+		for (int i = 0; i < n; i++) {
+			assertTrue(graph.nNeighbors(i) >= 2);
+			for (int k = 0; k < graph.nNeighbors(i); k++)
+				assertTrue(graph.isConnected(graph.getNeighbor(i, k), i));
+		}
+		int[] labels = graph.getConnectedComponentLabels();
+		for (int label : labels)
+			assertEquals(0, label);
+		
+		// Remove all edges touching the first column - this should give w separate components
+		NeighborGraph filtered = graph.filter((i, j) -> i % w != 0 && j % w != 0);
+		labels = filtered.getConnectedComponentLabels();
+		int maxLabel = 0;
+		for (int label : labels)
+			maxLabel = Math.max(maxLabel, label);
+		assertEquals(h + 1, maxLabel + 1);
+	}
+	
+	@Test
+	public void test_collinear() {
+		double[] x = {0, 3, 1, 2, Double.NaN};
+		double[] y = {0, 3, 1, 2, 5};
+		NeighborGraph graph = DelaunayTriangulator.createGraph(x, y);
+		assertEquals(3, graph.nEdges());
+		assertTrue(graph.isConnected(0, 2));
+		assertTrue(graph.isConnected(2, 3));
+		assertTrue(graph.isConnected(3, 1));
+		assertEquals(0, graph.nNeighbors(4));
+	}
+	
+	private static boolean inCircumcircle(double ax, double ay, double bx, double by, double cx, double cy, double px, double py) {
+		double d = 2 * (ax * (by - cy) + bx * (cy - ay) + cx * (ay - by));
+		double ux = ((ax*ax + ay*ay) * (by - cy) + (bx*bx + by*by) * (cy - ay) + (cx*cx + cy*cy) * (ay - by)) / d;
+		double uy = ((ax*ax + ay*ay) * (cx - bx) + (bx*bx + by*by) * (ax - cx) + (cx*cx + cy*cy) * (bx - ax)) / d;
+		double r2 = (ax - ux) * (ax - ux) + (ay - uy) * (ay - uy);
+		double dist2 = (px - ux) * (px - ux) + (py - uy) * (py - uy);
+		return dist2 < r2 * (1 - 1e-9);
+	}
+
+}
@@ -0,0 +1,382 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+package qupath.lib.analysis.algorithms;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Compare block-based morphological reconstruction with the original sequential implementation.
+ */
+public class TestMorphologicalReconstruction {
+	
+	private static final String BENCHMARK_PROPERTY = "qupath.benchmark";
+	
+	@Test
+	public void test_identicalToSequential() {
+		Random rand = new Random(44L);
+		int[][] sizes = {{1, 1}, {1, 50}, {50, 1}, {31, 17}, {64, 64}, {100, 73}, {257, 130}};
+		int[] blockSizes = {1, 3, 16, 37, 256};
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			for (int blockSize : blockSizes) {
+				for (int type = 0; type < 3; type++) {
+					float[] mask = createMask(rand, width, height);
+					float[] marker = createMarker(rand, mask, type);
+					
+					float[] expected = marker.clone();
+					assertTrue(legacyReconstruction(new FloatArraySimpleImage(expected, width, height), new FloatArraySimpleImage(mask, width, height)));
+					
+					float[] actual = marker.clone();
+					assertTrue(BlockMorphologicalReconstruction.reconstruct(actual, mask, width, 0, 0, width, height, blockSize));
+					assertArrayEquals(String.format("%d x %d, block size %d, marker type %d", width, height, blockSize, type), expected, actual, 0f);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void test_region() {
+		// Reconstruction within a region should match reconstruction of a cropped image, and leave everything else alone
+		Random rand = new Random(45L);
+		int width = 150;
+		int height = 120;
+		int x = 13, y = 21, w = 101, h = 77;
+		float[] mask = createMask(rand, width, height);
+		float[] marker = createMarker(rand, mask, 1);
+		
+		float[] maskCropped = new float[w * h];
+		float[] expected = new float[w * h];
+		for (int yy = 0; yy < h; yy++) {
+			System.arraycopy(mask, (yy + y) * width + x, maskCropped, yy * w, w);
+			System.arraycopy(marker, (yy + y) * width + x, expected, yy * w, w);
+		}
+		legacyReconstruction(new FloatArraySimpleImage(expected, w, h), new FloatArraySimpleImage(maskCropped, w, h));
+		
+		float[] actual = marker.clone();
+		BlockMorphologicalReconstruction.reconstruct(actual, mask, width, x, y, w, h, 32);
+		for (int yy = 0; yy < height; yy++) {
+			for (int xx = 0; xx < width; xx++) {
+				boolean inside = xx >= x && xx < x + w && yy >= y && yy < y + h;
+				float val = inside ? expected[(yy - y) * w + xx - x] : marker[yy * width + xx];
+				assertEquals(val, actual[yy * width + xx], 0f);
+			}
+		}
+	}
+	
+	@Test
+	public void test_simpleImage() {
+		Random rand = new Random(46L);
+		int width = 300;
+		int height = 280;
+		float[] mask = createMask(rand, width, height);
+		float[] marker = createMarker(rand, mask, 0);
+		float[] expected = marker.clone();
+		legacyReconstruction(new FloatArraySimpleImage(expected, width, height), new FloatArraySimpleImage(mask, width, height));
+		
+		FloatArraySimpleImage imMarker = new FloatArraySimpleImage(marker.clone(), width, height);
+		assertTrue(MorphologicalReconstruction.morphologicalReconstruction(imMarker, new FloatArraySimpleImage(mask, width, height)));
+		assertArrayEquals(expected, imMarker.getArray(), 0f);
+	}
+	
+	/**
+	 * This only runs if the system property {@code qupath.benchmark} is true, 
+	 * e.g. {@code mvn test -Dqupath.benchmark=true}.
+	 */
+	@Test
+	public void test_benchmark() {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+		
+		Random rand = new Random(47L);
+		int width = 2048;
+		int height = 2048;
+		float[] mask = createMask(rand, width, height);
+		float[] marker = createMarker(rand, mask, 0);
+		
+		int nRuns = 3;
+		long timeLegacy = 0;
+		long timeDefault = 0;
+		long timeBlocks = 0;
+		for (int i = 0; i < nRuns; i++) {
+			float[] expected = marker.clone();
+			long startTime = System.nanoTime();
+			legacyReconstruction(new FloatArraySimpleImage(expected, width, height), new FloatArraySimpleImage(mask, width, height));
+			timeLegacy += System.nanoTime() - startTime;
+			
+			float[] actual = marker.clone();
+			startTime = System.nanoTime();
+			MorphologicalReconstruction.morphologicalReconstruction(actual, mask, width, height);
+			timeDefault += System.nanoTime() - startTime;
+			assertArrayEquals(expected, actual, 0f);
+			
+			// Always split into 8x8 blocks, to measure the cost/benefit of the border exchange
+			actual = marker.clone();
+			startTime = System.nanoTime();
+			BlockMorphologicalReconstruction.reconstruct(actual, mask, width, 0, 0, width, height, BlockMorphologicalReconstruction.MIN_BLOCK_SIZE);
+			timeBlocks += System.nanoTime() - startTime;
+			assertArrayEquals(expected, actual, 0f);
+		}
+		System.out.println(String.format("Morphological reconstruction %d x %d (%d processors): sequential %.1f ms, default %.1f ms (%.2fx), %d px blocks %.1f ms (%.2fx)",
+				width, height, Runtime.getRuntime().availableProcessors(),
+				timeLegacy / 1e6 / nRuns,
+				timeDefault / 1e6 / nRuns, (double)timeLegacy / timeDefault,
+				BlockMorphologicalReconstruction.MIN_BLOCK_SIZE, timeBlocks / 1e6 / nRuns, (double)timeLegacy / timeBlocks));
+	}
+	
+	
+	/**
+	 * Create a smooth-ish mask with hills &amp; plateaus, so that propagation crosses many blocks.
+	 */
+	private static float[] createMask(Random rand, int width, int height) {
+		float[] mask = new float[width * height];
+		int nBlobs = Math.max(1, width * height / 400);
+		for (int i = 0; i < nBlobs; i++) {
+			int cx = rand.nextInt(width);
+			int cy = rand.nextInt(height);
+			int r = 2 + rand.nextInt(20);
+			float val = 10 + rand.nextInt(50);
+			for (int y = Math.max(0, cy - r); y < Math.min(height, cy + r + 1); y++) {
+				for (int x = Math.max(0, cx - r); x < Math.min(width, cx + r + 1); x++) {
+					float d = (float)Math.sqrt((x - cx)*(x - cx) + (y - cy)*(y - cy));
+					if (d <= r)
+						mask[y * width + x] = Math.max(mask[y * width + x], val - d);
+				}
+			}
+		}
+		for (int i = 0; i < mask.length; i++)
+			mask[i] += rand.nextInt(3);
+		return mask;
+	}
+	
+	/**
+	 * Create a marker image; type 0 subtracts a constant (h-domes), 
+	 * type 1 uses sparse seeds &amp; type 2 includes some pixels above the mask.
+	 */
+	private static float[] createMarker(Random rand, float[] mask, int type) {
+		float[] marker = new float[mask.length];
+		for (int i = 0; i < mask.length; i++) {
+			switch (type) {
+			case 0:
+				marker[i] = mask[i] - 5;
+				break;
+			case 1:
+				marker[i] = rand.nextInt(500) == 0 ? mask[i] : 0;
+				break;
+			default:
+				marker[i] = rand.nextInt(50) == 0 ? mask[i] + rand.nextInt(5) : mask[i] - rand.nextInt(10);
+			}
+		}
+		return marker;
+	}
+	
+	
+	/*
+	 * Original sequential implementation, for comparison
+	 */
+	
+	
+	private static int dilateAndCompare(SimpleModifiableImage ipMarker, SimpleImage ipMask, boolean reverse, IntDequeue queue) {
+		int inc, hStart, vStart, hEnd, vEnd;
+		if (reverse) {
+			inc = -1;
+			hStart = ipMarker.getWidth() - 1;
+			vStart = ipMarker.getHeight() - 1;
+			hEnd = -1;
+			vEnd = -1;
+		} else {
+			inc = 1;
+			hStart = 0;
+			vStart = 0;
+			hEnd = ipMarker.getWidth();
+			vEnd = ipMarker.getHeight();
+		}
+		boolean populateQueue = queue != null;
+		int width = ipMarker.getWidth();
+		
+		// Apply horizontal propagating dilation
+		int changes = 0;
+		// valPrevious is the last processed value, valP1-3 are those from the previous row
+		float valPrevious, valP1, valP2, valP3, valCurrent;
+		boolean firstRow = true;
+		for (int y = vStart; y != vEnd; y += inc) {
+			// Initialize previous 4 neighbours
+			valPrevious = ipMarker.getValue(hStart, y);
+			if (firstRow) {
+				valP1 = valPrevious;
+				valP2 = valPrevious;
+				valP3 = valPrevious;
+			} else {
+				valP2 = ipMarker.getValue(hStart, y-inc);
+				valP1 = valP2;
+			}
+
+			boolean firstColumn = true;
+
+			for (int x = hStart; x != hEnd; x += inc) {
+				// Get the current value from the marker image
+				valCurrent = ipMarker.getValue(x, y);
+				
+				if (firstRow) {
+					valP1 = valCurrent;
+					valP2 = valCurrent;
+					valP3 = valCurrent;
+				} else if (x+inc != hEnd)
+					valP3 = ipMarker.getValue(x+inc, y-inc);
+				else
+					valP3 = valCurrent;
+				
+				// Get the neighbourhood maximum
+//				float valNeighbourMax = Math.max(Math.max(valP1, valP2), Math.max(valP3, valPrevious));
+				float valNeighbourMax = (valP1 >= valP2) ? valP1 : valP2;
+				valNeighbourMax = (valNeighbourMax >= valP3) ? valNeighbourMax : valP3;
+				valNeighbourMax = (valNeighbourMax >= valPrevious) ? valNeighbourMax : valPrevious;
+				
+				// If the current value is less than the neighbourhood maximum, try to update it while remaining under the mask
+				if (valCurrent < valNeighbourMax) {
+					float valMask = ipMask.getValue(x, y);
+//					float valNew = Math.min(valMask, valNeighbourMax);
+					// Get the minimum
+					float valNew = (valNeighbourMax >= valMask) ? valMask : valNeighbourMax;
+					if (valNew > valCurrent) {
+						valCurrent = valNew;
+						ipMarker.setValue(x, y, valCurrent);
+						changes++;
+					}
+				}
+				
+				// If there are neighbours with lower values than we have just updated, and we have a queue,
+				// test whether to add the neighbours to the queue
+				if (populateQueue) {
+					boolean addToQueue = false;
+					if (valPrevious < valCurrent && valPrevious < ipMask.getValue(x-inc, y)) {
+						addToQueue = true;
+					}
+					else if (!firstRow) {
+						if (!firstColumn && valP1 < valCurrent && valP1 < ipMask.getValue(x-inc, y-inc)) {
+							addToQueue = true;
+						}
+						else if (valP2 < valCurrent && valP2 < ipMask.getValue(x, y-inc)) {
+							addToQueue = true;
+						}
+						else if (valP3 < valCurrent && valP3 < ipMask.getValue(x+inc, y-inc)) {
+							addToQueue = true;
+						}
+					}
+					if (addToQueue) {
+						queue.add(y*width + x);
+					}
+				}
+				
+				// Update previous neighbours
+				valPrevious = valCurrent;
+				valP1 = valP2;
+				valP2 = valP3;
+				firstColumn = false;
+			}
+			firstRow = false;
+		}
+		return changes;
+	}
+	
+	private static void processPoint(final SimpleModifiableImage ipMarker, final SimpleImage ipMask, final int x, final int y, final float val, final IntDequeue queue, int width) {
+		float valTempMarker = ipMarker.getValue(x, y);
+		if (valTempMarker < val) {
+			float valTempMask = ipMask.getValue(x, y);
+			if (valTempMarker < valTempMask) {
+//				ipMarker.setf(x, y, Math.min(val, valTempMask));
+				ipMarker.setValue(x, y, valTempMask <= val ? valTempMask : val);
+				queue.add(y * width + x);
+			}
+		}
+	}
+	
+	
+	private static boolean processQueue(final SimpleModifiableImage ipMarker, final SimpleImage ipMask, final IntDequeue queue) {
+		int x1 = 0;
+		int y1 = 0;
+		int x2 = ipMarker.getWidth();
+		int y2 = ipMarker.getHeight();
+		
+		int counter = 0;
+		int width = ipMarker.getWidth();
+		
+		Thread currentThread = Thread.currentThread();
+		
+		while (!queue.isEmpty()) {
+			counter++;
+
+			// If we were interrupted, stop
+			if (counter % 2500 == 0 && currentThread.isInterrupted())
+				return false;
+			
+			int ind = queue.remove();
+			int x = ind % width;
+			int y = ind / width;
+			
+			// Test 8-neighbours
+			float val = ipMarker.getValue(x, y);
+			if (x > x1) {
+				processPoint(ipMarker, ipMask, x-1, y, val, queue, width);
+				if (y > y1)
+					processPoint(ipMarker, ipMask, x-1, y-1, val, queue, width);
+				if (y < y2-1)
+					processPoint(ipMarker, ipMask, x-1, y+1, val, queue, width);
+			}
+			if (x < x2-1) {
+				processPoint(ipMarker, ipMask, x+1, y, val, queue, width);
+				if (y > y1)
+					processPoint(ipMarker, ipMask, x+1, y-1, val, queue, width);
+				if (y < y2-1)
+					processPoint(ipMarker, ipMask, x+1, y+1, val, queue, width);
+			}
+			if (y > y1)
+				processPoint(ipMarker, ipMask, x, y-1, val, queue, width);
+			if (y < y2-1)
+				processPoint(ipMarker, ipMask, x, y+1, val, queue, width);
+		}
+		
+		return true;
+	}
+	
+	
+	private static boolean legacyReconstruction(SimpleModifiableImage imMarker, SimpleImage imMask) {
+		// Apply forward propagation
+		dilateAndCompare(imMarker, imMask, false, null);
+		// Apply backwards propagation, filling the queue
+		IntDequeue queue = new IntDequeue(1024*1024);
+		dilateAndCompare(imMarker, imMask, true, queue);
+		// Process pixels in the queue (FIFO)
+		return processQueue(imMarker, imMask, queue);
+	}
+
+	
+
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+package qupath.lib.analysis.stats;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestHistogramAccumulator {
+	
+	@Test
+	public void test_matchesHistogram() {
+		Random rand = new Random(10L);
+		float[] values = new float[10000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (float)(rand.nextGaussian() * 100 + 20);
+		values[5] = Float.NaN;
+		checkMatches(values, 1024);
+		
+		// Integer values, with a range small enough that bins should have width 1
+		for (int i = 0; i < values.length; i++)
+			values[i] = rand.nextInt(300);
+		checkMatches(values, 1024);
+		checkMatches(values, 64);
+	}
+	
+	private static void checkMatches(final float[] values, final int nBins) {
+		Histogram expected = new Histogram(values, nBins);
+		
+		// Accumulate in chunks, merging at the end
+		int chunkSize = 1234;
+		HistogramAccumulator accumulatorStats = new HistogramAccumulator();
+		for (int i = 0; i < values.length; i += chunkSize) {
+			HistogramAccumulator temp = new HistogramAccumulator();
+			temp.addValues(values, i, Math.min(values.length, i + chunkSize));
+			accumulatorStats.merge(temp);
+		}
+		HistogramAccumulator accumulator = accumulatorStats.createBinnedAccumulator(nBins);
+		for (int i = 0; i < values.length; i += chunkSize) {
+			HistogramAccumulator temp = accumulatorStats.createBinnedAccumulator(nBins);
+			temp.addValues(values, i, Math.min(values.length, i + chunkSize));
+			accumulator.merge(temp);
+		}
+		Histogram histogram = accumulator.toHistogram();
+		
+		assertEquals(expected.isInteger(), histogram.isInteger());
+		assertEquals(expected.nBins(), histogram.nBins());
+		assertEquals(expected.nValues(), histogram.nValues());
+		assertEquals(expected.nMissingValues(), histogram.nMissingValues());
+		assertEquals(expected.getCountSum(), histogram.getCountSum(), 0.0);
+		assertEquals(expected.getMaxCount(), histogram.getMaxCount(), 0.0);
+		assertEquals(expected.getEdgeMin(), histogram.getEdgeMin(), 0.0);
+		assertEquals(expected.getEdgeMax(), histogram.getEdgeMax(), 0.0);
+		assertEquals(expected.getMeanValue(), histogram.getMeanValue(), 1e-6);
+		assertEquals(expected.getVariance(), histogram.getVariance(), 1e-6);
+		for (int i = 0; i < expected.nBins(); i++) {
+			assertEquals(expected.getBinLeftEdge(i), histogram.getBinLeftEdge(i), 0.0);
+			assertEquals(expected.getCountsForBin(i), histogram.getCountsForBin(i), 0.0);
+		}
+	}
+	
+	@Test
+	public void test_clampedAccumulator() {
+		Random rand = new Random(20L);
+		float[] values = new float[5000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (float)(rand.nextGaussian() * 10);
+		
+		// Use the bins from a histogram of part of the data
+		Histogram histogramPart = new Histogram(Arrays.copyOf(values, 500), 256);
+		HistogramAccumulator accumulator = HistogramAccumulator.createClampedAccumulator(histogramPart);
+		accumulator.addValues(values);
+		Histogram histogram = accumulator.toHistogram();
+		
+		assertEquals(histogramPart.nBins(), histogram.nBins());
+		assertEquals(histogramPart.getEdgeMin(), histogram.getEdgeMin(), 0.0);
+		for (int i = 0; i < histogram.nBins(); i++)
+			assertEquals(histogramPart.getBinLeftEdge(i), histogram.getBinLeftEdge(i), 1e-9);
+		// Every value should be counted, with anything outside the range in the first or last bin
+		assertEquals(values.length, histogram.getCountSum(), 0.0);
+		int nBelow = 0, nAbove = 0;
+		for (float v : values) {
+			if (v < histogramPart.getEdgeMin())
+				nBelow++;
+			else if (v > histogramPart.getEdgeMax())
+				nAbove++;
+		}
+		assertTrue(nBelow > 0 && nAbove > 0);
+		assertTrue(histogram.getCountsForBin(0) >= nBelow);
+		assertTrue(histogram.getCountsForBin(histogram.nBins()-1) >= nAbove);
+		// Statistics are computed from all values
+		assertEquals(values.length, histogram.nValues());
+		assertTrue(histogram.getMinValue() < histogramPart.getMinValue());
+		assertTrue(histogram.getMaxValue() > histogramPart.getMaxValue());
+	}
+	
+	@Test
+	public void test_widenedAccumulator() {
+		Random rand = new Random(30L);
+		float[] values = new float[5000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (float)(rand.nextGaussian() * 10);
+		// Outliers well beyond any reasonable widening
+		values[1000] = -1e6f;
+		values[2000] = 1e6f;
+		values[3000] = 2e6f;
+		
+		Histogram histogramPart = new Histogram(Arrays.copyOf(values, 500), 256);
+		HistogramAccumulator accumulator = HistogramAccumulator.createWidenedAccumulator(histogramPart, 0.5);
+		// Merge in chunks, to check the counts outside the range are merged too
+		for (int i = 0; i < values.length; i += 1000) {
+			HistogramAccumulator temp = HistogramAccumulator.createWidenedAccumulator(histogramPart, 0.5);
+			temp.addValues(values, i, Math.min(values.length, i + 1000));
+			accumulator.merge(temp);
+		}
+		Histogram histogram = accumulator.toHistogram();
+		
+		// Bins have the same width, and the original bins are preserved within the wider range
+		assertEquals(256 * 2, histogram.nBins());
+		assertEquals(histogramPart.getBinWidth(0), histogram.getBinWidth(0), 1e-9);
+		assertEquals(histogramPart.getBinLeftEdge(0), histogram.getBinLeftEdge(128), 1e-9);
+		assertEquals(histogramPart.getEdgeMax(), histogram.getBinRightEdge(128 + 255), 1e-9);
+		
+		// Values outside the range are counted separately, rather than in the end bins
+		assertEquals(1, accumulator.getCountBelowRange());
+		assertEquals(2, accumulator.getCountAboveRange());
+		assertEquals(values.length - 3, histogram.getCountSum(), 0.0);
+		int nInRange = 0;
+		for (float v : values) {
+			if (v >= histogram.getEdgeMin() && v <= histogram.getEdgeMax())
+				nInRange++;
+		}
+		assertEquals(nInRange, histogram.getCountSum(), 0.0);
+		assertEquals(values.length, histogram.nValues());
+		
+		// Trimming shouldn't lose any counts, but should drop bins that can't contain any values
+		HistogramAccumulator accumulatorSparse = new HistogramAccumulator(-100, 100, 200, false);
+		accumulatorSparse.addValues(new float[] {-10.5f, 0f, 5f, 20.5f});
+		Histogram histogramTrimmed = accumulatorSparse.toTrimmedHistogram();
+		assertEquals(32, histogramTrimmed.nBins());
+		assertEquals(-11, histogramTrimmed.getEdgeMin(), 1e-9);
+		assertEquals(21, histogramTrimmed.getEdgeMax(), 1e-9);
+		assertEquals(4, histogramTrimmed.getCountSum(), 0.0);
+		assertEquals(1, histogramTrimmed.getCountsForBin(0), 0.0);
+		assertEquals(1, histogramTrimmed.getCountsForBin(31), 0.0);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void test_mergeDifferentBins() {
+		new HistogramAccumulator(0, 10, 10, false).merge(new HistogramAccumulator(0, 20, 10, false));
+	}
+
+}
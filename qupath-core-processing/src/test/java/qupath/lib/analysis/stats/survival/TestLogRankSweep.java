@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+package qupath.lib.analysis.stats.survival;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import qupath.lib.analysis.stats.survival.LogRankTest.LogRankResult;
+
+public class TestLogRankSweep {
+	
+	@Test
+	public void test_matchesLogRankTest() {
+		Random rand = new Random(42L);
+		int n = 300;
+		double[] scores = new double[n];
+		double[] survival = new double[n];
+		boolean[] censored = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			// Use rounding to ensure plenty of ties in scores & times
+			scores[i] = Math.round(rand.nextDouble() * 50);
+			survival[i] = Math.round(rand.nextDouble() * 100 * (1 + scores[i]/50));
+			censored[i] = rand.nextDouble() < 0.3;
+		}
+		scores[5] = Double.NaN;
+		survival[8] = Double.NaN;
+		
+		for (double censorThreshold : new double[]{0, 80}) {
+			LogRankSweep sweep = LogRankSweep.compute(scores, survival, censored, censorThreshold);
+			double[] thresholds = sweep.getThresholds();
+			double[] pValues = sweep.getPValues();
+			
+			TreeSet<Double> expectedThresholds = new TreeSet<>();
+			for (int i = 0; i < n; i++) {
+				if (Double.isNaN(scores[i]) || Double.isNaN(survival[i]))
+					continue;
+				expectedThresholds.add(scores[i]);
+			}
+			// The lowest score can't be used as it leaves the low group empty
+			expectedThresholds.pollFirst();
+			assertEquals(expectedThresholds.size(), sweep.nThresholds());
+			
+			int k = 0;
+			for (double threshold : expectedThresholds) {
+				KaplanMeierData kmLow = new KaplanMeierData("Low");
+				KaplanMeierData kmHigh = new KaplanMeierData("High");
+				for (int i = 0; i < n; i++) {
+					if (Double.isNaN(scores[i]) || Double.isNaN(survival[i]))
+						continue;
+					KaplanMeierData km = scores[i] < threshold ? kmLow : kmHigh;
+					if (censorThreshold > 0 && survival[i] > censorThreshold)
+						km.addEvent(censorThreshold, true);
+					else
+						km.addEvent(survival[i], censored[i]);
+				}
+				LogRankResult result = LogRankTest.computeLogRankTest(kmLow, kmHigh);
+				assertEquals(threshold, thresholds[k], 0.0);
+				assertEquals(result.getPValue(), pValues[k], 1e-9);
+				assertEquals(result.getHazardRatio(), sweep.getHazardRatios()[k], 1e-9);
+				k++;
+			}
+		}
+	}
+	
+	@Test
+	public void test_singleScore() {
+		LogRankSweep sweep = LogRankSweep.compute(
+				new double[]{1, 1, 1}, new double[]{10, 20, 30}, new boolean[]{false, true, false}, 0);
+		assertEquals(0, sweep.nThresholds());
+	}
+
+}
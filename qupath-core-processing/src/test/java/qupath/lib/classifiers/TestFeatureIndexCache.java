@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.classifiers;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+
+/**
+ * Check that features extracted using cached indices match those looked up by name.
+ */
+public class TestFeatureIndexCache {
+	
+	private static final String BENCHMARK_PROPERTY = "qupath.benchmark";
+	
+	@Test
+	public void test_matchesLookupByName() {
+		Random rand = new Random(47L);
+		List<String> names = createNames(20);
+		List<MeasurementList> lists = new ArrayList<>();
+		for (MeasurementList.TYPE type : MeasurementList.TYPE.values()) {
+			for (int i = 0; i < 50; i++) {
+				// Use a mix of complete & partial lists, in different orders, some closed & some open
+				List<String> temp = new ArrayList<>(names);
+				if (i % 5 == 1)
+					temp = temp.subList(0, 12);
+				else if (i % 5 == 2)
+					temp.remove(3);
+				else if (i % 5 == 3)
+					Collections.reverse(temp);
+				lists.add(createMeasurementList(type, temp, rand, i % 2 == 0));
+			}
+		}
+		
+		List<String> features = Arrays.asList("Feature 5", "Feature 3", "Missing", "Feature 19", "Feature 0");
+		FeatureIndexCache cache = new FeatureIndexCache(features);
+		checkValues(cache, lists);
+		
+		// Change measurements in place - the new values should be returned
+		for (MeasurementList list : lists) {
+			list.putMeasurement("Feature 3", rand.nextDouble());
+			list.putMeasurement("Feature 19", rand.nextDouble());
+		}
+		checkValues(cache, lists);
+		
+		// Add a feature to an open list after its indices have been requested
+		MeasurementList listOpen = createMeasurementList(MeasurementList.TYPE.FLOAT, names.subList(0, 4), rand, false);
+		checkValues(cache, Arrays.asList(listOpen));
+		listOpen.putMeasurement("Feature 5", 5.0);
+		checkValues(cache, Arrays.asList(listOpen));
+		
+		// Changing features should discard the cached indices
+		assertFalse(cache.setFeatures(new ArrayList<>(features)));
+		assertTrue(cache.setFeatures(Arrays.asList("Feature 0", "Feature 7", "Feature 5")));
+		checkValues(cache, lists);
+	}
+	
+	
+	/**
+	 * This only runs if the system property {@code qupath.benchmark} is true, 
+	 * e.g. {@code mvn test -Dqupath.benchmark=true}.
+	 */
+	@Test
+	public void test_timing() {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+		
+		Random rand = new Random(100L);
+		List<String> names = createNames(100);
+		List<MeasurementList> lists = new ArrayList<>();
+		for (int i = 0; i < 20000; i++)
+			lists.add(createMeasurementList(MeasurementList.TYPE.FLOAT, names, rand, true));
+		List<String> features = new ArrayList<>(names.subList(0, 80));
+		Collections.shuffle(features, rand);
+		
+		double[] values = new double[features.size()];
+		double sumByName = 0;
+		double sumByIndex = 0;
+		long timeByName = Long.MAX_VALUE;
+		long timeByIndex = Long.MAX_VALUE;
+		for (int repeat = 0; repeat < 10; repeat++) {
+			long startTime = System.nanoTime();
+			sumByName = 0;
+			for (MeasurementList list : lists) {
+				for (String feature : features)
+					sumByName += list.getMeasurementValue(feature);
+			}
+			timeByName = Math.min(timeByName, System.nanoTime() - startTime);
+			
+			startTime = System.nanoTime();
+			FeatureIndexCache cache = new FeatureIndexCache(features);
+			sumByIndex = 0;
+			for (MeasurementList list : lists) {
+				cache.getFeatureValues(list, values);
+				for (double v : values)
+					sumByIndex += v;
+			}
+			timeByIndex = Math.min(timeByIndex, System.nanoTime() - startTime);
+		}
+		assertEquals(sumByName, sumByIndex, 0.0);
+		System.out.println(String.format("Extracting %d features from %d objects: %.2f ms by name, %.2f ms with cached indices",
+				features.size(), lists.size(), timeByName / 1e6, timeByIndex / 1e6));
+	}
+	
+	
+	private static void checkValues(FeatureIndexCache cache, List<MeasurementList> lists) {
+		List<String> features = cache.getFeatures();
+		double[] values = null;
+		for (MeasurementList list : lists) {
+			values = cache.getFeatureValues(list, values);
+			for (int k = 0; k < features.size(); k++)
+				assertEquals(list.getMeasurementValue(features.get(k)), values[k], 0.0);
+		}
+	}
+	
+	private static List<String> createNames(int n) {
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			names.add("Feature " + i);
+		return names;
+	}
+	
+	private static MeasurementList createMeasurementList(MeasurementList.TYPE type, List<String> names, Random rand, boolean close) {
+		MeasurementList list = MeasurementListFactory.createMeasurementList(names.size(), type);
+		for (String name : names)
+			list.putMeasurement(name, rand.nextDouble());
+		if (close)
+			list.closeList();
+		return list;
+	}
+
+}
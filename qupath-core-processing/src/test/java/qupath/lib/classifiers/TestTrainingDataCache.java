@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.classifiers;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.roi.PointsROI;
+import qupath.lib.roi.RectangleROI;
+
+/**
+ * Check that cached training data stays the same as that found by searching the hierarchy, as the hierarchy changes.
+ */
+public class TestTrainingDataCache {
+	
+	@Test
+	public void test_matchesHierarchy() {
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		hierarchy.addPathObjects(createDetections(20, 15, 48L), false);
+		TrainingDataCache cache = new TrainingDataCache(hierarchy);
+		
+		PathClass tumor = PathClassFactory.getPathClass("Tumor");
+		PathClass stroma = PathClassFactory.getPathClass("Stroma");
+		
+		checkCache(hierarchy, cache, 0);
+		
+		// Add annotations, one at a time
+		PathObject annotation1 = new PathAnnotationObject(new RectangleROI(0, 0, 95, 65), tumor);
+		hierarchy.addPathObject(annotation1, false);
+		checkCache(hierarchy, cache, 1);
+		
+		PathObject annotation2 = new PathAnnotationObject(new RectangleROI(100, 70, 80, 50), stroma);
+		hierarchy.addPathObject(annotation2, false);
+		checkCache(hierarchy, cache, 2);
+		
+		PathObject annotationUnclassified = new PathAnnotationObject(new RectangleROI(0, 100, 50, 40));
+		hierarchy.addPathObject(annotationUnclassified, false);
+		checkCache(hierarchy, cache, 2);
+		
+		// Add points
+		PathObject points = new PathAnnotationObject(new PointsROI(Arrays.asList(new Point2(155, 15), new Point2(15, 125), new Point2(155, 15))), tumor);
+		hierarchy.addPathObject(points, false);
+		checkCache(hierarchy, cache, 2);
+		assertEquals(1, cache.getClassificationMap(true).size());
+		
+		// Change labels
+		annotationUnclassified.setPathClass(stroma);
+		hierarchy.fireObjectClassificationsChangedEvent(this, Collections.singletonList(annotationUnclassified));
+		checkCache(hierarchy, cache, 2);
+		
+		annotation1.setPathClass(PathClassFactory.getPathClass("Other"));
+		hierarchy.fireObjectClassificationsChangedEvent(this, Collections.singletonList(annotation1));
+		checkCache(hierarchy, cache, 3);
+		
+		// Add a detection inside an annotation
+		hierarchy.addPathObject(createDetection(102, 72, 2, new Random(49L)), false);
+		checkCache(hierarchy, cache, 3);
+		
+		// Edit the points
+		((PathAnnotationObject)points).setROI(new PointsROI(Arrays.asList(new Point2(155, 15), new Point2(5, 5))));
+		hierarchy.fireObjectsChangedEvent(this, Collections.singletonList(points));
+		checkCache(hierarchy, cache, 3);
+		
+		// Remove annotations, with & without their child objects
+		hierarchy.removeObject(annotation2, true);
+		checkCache(hierarchy, cache, 3);
+		
+		hierarchy.removeObject(annotation1, false);
+		checkCache(hierarchy, cache, 2);
+		
+		cache.close();
+	}
+	
+	@Test
+	public void test_availableFeatures() {
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		List<PathObject> detections = createDetections(10, 10, 50L);
+		hierarchy.addPathObjects(detections, false);
+		TrainingDataCache cache = new TrainingDataCache(hierarchy);
+		
+		assertEquals(PathClassificationLabellingHelper.getAvailableFeatures(hierarchy, PathDetectionObject.class), cache.getAvailableFeatures());
+		
+		PathObject pathObject = detections.get(5);
+		pathObject.getMeasurementList().putMeasurement("Something new", 1.0);
+		hierarchy.fireObjectMeasurementsChangedEvent(this, Collections.singletonList(pathObject));
+		assertTrue(cache.getAvailableFeatures().contains("Something new"));
+		assertEquals(PathClassificationLabellingHelper.getAvailableFeatures(hierarchy, PathDetectionObject.class), cache.getAvailableFeatures());
+		
+		cache.close();
+	}
+	
+	
+	private static void checkCache(final PathObjectHierarchy hierarchy, final TrainingDataCache cache, final int nClasses) {
+		for (boolean pointsOnly : new boolean[]{false, true}) {
+			assertEquals(PathClassificationLabellingHelper.getClassificationMap(hierarchy, pointsOnly), cache.getClassificationMap(pointsOnly));
+			// Check twice, to use any cached values
+			assertEquals(PathClassificationLabellingHelper.getClassificationMap(hierarchy, pointsOnly), cache.getClassificationMap(pointsOnly));
+		}
+		assertEquals(nClasses, cache.getClassificationMap(false).size());
+	}
+	
+	private static List<PathObject> createDetections(final int nx, final int ny, final long seed) {
+		Random rand = new Random(seed);
+		List<PathObject> detections = new ArrayList<>();
+		for (int y = 0; y < ny; y++) {
+			for (int x = 0; x < nx; x++)
+				detections.add(createDetection(x * 10 + 1, y * 10 + 1, 8, rand));
+		}
+		return detections;
+	}
+	
+	private static PathObject createDetection(final double x, final double y, final double size, final Random rand) {
+		MeasurementList list = MeasurementListFactory.createMeasurementList(2, MeasurementList.TYPE.FLOAT);
+		list.addMeasurement("Feature 1", rand.nextDouble());
+		list.addMeasurement("Feature 2", rand.nextDouble());
+		list.closeList();
+		return new PathDetectionObject(new RectangleROI(x, y, size, size), null, list);
+	}
+
+}
@@ -0,0 +1,250 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.scripting;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+
+public class TestMeasurementPredicate {
+	
+	private static final String BENCHMARK_PROPERTY = "qupath.benchmark";
+	
+	private static final String[] NAMES = {"Nucleus: Area", "Nucleus: DAB OD mean", "Cell: Eccentricity", "Angular second moment (F0)", "Hematoxylin and eosin or DAB: Mean"};
+	
+	@Test
+	public void test_matchesLegacyParser() {
+		List<PathObject> pathObjects = createObjects(5000, 1L);
+		String[] commands = {
+				"Nucleus: Area > 50",
+				"Nucleus: Area >= 50.5",
+				"Nucleus: DAB OD mean < 0.3",
+				"Nucleus: DAB OD mean <= 0.3 and Nucleus: Area > 20",
+				"NOT Nucleus: Area = 10",
+				"Cell: Eccentricity != 0.5 OR Nucleus: Area > 90",
+				"Nucleus: Area > 10 AND NOT Cell: Eccentricity ~= 0.25 or Nucleus: DAB OD mean > 0.8",
+				"Angular second moment (F0) > 0.5",
+				"Missing measurement > 0",
+				"not Missing measurement > 0",
+				"Nucleus: Area > -5",
+				// AND and OR are combined from left to right
+				"Nucleus: Area > 50 OR Cell: Eccentricity < 0.2 AND Nucleus: DAB OD mean > 0.5",
+				"Cell: Eccentricity < 0.5 AND Nucleus: Area > 80 OR Nucleus: DAB OD mean < 0.1 AND NOT Nucleus: Area = 10",
+				// Measurement names may contain keywords
+				"Hematoxylin and eosin or DAB: Mean > 0.5",
+				"Hematoxylin and eosin or DAB: Mean < 0.3 or Nucleus: Area > 90 and not Hematoxylin and eosin or DAB: Mean < 0.1"
+		};
+		for (String command : commands) {
+			Predicate<PathObject> expected = parseLegacy(command);
+			MeasurementPredicate predicate = MeasurementPredicate.compile(command);
+			List<PathObject> listExpected = pathObjects.stream().filter(expected).collect(Collectors.toList());
+			assertEquals(command, listExpected, predicate.filter(pathObjects));
+		}
+	}
+	
+	@Test
+	public void test_expressions() {
+		List<PathObject> pathObjects = createObjects(20000, 2L);
+		checkExpression(pathObjects, "(Nucleus: Area > 50 OR Cell: Eccentricity < 0.2) AND Nucleus: DAB OD mean > 0.5", 
+				m -> (m.getMeasurementValue(NAMES[0]) > 50 || m.getMeasurementValue(NAMES[2]) < 0.2) && m.getMeasurementValue(NAMES[1]) > 0.5);
+		checkExpression(pathObjects, "Nucleus: Area * Nucleus: DAB OD mean > 25", 
+				m -> m.getMeasurementValue(NAMES[0]) * m.getMeasurementValue(NAMES[1]) > 25);
+		checkExpression(pathObjects, "(Nucleus: Area + 10) / 2 < \"Cell: Eccentricity\" * 100 - 20", 
+				m -> (m.getMeasurementValue(NAMES[0]) + 10) / 2 < m.getMeasurementValue(NAMES[2]) * 100 - 20);
+		checkExpression(pathObjects, "NOT (Angular second moment (F0) > 0.5 AND - Nucleus: Area < -50)", 
+				m -> !(m.getMeasurementValue(NAMES[3]) > 0.5 && -m.getMeasurementValue(NAMES[0]) < -50));
+	}
+	
+	@Test(expected = NoSuchElementException.class)
+	public void test_missingCombiner() {
+		MeasurementPredicate.compile("Nucleus: Area > 5 Cell: Eccentricity < 2");
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void test_missingComparison() {
+		MeasurementPredicate.compile("Nucleus: Area > 5 AND Cell: Eccentricity");
+	}
+	
+	/**
+	 * This only runs if the system property {@code qupath.benchmark} is true, 
+	 * e.g. {@code mvn test -Dqupath.benchmark=true}.
+	 */
+	@Test
+	public void benchmark_filter() {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+		
+		List<PathObject> pathObjects = createObjects(500000, 3L);
+		String command = "Nucleus: Area > 50 AND Nucleus: DAB OD mean > 0.2 OR NOT Cell: Eccentricity < 0.5";
+		Predicate<PathObject> legacy = parseLegacy(command);
+		MeasurementPredicate predicate = MeasurementPredicate.compile(command);
+		
+		// Warm up
+		pathObjects.stream().filter(legacy).count();
+		predicate.filter(pathObjects);
+		
+		long startTime = System.nanoTime();
+		List<PathObject> listLegacy = pathObjects.stream().filter(legacy).collect(Collectors.toList());
+		long timeLegacy = System.nanoTime() - startTime;
+		
+		startTime = System.nanoTime();
+		List<PathObject> listCompiled = predicate.filter(pathObjects);
+		long timeCompiled = System.nanoTime() - startTime;
+		
+		assertEquals(listLegacy, listCompiled);
+		System.out.println(String.format("Filtering %d objects: %.1f ms with legacy parser, %.1f ms compiled", 
+				pathObjects.size(), timeLegacy / 1e6, timeCompiled / 1e6));
+	}
+	
+	
+	private static void checkExpression(final List<PathObject> pathObjects, final String command, final Predicate<MeasurementList> expected) {
+		MeasurementPredicate predicate = MeasurementPredicate.compile(command);
+		int nMatches = 0;
+		for (PathObject pathObject : pathObjects) {
+			boolean matches = expected.test(pathObject.getMeasurementList());
+			assertEquals(command, matches, predicate.test(pathObject));
+			if (matches)
+				nMatches++;
+		}
+		// Make sure we aren't testing something trivial
+		assertTrue(nMatches > 0 && nMatches < pathObjects.size());
+	}
+	
+	private static List<PathObject> createObjects(final int n, final long seed) {
+		Random rand = new Random(seed);
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			MeasurementList list = MeasurementListFactory.createMeasurementList(NAMES.length, MeasurementList.TYPE.FLOAT);
+			// Include some objects with missing or reordered measurements
+			if (i % 100 == 0) {
+				list.addMeasurement(NAMES[2], rand.nextDouble());
+				list.addMeasurement(NAMES[0], Double.NaN);
+			} else {
+				list.addMeasurement(NAMES[0], i % 50 == 0 ? 10 : rand.nextInt(100));
+				list.addMeasurement(NAMES[1], rand.nextDouble());
+				list.addMeasurement(NAMES[2], i % 20 == 0 ? 0.25 : rand.nextDouble());
+				list.addMeasurement(NAMES[3], rand.nextDouble());
+				list.addMeasurement(NAMES[4], rand.nextDouble());
+			}
+			list.closeList();
+			pathObjects.add(new PathDetectionObject(null, null, list));
+		}
+		return pathObjects;
+	}
+	
+	
+	/**
+	 * The original implementation of QP.parsePredicate, for comparison.
+	 */
+	private static Predicate<PathObject> parseLegacy(final String command) throws NoSuchElementException {
+		String s = command.trim();
+		if (s.length() == 0)
+			throw new NoSuchElementException("No command provided!");
+		Scanner scanner = new Scanner(s);
+
+		try {
+			Map<String, Predicate<Integer>> mapComparison = new HashMap<>();
+			mapComparison.put(">=", v -> v >= 0);
+			mapComparison.put("<=", v -> v <= 0);
+			mapComparison.put(">", v -> v > 0);
+			mapComparison.put("<", v -> v < 0);
+			mapComparison.put("=", v -> v == 0);
+			mapComparison.put("==", v -> v == 0);
+			mapComparison.put("!=", v -> v != 0);
+			mapComparison.put("~=", v -> v != 0);
+
+			Predicate<PathObject> predicate = null;
+			Pattern comparePattern = Pattern.compile(">=|<=|==|!=|~=|=|>|<");
+			Pattern combinePattern = Pattern.compile("and|AND|or|OR");
+			Pattern notPattern = Pattern.compile("not|NOT");
+			while (scanner.hasNext()) {
+				String combine = null;
+				scanner.reset();
+				if (predicate != null) {
+					if (scanner.hasNext(combinePattern))
+						combine = scanner.next(combinePattern).trim().toUpperCase();
+					else
+						throw new NoSuchElementException("Missing combiner (AND, OR) between comparisons!");
+				}
+
+				boolean negate = false;
+				if (scanner.hasNext(notPattern)) {
+					negate = true;
+					scanner.next(notPattern);
+				}
+
+				scanner.useDelimiter(comparePattern);
+				String measurement = scanner.next().trim();
+				scanner.reset();
+				if (!scanner.hasNext(comparePattern))
+					throw new NoSuchElementException("Missing comparison operator (<, >, <=, >=, ==) for measurement \"" + measurement + "\"");
+				String comparison = scanner.next(comparePattern).trim();
+				
+				if (!scanner.hasNextDouble())
+					throw new NoSuchElementException("Missing comparison value after \"" + measurement + " " + comparison + "\"");
+				double value = scanner.nextDouble();
+
+				Predicate<PathObject> predicateNew = p -> {
+					double v = p.getMeasurementList().getMeasurementValue(measurement);
+					return !Double.isNaN(v) && mapComparison.get(comparison).test(Double.compare(p.getMeasurementList().getMeasurementValue(measurement), value));
+				};
+				if (negate)
+					predicateNew = predicateNew.negate();
+
+				if (predicate == null) {
+					predicate = predicateNew;
+				} else {
+					if ("AND".equals(combine))
+						predicate = predicate.and(predicateNew);
+					else if ("OR".equals(combine))
+						predicate = predicate.or(predicateNew);
+					else
+						throw new NoSuchElementException("Unrecognised combination of predicates: " + combine);
+				}
+			}
+
+			return predicate;
+		} finally {
+			scanner.close();
+		}
+	}
+
+}
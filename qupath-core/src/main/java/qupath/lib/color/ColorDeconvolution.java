@@ -87,29 +87,9 @@ public class ColorDeconvolution {
 		double scaleGreen = matInv[1][channel];
 		double scaleBlue = matInv[2][channel];
 
-		double maxRed = stains.getMaxRed(); //J
-		double maxGreen = stains.getMaxGreen(); //J
-		double maxBlue = stains.getMaxBlue(); //J
-		
 		// Apply color deconvolution
-		//J Only need 3 if they are different from each other - may be a bit faster? (depends on whether we expect them to be the same more often)
-		double[] od_lut_red = ColorDeconvolutionHelper.makeODLUT(maxRed); //J
-		double[] od_lut_green = maxRed == maxGreen ? od_lut_red : ColorDeconvolutionHelper.makeODLUT(maxGreen); //J
-		double[] od_lut_blue = maxBlue == maxRed ? od_lut_red : maxBlue == maxGreen ? od_lut_green : ColorDeconvolutionHelper.makeODLUT(maxBlue); //J
-		//J double[] od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-		//J double[] od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-		//J double[] od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-		for (int i = 0; i < buf.length; i++) {
-			int c = buf[i];
-//			if (c == 1330268745) // This occurred frequently on the bottom row in at least one SVS file...
-//				logger.info("here: " + ColorTransformer.red(c) + ", " + ColorTransformer.green(c) + ", " + ColorTransformer.blue(c));
-			// Extract RGB values & convert to optical densities using a lookup table
-			double r = od_lut_red[(c & 0xff0000) >> 16];
-			double g = od_lut_green[(c & 0xff00) >> 8];
-			double b = od_lut_blue[c & 0xff];
-			// Apply deconvolution & store the results
-			output[i] = (float)(r * scaleRed + g * scaleGreen + b * scaleBlue);
-		}
+		ColorTransformer.applyODTransforms(buf, stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue(), 
+				new double[][]{{scaleRed, scaleGreen, scaleBlue}}, new float[][]{output}, 1);
 		return output;
 	}
 	
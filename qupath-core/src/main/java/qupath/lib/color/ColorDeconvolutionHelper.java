@@ -113,9 +113,7 @@ public class ColorDeconvolutionHelper {
 	public static float[] getRedOpticalDensities(int[] rgb, double maxValue, float[] px) {
 		if (px == null)
 			px = new float[rgb.length];
-		double[] od_lut = makeODLUT(maxValue, 256);
-		for (int i = 0; i < px.length; i++)
-			px[i] = (float)makeODByLUT(ColorTools.red(rgb[i]), od_lut);
+		ColorTransformer.applyODTransforms(rgb, maxValue, maxValue, maxValue, new double[][]{{1, 0, 0}}, new float[][]{px}, 1);
 		return px;
 	}
 
@@ -130,9 +128,7 @@ public class ColorDeconvolutionHelper {
 	public static float[] getGreenOpticalDensities(int[] rgb, double maxValue, float[] px) {
 		if (px == null)
 			px = new float[rgb.length];
-		double[] od_lut = makeODLUT(maxValue, 256);
-		for (int i = 0; i < px.length; i++)
-			px[i] = (float)makeODByLUT(ColorTools.green(rgb[i]), od_lut);
+		ColorTransformer.applyODTransforms(rgb, maxValue, maxValue, maxValue, new double[][]{{0, 1, 0}}, new float[][]{px}, 1);
 		return px;
 	}
 
@@ -147,9 +143,30 @@ public class ColorDeconvolutionHelper {
 	public static float[] getBlueOpticalDensities(int[] rgb, double maxValue, float[] px) {
 		if (px == null)
 			px = new float[rgb.length];
-		double[] od_lut = makeODLUT(maxValue, 256);
-		for (int i = 0; i < px.length; i++)
-			px[i] = (float)makeODByLUT(ColorTools.blue(rgb[i]), od_lut);
+		ColorTransformer.applyODTransforms(rgb, maxValue, maxValue, maxValue, new double[][]{{0, 0, 1}}, new float[][]{px}, 1);
+		return px;
+	}
+
+
+	/**
+	 * Convert the red, green and blue channels of packed rgb pixels to optical density values in a single pass, 
+	 * using a specified maximum value for each channel.
+	 * 
+	 * @param rgb
+	 * @param maxRed
+	 * @param maxGreen
+	 * @param maxBlue
+	 * @param px optional arrays used for output
+	 * @return arrays containing red, green and blue optical densities
+	 */
+	public static float[][] getOpticalDensities(int[] rgb, double maxRed, double maxGreen, double maxBlue, float[][] px) {
+		if (px == null || px.length != 3)
+			px = new float[3][];
+		for (int i = 0; i < 3; i++) {
+			if (px[i] == null || px[i].length != rgb.length)
+				px[i] = new float[rgb.length];
+		}
+		ColorTransformer.applyODTransforms(rgb, maxRed, maxGreen, maxBlue, new double[][]{{1, 0, 0}, {0, 1, 0}, {0, 0, 1}}, px, 3);
 		return px;
 	}
 
@@ -333,9 +350,10 @@ public class ColorDeconvolutionHelper {
 		double[] whiteValues = estimateWhiteValues(rgb);
 
 		// Get optical densities
-		float[] redOD = ColorDeconvolutionHelper.getRedOpticalDensities(rgb, whiteValues[0], null);
-		float[] greenOD = ColorDeconvolutionHelper.getGreenOpticalDensities(rgb, whiteValues[1], null);
-		float[] blueOD = ColorDeconvolutionHelper.getBlueOpticalDensities(rgb, whiteValues[2], null);
+		float[][] rgbOD = ColorDeconvolutionHelper.getOpticalDensities(rgb, whiteValues[0], whiteValues[1], whiteValues[2], null);
+		float[] redOD = rgbOD[0];
+		float[] greenOD = rgbOD[1];
+		float[] blueOD = rgbOD[2];
 
 		// Create a basic stain mask
 		boolean[] mask = createStainMask(redOD, greenOD, blueOD, minStain, stains.isH_DAB() || stains.isH_E(), true, null);
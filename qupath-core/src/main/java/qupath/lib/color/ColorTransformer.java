@@ -25,6 +25,7 @@ package qupath.lib.color;
 
 import java.awt.Color;
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import qupath.lib.color.ColorDeconvolutionStains.DEFAULT_CD_STAINS;
 import qupath.lib.common.ColorTools;
@@ -36,6 +37,16 @@ import qupath.lib.common.ColorTools;
  *
  */
 public class ColorTransformer {
+	
+	/**
+	 * Minimum number of pixels before optical density transforms are split across multiple threads.
+	 */
+	private final static int MIN_PARALLEL_PIXELS = 1 << 18;
+	
+	/**
+	 * Number of pixels handled by each task when optical density transforms are split across multiple threads.
+	 */
+	private final static int PARALLEL_CHUNK_SIZE = 1 << 16;
 
 	public enum ColorTransformMethod {
 			Original,
@@ -221,7 +232,13 @@ public class ColorTransformer {
 		if (pixels == null || pixels.length != buf.length)
 			pixels = new float[buf.length];
 		
-		double[] od_lut, od_lut_red, od_lut_green, od_lut_blue;
+		double[] coefficients = getODCoefficients(method, stains);
+		if (coefficients != null) {
+			applyODTransforms(buf, stains, new double[][]{coefficients}, new float[][]{pixels}, 1);
+			return pixels;
+		}
+		
+		double[] od_lut_red, od_lut_green, od_lut_blue;
 		double[][] inverse;
 		
 		switch (method) {
@@ -239,24 +256,6 @@ public class ColorTransformer {
 				pixels[i] = ColorTools.blue(buf[i]);
 			}
 			break;
-		case Red_OD:
-			od_lut = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = (float)od_lut[ColorTools.red(buf[i])];
-			}
-			break;
-		case Green_OD:
-			od_lut = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = (float)od_lut[ColorTools.green(buf[i])];
-			}
-			break;
-		case Blue_OD:
-			od_lut = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = (float)od_lut[ColorTools.blue(buf[i])];
-			}
-			break;
 		case RGB_mean:
 			for (int i = 0; i < buf.length; i++) {
 				pixels[i] = ColorTransformer.rgbMean(buf[i]);
@@ -287,66 +286,6 @@ public class ColorTransformer {
 				pixels[i] = ColorTransformer.brown(buf[i]);
 			}
 			break;
-		case Hematoxylin_H_E:
-			if (stains == null || !stains.isH_E()) {
-				throw new IllegalArgumentException("No valid H&E stains supplied!");
-			}
-		case Stain_1:
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 1);
-			}
-			break;
-		case Eosin_H_E:
-			if (stains == null || !stains.isH_E()) {
-				throw new IllegalArgumentException("No valid H&E stains supplied!");
-			}
-		case Stain_2:
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 2);
-			}
-			break;
-		case Stain_3:
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 3);
-			}
-			break;
-		case Hematoxylin_H_DAB:
-			if (stains == null || !stains.isH_DAB()) {
-				throw new IllegalArgumentException("No valid H-DAB stains supplied!");
-			}
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 1);
-			}
-			break;
-		case DAB_H_DAB:
-			if (stains == null || !stains.isH_DAB()) {
-				throw new IllegalArgumentException("No valid H-DAB stains supplied!");
-			}
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 2);
-			}
-			break;
-			
 		case Stain_1_projection:
 			if (stains == null) {
 				throw new IllegalArgumentException("No valid stains supplied!");
@@ -527,21 +466,6 @@ public class ColorTransformer {
 		case Black:
 			Arrays.fill(pixels, 0);
 			break;
-		case Optical_density_sum:
-			if (stains != null) {
-				od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-				od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-				od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-				for (int i = 0; i < buf.length; i++) {
-					pixels[i] = ColorTransformer.opticalDensitySum(buf[i], od_lut_red, od_lut_green, od_lut_blue);
-				}			
-			} else {
-				od_lut = ColorDeconvolutionHelper.makeODLUT(255.0);
-				for (int i = 0; i < buf.length; i++) {
-					pixels[i] = ColorTransformer.opticalDensitySum(buf[i], od_lut);
-				}			
-			}
-			break;
 		case Original:
 			return null;
 		}
@@ -549,6 +473,186 @@ public class ColorTransformer {
 	}
 	
 	
+	/**
+	 * Apply several color transforms to the same packed RGB buffer.
+	 * <p>
+	 * Transforms that are linear combinations of optical densities (i.e. color deconvolution, 
+	 * the optical density of individual channels and the OD sum) are computed together in a single pass 
+	 * through the buffer, so that each pixel is converted to optical densities only once - 
+	 * and large buffers are split across multiple threads.  
+	 * This is much more efficient than requesting each transform separately.
+	 * Any other transforms are computed as for {@link #getTransformedPixels(int[], ColorTransformMethod, float[], ColorDeconvolutionStains)}.
+	 * 
+	 * @param buf packed RGB values
+	 * @param methods the transforms to apply
+	 * @param pixels optional arrays to store the output, one per method
+	 * @param stains stains used for color deconvolution
+	 * @return arrays containing the transformed pixels, one per method
+	 */
+	public static float[][] getTransformedPixels(final int[] buf, final ColorTransformMethod[] methods, float[][] pixels, final ColorDeconvolutionStains stains) {
+		if (pixels == null || pixels.length != methods.length)
+			pixels = new float[methods.length][];
+		
+		double[][] coefficients = new double[methods.length][];
+		float[][] outputs = new float[methods.length][];
+		int nOD = 0;
+		for (int i = 0; i < methods.length; i++) {
+			double[] c = getODCoefficients(methods[i], stains);
+			if (c == null) {
+				pixels[i] = getTransformedPixels(buf, methods[i], pixels[i], stains);
+			} else {
+				if (pixels[i] == null || pixels[i].length != buf.length)
+					pixels[i] = new float[buf.length];
+				coefficients[nOD] = c;
+				outputs[nOD] = pixels[i];
+				nOD++;
+			}
+		}
+		if (nOD > 0)
+			applyODTransforms(buf, stains, coefficients, outputs, nOD);
+		return pixels;
+	}
+	
+	
+	/**
+	 * Get the weights applied to the red, green and blue optical densities for transforms that are 
+	 * linear combinations of these, or null if the transform is not of this kind.
+	 * 
+	 * @param method
+	 * @param stains
+	 * @return
+	 */
+	private static double[] getODCoefficients(final ColorTransformMethod method, final ColorDeconvolutionStains stains) {
+		switch (method) {
+		case Red_OD:
+			return new double[]{1, 0, 0};
+		case Green_OD:
+			return new double[]{0, 1, 0};
+		case Blue_OD:
+			return new double[]{0, 0, 1};
+		case Optical_density_sum:
+			return new double[]{1, 1, 1};
+		case Hematoxylin_H_E:
+			if (stains == null || !stains.isH_E())
+				throw new IllegalArgumentException("No valid H&E stains supplied!");
+			return getDeconvolutionCoefficients(stains, 1);
+		case Eosin_H_E:
+			if (stains == null || !stains.isH_E())
+				throw new IllegalArgumentException("No valid H&E stains supplied!");
+			return getDeconvolutionCoefficients(stains, 2);
+		case Hematoxylin_H_DAB:
+			if (stains == null || !stains.isH_DAB())
+				throw new IllegalArgumentException("No valid H-DAB stains supplied!");
+			return getDeconvolutionCoefficients(stains, 1);
+		case DAB_H_DAB:
+			if (stains == null || !stains.isH_DAB())
+				throw new IllegalArgumentException("No valid H-DAB stains supplied!");
+			return getDeconvolutionCoefficients(stains, 2);
+		case Stain_1:
+			return getDeconvolutionCoefficients(stains, 1);
+		case Stain_2:
+			return getDeconvolutionCoefficients(stains, 2);
+		case Stain_3:
+			return getDeconvolutionCoefficients(stains, 3);
+		default:
+			return null;
+		}
+	}
+	
+	private static double[] getDeconvolutionCoefficients(final ColorDeconvolutionStains stains, final int stain) {
+		if (stains == null)
+			throw new IllegalArgumentException("No stains supplied for color deconvolution!");
+		double[][] inverse = stains.getMatrixInverse();
+		return new double[]{inverse[0][stain-1], inverse[1][stain-1], inverse[2][stain-1]};
+	}
+	
+	private static void applyODTransforms(final int[] buf, final ColorDeconvolutionStains stains, final double[][] coefficients, final float[][] outputs, final int n) {
+		if (stains == null)
+			applyODTransforms(buf, 255, 255, 255, coefficients, outputs, n);
+		else
+			applyODTransforms(buf, stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue(), coefficients, outputs, n);
+	}
+	
+	/**
+	 * Compute one or more weighted sums of red, green and blue optical densities in a single pass through a packed RGB buffer.
+	 * 
+	 * @param buf packed RGB values
+	 * @param maxRed white value for the red channel
+	 * @param maxGreen white value for the green channel
+	 * @param maxBlue white value for the blue channel
+	 * @param coefficients weights for the red, green and blue optical densities, one array of length 3 per output
+	 * @param outputs arrays to store the results, each with the same length as buf
+	 * @param n number of outputs to compute
+	 */
+	static void applyODTransforms(final int[] buf, final double maxRed, final double maxGreen, final double maxBlue, final double[][] coefficients, final float[][] outputs, final int n) {
+		double[] odRed = ColorDeconvolutionHelper.makeODLUT(maxRed);
+		double[] odGreen = maxGreen == maxRed ? odRed : ColorDeconvolutionHelper.makeODLUT(maxGreen);
+		double[] odBlue = maxBlue == maxRed ? odRed : maxBlue == maxGreen ? odGreen : ColorDeconvolutionHelper.makeODLUT(maxBlue);
+		double[] weightsRed = new double[n];
+		double[] weightsGreen = new double[n];
+		double[] weightsBlue = new double[n];
+		for (int k = 0; k < n; k++) {
+			weightsRed[k] = coefficients[k][0];
+			weightsGreen[k] = coefficients[k][1];
+			weightsBlue[k] = coefficients[k][2];
+		}
+		if (buf.length < MIN_PARALLEL_PIXELS) {
+			applyODTransforms(buf, 0, buf.length, odRed, odGreen, odBlue, weightsRed, weightsGreen, weightsBlue, outputs, n);
+			return;
+		}
+		int nChunks = (buf.length + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			int from = c * PARALLEL_CHUNK_SIZE;
+			int to = Math.min(buf.length, from + PARALLEL_CHUNK_SIZE);
+			applyODTransforms(buf, from, to, odRed, odGreen, odBlue, weightsRed, weightsGreen, weightsBlue, outputs, n);
+		});
+	}
+	
+	private static void applyODTransforms(final int[] buf, final int from, final int to, 
+			final double[] odRed, final double[] odGreen, final double[] odBlue,
+			final double[] weightsRed, final double[] weightsGreen, final double[] weightsBlue,
+			final float[][] outputs, final int n) {
+		if (n == 1) {
+			float[] output = outputs[0];
+			double wr = weightsRed[0];
+			double wg = weightsGreen[0];
+			double wb = weightsBlue[0];
+			for (int i = from; i < to; i++) {
+				int c = buf[i];
+				output[i] = (float)(odRed[(c & 0xff0000) >> 16] * wr + odGreen[(c & 0xff00) >> 8] * wg + odBlue[c & 0xff] * wb);
+			}
+			return;
+		}
+		if (n == 3) {
+			// Common case of deconvolving all three stains
+			float[] output1 = outputs[0];
+			float[] output2 = outputs[1];
+			float[] output3 = outputs[2];
+			double wr1 = weightsRed[0], wg1 = weightsGreen[0], wb1 = weightsBlue[0];
+			double wr2 = weightsRed[1], wg2 = weightsGreen[1], wb2 = weightsBlue[1];
+			double wr3 = weightsRed[2], wg3 = weightsGreen[2], wb3 = weightsBlue[2];
+			for (int i = from; i < to; i++) {
+				int c = buf[i];
+				double r = odRed[(c & 0xff0000) >> 16];
+				double g = odGreen[(c & 0xff00) >> 8];
+				double b = odBlue[c & 0xff];
+				output1[i] = (float)(r * wr1 + g * wg1 + b * wb1);
+				output2[i] = (float)(r * wr2 + g * wg2 + b * wb2);
+				output3[i] = (float)(r * wr3 + g * wg3 + b * wb3);
+			}
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			int c = buf[i];
+			double r = odRed[(c & 0xff0000) >> 16];
+			double g = odGreen[(c & 0xff00) >> 8];
+			double b = odBlue[c & 0xff];
+			for (int k = 0; k < n; k++)
+				outputs[k][i] = (float)(r * weightsRed[k] + g * weightsGreen[k] + b * weightsBlue[k]);
+		}
+	}
+	
+	
 	/**
 	 * Calculate magnitude of rejection of pixel OD onto stain OD.
 	 * 
@@ -621,9 +725,9 @@ public class ColorTransformer {
 	
 	public static float deconvolve(int rgb, double[][] invMat, double[] od_lut_red, double[] od_lut_green, double[] od_lut_blue, int stain) {
 		// Extract RGB values & convert to optical densities using a lookup table
-		double r = od_lut[(rgb & 0xff0000) >> 16];
-		double g = od_lut[(rgb & 0xff00) >> 8];
-		double b = od_lut[rgb & 0xff];
+		double r = od_lut_red[(rgb & 0xff0000) >> 16];
+		double g = od_lut_green[(rgb & 0xff00) >> 8];
+		double b = od_lut_blue[rgb & 0xff];
 		// Apply deconvolution & store the results
 		return (float)(r * invMat[0][stain-1] + g * invMat[1][stain-1] + b * invMat[2][stain-1]);
 }
@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.images.stores;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * A second-level cache for image tiles that persists beyond the lifetime of an {@link ImageRegionStore}, 
+ * e.g. by storing decoded tiles on disk.
+ * <p>
+ * This is intended for tiles that are expensive to read, so that reopening an image (or analyzing it again) 
+ * doesn't require the same tiles to be decoded repeatedly.  Implementations are responsible for ensuring that 
+ * a tile is not returned if the image has changed since the tile was stored.
+ * <p>
+ * Implementations must be thread-safe.
+ * 
+ * @param <T>
+ */
+public interface PersistentTileCache<T> {
+	
+	/**
+	 * Get a cached tile, or null if no (valid) tile is available.
+	 * 
+	 * @param server
+	 * @param request
+	 * @return
+	 */
+	public T getTile(ImageServer<T> server, RegionRequest request);
+	
+	/**
+	 * Store a tile in the cache.  Implementations may choose not to store some tiles (e.g. if the image type is not supported).
+	 * 
+	 * @param server
+	 * @param request
+	 * @param img
+	 */
+	public void putTile(ImageServer<T> server, RegionRequest request, T img);
+	
+	/**
+	 * Close the cache, after which no further tiles should be stored.  
+	 * Any tiles that are still waiting to be stored should be written first.
+	 */
+	public void close();
+
+}
@@ -23,10 +23,14 @@
 
 package qupath.lib.images.stores;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.regions.RegionRequest;
@@ -34,114 +38,432 @@ import qupath.lib.regions.RegionRequest;
 /**
  * Map for storing image tiles, which automatically removes tiles that have not been accessed
  * in a while after it reaches a maximum number of tiles, or maximum memory consumption.
- * 
+ * <p>
  * The memory consumption estimate is based on the bit-depth of the image & number of pixels it contains
  * (other overhead is ignored).
+ * <p>
+ * To support many threads requesting tiles at the same time, the cache is split into segments (by request hash), 
+ * each with its own lock.  Each segment has a small 'window' in which new tiles are always stored, and a larger 
+ * 'main' area.  When a tile leaves the window it only displaces the least-recently-used tile in the main area 
+ * if it has been requested more often (according to an approximate frequency count).  This means that a long 
+ * sequential scan through an image (e.g. by a plugin) doesn't flush out the tiles that are being viewed repeatedly.
+ * <p>
+ * Null values may be stored to indicate empty regions.  These require (almost) no memory, but still count towards 
+ * the maximum number of entries - with a smaller weight than a tile, so that several empty regions take the place of one tile.
  * 
  * @author Pete Bankhead
  *
  */
 public class RegionCache<T> {
+	
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_CAPACITY = 32;
+	
+	// Proportion of each segment used for the admission window
+	private static final double WINDOW_PROPORTION = 0.1;
+	
+	// Number of empty (null) entries that count the same as one tile towards the maximum capacity
+	static final int EMPTY_ENTRIES_PER_TILE = 4;
 
-	private LinkedHashMap<RegionRequest, T> map;
 	private final SizeEstimator<T> sizeEstimator;
-	private int maxCapacity;
-	private int nonNullSize = 0;
-	private long maxMemoryBytes;
-	private long memoryBytes = 0; // Rely on synchronization to control access to map anyway, so no need for atomic...?
+	private final List<Segment> segments;
+	private final FrequencySketch sketch;
+	private final int maxCapacity;
+	private final long maxMemoryBytes;
+	
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder lockWaitCount = new LongAdder();
 
 	RegionCache(final SizeEstimator<T> sizeEstimator, final int maxCapacity, final long maxSizeBytes) {
 		this.maxMemoryBytes = maxSizeBytes;
 		this.sizeEstimator = sizeEstimator;
 		this.maxCapacity = maxCapacity;
-		map = new LinkedHashMap<RegionRequest, T>(maxCapacity+1, 2f, true) {
-
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected synchronized boolean removeEldestEntry(Map.Entry<RegionRequest, T> eldest) {
-				// Remove if the map is full (in terms of numbers), or occupying too much memory
-				boolean doRemove = nonNullSize >= maxCapacity || memoryBytes > maxMemoryBytes;
-				if (doRemove) {
-					memoryBytes = memoryBytes - sizeEstimator.getApproxImageSize(eldest.getValue());
-					if (eldest.getValue() != null)
-						nonNullSize--;
-//					if (getApproxImageSize(eldest.getValue()) > 10784000)
-//											logger.info(String.format("REMOVED! %.2f MB remaining, %d images", memoryBytes/(1024. * 1024.), size()));
-				}
-				return doRemove;
-			}
-
-		}; // Should never have to resize the cache, so loadfactor is > 1
-		//			logger.info("Max capacity: " + maxCapacity);
-		//			logger.info("Max size: " + maxSizeBytes);
+		// Use as many segments as possible, while ensuring each can still hold a reasonable number of tiles
+		int nSegments = 1;
+		while (nSegments < MAX_SEGMENTS && maxCapacity / (nSegments * 2) >= MIN_SEGMENT_CAPACITY)
+			nSegments *= 2;
+		segments = new ArrayList<>(nSegments);
+		for (int i = 0; i < nSegments; i++)
+			segments.add(new Segment(Math.max(1, maxCapacity / nSegments), maxSizeBytes / nSegments));
+		this.sketch = new FrequencySketch(maxCapacity);
 	}
 
 	RegionCache(final SizeEstimator<T> sizeEstimator, long maxSizeBytes) {
 		this(sizeEstimator, Math.max(200, (int)(maxSizeBytes / (256 * 256 * 4) + 10)), maxSizeBytes);
 	}
+	
+	private Segment getSegment(final RegionRequest request) {
+		return segments.get(FrequencySketch.spread(request.hashCode()) & (segments.size() - 1));
+	}
 
-	synchronized void clearCacheForServer(ImageServer<?> server) {
-		Iterator<Entry<RegionRequest, T>> iter = map.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<RegionRequest, T> entry = iter.next();
-			if (entry.getKey().getPath().equals(server.getPath())) {
-				memoryBytes -= sizeEstimator.getApproxImageSize(entry.getValue());
-				if (entry.getValue() != null)
-					nonNullSize--;
-				iter.remove();
+	void clearCacheForServer(ImageServer<?> server) {
+		String path = server.getPath();
+		for (Segment segment : segments) {
+			segment.lock();
+			try {
+				segment.removeAll(segment.index.getRequestsForPath(path));
+			} finally {
+				segment.lock.unlock();
 			}
 		}
 	}
 	
-	
-	synchronized void clearCacheForRequestOverlap(RegionRequest request) {
-		Iterator<Entry<RegionRequest, T>> iter = map.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<RegionRequest, T> entry = iter.next();
-			if (request.overlapsRequest(entry.getKey())) {
-				memoryBytes -= sizeEstimator.getApproxImageSize(entry.getValue());
-				if (entry.getValue() != null)
-					nonNullSize--;
-				iter.remove();
+	/**
+	 * Remove all cached regions that overlap the specified request.
+	 * <p>
+	 * This uses a spatial index, so the time required depends upon the number of tiles affected rather than 
+	 * the total number of tiles in the cache.
+	 * 
+	 * @param request
+	 */
+	void clearCacheForRequestOverlap(RegionRequest request) {
+		for (Segment segment : segments) {
+			segment.lock();
+			try {
+				segment.removeAll(segment.index.getOverlapping(request));
+			} finally {
+				segment.lock.unlock();
 			}
 		}
 	}
 
-	synchronized T put(RegionRequest request, T img) {
-		// Update the memory requirements
-		T imgPrevious = map.put(request, img);
-		if (img != null) {
-			memoryBytes += sizeEstimator.getApproxImageSize(img);
-			nonNullSize++;
+	T put(RegionRequest request, T img) {
+		Segment segment = getSegment(request);
+		segment.lock();
+		try {
+			return segment.put(request, img);
+		} finally {
+			segment.lock.unlock();
 		}
-		if (imgPrevious != null) {
-			memoryBytes -= sizeEstimator.getApproxImageSize(imgPrevious);
-			nonNullSize--;
+	}
+	
+	public boolean containsKey(RegionRequest request) {
+		Segment segment = getSegment(request);
+		segment.lock();
+		try {
+			return segment.window.containsKey(request) || segment.main.containsKey(request);
+		} finally {
+			segment.lock.unlock();
 		}
-//		else
-//			System.out.println("PUTTING NEW: " + nonNullSize + ", " + request + ", " + Thread.currentThread());
-		return imgPrevious;
+	}
+
+	T get(RegionRequest request) {
+		sketch.increment(request.hashCode());
+		Segment segment = getSegment(request);
+		T img;
+		segment.lock();
+		try {
+			img = segment.window.get(request);
+			if (img == null)
+				img = segment.main.get(request);
+		} finally {
+			segment.lock.unlock();
+		}
+		if (img == null)
+			missCount.increment();
+		else
+			hitCount.increment();
+		return img;
+	}
+
+	void clear() {
+		for (Segment segment : segments) {
+			segment.lock();
+			try {
+				segment.clear();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Number of entries in the cache (including those with null values).
+	 * 
+	 * @return
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments)
+			size += segment.size;
+		return size;
+	}
+	
+	/**
+	 * Approximate memory currently used by the cached tiles, according to the {@link SizeEstimator}.
+	 * 
+	 * @return
+	 */
+	public long getMemoryBytes() {
+		long bytes = 0;
+		for (Segment segment : segments)
+			bytes += segment.memoryBytes;
+		return bytes;
+	}
+	
+	/**
+	 * Number of calls to get that returned a (non-null) tile.
+	 * 
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * Number of calls to get that did not return a (non-null) tile.
+	 * 
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.sum();
 	}
 	
-	public synchronized boolean containsKey(RegionRequest request) {
-		return map.containsKey(request);
+	/**
+	 * Number of entries removed to keep the cache within its limits, including those that were not admitted.
+	 * 
+	 * @return
+	 */
+	public long getEvictionCount() {
+		return evictionCount.sum();
 	}
 
-	synchronized T get(RegionRequest request) {
-		return map.get(request);
+	/**
+	 * Number of entries discarded after leaving the admission window, because they were requested 
+	 * less often than the entry they would have replaced.
+	 * 
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
 	}
 
-	synchronized void clear() {
-		memoryBytes = 0;
-		nonNullSize = 0;
-		map.clear();
+	/**
+	 * Number of times a thread had to wait to acquire the lock for a segment.
+	 * 
+	 * @return
+	 */
+	public long getLockWaitCount() {
+		return lockWaitCount.sum();
 	}
 	
 	
 	@Override
 	public String toString() {
-		return String.format("Cache: %d (%d/%d non-null), %s", map.size(), nonNullSize, maxCapacity, map.toString());
+		return String.format("Cache: %d entries (max %d), %.1f/%.1f MB, %d segments, hits: %d, misses: %d, evictions: %d, rejected: %d, lock waits: %d",
+				size(), maxCapacity, getMemoryBytes()/(1024.*1024.), maxMemoryBytes/(1024.*1024.), segments.size(),
+				getHitCount(), getMissCount(), getEvictionCount(), getRejectedCount(), getLockWaitCount());
+	}
+	
+	
+	
+	/**
+	 * A single segment of the cache, which must be locked before use.
+	 * <p>
+	 * Capacity is measured by weight: a tile has a weight of {@link #EMPTY_ENTRIES_PER_TILE}, 
+	 * while a null value (indicating an empty region) has a weight of 1.
+	 */
+	private class Segment {
+		
+		private final ReentrantLock lock = new ReentrantLock();
+		
+		private final LinkedHashMap<RegionRequest, T> window = new LinkedHashMap<>(16, 0.75f, true);
+		private final LinkedHashMap<RegionRequest, T> main = new LinkedHashMap<>(16, 0.75f, true);
+		
+		// Spatial index of all the requests in the window & main area
+		private final RegionRequestIndex index = new RegionRequestIndex();
+		
+		private final int maxWindowWeight, maxMainWeight;
+		private final long maxWindowBytes, maxMainBytes;
+		
+		private int windowWeight = 0, mainWeight = 0;
+		private long windowBytes = 0, mainBytes = 0;
+		
+		// Only written with the lock held, but may be read without it for statistics
+		private volatile int size = 0;
+		private volatile long memoryBytes = 0;
+		
+		Segment(final int maxCapacity, final long maxBytes) {
+			int maxWindowCapacity = Math.max(1, (int)(maxCapacity * WINDOW_PROPORTION));
+			int maxMainCapacity = Math.max(1, maxCapacity - maxWindowCapacity);
+			maxWindowWeight = maxWindowCapacity * EMPTY_ENTRIES_PER_TILE;
+			maxMainWeight = maxMainCapacity * EMPTY_ENTRIES_PER_TILE;
+			maxWindowBytes = (long)(maxBytes * WINDOW_PROPORTION);
+			maxMainBytes = maxBytes - maxWindowBytes;
+		}
+		
+		void lock() {
+			if (!lock.tryLock()) {
+				lockWaitCount.increment();
+				lock.lock();
+			}
+		}
+		
+		private int getWeight(final T img) {
+			return img == null ? 1 : EMPTY_ENTRIES_PER_TILE;
+		}
+		
+		T put(final RegionRequest request, final T img) {
+			T imgPrevious = remove(request);
+			window.put(request, img);
+			index.add(request);
+			long bytes = sizeEstimator.getApproxImageSize(img);
+			windowBytes += bytes;
+			windowWeight += getWeight(img);
+			
+			// Move the oldest entries out of the window, always keeping the newest
+			while (window.size() > 1 && (windowWeight > maxWindowWeight || windowBytes > maxWindowBytes)) {
+				Iterator<Entry<RegionRequest, T>> iter = window.entrySet().iterator();
+				Entry<RegionRequest, T> candidate = iter.next();
+				iter.remove();
+				long candidateBytes = sizeEstimator.getApproxImageSize(candidate.getValue());
+				windowBytes -= candidateBytes;
+				windowWeight -= getWeight(candidate.getValue());
+				admit(candidate.getKey(), candidate.getValue(), candidateBytes);
+			}
+			updateSummary();
+			return imgPrevious;
+		}
+		
+		/**
+		 * Try to add an entry leaving the window to the main area, displacing less frequently-used entries if necessary.
+		 * <p>
+		 * The same check applies to empty regions as to tiles, although an empty region has a smaller weight.
+		 */
+		private void admit(final RegionRequest request, final T img, final long bytes) {
+			int weight = getWeight(img);
+			int frequency = sketch.frequency(request.hashCode());
+			Iterator<Entry<RegionRequest, T>> iter = main.entrySet().iterator();
+			while (iter.hasNext() && (mainWeight + weight > maxMainWeight || mainBytes + bytes > maxMainBytes)) {
+				Entry<RegionRequest, T> victim = iter.next();
+				if (sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+					index.remove(request);
+					evictionCount.increment();
+					rejectedCount.increment();
+					return;
+				}
+				iter.remove();
+				index.remove(victim.getKey());
+				mainBytes -= sizeEstimator.getApproxImageSize(victim.getValue());
+				mainWeight -= getWeight(victim.getValue());
+				evictionCount.increment();
+			}
+			main.put(request, img);
+			mainBytes += bytes;
+			mainWeight += weight;
+		}
+		
+		private T remove(final RegionRequest request) {
+			index.remove(request);
+			if (window.containsKey(request)) {
+				T img = window.remove(request);
+				windowBytes -= sizeEstimator.getApproxImageSize(img);
+				windowWeight -= getWeight(img);
+				return img;
+			}
+			if (main.containsKey(request)) {
+				T img = main.remove(request);
+				mainBytes -= sizeEstimator.getApproxImageSize(img);
+				mainWeight -= getWeight(img);
+				return img;
+			}
+			return null;
+		}
+		
+		void removeAll(final Collection<RegionRequest> requests) {
+			for (RegionRequest request : requests)
+				remove(request);
+			updateSummary();
+		}
+		
+		void clear() {
+			window.clear();
+			main.clear();
+			index.clear();
+			windowWeight = 0;
+			mainWeight = 0;
+			windowBytes = 0;
+			mainBytes = 0;
+			updateSummary();
+		}
+		
+		private void updateSummary() {
+			size = window.size() + main.size();
+			memoryBytes = windowBytes + mainBytes;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * Approximate frequency counts for recently-requested keys, using a count-min sketch with small counters 
+	 * that are periodically halved (so that old popularity fades).
+	 * <p>
+	 * Updates are not synchronized; occasional lost increments are acceptable, since the counts are only 
+	 * used to decide which of two tiles is more worth keeping.
+	 */
+	static class FrequencySketch {
+		
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = {0x97cb3127, 0xbe2b4fd1, 0x5c6f8ba5, 0x2d358dcb};
+		
+		private final int[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+		
+		FrequencySketch(final int maxEntries) {
+			// Use plenty of counters per entry, to keep collisions (& overestimates) low
+			int size = Integer.highestOneBit(Math.max(64, Math.min(maxEntries, 1 << 18)) * 16 - 1) << 1;
+			table = new int[size];
+			mask = size - 1;
+			sampleSize = 10 * Math.max(64, maxEntries);
+		}
+		
+		static int spread(int h) {
+			h ^= (h >>> 17);
+			h *= 0xed5ad4bb;
+			h ^= (h >>> 11);
+			h *= 0xac4c1b51;
+			h ^= (h >>> 15);
+			return h;
+		}
+		
+		private int index(final int hash, final int i) {
+			int h = spread(hash + SEEDS[i]);
+			return h & mask;
+		}
+		
+		void increment(final int hash) {
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int ind = index(hash, i);
+				if (table[ind] < MAX_COUNT) {
+					table[ind]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize)
+				reset();
+		}
+		
+		int frequency(final int hash) {
+			int frequency = MAX_COUNT;
+			for (int i = 0; i < SEEDS.length; i++)
+				frequency = Math.min(frequency, table[index(hash, i)]);
+			return frequency;
+		}
+		
+		private void reset() {
+			for (int i = 0; i < table.length; i++)
+				table[i] >>>= 1;
+			additions /= 2;
+		}
+		
 	}
 	
 
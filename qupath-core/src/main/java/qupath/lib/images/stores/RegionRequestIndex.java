@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.images.stores;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Spatial index for region requests, used to find cached tiles that overlap a region without checking every tile.
+ * <p>
+ * Requests are grouped by server path and downsample; within each group they are stored in a grid with a fixed 
+ * cell size of {@link #CELL_SIZE} pixels at that downsample (so that the grid doesn't depend upon whichever request 
+ * happened to be added first).
+ * <p>
+ * This is not thread-safe; synchronization is the responsibility of the caller.
+ */
+class RegionRequestIndex {
+	
+	/**
+	 * Width and height of each grid cell, in pixels at the downsample of the requests it contains.
+	 */
+	static final int CELL_SIZE = 256;
+	
+	private Map<String, Map<Double, RequestGrid>> map = new HashMap<>();
+	
+	void add(final RegionRequest request) {
+		Map<Double, RequestGrid> grids = map.computeIfAbsent(request.getPath(), p -> new HashMap<>());
+		RequestGrid grid = grids.computeIfAbsent(request.getDownsample(), d -> {
+			int cellSize = (int)Math.ceil(CELL_SIZE * Math.max(1.0, d));
+			return new RequestGrid(cellSize, cellSize);
+		});
+		grid.add(request);
+	}
+	
+	void remove(final RegionRequest request) {
+		Map<Double, RequestGrid> grids = map.get(request.getPath());
+		if (grids == null)
+			return;
+		RequestGrid grid = grids.get(request.getDownsample());
+		if (grid == null)
+			return;
+		grid.remove(request);
+		if (grid.isEmpty()) {
+			grids.remove(request.getDownsample());
+			if (grids.isEmpty())
+				map.remove(request.getPath());
+		}
+	}
+	
+	/**
+	 * Get all the indexed requests that overlap the specified request, according to {@link RegionRequest#overlapsRequest(RegionRequest)}.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	List<RegionRequest> getOverlapping(final RegionRequest request) {
+		Map<Double, RequestGrid> grids = map.get(request.getPath());
+		if (grids == null)
+			return Collections.emptyList();
+		List<RegionRequest> list = new ArrayList<>();
+		for (RequestGrid grid : grids.values())
+			grid.addOverlapping(request, list);
+		return list;
+	}
+	
+	/**
+	 * Get all the indexed requests for a specified server path.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	List<RegionRequest> getRequestsForPath(final String path) {
+		Map<Double, RequestGrid> grids = map.get(path);
+		if (grids == null)
+			return Collections.emptyList();
+		List<RegionRequest> list = new ArrayList<>();
+		for (RequestGrid grid : grids.values())
+			list.addAll(grid.requests);
+		return list;
+	}
+	
+	void clear() {
+		map.clear();
+	}
+	
+	
+	
+	private static class RequestGrid {
+		
+		private final int cellWidth, cellHeight;
+		private final Set<RegionRequest> requests = new LinkedHashSet<>();
+		private final Map<Long, List<RegionRequest>> cells = new HashMap<>();
+		
+		RequestGrid(final int cellWidth, final int cellHeight) {
+			this.cellWidth = Math.max(1, cellWidth);
+			this.cellHeight = Math.max(1, cellHeight);
+		}
+		
+		private static long getKey(final int cx, final int cy) {
+			return ((long)cx << 32) | (cy & 0xffffffffL);
+		}
+		
+		private int cellX(final int x) {
+			return Math.floorDiv(x, cellWidth);
+		}
+
+		private int cellY(final int y) {
+			return Math.floorDiv(y, cellHeight);
+		}
+		
+		boolean isEmpty() {
+			return requests.isEmpty();
+		}
+		
+		void add(final RegionRequest request) {
+			if (!requests.add(request))
+				return;
+			for (Long key : getCellKeys(request.getX(), request.getY(), request.getWidth(), request.getHeight()))
+				cells.computeIfAbsent(key, k -> new ArrayList<>(2)).add(request);
+		}
+		
+		void remove(final RegionRequest request) {
+			if (!requests.remove(request))
+				return;
+			for (Long key : getCellKeys(request.getX(), request.getY(), request.getWidth(), request.getHeight())) {
+				List<RegionRequest> list = cells.get(key);
+				if (list == null)
+					continue;
+				list.remove(request);
+				if (list.isEmpty())
+					cells.remove(key);
+			}
+		}
+		
+		private Collection<Long> getCellKeys(final int x, final int y, final int width, final int height) {
+			int cx1 = cellX(x);
+			int cy1 = cellY(y);
+			int cx2 = cellX(x + Math.max(width, 1) - 1);
+			int cy2 = cellY(y + Math.max(height, 1) - 1);
+			List<Long> keys = new ArrayList<>((cx2 - cx1 + 1) * (cy2 - cy1 + 1));
+			for (int cy = cy1; cy <= cy2; cy++) {
+				for (int cx = cx1; cx <= cx2; cx++)
+					keys.add(getKey(cx, cy));
+			}
+			return keys;
+		}
+		
+		void addOverlapping(final RegionRequest request, final List<RegionRequest> list) {
+			long nCells = ((long)cellX(request.getX() + request.getWidth() - 1) - cellX(request.getX()) + 1) * 
+					((long)cellY(request.getY() + request.getHeight() - 1) - cellY(request.getY()) + 1);
+			// For large regions it's quicker to check everything
+			if (nCells >= cells.size()) {
+				for (RegionRequest r : requests) {
+					if (request.overlapsRequest(r))
+						list.add(r);
+				}
+				return;
+			}
+			// Requests can occupy multiple cells, so avoid duplicates
+			Set<RegionRequest> set = new LinkedHashSet<>();
+			for (Long key : getCellKeys(request.getX(), request.getY(), request.getWidth(), request.getHeight())) {
+				List<RegionRequest> cellList = cells.get(key);
+				if (cellList == null)
+					continue;
+				for (RegionRequest r : cellList) {
+					if (request.overlapsRequest(r))
+						set.add(r);
+				}
+			}
+			list.addAll(set);
+		}
+		
+	}
+
+}
@@ -39,10 +39,14 @@ public class RegionRequest extends ImageRegion {
 	
 	private static DecimalFormat df = new DecimalFormat("#.##");
 	
+	// Paths are interned, so they can be compared by reference
 	private final String path;
 	
 	private final double downsample;
 	
+	// Requests are used heavily as keys in maps, so the hash code is computed once
+	private final int hash;
+	
 	@Override
 	public String toString() {
 		String prefix = path;
@@ -54,6 +58,7 @@ public class RegionRequest extends ImageRegion {
 		super(x, y, width, height, z, t);
 		this.path = path.intern();
 		this.downsample = downsample;
+		this.hash = computeHashCode();
 	}
 
 	public static RegionRequest createInstance(String path, double downsample, ROI pathROI) {
@@ -88,10 +93,7 @@ public class RegionRequest extends ImageRegion {
 	 * @return
 	 */
 	public boolean overlapsRequest(RegionRequest request) {
-		if (path.equals(request.getPath()))
-			return path.equals(request.getPath()) &&
-					super.intersects(request);
-		return false;
+		return path == request.path && super.intersects(request);
 	}
 
 	public String getPath() {
@@ -108,6 +110,10 @@ public class RegionRequest extends ImageRegion {
 	 */
 	@Override
 	public int hashCode() {
+		return hash;
+	}
+	
+	private int computeHashCode() {
 		final int prime = 31;
 		int result = super.hashCode();
 		long temp;
@@ -125,20 +131,19 @@ public class RegionRequest extends ImageRegion {
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
-		if (!super.equals(obj))
-			return false;
-		if (getClass() != obj.getClass())
+		if (obj == null || getClass() != obj.getClass())
 			return false;
 		RegionRequest other = (RegionRequest) obj;
+		// Check the (cached) hash code first, since this is fast & most comparisons will fail
+		if (hash != other.hash)
+			return false;
+		if (!super.equals(obj))
+			return false;
 		if (Double.doubleToLongBits(downsample) != Double
 				.doubleToLongBits(other.downsample))
 			return false;
-		if (path == null) {
-			if (other.path != null)
-				return false;
-		} else if (!path.equals(other.path))
-			return false;
-		return true;
+		// Paths are interned, so can be compared by reference
+		return path == other.path;
 	}
 	
 }
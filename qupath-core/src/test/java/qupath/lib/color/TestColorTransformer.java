@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.color;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import qupath.lib.color.ColorDeconvolutionStains.DEFAULT_CD_STAINS;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+import qupath.lib.common.ColorTools;
+
+public class TestColorTransformer {
+	
+	private static final String BENCHMARK_PROPERTY = "qupath.benchmark";
+	
+	private static final ColorTransformMethod[] OD_METHODS = {
+			ColorTransformMethod.Hematoxylin_H_DAB, ColorTransformMethod.DAB_H_DAB, ColorTransformMethod.Stain_3,
+			ColorTransformMethod.Red_OD, ColorTransformMethod.Green_OD, ColorTransformMethod.Blue_OD,
+			ColorTransformMethod.Optical_density_sum
+	};
+	
+	@Test
+	public void test_deconvolution() {
+		ColorDeconvolutionStains stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DEFAULT_CD_STAINS.H_DAB)
+				.changeMaxValues(240, 235, 250);
+		// Use a buffer large enough to be processed in parallel
+		int[] rgb = createRGB(1000 * 1000, 1L);
+		
+		double[][] inverse = stains.getMatrixInverse();
+		float[][] pixels = ColorTransformer.getTransformedPixels(rgb, OD_METHODS, null, stains);
+		for (int i = 0; i < rgb.length; i += 97) {
+			int c = rgb[i];
+			double r = ColorDeconvolutionHelper.makeOD(ColorTools.red(c), stains.getMaxRed());
+			double g = ColorDeconvolutionHelper.makeOD(ColorTools.green(c), stains.getMaxGreen());
+			double b = ColorDeconvolutionHelper.makeOD(ColorTools.blue(c), stains.getMaxBlue());
+			for (int s = 0; s < 3; s++)
+				assertEquals((float)(r * inverse[0][s] + g * inverse[1][s] + b * inverse[2][s]), pixels[s][i], 0f);
+			assertEquals((float)r, pixels[3][i], 0f);
+			assertEquals((float)g, pixels[4][i], 0f);
+			assertEquals((float)b, pixels[5][i], 0f);
+			assertEquals((float)(r + g + b), pixels[6][i], 0f);
+		}
+		
+		// Requesting transforms one at a time should give the same result
+		for (int k = 0; k < OD_METHODS.length; k++)
+			assertArrayEquals(pixels[k], ColorTransformer.getTransformedPixels(rgb, OD_METHODS[k], null, stains), 0f);
+		assertArrayEquals(pixels[0], ColorDeconvolution.colorDeconvolveRGBArray(rgb, stains, 0, null), 0f);
+		
+		// Other transforms should be unaffected by being requested alongside color deconvolution
+		float[][] mixed = ColorTransformer.getTransformedPixels(rgb, 
+				new ColorTransformMethod[]{ColorTransformMethod.Red, ColorTransformMethod.DAB_H_DAB, ColorTransformMethod.Hue}, null, stains);
+		assertArrayEquals(ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Red, null, stains), mixed[0], 0f);
+		assertArrayEquals(pixels[1], mixed[1], 0f);
+		assertArrayEquals(ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Hue, null, stains), mixed[2], 0f);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void test_invalidStains() {
+		ColorDeconvolutionStains stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DEFAULT_CD_STAINS.H_E);
+		ColorTransformer.getTransformedPixels(createRGB(100, 2L), 
+				new ColorTransformMethod[]{ColorTransformMethod.Hematoxylin_H_DAB}, null, stains);
+	}
+	
+	/**
+	 * This only runs if the system property {@code qupath.benchmark} is true, 
+	 * e.g. {@code mvn test -Dqupath.benchmark=true}.
+	 */
+	@Test
+	public void benchmark_deconvolution() {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+		
+		ColorDeconvolutionStains stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DEFAULT_CD_STAINS.H_DAB);
+		int[] rgb = createRGB(2048 * 2048, 3L);
+		ColorTransformMethod[] methods = {ColorTransformMethod.Stain_1, ColorTransformMethod.Stain_2, ColorTransformMethod.Stain_3};
+		int nRepeats = 5;
+		
+		float[][] pixels = new float[methods.length][];
+		long startTime = System.nanoTime();
+		for (int r = 0; r < nRepeats; r++) {
+			for (int k = 0; k < methods.length; k++)
+				pixels[k] = ColorTransformer.getTransformedPixels(rgb, methods[k], pixels[k], stains);
+		}
+		long timeSeparate = System.nanoTime() - startTime;
+		
+		startTime = System.nanoTime();
+		for (int r = 0; r < nRepeats; r++)
+			pixels = ColorTransformer.getTransformedPixels(rgb, methods, pixels, stains);
+		long timeFused = System.nanoTime() - startTime;
+		
+		double megapixels = rgb.length * nRepeats / 1e6;
+		System.out.println(String.format("Deconvolving 3 stains: %.1f MP/s separately, %.1f MP/s combined", 
+				megapixels / (timeSeparate / 1e9), megapixels / (timeFused / 1e9)));
+	}
+	
+	
+	private static int[] createRGB(final int n, final long seed) {
+		Random rand = new Random(seed);
+		int[] rgb = new int[n];
+		for (int i = 0; i < n; i++)
+			rgb[i] = rand.nextInt() | 0xff000000;
+		return rgb;
+	}
+
+}
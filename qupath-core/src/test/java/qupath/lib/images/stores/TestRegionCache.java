@@ -0,0 +1,189 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+package qupath.lib.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+public class TestRegionCache {
+	
+	private static final long TILE_BYTES = 1000;
+	
+	private static RegionRequest createRequest(String path, int x) {
+		return RegionRequest.createInstance(path, 1, x * 256, 0, 256, 256, 0, 0);
+	}
+	
+	private static RegionCache<byte[]> createCache(int maxCapacity) {
+		return new RegionCache<>(v -> v == null ? 0 : v.length, maxCapacity, maxCapacity * TILE_BYTES);
+	}
+	
+	@Test
+	public void test_limits() {
+		RegionCache<byte[]> cache = createCache(200);
+		for (int i = 0; i < 1000; i++)
+			cache.put(createRequest("image", i), new byte[(int)TILE_BYTES]);
+		assertTrue(cache.size() <= 200);
+		assertTrue(cache.getMemoryBytes() <= 200 * TILE_BYTES);
+		assertTrue(cache.getEvictionCount() >= 800);
+		
+		// Most recently added tile should always be available
+		assertNotNull(cache.get(createRequest("image", 999)));
+		
+		int sizeBefore = cache.size();
+		cache.clearCacheForRequestOverlap(createRequest("image", 999));
+		assertEquals(sizeBefore - 1, cache.size());
+		assertFalse(cache.containsKey(createRequest("image", 999)));
+		
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMemoryBytes());
+	}
+	
+	@Test
+	public void test_nullValues() {
+		RegionCache<byte[]> cache = createCache(200);
+		RegionRequest request = createRequest("image", 0);
+		cache.put(request, null);
+		assertTrue(cache.containsKey(request));
+		assertNull(cache.get(request));
+	}
+
+	@Test
+	public void test_emptyRegionsBounded() {
+		RegionCache<byte[]> cache = createCache(200);
+		// Working set that is accessed repeatedly
+		List<RegionRequest> workingSet = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			RegionRequest request = createRequest("viewer", i);
+			workingSet.add(request);
+			cache.get(request);
+			cache.put(request, new byte[(int)TILE_BYTES]);
+		}
+		for (int k = 0; k < 5; k++)
+			workingSet.forEach(r -> cache.get(r));
+		
+		// Lots of empty regions, as for a sparse slide
+		for (int i = 0; i < 2000; i++) {
+			RegionRequest request = createRequest("empty", i);
+			cache.get(request);
+			cache.put(request, null);
+		}
+		assertTrue("Cache contains " + cache.size() + " entries", cache.size() <= 200 * RegionCache.EMPTY_ENTRIES_PER_TILE);
+		assertTrue(cache.getEvictionCount() >= 2000 - 200 * RegionCache.EMPTY_ENTRIES_PER_TILE);
+		
+		// Empty regions go through the same admission check as tiles
+		long nRetained = workingSet.stream().filter(r -> cache.containsKey(r)).count();
+		assertTrue("Only " + nRetained + " working set tiles retained", nRetained >= 45);
+		assertTrue(cache.getRejectedCount() > 0);
+		
+		// An empty cache can hold more empty regions than tiles
+		cache.clear();
+		for (int i = 0; i < 400; i++)
+			cache.put(createRequest("empty", i), null);
+		assertTrue(cache.size() > 200);
+	}
+
+	@Test
+	public void test_scanResistance() {
+		RegionCache<byte[]> cache = createCache(200);
+		// Working set that is accessed repeatedly
+		List<RegionRequest> workingSet = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			RegionRequest request = createRequest("viewer", i);
+			workingSet.add(request);
+			cache.get(request);
+			cache.put(request, new byte[(int)TILE_BYTES]);
+		}
+		for (int k = 0; k < 5; k++)
+			workingSet.forEach(r -> cache.get(r));
+		
+		// A long scan through other tiles, each accessed only once
+		for (int i = 0; i < 2000; i++) {
+			RegionRequest request = createRequest("scan", i);
+			cache.get(request);
+			cache.put(request, new byte[(int)TILE_BYTES]);
+		}
+		
+		long nRetained = workingSet.stream().filter(r -> cache.containsKey(r)).count();
+		assertTrue("Only " + nRetained + " working set tiles retained", nRetained >= 45);
+		assertTrue(cache.getRejectedCount() > 0);
+	}
+
+	@Test
+	public void test_clearOverlap() {
+		RegionCache<byte[]> cache = createCache(10000);
+		List<RegionRequest> requests = new ArrayList<>();
+		for (double downsample : new double[]{1, 4, 16}) {
+			int tileSize = (int)(256 * downsample);
+			for (int y = 0; y < 8192; y += tileSize) {
+				for (int x = 0; x < 8192; x += tileSize) {
+					for (String path : new String[]{"image", "other"}) {
+						RegionRequest request = RegionRequest.createInstance(path, downsample, x, y, tileSize, tileSize, 0, 0);
+						requests.add(request);
+						cache.put(request, new byte[1]);
+					}
+				}
+			}
+		}
+		assertEquals(requests.size(), cache.size());
+		Random rand = new Random(1L);
+		for (int i = 0; i < 50; i++) {
+			RegionRequest region = RegionRequest.createInstance("image", 1,
+					rand.nextInt(9000) - 500, rand.nextInt(9000) - 500, rand.nextInt(2000) + 1, rand.nextInt(2000) + 1, 0, 0);
+			cache.clearCacheForRequestOverlap(region);
+			for (RegionRequest request : requests) {
+				if (region.overlapsRequest(request))
+					assertFalse(cache.containsKey(request));
+			}
+			requests.removeIf(r -> region.overlapsRequest(r));
+			assertEquals(requests.size(), cache.size());
+		}
+		// Everything for the other image should remain
+		assertTrue(requests.stream().allMatch(r -> cache.containsKey(r)));
+	}
+
+	@Test
+	public void test_concurrentAccess() {
+		RegionCache<byte[]> cache = createCache(400);
+		IntStream.range(0, 20000).parallel().forEach(i -> {
+			RegionRequest request = createRequest("image", i % 1000);
+			if (cache.get(request) == null)
+				cache.put(request, new byte[(int)TILE_BYTES]);
+		});
+		assertTrue(cache.size() <= 400);
+		assertEquals(cache.size() * TILE_BYTES, cache.getMemoryBytes());
+		assertEquals(20000, cache.getHitCount() + cache.getMissCount());
+	}
+	
+}
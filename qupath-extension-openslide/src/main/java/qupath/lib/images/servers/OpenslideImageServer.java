@@ -28,12 +28,20 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.openslide.AssociatedImage;
 import org.openslide.OpenSlide;
@@ -65,6 +73,45 @@ public class OpenslideImageServer extends AbstractImageServer<BufferedImage> {
 	private OpenSlide osr;
 	private Color backgroundColor;
 	
+	/**
+	 * Default maximum number of OpenSlide handles to open for each slide.
+	 */
+	private static int defaultMaxHandles = Math.max(1, Integer.getInteger("qupath.openslide.handles", 
+			Math.min(4, Runtime.getRuntime().availableProcessors())));
+	
+	/**
+	 * Maximum number of OpenSlide handles to open for this slide.
+	 */
+	private final int maxHandles;
+	
+	/**
+	 * All handles that have been opened for this slide (including osr).
+	 */
+	private final List<OpenSlide> allHandles = new ArrayList<>();
+	
+	/**
+	 * Handles that are not currently in use for reading.
+	 */
+	private final BlockingQueue<OpenSlide> availableHandles;
+	
+	private boolean isClosed = false;
+	
+	/**
+	 * Color model used to wrap pooled pixel buffers when a region needs to be rescaled.
+	 */
+	final private static DirectColorModel colorModelRGB = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+	
+	/**
+	 * Maximum number of buffers to retain for reuse.
+	 */
+	final private static int MAX_POOLED_BUFFERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	
+	/**
+	 * Pixel buffers used for reading pyramid levels before rescaling.
+	 * These never escape the server, so can safely be reused.
+	 */
+	final private Queue<int[]> bufferPool = new ConcurrentLinkedQueue<>();
+	
 	
 	private double readNumericPropertyOrDefault(Map<String, String> properties, String name, double defaultValue) {
 		// Try to read a tile size
@@ -82,13 +129,40 @@ public class OpenslideImageServer extends AbstractImageServer<BufferedImage> {
 	}
 
 
+	/**
+	 * Create a server using the default maximum number of OpenSlide handles.
+	 * 
+	 * @param path
+	 * @throws IOException
+	 * 
+	 * @see #getDefaultMaxHandles()
+	 */
 	public OpenslideImageServer(String path) throws IOException {
+		this(path, getDefaultMaxHandles());
+	}
+	
+	/**
+	 * Create a server that may open up to maxHandles OpenSlide handles for the slide.
+	 * <p>
+	 * Additional handles are opened lazily whenever all existing handles are busy, 
+	 * so that multiple threads can decode tiles in parallel.
+	 * 
+	 * @param path
+	 * @param maxHandles
+	 * @throws IOException
+	 */
+	public OpenslideImageServer(String path, int maxHandles) throws IOException {
+		
+		this.maxHandles = Math.max(1, maxHandles);
+		this.availableHandles = new ArrayBlockingQueue<>(this.maxHandles);
 
 		// Ensure the garbage collector has run - otherwise any previous attempts to load the required native library
 		// from different classloader are likely to cause an error (although upon first further investigation it seems this doesn't really solve the problem...)
 		File file = new File(path);
 		System.gc();
 		osr = new OpenSlide(file);
+		allHandles.add(osr);
+		availableHandles.add(osr);
 
 		// Parse the parameters
 		int width = (int)osr.getLevel0Width();
@@ -148,6 +222,81 @@ public class OpenslideImageServer extends AbstractImageServer<BufferedImage> {
 
 	}
 	
+	/**
+	 * Get the default maximum number of OpenSlide handles that will be opened for each slide.
+	 * <p>
+	 * This can be set initially using the system property {@code qupath.openslide.handles}.
+	 * 
+	 * @return
+	 */
+	public static int getDefaultMaxHandles() {
+		return defaultMaxHandles;
+	}
+	
+	/**
+	 * Set the default maximum number of OpenSlide handles that will be opened for each slide.
+	 * This only impacts servers that are created afterwards.
+	 * 
+	 * @param maxHandles
+	 */
+	public static void setDefaultMaxHandles(int maxHandles) {
+		defaultMaxHandles = Math.max(1, maxHandles);
+	}
+	
+	/**
+	 * Get the maximum number of OpenSlide handles that may be opened for this slide.
+	 * 
+	 * @return
+	 */
+	public int getMaxHandles() {
+		return maxHandles;
+	}
+	
+	/**
+	 * Get the number of OpenSlide handles that are currently open for this slide.
+	 * 
+	 * @return
+	 */
+	public synchronized int getOpenHandleCount() {
+		return isClosed ? 0 : allHandles.size();
+	}
+	
+	/**
+	 * Request a free OpenSlide handle, opening a new one if all are in use and the maximum has not been reached - 
+	 * otherwise wait until one becomes available.
+	 * <p>
+	 * The handle must be returned using {@link #releaseHandle(OpenSlide)}.
+	 * 
+	 * @return
+	 * @throws IOException if the server has been closed, or a new handle could not be opened
+	 * @throws InterruptedException
+	 */
+	private OpenSlide acquireHandle() throws IOException, InterruptedException {
+		OpenSlide handle = availableHandles.poll();
+		while (handle == null) {
+			synchronized (this) {
+				if (isClosed)
+					throw new IOException("Server has been closed");
+				if (allHandles.size() < maxHandles) {
+					handle = new OpenSlide(new File(getPath()));
+					allHandles.add(handle);
+					logger.debug("Opened OpenSlide handle {}/{} for {}", allHandles.size(), maxHandles, getPath());
+					return handle;
+				}
+			}
+			// Check periodically in case the server is closed while waiting
+			handle = availableHandles.poll(100, TimeUnit.MILLISECONDS);
+		}
+		return handle;
+	}
+	
+	private synchronized void releaseHandle(OpenSlide handle) {
+		if (isClosed)
+			handle.close();
+		else
+			availableHandles.add(handle);
+	}
+	
 	@Override
 	public double[] getPreferredDownsamples() {
 //		for (double d : downsamples)
@@ -167,8 +316,14 @@ public class OpenslideImageServer extends AbstractImageServer<BufferedImage> {
 
 	@Override
 	public void close() {
-		if (osr != null)
-			osr.close();
+		// Close all handles that aren't currently in use - others will be closed when released
+		synchronized (this) {
+			isClosed = true;
+			OpenSlide handle;
+			while ((handle = availableHandles.poll()) != null)
+				handle.close();
+		}
+		bufferPool.clear();
 	}
 
 	
@@ -194,37 +349,100 @@ public class OpenslideImageServer extends AbstractImageServer<BufferedImage> {
 		double downsample = downsamples[level];
 		int levelWidth = (int)(region.width / downsample + .5);
 		int levelHeight = (int)(region.height / downsample + .5);
-		BufferedImage img = new BufferedImage(levelWidth, levelHeight, BufferedImage.TYPE_INT_ARGB_PRE);
-
-        int data[] = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
-        
-        try {
-			// Create a thumbnail for the region
-			osr.paintRegionARGB(data, region.x, region.y, level, levelWidth, levelHeight);
-			
-			// Previously tried to take shortcut and only repaint if needed - 
-			// but transparent pixels happened too often, and it's really needed to repaint every time
-//			if (backgroundColor == null && GeneralTools.almostTheSame(downsample, downsampleFactor, 0.001))
-//				return img;
+		int width = (int)(region.width / downsampleFactor + .5);
+		int height = (int)(region.height / downsampleFactor + .5);
+		int background = backgroundColor == null ? 0 : backgroundColor.getRGB();
+		
+		OpenSlide handle = null;
+		try {
+			handle = acquireHandle();
+			// If the level matches the request, we can read straight into the output image
+			if (width == levelWidth && height == levelHeight) {
+				BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+				handle.paintRegionARGB(data, region.x, region.y, level, levelWidth, levelHeight);
+				compositeOnBackground(data, levelWidth * levelHeight, background);
+				return img;
+			}
 			
-			// Rescale if we have to
-			int width = (int)(region.width / downsampleFactor + .5);
-			int height = (int)(region.height / downsampleFactor + .5);
-//			BufferedImage img2 = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			BufferedImage img2 = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-			Graphics2D g2d = img2.createGraphics();
-			if (backgroundColor != null) {
-				g2d.setColor(backgroundColor);
-				g2d.fillRect(0, 0, width, height);
+			// Otherwise read into a pooled buffer & rescale
+			int n = levelWidth * levelHeight;
+			int[] data = takeBuffer(n);
+			try {
+				handle.paintRegionARGB(data, region.x, region.y, level, levelWidth, levelHeight);
+				compositeOnBackground(data, n, background);
+				WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, n), levelWidth, levelHeight, levelWidth, colorModelRGB.getMasks(), null);
+				BufferedImage img = new BufferedImage(colorModelRGB, raster, false, null);
+				BufferedImage img2 = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g2d = img2.createGraphics();
+				g2d.drawImage(img, 0, 0, width, height, null);
+				g2d.dispose();
+				return img2;
+			} finally {
+				returnBuffer(data);
 			}
-			g2d.drawImage(img, 0, 0, width, height, null);
-			g2d.dispose();
-			return img2;
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			if (handle != null)
+				releaseHandle(handle);
 		}
 		return null;
 	}
+	
+	
+	/**
+	 * Get a buffer containing at least n elements, reusing a pooled buffer if possible.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	private int[] takeBuffer(int n) {
+		int[] buffer = bufferPool.poll();
+		if (buffer == null || buffer.length < n)
+			return new int[n];
+		return buffer;
+	}
+	
+	private void returnBuffer(int[] buffer) {
+		if (bufferPool.size() < MAX_POOLED_BUFFERS)
+			bufferPool.add(buffer);
+	}
+	
+	
+	/**
+	 * Composite premultiplied ARGB pixels (as provided by OpenSlide) onto an opaque background color, in-place.
+	 * 
+	 * This gives the same result as drawing the pixels onto an image filled with the background color using Java2D,
+	 * but without needing to create a second image.
+	 * 
+	 * @param data premultiplied ARGB pixels; these will be replaced by opaque RGB values
+	 * @param n number of pixels to process
+	 * @param background RGB background color
+	 */
+	static void compositeOnBackground(final int[] data, final int n, final int background) {
+		int bgRed = (background >> 16) & 0xff;
+		int bgGreen = (background >> 8) & 0xff;
+		int bgBlue = background & 0xff;
+		int bg = background & 0xffffff;
+		for (int i = 0; i < n; i++) {
+			int val = data[i];
+			int alpha = val >>> 24;
+			if (alpha == 255) {
+				data[i] = val & 0xffffff;
+				continue;
+			}
+			if (alpha == 0) {
+				data[i] = bg;
+				continue;
+			}
+			int inv = 255 - alpha;
+			int r = ((val >> 16) & 0xff) + (bgRed * inv + 127) / 255;
+			int g = ((val >> 8) & 0xff) + (bgGreen * inv + 127) / 255;
+			int b = (val & 0xff) + (bgBlue * inv + 127) / 255;
+			data[i] = (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) | Math.min(b, 255);
+		}
+	}
 
 	@Override
 	public List<String> getSubImageList() {
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+
+package qupath.lib.images.servers;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+public class TestOpenslideImageServer {
+	
+	/**
+	 * System property giving the path to a whole slide image, used to run the read benchmark.
+	 */
+	private static final String BENCHMARK_PROPERTY = "qupath.openslide.benchmark";
+	
+	@Test
+	public void test_compositeOnBackground() {
+		Random random = new Random(100L);
+		int width = 64;
+		int height = 64;
+		BufferedImage imgARGB = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		int[] data = ((DataBufferInt)imgARGB.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < data.length; i++) {
+			// Generate valid premultiplied values, including fully transparent & fully opaque pixels
+			int alpha = i % 3 == 0 ? 255 : (i % 3 == 1 ? 0 : random.nextInt(256));
+			int r = random.nextInt(alpha + 1);
+			int g = random.nextInt(alpha + 1);
+			int b = random.nextInt(alpha + 1);
+			data[i] = (alpha << 24) | (r << 16) | (g << 8) | b;
+		}
+		
+		for (Color background : new Color[] {Color.BLACK, Color.WHITE, new Color(240, 230, 250)}) {
+			// Reference result using Java2D
+			BufferedImage imgRGB = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2d = imgRGB.createGraphics();
+			g2d.setColor(background);
+			g2d.fillRect(0, 0, width, height);
+			g2d.drawImage(imgARGB, 0, 0, null);
+			g2d.dispose();
+			int[] expected = ((DataBufferInt)imgRGB.getRaster().getDataBuffer()).getData();
+			
+			int[] result = data.clone();
+			OpenslideImageServer.compositeOnBackground(result, result.length, background.getRGB());
+			for (int i = 0; i < result.length; i++) {
+				assertEquals(0, result[i] >>> 24);
+				for (int shift = 0; shift <= 16; shift += 8) {
+					int v1 = (expected[i] >> shift) & 0xff;
+					int v2 = (result[i] >> shift) & 0xff;
+					assertTrue(Math.abs(v1 - v2) <= 1);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Report the number of tiles read per second at each pyramid level.
+	 * <p>
+	 * This only runs if the system property {@code qupath.openslide.benchmark} gives the path to a slide, 
+	 * e.g. {@code mvn test -Dqupath.openslide.benchmark=/path/to/slide.svs}.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void benchmark_readTiles() throws Exception {
+		String path = System.getProperty(BENCHMARK_PROPERTY);
+		Assume.assumeTrue(path != null && !path.isEmpty());
+		
+		int nTiles = 200;
+		int tileSize = 256;
+		OpenslideImageServer server = new OpenslideImageServer(path);
+		try {
+			Random random = new Random(100L);
+			for (double downsample : server.getPreferredDownsamples()) {
+				int requestSize = (int)(tileSize * downsample);
+				int maxX = Math.max(1, server.getWidth() - requestSize);
+				int maxY = Math.max(1, server.getHeight() - requestSize);
+				long startTime = System.nanoTime();
+				for (int i = 0; i < nTiles; i++) {
+					int x = random.nextInt(maxX);
+					int y = random.nextInt(maxY);
+					RegionRequest request = RegionRequest.createInstance(path, downsample, x, y, 
+							Math.min(requestSize, server.getWidth()), Math.min(requestSize, server.getHeight()));
+					assertNotNull(server.readBufferedImage(request));
+				}
+				double seconds = (System.nanoTime() - startTime) / 1e9;
+				System.out.println(String.format("Downsample %.2f: %.1f tiles/s", downsample, nTiles / seconds));
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Report the number of tiles read per second using 1, 4 and 16 threads, 
+	 * with as many OpenSlide handles as threads.
+	 * <p>
+	 * As with {@link #benchmark_readTiles()}, this only runs if {@code qupath.openslide.benchmark} is set.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void benchmark_readTilesParallel() throws Exception {
+		String path = System.getProperty(BENCHMARK_PROPERTY);
+		Assume.assumeTrue(path != null && !path.isEmpty());
+		
+		int nTiles = 1000;
+		int tileSize = 256;
+		for (int nThreads : new int[] {1, 4, 16}) {
+			OpenslideImageServer server = new OpenslideImageServer(path, nThreads);
+			ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+			try {
+				// Use full resolution tiles, since these are the most expensive to decode
+				Random random = new Random(100L);
+				int maxX = Math.max(1, server.getWidth() - tileSize);
+				int maxY = Math.max(1, server.getHeight() - tileSize);
+				List<RegionRequest> requests = new ArrayList<>();
+				for (int i = 0; i < nTiles; i++)
+					requests.add(RegionRequest.createInstance(path, 1, random.nextInt(maxX), random.nextInt(maxY), tileSize, tileSize));
+				
+				long startTime = System.nanoTime();
+				List<Future<BufferedImage>> futures = new ArrayList<>();
+				for (RegionRequest request : requests)
+					futures.add(pool.submit(() -> server.readBufferedImage(request)));
+				for (Future<BufferedImage> future : futures)
+					assertNotNull(future.get());
+				double seconds = (System.nanoTime() - startTime) / 1e9;
+				System.out.println(String.format("%d thread(s), %d handle(s): %.1f tiles/s", nThreads, server.getOpenHandleCount(), nTiles / seconds));
+			} finally {
+				pool.shutdown();
+				server.close();
+			}
+		}
+	}
+
+}
@@ -287,6 +287,8 @@ import qupath.lib.images.servers.ImageServerBuilder;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.images.servers.RotatedImageServer;
 import qupath.lib.images.stores.DefaultImageRegionStore;
+import qupath.lib.images.stores.DiskTileCache;
+import qupath.lib.images.stores.PersistentTileCache;
 import qupath.lib.images.stores.ImageRegionStore;
 import qupath.lib.images.stores.ImageRegionStoreFactory;
 import qupath.lib.io.PathIO;
@@ -379,6 +381,9 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 //	private Set<ExecutorService> managedThreadPools = new HashSet<>();
 	private ExecutorService poolMultipleThreads = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new SimpleThreadFactory("qupath-shared-", false));	
 	
+	// Persistent tile caches are closed & opened in order on a single thread, since both can be slow
+	private ExecutorService poolTileCache = Executors.newSingleThreadExecutor(new SimpleThreadFactory("qupath-tile-cache-", true));
+	
 	private Map<KeyCombination, Action> mapActions = new HashMap<>();
 	
 	private Map<Modes, Action> modeActions = new HashMap<>();
@@ -4203,6 +4208,8 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 		getAction(GUIActions.PROJECT_EXPORT_IMAGE_LIST).setDisabled(project == null);
 		getAction(GUIActions.PROJECT_METADATA).setDisabled(project == null);
 		
+		updatePersistentTileCache(project);
+		
 		// Ensure the URLHelpers status is appropriately set
 		FileSystem fileSystem = null;
 		String fileSystemRoot = null;
@@ -4236,6 +4243,45 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 	}
 	
 	
+	/**
+	 * Store decoded image tiles within the project cache directory, if requested in the preferences.
+	 * <p>
+	 * Any previous cache is closed first, so that its pending tiles are written.  This happens on a background thread, 
+	 * so the new cache may not be available immediately.
+	 * 
+	 * @param project
+	 */
+	private void updatePersistentTileCache(final Project<?> project) {
+		if (imageRegionStore == null)
+			return;
+		File dirTiles = null;
+		long maxBytes = 0;
+		if (project != null && PathPrefs.useProjectTileCache() && PathPrefs.getProjectTileCacheSizeMB() > 0) {
+			dirTiles = new File(new File(project.getBaseDirectory(), "cache"), "tiles");
+			maxBytes = PathPrefs.getProjectTileCacheSizeMB() * 1024L * 1024L;
+		}
+		// Closing the previous cache waits for pending writes, & opening a new one indexes existing files - 
+		// so do both in the background, in order, so that the same directory is never in use by two caches
+		final File dirTilesFinal = dirTiles;
+		final long maxBytesFinal = maxBytes;
+		poolTileCache.submit(() -> {
+			PersistentTileCache<BufferedImage> previousCache = imageRegionStore.getPersistentTileCache();
+			if (previousCache != null) {
+				imageRegionStore.setPersistentTileCache(null);
+				logger.info("Closing {}", previousCache);
+				previousCache.close();
+			}
+			if (dirTilesFinal == null)
+				return;
+			try {
+				imageRegionStore.setPersistentTileCache(new DiskTileCache(dirTilesFinal, maxBytesFinal));
+			} catch (IOException e) {
+				logger.error("Unable to create tile cache in " + dirTilesFinal, e);
+			}
+		});
+	}
+	
+	
 	public ReadOnlyObjectProperty<Project<BufferedImage>> projectProperty() {
 		return project;
 	}
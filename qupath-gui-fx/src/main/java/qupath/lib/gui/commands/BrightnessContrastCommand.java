@@ -700,7 +700,14 @@ public class BrightnessContrastCommand implements PathCommand, ImageDataChangeLi
 		}
 		
 		
-		imageDisplay = viewer == null ? null : viewer.getImageDisplay();
+		ImageDisplay imageDisplayNew = viewer == null ? null : viewer.getImageDisplay();
+		if (imageDisplay != imageDisplayNew) {
+			if (imageDisplay != null)
+				imageDisplay.removePropertyChangeListener(this);
+			if (imageDisplayNew != null)
+				imageDisplayNew.addPropertyChangeListener(this);
+			imageDisplay = imageDisplayNew;
+		}
 		
 		if (imageDataOld != null)
 			imageDataOld.removePropertyChangeListener(this);
@@ -723,6 +730,13 @@ public class BrightnessContrastCommand implements PathCommand, ImageDataChangeLi
 			Platform.runLater(() -> propertyChange(evt));
 			return;
 		}
+		// Refined histograms are applied by the display itself - we just need to show them
+		if (evt.getSource() instanceof ImageDisplay) {
+			updateHistogram();
+			updateSliders();
+			return;
+		}
+		
 		if (!((evt.getSource() instanceof ImageData<?>) && evt.getPropertyName().equals("stains")))
 			imageDisplay.updateChannelOptions(false);
 		
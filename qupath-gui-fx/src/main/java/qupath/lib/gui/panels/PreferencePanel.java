@@ -155,6 +155,16 @@ public class PreferencePanel {
 			category,
 			"Store image tiles for hosted images of each project in a local cache.\nThis avoids requiring lengthy HTTP requests every time an image is (re)analysed or viewed, at the cost of needing more local storage space.");
 		
+		addPropertyPreference(PathPrefs.useProjectTileCacheProperty(), Boolean.class,
+			"Use project tile cache",
+			category,
+			"Store compressed, decoded image tiles within each project, so they can be reused when the project is reopened.\nThis can make viewing slow-to-read images faster, at the cost of needing more local storage space.\nChanges are applied when a project is next opened.");
+		
+		addPropertyPreference(PathPrefs.projectTileCacheSizeMBProperty(), Integer.class,
+			"Project tile cache size (MB)",
+			category,
+			"Maximum size of the tiles stored in the project tile cache.\nLeast recently used tiles are removed when this is exceeded.\nChanges are applied when a project is next opened.");
+		
 		addPropertyPreference(PathPrefs.tmaExportDownsampleProperty(), Double.class,
 			"TMA export downsample factor",
 			category,
@@ -36,10 +36,23 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.imageio.ImageIO;
 
@@ -70,6 +83,7 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
 import javafx.util.Callback;
+import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.display.ChannelDisplayInfo;
 import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.ImageDataChangeListener;
@@ -85,6 +99,7 @@ import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectIO;
 import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.ProjectThumbnailStore;
 
 /**
  * Component for previewing and selecting images within a project.
@@ -111,7 +126,33 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 	private TreeView<Object> tree = new TreeView<>();
 
 	// Keep a record of servers we've requested - don't want to keep putting in requests if the server is unavailable
-	private Set<String> serversRequested = new HashSet<>();
+	private Set<String> serversRequested = Collections.synchronizedSet(new HashSet<>());
+	
+	// Thumbnails for all images in the project, at several sizes
+	private ProjectThumbnailStore thumbnailStore;
+	private ThumbnailGenerator thumbnailGenerator;
+	
+	private File thumbnailStoreFile;
+	
+	// Stores are opened in the background, since the same store may still be closing
+	private ExecutorService storeOpener = Executors.newSingleThreadExecutor(new SimpleThreadFactory("project-thumbnails-open-", true));
+	private Object storeRequest;
+	
+	// Stores are closed (& possibly compacted) in the background, once any thumbnails being written have finished
+	private ExecutorService storeCloser = Executors.newSingleThreadExecutor(new SimpleThreadFactory("project-thumbnails-close-", true));
+	private Map<File, Future<?>> storesClosing = new ConcurrentHashMap<>();
+	
+	// Small thumbnails, as displayed in the tree
+	private static final int MAX_CACHED_IMAGES = 1000;
+	private Map<String, Image> cellImageCache = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+			return size() > MAX_CACHED_IMAGES;
+		}
+	};
+	private Queue<String> thumbnailsCreated = new ConcurrentLinkedQueue<>();
+	private AtomicBoolean refreshPending = new AtomicBoolean(false);
 
 
 	public ProjectBrowser(final QuPathGUI qupath) {
@@ -266,16 +307,19 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 	public void setProject(final Project<BufferedImage> project) {
 		if (this.project == project)
 			return;
+		closeThumbnailStore();
 		this.project = project;
 		model = new ProjectImageTreeModel(project);
 		tree.setRoot(model.getRootFX());
 		tree.getRoot().setExpanded(true);
+		requestAllThumbnailsInBackground();
 	}
 	
 	public void refreshProject() {
 		model = new ProjectImageTreeModel(project);
 		tree.setRoot(model.getRootFX());
 		tree.getRoot().setExpanded(true);		
+		requestAllThumbnailsInBackground();
 	}
 
 
@@ -295,6 +339,7 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 			}
 
 			ProjectIO.writeProject(project);
+			requestAllThumbnailsInBackground();
 		}
 	}
 
@@ -336,17 +381,149 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 	
 	
 	
-	Image requestThumbnail(final String serverPath, final File fileThumbnail) throws IOException {
-//		serversRequested.clear();
-		
-		// Check if we've already asked for this server... if so, stop
-		if (serversRequested.contains(serverPath))
-			return null;
-		// Put in the request now
-		serversRequested.add(serverPath);
-		// Check if it exists
-		if (fileThumbnail.exists())
-			return SwingFXUtils.toFXImage(ImageIO.read(fileThumbnail), null);
+	/**
+	 * Get the thumbnail store for the current project.
+	 * 
+	 * If the store isn't open yet, it is opened in the background &amp; null is returned; 
+	 * the tree is refreshed once the store is available.
+	 * 
+	 * @return the store, or null if there is no project (or the store is not open)
+	 */
+	synchronized ProjectThumbnailStore getThumbnailStore() {
+		if (thumbnailStore == null && project != null && storeRequest == null) {
+			File fileStore = getThumbnailStoreFile(project);
+			if (fileStore != null) {
+				// Only one attempt is made to open the store for each project
+				Object request = new Object();
+				storeRequest = request;
+				storeOpener.execute(() -> openThumbnailStore(fileStore, request));
+			}
+		}
+		return thumbnailStore;
+	}
+	
+	/**
+	 * Open a thumbnail store on a background thread, &amp; make it available if it is still needed.
+	 * 
+	 * @param fileStore
+	 * @param request
+	 */
+	private void openThumbnailStore(final File fileStore, final Object request) {
+		// If the same store is still being closed, it needs to finish first
+		Future<?> closing = storesClosing.get(fileStore);
+		if (closing != null) {
+			try {
+				closing.get();
+			} catch (InterruptedException | ExecutionException e) {
+				logger.warn("Problem waiting for thumbnail store to close", e);
+			}
+		}
+		ProjectThumbnailStore store;
+		try {
+			File dirData = fileStore.getParentFile();
+			if (!dirData.exists())
+				dirData.mkdirs();
+			store = ProjectThumbnailStore.open(fileStore);
+		} catch (IOException e) {
+			logger.error("Unable to open thumbnail store " + fileStore, e);
+			return;
+		}
+		synchronized (this) {
+			// The project may have changed while the store was being opened
+			if (storeRequest != request) {
+				closeStoreInBackground(fileStore, store, null);
+				return;
+			}
+			thumbnailStore = store;
+			thumbnailStoreFile = fileStore;
+			thumbnailGenerator = new ThumbnailGenerator();
+		}
+		Platform.runLater(() -> {
+			tree.refresh();
+			requestAllThumbnailsInBackground();
+		});
+	}
+	
+	/**
+	 * Close the current thumbnail store.
+	 * 
+	 * Queued thumbnail requests are cancelled immediately, but the store itself is only closed 
+	 * after any thumbnails currently being generated have been written - and since closing may 
+	 * involve compacting the file, this happens on a background thread.
+	 */
+	private synchronized void closeThumbnailStore() {
+		cellImageCache.clear();
+		serversRequested.clear();
+		ThumbnailGenerator generator = thumbnailGenerator;
+		ProjectThumbnailStore store = thumbnailStore;
+		File fileStore = thumbnailStoreFile;
+		thumbnailGenerator = null;
+		thumbnailStore = null;
+		thumbnailStoreFile = null;
+		storeRequest = null;
+		if (generator != null)
+			generator.shutdown();
+		if (store != null)
+			closeStoreInBackground(fileStore, store, generator);
+	}
+	
+	/**
+	 * Close a store on a background thread, after waiting for any thumbnails being generated for it.
+	 * 
+	 * @param fileStore
+	 * @param store
+	 * @param generator
+	 */
+	private void closeStoreInBackground(final File fileStore, final ProjectThumbnailStore store, final ThumbnailGenerator generator) {
+		CompletableFuture<Void> closing = CompletableFuture.runAsync(() -> {
+			try {
+				if (generator != null && !generator.awaitTermination(1, TimeUnit.MINUTES))
+					logger.warn("Timed out waiting for thumbnails to be generated - store will be closed anyway");
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted while waiting for thumbnails to be generated");
+			}
+			try {
+				store.close();
+			} catch (IOException e) {
+				logger.warn("Problem closing thumbnail store", e);
+			}
+		}, storeCloser);
+		storesClosing.put(fileStore, closing);
+		closing.whenComplete((r, e) -> storesClosing.remove(fileStore, closing));
+	}
+	
+	private synchronized void requestThumbnail(final ProjectThumbnailStore store, final ProjectImageEntry<?> entry, final boolean visible) {
+		if (thumbnailGenerator != null && store == thumbnailStore)
+			thumbnailGenerator.request(store, entry, visible);
+	}
+	
+	private synchronized void cancelVisibleThumbnail(final String serverPath) {
+		if (thumbnailGenerator != null)
+			thumbnailGenerator.cancelVisible(serverPath);
+	}
+	
+	
+	/**
+	 * Create a thumbnail for an image &amp; add it to the store.
+	 * 
+	 * Thumbnails previously written as individual files are imported, rather than being recreated.
+	 * New thumbnails are also still written as individual files, so that the project can be opened 
+	 * by older versions.
+	 * 
+	 * @param store
+	 * @param entry
+	 * @throws IOException
+	 */
+	void createThumbnail(final ProjectThumbnailStore store, final ProjectImageEntry<?> entry) throws IOException {
+		String serverPath = entry.getServerPath();
+		File fileThumbnail = getThumbnailFile(getProject(), entry);
+		if (fileThumbnail != null && fileThumbnail.exists()) {
+			BufferedImage img = ImageIO.read(fileThumbnail);
+			if (img != null) {
+				store.putThumbnail(serverPath, img);
+				return;
+			}
+		}
 		// Try to load the server
 		ImageData<BufferedImage> imageData = getCurrentImageData();
 		ImageServer<BufferedImage> server = null;
@@ -357,44 +534,217 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 			server = ImageServerProvider.buildServer(serverPath, BufferedImage.class);
 			newServer = true;
 		}
-		BufferedImage img2 = server.getBufferedThumbnail(thumbnailWidth, thumbnailHeight, 0);
-		if (newServer)
-			server.close();
-		if (img2 != null) {
-			// Try to write RGB images directly
-			boolean success = server.isRGB() ? ImageIO.write(img2, THUMBNAIL_EXT, fileThumbnail) : false;
-			if (!success) {
-				// Try with display transforms
+		if (server == null)
+			return;
+		try {
+			BufferedImage img2 = server.getBufferedThumbnail(thumbnailWidth, thumbnailHeight, 0);
+			if (img2 == null)
+				return;
+			if (!server.isRGB()) {
+				// Apply display transforms
 				ImageDisplay imageDisplay = new ImageDisplay(new ImageData<>(server), qupath.getImageRegionStore(), false);
 				for (ChannelDisplayInfo info : imageDisplay.getSelectedChannels()) {
 					imageDisplay.autoSetDisplayRange(info);
 				}
 				img2 = imageDisplay.applyTransforms(img2, null);
-				ImageIO.write(img2, THUMBNAIL_EXT, fileThumbnail);
 			}
+			store.putThumbnail(serverPath, img2);
+			if (fileThumbnail != null && !ImageIO.write(img2, THUMBNAIL_EXT, fileThumbnail))
+				logger.debug("Unable to write thumbnail file {}", fileThumbnail);
+		} finally {
+			if (newServer)
+				server.close();
 		}
-		return SwingFXUtils.toFXImage(img2, null);
 	}
-
-
-
-	void requestThumbnailInBackground(final String serverPath, final File fileThumbnail) {
-		// Don't do anything if already requested
-		if (serversRequested.contains(serverPath))
+	
+	
+	/**
+	 * Get a thumbnail image for display, reading it from the store if it isn't cached already.
+	 * 
+	 * @param serverPath
+	 * @param minWidth
+	 * @param minHeight
+	 * @param cache if true, cache the image for later requests
+	 * @return the image, or null if there is no thumbnail in the store
+	 */
+	Image getThumbnailImage(final String serverPath, final int minWidth, final int minHeight, final boolean cache) {
+		if (cache) {
+			Image image = cellImageCache.get(serverPath);
+			if (image != null)
+				return image;
+		}
+		ProjectThumbnailStore store = getThumbnailStore();
+		if (store == null || !store.containsKey(serverPath))
+			return null;
+		try {
+			BufferedImage img = store.getThumbnail(serverPath, minWidth, minHeight);
+			if (img == null)
+				return null;
+			Image image = SwingFXUtils.toFXImage(img, null);
+			if (cache)
+				cellImageCache.put(serverPath, image);
+			return image;
+		} catch (IOException e) {
+			logger.error("Problem reading thumbnail for {}", serverPath, e);
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Put in a request to generate thumbnails for all images that don't have one already, 
+	 * at a lower priority than thumbnails requested for display.
+	 */
+	void requestAllThumbnailsInBackground() {
+		Project<BufferedImage> project = getProject();
+		ProjectThumbnailStore store = getThumbnailStore();
+		if (project == null || store == null)
 			return;
-		Runnable r = new Runnable() {
+		for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+			if (!store.containsKey(entry.getServerPath()))
+				requestThumbnail(store, entry, false);
+		}
+	}
+	
+	
+	/**
+	 * Request that the tree is refreshed after thumbnails have been generated, 
+	 * combining requests that arrive before the refresh happens.
+	 * 
+	 * @param serverPath
+	 */
+	private void thumbnailCreated(final String serverPath) {
+		thumbnailsCreated.add(serverPath);
+		if (refreshPending.getAndSet(true))
+			return;
+		Platform.runLater(() -> {
+			refreshPending.set(false);
+			String path;
+			while ((path = thumbnailsCreated.poll()) != null)
+				cellImageCache.remove(path);
+			tree.refresh();
+		});
+	}
+	
+	
+	/**
+	 * Generate thumbnails using a fixed number of threads.
+	 * 
+	 * Thumbnails requested for display are generated first, in the order in which they were requested;
+	 * all others are generated afterwards in project order.  When an entry is no longer visible, its request 
+	 * is moved back to the lower priority.
+	 */
+	private class ThumbnailGenerator {
+		
+		private final ThreadPoolExecutor pool;
+		private final Map<String, ThumbnailTask> tasks = new HashMap<>();
+		private long counter = 0;
+		
+		ThumbnailGenerator() {
+			int nThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+			pool = new ThreadPoolExecutor(nThreads, nThreads, 10L, TimeUnit.SECONDS,
+					new PriorityBlockingQueue<>(), new SimpleThreadFactory("project-thumbnails-", true));
+			pool.allowCoreThreadTimeOut(true);
+		}
+		
+		/**
+		 * Request a thumbnail for an entry, or raise the priority of an existing request.
+		 */
+		synchronized void request(final ProjectThumbnailStore store, final ProjectImageEntry<?> entry, final boolean visible) {
+			String serverPath = entry.getServerPath();
+			ThumbnailTask task = tasks.get(serverPath);
+			if (task != null) {
+				// Queued tasks need to be removed & resubmitted to change priority
+				if (visible && !task.visible && pool.remove(task)) {
+					task.visible = true;
+					task.order = counter++;
+					pool.execute(task);
+				}
+				return;
+			}
+			if (serversRequested.contains(serverPath))
+				return;
+			task = new ThumbnailTask(store, entry, visible, counter++);
+			tasks.put(serverPath, task);
+			pool.execute(task);
+		}
+		
+		/**
+		 * Lower the priority of a request made for display, if it hasn't started yet.
+		 */
+		synchronized void cancelVisible(final String serverPath) {
+			ThumbnailTask task = tasks.get(serverPath);
+			if (task != null && task.visible && pool.remove(task)) {
+				task.visible = false;
+				pool.execute(task);
+			}
+		}
+		
+		/**
+		 * Cancel all queued requests &amp; stop accepting new ones; thumbnails already being generated are allowed to finish.
+		 */
+		synchronized void shutdown() {
+			for (ThumbnailTask task : tasks.values())
+				pool.remove(task);
+			tasks.clear();
+			pool.shutdown();
+		}
+		
+		boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			return pool.awaitTermination(timeout, unit);
+		}
+		
+		private synchronized boolean startTask(final ThumbnailTask task) {
+			if (tasks.get(task.entry.getServerPath()) != task)
+				return false;
+			serversRequested.add(task.entry.getServerPath());
+			return true;
+		}
+		
+		private synchronized void endTask(final ThumbnailTask task) {
+			tasks.remove(task.entry.getServerPath(), task);
+		}
+		
+		
+		private class ThumbnailTask implements Runnable, Comparable<ThumbnailTask> {
+			
+			private final ProjectThumbnailStore store;
+			private final ProjectImageEntry<?> entry;
+			private boolean visible;
+			private long order;
+			
+			ThumbnailTask(final ProjectThumbnailStore store, final ProjectImageEntry<?> entry, final boolean visible, final long order) {
+				this.store = store;
+				this.entry = entry;
+				this.visible = visible;
+				this.order = order;
+			}
+
 			@Override
 			public void run() {
+				if (!startTask(this))
+					return;
 				try {
-					Image image = requestThumbnail(serverPath, fileThumbnail);
-					if (image != null)
-						Platform.runLater(() -> tree.refresh());
-				} catch (IOException e) {
-					logger.error("Problem loading thumbnail for {}", serverPath, e);
+					if (!store.containsKey(entry.getServerPath())) {
+						createThumbnail(store, entry);
+						thumbnailCreated(entry.getServerPath());
+					}
+				} catch (Exception e) {
+					logger.error("Problem creating thumbnail for {}", entry.getServerPath(), e);
+				} finally {
+					endTask(this);
 				}
 			}
-		};
-		qupath.submitShortTask(r);
+
+			@Override
+			public int compareTo(ThumbnailTask o) {
+				if (visible != o.visible)
+					return visible ? -1 : 1;
+				return Long.compare(order, o.order);
+			}
+			
+		}
+		
 	}
 
 
@@ -452,6 +802,26 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 	}
 
 
+	static File getThumbnailStoreFile(final Project<?> project) {
+		if (project == null)
+			return null;
+		File dirBase = project.getBaseDirectory();
+		if (dirBase == null || !dirBase.isDirectory())
+			return null;
+
+		File dirData = new File(dirBase, "thumbnails");
+		return new File(dirData, "thumbnails.qpthumbs");
+	}
+
+	/**
+	 * Get the file used to store a thumbnail for an entry as an individual image, as read by older versions.
+	 * 
+	 * Existing files are imported into the project thumbnail store, rather than the thumbnail being recreated.
+	 * 
+	 * @param project
+	 * @param entry
+	 * @return
+	 */
 	static File getThumbnailFile(final Project<?> project, final ProjectImageEntry<?> entry) {
 		if (project == null || entry == null)
 			return null;
@@ -460,8 +830,6 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 			return null;
 
 		File dirData = new File(dirBase, "thumbnails");
-		if (!dirData.exists())
-			dirData.mkdir();
 		return new File(dirData, entry.getImageName() + "." + THUMBNAIL_EXT);
 	}
 
@@ -791,6 +1159,9 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 		private StackPane label = new StackPane();
 		private ImageView viewTooltip = new ImageView();
 		private Canvas viewCanvas = new Canvas();
+		
+		// Server path for the entry currently displayed, if a thumbnail is requested
+		private String requestedPath = null;
 
 		public ImageEntryCell() {
 			double viewWidth = 50;
@@ -803,11 +1174,26 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 			viewCanvas.setStyle("-fx-effect: dropshadow(three-pass-box, rgba(0,0,0,0.5), 4, 0, 1, 1);");
 			label.getChildren().add(viewCanvas);
 			label.setPrefSize(viewWidth, viewHeight);
+			// Only read the larger thumbnail when it's needed
+			tooltip.setOnShowing(e -> {
+				Object item = getItem();
+				if (item instanceof ProjectImageEntry && getGraphic() != null) {
+					Image image = getThumbnailImage(((ProjectImageEntry<?>)item).getServerPath(), (int)viewTooltip.getFitWidth(), (int)viewTooltip.getFitHeight(), false);
+					viewTooltip.setImage(image);
+					tooltip.setGraphic(image == null ? null : viewTooltip);
+				}
+			});
 		}
 
 		@Override
 		protected void updateItem(Object item, boolean empty) {
 			super.updateItem(item, empty);
+			
+			// If the cell no longer shows the entry for which we requested a thumbnail, it isn't urgent any more
+			if (requestedPath != null && !(item instanceof ProjectImageEntry && requestedPath.equals(((ProjectImageEntry<?>)item).getServerPath()))) {
+				cancelVisibleThumbnail(requestedPath);
+				requestedPath = null;
+			}
 
 			if (item == null || empty) {
 				setText(null);
@@ -859,24 +1245,22 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 				tooltip.setText(sb.toString());
 				//	        	 Tooltip tooltip = new Tooltip(sb.toString());
 
-				File fileThumbnail = getThumbnailFile(getProject(), entry);
-				if (fileThumbnail == null) {
+				ProjectThumbnailStore store = getThumbnailStore();
+				if (store == null) {
 					setGraphic(null);
 					return;
 				}
 				
-				if (fileThumbnail.exists()) {
-					Image image = new Image(fileThumbnail.toURI().toString(), false);
-					viewTooltip.setImage(image);
-					tooltip.setGraphic(viewTooltip);
+				Image image = getThumbnailImage(entry.getServerPath(), (int)viewCanvas.getWidth(), (int)viewCanvas.getHeight(), true);
+				if (image != null) {
 					PaintingToolsFX.paintImage(viewCanvas, image);
 					if (getGraphic() == null)
 						setGraphic(label);
 				} else {
 					setGraphic(null);
 					// Put in a request for the thumbnail on a background thread
-					requestThumbnailInBackground(entry.getServerPath(), fileThumbnail);
-//					requestThumbnailInBackground(entry.getServerPath(), fileThumbnail, viewGraphic, viewTooltip);
+					requestThumbnail(store, entry, true);
+					requestedPath = entry.getServerPath();
 				}
 				
 			}
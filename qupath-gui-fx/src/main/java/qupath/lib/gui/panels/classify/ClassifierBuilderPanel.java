@@ -88,6 +88,7 @@ import qupath.lib.classifiers.PathClassificationLabellingHelper;
 import qupath.lib.classifiers.PathClassificationLabellingHelper.SplitType;
 import qupath.lib.classifiers.PathIntensityClassifier;
 import qupath.lib.classifiers.PathObjectClassifier;
+import qupath.lib.classifiers.TrainingDataCache;
 import qupath.lib.gui.ImageDataChangeListener;
 import qupath.lib.gui.ImageDataWrapper;
 import qupath.lib.gui.QuPathGUI;
@@ -169,6 +170,9 @@ public class ClassifierBuilderPanel<T extends PathObjectClassifier> implements P
 
 	// Record whether the hierarchy has changed (indicating a need for reclassification)
 	private boolean hierarchyChanged = false;
+	
+	// Training data for the current hierarchy, updated as the hierarchy changes
+	private TrainingDataCache trainingDataCache;
 
 	private Button btnSaveClassifier;
 	private Button btnEdit;
@@ -1193,13 +1197,24 @@ public class ClassifierBuilderPanel<T extends PathObjectClassifier> implements P
 	}
 
 
+	/**
+	 * Get the training data for a hierarchy, using the cached data if available.
+	 */
+	private Map<PathClass, List<PathObject>> getClassificationMap(final PathObjectHierarchy hierarchy, final boolean trainFromPoints) {
+		TrainingDataCache cache = trainingDataCache;
+		if (cache != null && cache.getHierarchy() == hierarchy)
+			return cache.getClassificationMap(trainFromPoints);
+		return PathClassificationLabellingHelper.getClassificationMap(hierarchy, trainFromPoints);
+	}
+
+
 	/**
 	 * Update the retained objects map using the data from the current image.
 	 */
 	private void updateRetainedObjectsMap() {
 		PathObjectHierarchy hierarchy = getHierarchy();
 		if (hierarchy != null) {
-			Map<PathClass, List<PathObject>> mapCurrent = PathClassificationLabellingHelper.getClassificationMap(hierarchy, paramsUpdate.getBooleanParameterValue("trainFromPoints"));
+			Map<PathClass, List<PathObject>> mapCurrent = getClassificationMap(hierarchy, paramsUpdate.getBooleanParameterValue("trainFromPoints"));
 			// Add in any retained objects, if we have some
 			PathClassificationLabellingHelper.countObjectsInMap(mapCurrent);
 			//		int retainedImageCount = retainedObjectsMap.addToTrainingMap(map, getImageData().getServerPath());
@@ -1607,8 +1622,16 @@ public class ClassifierBuilderPanel<T extends PathObjectClassifier> implements P
 			return;
 		if (imageDataOld != null)
 			imageDataOld.getHierarchy().removePathObjectListener(this);
-		if (imageDataNew != null)
+		if (trainingDataCache != null) {
+			trainingDataCache.close();
+			trainingDataCache = null;
+		}
+		if (imageDataNew != null) {
+			// Create the cache first, so that it is notified of changes before this panel
+			trainingDataCache = new TrainingDataCache(imageDataNew.getHierarchy());
 			imageDataNew.getHierarchy().addPathObjectListener(this);
+		}
+		featurePanel.setTrainingDataCache(trainingDataCache);
 	}
 	
 	
@@ -1618,7 +1641,7 @@ public class ClassifierBuilderPanel<T extends PathObjectClassifier> implements P
 
 		// Check if we've anything that we should cache
 		if (panelClassifier.isVisible() && imageDataOld != null) {
-			Map<PathClass, List<PathObject>> map = PathClassificationLabellingHelper.getClassificationMap(imageDataOld.getHierarchy(), paramsUpdate.getBooleanParameterValue("trainFromPoints"));
+			Map<PathClass, List<PathObject>> map = getClassificationMap(imageDataOld.getHierarchy(), paramsUpdate.getBooleanParameterValue("trainFromPoints"));
 			if (!map.isEmpty() && !retainedObjectsMap.containsValue(map)) {
 				if (DisplayHelpers.showYesNoDialog("Retain training objects", "Retain current training objects in classifier?")) {
 					retainedObjectsMap.put(imageDataOld.getServerPath(), map);
@@ -53,6 +53,7 @@ import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Pane;
 import qupath.lib.classifiers.PathClassificationLabellingHelper;
+import qupath.lib.classifiers.TrainingDataCache;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.helpers.DisplayHelpers;
 import qupath.lib.gui.helpers.PanelToolsFX;
@@ -79,6 +80,8 @@ class FeatureSelectionPanel {
 	private TableView<SelectableFeature> tableFeatures = new TableView<>();
 
 	private BorderPane pane;
+	
+	private TrainingDataCache trainingDataCache;
 
 	FeatureSelectionPanel(final QuPathGUI qupath, final PathIntensityClassifierPanel panelIntensities) {
 		this.qupath = qupath;
@@ -263,8 +266,21 @@ class FeatureSelectionPanel {
 
 
 
+	/**
+	 * Set a cache that may be used to find the available features, rather than checking all objects each time.
+	 * 
+	 * @param trainingDataCache
+	 */
+	void setTrainingDataCache(final TrainingDataCache trainingDataCache) {
+		this.trainingDataCache = trainingDataCache;
+	}
+
+
 	void updateMeasurements(final ImageData<?> imageData) {
-		if (imageData != null)
+		TrainingDataCache cache = trainingDataCache;
+		if (imageData != null && cache != null && cache.getHierarchy() == imageData.getHierarchy())
+			updateMeasurementsByNames(cache.getAvailableFeatures());
+		else if (imageData != null)
 			updateMeasurements(imageData.getHierarchy().getObjects(null, PathDetectionObject.class));
 	}
 
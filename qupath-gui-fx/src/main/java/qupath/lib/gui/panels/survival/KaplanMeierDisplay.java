@@ -28,15 +28,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.SimpleDoubleProperty;
@@ -74,12 +75,15 @@ import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 import javafx.stage.Window;
 import javafx.util.Callback;
+import javafx.util.Duration;
 import qupath.lib.analysis.stats.Histogram;
 import qupath.lib.analysis.stats.StatisticsHelper;
 import qupath.lib.analysis.stats.survival.KaplanMeierData;
+import qupath.lib.analysis.stats.survival.LogRankSweep;
 import qupath.lib.analysis.stats.survival.LogRankTest;
 import qupath.lib.analysis.stats.survival.LogRankTest.LogRankResult;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.gui.helpers.ChartToolsFX;
 import qupath.lib.gui.helpers.ColorToolsFX;
 import qupath.lib.gui.helpers.dialogs.ParameterPanelFX;
@@ -133,6 +137,17 @@ public class KaplanMeierDisplay implements ParameterChangeListener, PathObjectHi
 	private double[] pValuesSmoothed = null;
 	private double[] pValueThresholds = null;
 	private boolean[] pValueThresholdsObserved = null;
+	private KaplanMeierDisplay.ScoreData pValueScoreData = null;
+	private boolean pValuesUpdated = false;
+
+	// P-values are computed in the background, only for the most recent request
+	private ExecutorService pool;
+	private AtomicInteger pValueRequestCount = new AtomicInteger();
+	private KaplanMeierDisplay.ScoreData pendingPValueScoreData = null;
+	private double pendingPValueCensorThreshold = Double.NaN;
+
+	// Delay used to avoid regenerating the plot for every one of a rapid succession of hierarchy changes
+	private PauseTransition hierarchyChangeDelay;
 
 	// Wrapper class for storing score data - helps to reduce (relatively) expensive p-value computations
 	private static class ScoreData {
@@ -219,6 +234,12 @@ public class KaplanMeierDisplay implements ParameterChangeListener, PathObjectHi
 			if (hierarchy != null)
 				hierarchy.removePathObjectListener(KaplanMeierDisplay.this);
 			panelParams.removeParameterChangeListener(KaplanMeierDisplay.this);
+			if (hierarchyChangeDelay != null)
+				hierarchyChangeDelay.stop();
+			if (pool != null) {
+				pool.shutdownNow();
+				pool = null;
+			}
 			frame.hide();
 		});
 
@@ -244,10 +265,17 @@ public class KaplanMeierDisplay implements ParameterChangeListener, PathObjectHi
 
 	@Override
 	public void hierarchyChanged(PathObjectHierarchyEvent event) {
-		if (!Platform.isFxApplicationThread())
+		if (event.isChanging())
+			return;
+		if (!Platform.isFxApplicationThread()) {
 			Platform.runLater(() -> hierarchyChanged(event));
-		else
-			generatePlot();
+			return;
+		}
+		if (hierarchyChangeDelay == null) {
+			hierarchyChangeDelay = new PauseTransition(Duration.millis(250));
+			hierarchyChangeDelay.setOnFinished(e -> generatePlot());
+		}
+		hierarchyChangeDelay.playFromStart();
 	}
 
 
@@ -400,113 +428,25 @@ public class KaplanMeierDisplay implements ParameterChangeListener, PathObjectHi
 		// resolving ties in favour of a more even split between high/low numbers of events
 		boolean pValuesChanged = false;
 		if (calculateAllPValues) {
-			if (!(pValues != null && pValueThresholds != null && newScoreData.equals(scoreData) && censorThreshold == lastPValueCensorThreshold)) {
-				Map<Double, Double> mapLogRank = new TreeMap<>();
-				Set<Double> setObserved = new HashSet<>();
-				for (int i = 0; i < newScoreData.scores.length; i++) {
-					Double d = newScoreData.scores[i];
-					boolean observed = !newScoreData.censored[i] && newScoreData.survival[i] < censorThreshold;
-					if (observed)
-						setObserved.add(d);
-					if (mapLogRank.containsKey(d))
-						continue;
-					List<KaplanMeierData> kmsTemp = splitByThresholds(newScoreData, new double[]{d}, censorThreshold, false);
-					//					if (kmsTemp.get(1).nObserved() == 0 || kmsTemp.get(1).nObserved() == 0)
-					//						continue;
-					LogRankResult test = LogRankTest.computeLogRankTest(kmsTemp.get(0), kmsTemp.get(1));
-					double pValue = test.getPValue();
-					//						double pValue = test.hazardRatio < 1 ? test.hazardRatio : 1.0/test.hazardRatio; // Checking usefulness of Hazard ratios...
-					if (!Double.isFinite(pValue))
-						continue;
-					//					if (!Double.isFinite(test.getHazardRatio())) {
-					////						continue;
-					//						pValue = Double.NaN;
-					//					}
-					mapLogRank.put(d, pValue);
-				}
-				pValueThresholds = new double[mapLogRank.size()];
-				pValues = new double[mapLogRank.size()];
-				pValueThresholdsObserved = new boolean[mapLogRank.size()];
-				int count = 0;
-				for (Entry<Double, Double> entry : mapLogRank.entrySet()) {
-					pValueThresholds[count] = entry.getKey();
-					pValues[count] = entry.getValue();
-					if (setObserved.contains(entry.getKey()))
-						pValueThresholdsObserved[count] = true;
-					count++;
-				}
-
-
-
-				// Find the longest 'significant' stretch
-				int maxSigCount = 0;
-				int maxSigInd = -1;
-				int sigCurrent = 0;
-				int[] sigCount = new int[pValues.length];
-				for (int i = 0; i < pValues.length; i++) {
-					if (pValues[i] < 0.05) {
-						sigCurrent++;
-						sigCount[i] = sigCurrent;
-						if (sigCurrent > maxSigCount) {
-							maxSigCount = sigCurrent;
-							maxSigInd = i;
-						}
-					} else
-						sigCurrent = 0;
-				}
-				if (maxSigCount == 0) {
-					logger.info("No p-values < 0.05");
-				} else {
-					double minThresh = maxSigInd-maxSigCount < 0 ? pValueThresholds[0]-0.0000001 : pValueThresholds[maxSigInd-maxSigCount];
-					double maxThresh = pValueThresholds[maxSigInd];
-					int nBetween = 0;
-					int nBetweenObserved = 0;
-					for (int i = 0; i < newScoreData.scores.length; i++) {
-						if (newScoreData.scores[i] > minThresh && newScoreData.scores[i] <= maxThresh) {
-							nBetween++;
-							if (newScoreData.survival[i] < censorThreshold && !newScoreData.censored[i])
-								nBetweenObserved++;
-						}
-					}
-					logger.info("Longest stretch of p-values < 0.05: {} - {} ({} entries, {} observed)", minThresh, maxThresh, nBetween, nBetweenObserved);						
-				}
-
-
-
-
-				pValuesSmoothed = new double[pValues.length];
-				Arrays.fill(pValuesSmoothed, Double.NaN);
-				int n = (pValues.length / 20) * 2 + 1;
-				logger.info("Smoothing log-rank test p-values by " + n);
-				for (int i = n/2; i < pValues.length-n/2; i++) {
-					double sum = 0;
-					for (int k = i-n/2; k < i-n/2+n; k++) {
-						sum += pValues[k];
-					}
-					pValuesSmoothed[i] = sum/n;
-				}
-				//					for (int i = 0; i < pValues.length; i++) {
-				//						double sum = 0;
-				//						for (int k = Math.max(0, i-n/2); k < Math.min(pValues.length, i-n/2+n); k++) {
-				//							sum += pValues[k];
-				//						}
-				//						pValuesSmoothed[i] = sum/n;
-				//					}
-				//					pValues = pValuesSmoothed;
-
-
-				lastPValueCensorThreshold = censorThreshold;
-				pValuesChanged = true;
+			if (!(pValues != null && pValueThresholds != null && newScoreData.equals(pValueScoreData) && censorThreshold == lastPValueCensorThreshold)) {
+				// Compute in the background - we'll be called again whenever this is done
+				requestPValues(newScoreData, censorThreshold);
 			}
+			pValuesChanged = pValuesUpdated;
+			pValuesUpdated = false;
 		} else {
 			lastPValueCensorThreshold = Double.NaN;
+			pValueScoreData = null;
 			pValueThresholds = null;
 			pValues = null;
 		}
 
 
 		//				if (params != null && !Double.isNaN(bestThreshold) && (params.getChoiceParameterValue("scoreThresholdMethod").equals("Lowest p-value")))
-		if (params != null && (params.getChoiceParameterValue("scoreThresholdMethod").equals("Lowest p-value"))) {
+		if (params != null && pValues == null && params.getChoiceParameterValue("scoreThresholdMethod").toString().startsWith("Lowest")) {
+			// P-values are still being computed
+			thresholds = new double[0];
+		} else if (params != null && (params.getChoiceParameterValue("scoreThresholdMethod").equals("Lowest p-value"))) {
 			int bestIdx = -1;
 			double bestPValue = Double.POSITIVE_INFINITY;
 			for (int i = pValueThresholds.length/10; i < pValueThresholds.length*9/10; i++) {
@@ -879,6 +819,135 @@ public class KaplanMeierDisplay implements ParameterChangeListener, PathObjectHi
 		scoreData = newScoreData;
 	}
 
+	/**
+	 * Request that log-rank p-values for all thresholds are computed in a background thread.
+	 * When complete, the plot will be regenerated.
+	 * <p>
+	 * This should be called on the FX application thread.
+	 * 
+	 * @param scoreData
+	 * @param censorThreshold
+	 */
+	private void requestPValues(final KaplanMeierDisplay.ScoreData scoreData, final double censorThreshold) {
+		if (scoreData.equals(pendingPValueScoreData) && censorThreshold == pendingPValueCensorThreshold)
+			return;
+		pendingPValueScoreData = scoreData;
+		pendingPValueCensorThreshold = censorThreshold;
+		int requestNumber = pValueRequestCount.incrementAndGet();
+		if (pool == null)
+			pool = Executors.newSingleThreadExecutor(new SimpleThreadFactory("kaplan-meier-", true));
+		pool.submit(() -> {
+			// Don't bother if another request has been made in the meantime
+			if (requestNumber != pValueRequestCount.get())
+				return;
+			PValueResults results = computePValues(scoreData, censorThreshold);
+			Platform.runLater(() -> {
+				if (requestNumber != pValueRequestCount.get())
+					return;
+				pValueThresholds = results.thresholds;
+				pValues = results.pValues;
+				pValuesSmoothed = results.pValuesSmoothed;
+				pValueThresholdsObserved = results.thresholdsObserved;
+				pValueScoreData = scoreData;
+				lastPValueCensorThreshold = censorThreshold;
+				pendingPValueScoreData = null;
+				pendingPValueCensorThreshold = Double.NaN;
+				pValuesUpdated = true;
+				generatePlot();
+			});
+		});
+	}
+
+
+	private static class PValueResults {
+
+		private double[] thresholds;
+		private double[] pValues;
+		private double[] pValuesSmoothed;
+		private boolean[] thresholdsObserved;
+
+	}
+
+
+	/**
+	 * Compute log-rank p-values for *all* possible thresholds.
+	 * 
+	 * @param scoreData
+	 * @param censorThreshold
+	 * @return
+	 */
+	private static PValueResults computePValues(final KaplanMeierDisplay.ScoreData scoreData, final double censorThreshold) {
+		long startTime = System.currentTimeMillis();
+
+		PValueResults results = new PValueResults();
+		LogRankSweep sweep = LogRankSweep.compute(scoreData.scores, scoreData.survival, scoreData.censored, censorThreshold);
+		double[] pValueThresholds = sweep.getThresholds();
+		double[] pValues = sweep.getPValues();
+		results.thresholds = pValueThresholds;
+		results.pValues = pValues;
+
+		Set<Double> setObserved = new HashSet<>();
+		for (int i = 0; i < scoreData.scores.length; i++) {
+			boolean observed = !scoreData.censored[i] && scoreData.survival[i] < censorThreshold;
+			if (observed)
+				setObserved.add(scoreData.scores[i]);
+		}
+		results.thresholdsObserved = new boolean[pValueThresholds.length];
+		for (int i = 0; i < pValueThresholds.length; i++)
+			results.thresholdsObserved[i] = setObserved.contains(pValueThresholds[i]);
+
+		// Find the longest 'significant' stretch
+		int maxSigCount = 0;
+		int maxSigInd = -1;
+		int sigCurrent = 0;
+		for (int i = 0; i < pValues.length; i++) {
+			if (pValues[i] < 0.05) {
+				sigCurrent++;
+				if (sigCurrent > maxSigCount) {
+					maxSigCount = sigCurrent;
+					maxSigInd = i;
+				}
+			} else
+				sigCurrent = 0;
+		}
+		if (maxSigCount == 0) {
+			logger.info("No p-values < 0.05");
+		} else {
+			double minThresh = maxSigInd-maxSigCount < 0 ? pValueThresholds[0]-0.0000001 : pValueThresholds[maxSigInd-maxSigCount];
+			double maxThresh = pValueThresholds[maxSigInd];
+			int nBetween = 0;
+			int nBetweenObserved = 0;
+			for (int i = 0; i < scoreData.scores.length; i++) {
+				if (scoreData.scores[i] > minThresh && scoreData.scores[i] <= maxThresh) {
+					nBetween++;
+					if (scoreData.survival[i] < censorThreshold && !scoreData.censored[i])
+						nBetweenObserved++;
+				}
+			}
+			logger.info("Longest stretch of p-values < 0.05: {} - {} ({} entries, {} observed)", minThresh, maxThresh, nBetween, nBetweenObserved);						
+		}
+
+		// Use a running sum for smoothing
+		double[] pValuesSmoothed = new double[pValues.length];
+		Arrays.fill(pValuesSmoothed, Double.NaN);
+		int n = (pValues.length / 20) * 2 + 1;
+		logger.info("Smoothing log-rank test p-values by " + n);
+		double sum = 0;
+		for (int i = 0; i < pValues.length; i++) {
+			sum += pValues[i];
+			if (i >= n)
+				sum -= pValues[i-n];
+			if (i >= n-1)
+				pValuesSmoothed[i-n/2] = sum/n;
+		}
+		results.pValuesSmoothed = pValuesSmoothed;
+
+		long endTime = System.currentTimeMillis();
+		logger.debug("Log-rank p-values computed for {} thresholds in {} ms", pValueThresholds.length, endTime - startTime);
+		return results;
+	}
+
+
 	static List<KaplanMeierData> splitByThresholds(final KaplanMeierDisplay.ScoreData scoreData, final double[] thresholds, final double censorThreshold, final boolean usesQuartiles) {
 		List<KaplanMeierData> kms = new ArrayList<>();
 		int nThresholds = thresholds.length;
@@ -100,6 +100,40 @@ public class PathPrefs {
 	public static void setUseProjectImageCache(final boolean useCache) {
 		useProjectImageCache.set(useCache);
 	}
+	
+	private static BooleanProperty useProjectTileCache = createPersistentPreference("useProjectTileCache", Boolean.FALSE);
+	
+	/**
+	 * If true, decoded image tiles are stored (compressed) within a 'cache/tiles' directory inside the project, 
+	 * so that they don't need to be read from the original image again when the project is reopened.
+	 * <p>
+	 * This is separate from <code>useProjectImageCache</code>, since it applies to all images - not only hosted ones - 
+	 * and can require a lot of local storage space.
+	 * 
+	 * @return
+	 */
+	public static BooleanProperty useProjectTileCacheProperty() {
+		return useProjectTileCache;
+	}
+
+	public static boolean useProjectTileCache() {
+		return useProjectTileCache.get();
+	}
+	
+	private static IntegerProperty projectTileCacheSizeMB = createPersistentPreference("projectTileCacheSizeMB", 4096);
+	
+	/**
+	 * Maximum size of the tile cache stored within a project (in MB), used if <code>useProjectTileCache</code> is true.
+	 * 
+	 * @return
+	 */
+	public static IntegerProperty projectTileCacheSizeMBProperty() {
+		return projectTileCacheSizeMB;
+	}
+
+	public static int getProjectTileCacheSizeMB() {
+		return projectTileCacheSizeMB.get();
+	}
 
 	private static StringProperty scriptsPath = createPersistentPreference("scriptsPath", null); // Base directory containing scripts
 
@@ -165,6 +165,26 @@ public class PathHierarchyPaintingHelper {
 	
 	
 	
+	/**
+	 * Get the RGB color that should be used to display a detection object, or null if the object should not be painted.
+	 * <p>
+	 * This takes into consideration any measurement mapper, but not the selection status.
+	 * 
+	 * @param pathObject
+	 * @param overlayOptions
+	 * @return
+	 */
+	public static Integer getDetectionColorRGB(PathObject pathObject, OverlayOptions overlayOptions) {
+		MeasurementMapper mapper = overlayOptions.getMeasurementMapper();
+		if (mapper != null && mapper.isValid() && pathObject.isDetection()) {
+			if (pathObject.hasMeasurements())
+				return mapper.getColorForObject(pathObject);
+			return null;
+		}
+		return PathObjectColorToolsAwt.getDisplayedColor(pathObject);
+	}
+	
+	
 	public static void paintTMAGrid(Graphics2D g2d, TMAGrid tmaGrid, OverlayOptions overlayOptions, PathObjectSelectionModel selectionModel, double downsampleFactor) {
 		if (tmaGrid == null)
 			return;
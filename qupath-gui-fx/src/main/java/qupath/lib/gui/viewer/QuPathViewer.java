@@ -39,6 +39,8 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -48,6 +50,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -60,12 +64,12 @@ import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleIntegerProperty;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.event.EventHandler;
 import javafx.scene.Cursor;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Tooltip;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
@@ -77,6 +81,7 @@ import qupath.lib.awt.color.ColorToolsAwt;
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.common.ColorTools;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.QuPathGUI.Modes;
 import qupath.lib.gui.helpers.ColorToolsFX;
@@ -144,6 +149,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 	// Current we have two images - one transformed & one not - because the untransformed
 	// image is needed to determine pixel values as the mouse moves over the image
+	// This is only accessed by the thread used for rendering
 	private BufferedImage imgBuffer = null;
 	//	private BufferedImage imgTemp = null;
 
@@ -153,6 +159,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	private boolean thumbnailIsFullImage = false;
 
 	// Flag used to indicates that the image was updated for a repaint (otherwise it's assumed only the overlay may have changed)
+	// These flags (along with the transforms) are only accessed on the JavaFX application thread; rendering uses a RenderState snapshot
 	protected boolean imageUpdated = false;
 	protected boolean locationUpdated = false;
 	
@@ -202,6 +209,12 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 	private Modes mode = Modes.MOVE;
 	private ImageDisplay imageDisplay;
+	
+	// Histograms may be refined in the background, possibly changing the display ranges
+	private PropertyChangeListener displayListener = e -> {
+		updateThumbnail();
+		repaintEntireImage();
+	};
 
 	private Color background = Color.BLACK;
 
@@ -213,9 +226,23 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	
 	private StackPane pane;
 	private Canvas canvas;
-	private BufferedImage imgCache;
 	private WritableImage imgCacheFX;
 	
+	// Frames are rendered on a background thread, alternating between two buffers so that 
+	// one can be shown while the next is being rendered
+	private ExecutorService renderPool;
+	private BufferedImage[] renderBuffers = new BufferedImage[2];
+	private int nextRenderBuffer = 0;
+	private volatile boolean renderInProgress = false;
+	private boolean renderPending = false;
+	
+	// Frame metrics (updated on the JavaFX application thread)
+	private long frameCount = 0;
+	private long droppedFrameCount = 0;
+	private long lastFrameRenderNanos = 0;
+	private long lastFrameLatencyNanos = 0;
+	private long totalFrameRenderNanos = 0;
+	
 	private double borderLineWidth = 5;
 	private javafx.scene.paint.Color borderColor;
 	
@@ -354,24 +381,87 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			return;
 		}
 		
-		if (imgCache == null || imgCache.getWidth() < canvas.getWidth() || imgCache.getHeight() < canvas.getHeight()) {
-			int w = (int)(canvas.getWidth() + 1);
-			int h = (int)(canvas.getHeight() + 1);
-			imgCache = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
-			imgCacheFX = new WritableImage(w, h);
-//			imgCacheFX = SwingFXUtils.toFXImage(imgCache, imgCacheFX);
+		// If we're already rendering, just make sure another frame follows
+		if (renderInProgress) {
+			if (renderPending)
+				droppedFrameCount++;
+			renderPending = true;
+			repaintRequested = false;
+			return;
 		}
 		
 		// Reset repaint flag
 		repaintRequested = false;
+		renderPending = false;
 		
-		GraphicsContext context = canvas.getGraphicsContext2D();
+		// Render into whichever buffer isn't waiting to be shown
+		int w = getWidth();
+		int h = getHeight();
+		int ind = nextRenderBuffer;
+		nextRenderBuffer = 1 - ind;
+		BufferedImage imgRender = renderBuffers[ind];
+		if (imgRender == null || imgRender.getWidth() < w || imgRender.getHeight() < h) {
+			imgRender = new BufferedImage(w + 1, h + 1, BufferedImage.TYPE_INT_ARGB_PRE);
+			renderBuffers[ind] = imgRender;
+		}
 		
-		Graphics2D g = imgCache.createGraphics();
-		paintViewer(g, getWidth(), getHeight());
-		g.dispose();
+		if (renderPool == null)
+			renderPool = Executors.newSingleThreadExecutor(new SimpleThreadFactory("viewer-render-", true));
+		renderInProgress = true;
+		long requestTime = System.nanoTime();
+		BufferedImage imgFrame = imgRender;
+		// Snapshot the view state here, so the render thread never touches the fields used for the current view
+		RenderState state = createRenderState(w, h);
+		renderPool.execute(() -> {
+			long startTime = System.nanoTime();
+			Graphics2D g = imgFrame.createGraphics();
+			try {
+				paintViewer(g, state);
+			} catch (Exception e) {
+				logger.error("Error rendering viewer", e);
+			} finally {
+				g.dispose();
+			}
+			long renderTime = System.nanoTime() - startTime;
+			renderInProgress = false;
+			Platform.runLater(() -> presentFrame(imgFrame, state, renderTime, requestTime));
+		});
+	}
+	
+	
+	/**
+	 * Show a frame that has been fully rendered, then start rendering the next frame if one has been requested.
+	 * <p>
+	 * This must be called on the JavaFX application thread.
+	 * 
+	 * @param imgFrame
+	 * @param state the view state used to render the frame
+	 * @param renderTime time taken to render the frame, in nanoseconds
+	 * @param requestTime timestamp (from {@link System#nanoTime()}) when rendering was requested
+	 */
+	private void presentFrame(final BufferedImage imgFrame, final RenderState state, final long renderTime, final long requestTime) {
+		if (canvas == null)
+			return;
 		
-		imgCacheFX = SwingFXUtils.toFXImage(imgCache, imgCacheFX);
+		// The selection (& ROI handles) can change at any time on this thread, so paint it here rather than when rendering
+		Graphics2D g = imgFrame.createGraphics();
+		try {
+			g.setClip(0, 0, state.width, state.height);
+			paintSelection(g, state);
+		} catch (Exception e) {
+			logger.error("Error painting selected objects", e);
+		} finally {
+			g.dispose();
+		}
+		
+		int w = imgFrame.getWidth();
+		int h = imgFrame.getHeight();
+		if (imgCacheFX == null || imgCacheFX.getWidth() != w || imgCacheFX.getHeight() != h)
+			imgCacheFX = new WritableImage(w, h);
+		int[] pixels = ((DataBufferInt)imgFrame.getRaster().getDataBuffer()).getData();
+		imgCacheFX.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbPreInstance(), pixels, 0, w);
+		
+		GraphicsContext context = canvas.getGraphicsContext2D();
 		context.drawImage(imgCacheFX, 0, 0);
 		
 		if (borderColor != null) {
@@ -414,8 +504,81 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		logger.trace("Time since last repaint: {} ms", (time - lastPaint));
 		lastPaint = System.currentTimeMillis();
 		
+		// Update frame metrics
+		frameCount++;
+		lastFrameRenderNanos = renderTime;
+		lastFrameLatencyNanos = System.nanoTime() - requestTime;
+		totalFrameRenderNanos += renderTime;
+		
 		imageDataChanging.set(false);
 //		repaintRequested = false;
+		
+		// Notify any listeners of shape changes
+		if (state.shapeChanged)
+			fireVisibleRegionChangedEvent(state.shapeRegion);
+		
+		if (renderPending || repaintRequested) {
+			repaintRequested = true;
+			paintCanvas();
+		}
+	}
+	
+	
+	/**
+	 * Get the number of frames that have been rendered &amp; shown by this viewer.
+	 * 
+	 * @return
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+	
+	/**
+	 * Get the number of repaint requests that were dropped because a newer request 
+	 * was received before rendering could begin.
+	 * 
+	 * @return
+	 */
+	public long getDroppedFrameCount() {
+		return droppedFrameCount;
+	}
+	
+	/**
+	 * Get the time taken to render the most recent frame (excluding the time needed to show it), in milliseconds.
+	 * 
+	 * @return
+	 */
+	public double getLastFrameRenderTimeMillis() {
+		return lastFrameRenderNanos / 1e6;
+	}
+	
+	/**
+	 * Get the time from requesting rendering to showing the most recent frame, in milliseconds.
+	 * 
+	 * @return
+	 */
+	public double getLastFrameLatencyMillis() {
+		return lastFrameLatencyNanos / 1e6;
+	}
+	
+	/**
+	 * Get the mean time taken to render a frame, in milliseconds.
+	 * 
+	 * @return
+	 */
+	public double getMeanFrameRenderTimeMillis() {
+		return frameCount == 0 ? Double.NaN : totalFrameRenderNanos / 1e6 / frameCount;
+	}
+	
+	/**
+	 * Reset the frame counts &amp; render times.
+	 */
+	public void resetFrameMetrics() {
+		frameCount = 0;
+		droppedFrameCount = 0;
+		lastFrameRenderNanos = 0;
+		lastFrameLatencyNanos = 0;
+		totalFrameRenderNanos = 0;
 	}
 	
 	
@@ -539,6 +702,10 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		//		setDebugGraphicsOptions(DebugGraphics.LOG_OPTION);
 
 		this.imageDisplay = imageDisplay;
+		if (imageDisplay != null) {
+			imageDisplay.setUpdateExecutor(Platform::runLater);
+			imageDisplay.addPropertyChangeListener(displayListener);
+		}
 
 		hierarchyOverlay = new HierarchyOverlay(regionServer, overlayOptions, imageData);
 		// Set up the overlay layers
@@ -1212,6 +1379,11 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 
 	protected void fireVisibleRegionChangedEvent(Shape shape) {
+		// Rendering happens on a background thread, but listeners expect to be notified on the application thread
+		if (!Platform.isFxApplicationThread()) {
+			Platform.runLater(() -> fireVisibleRegionChangedEvent(shape));
+			return;
+		}
 		for (QuPathViewerListener listener : listeners.toArray(new QuPathViewerListener[0]))
 			listener.visibleRegionChanged(this, shape);		
 	}
@@ -1285,11 +1457,17 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	public void closeViewer() {
 		//		painter.close();
 		regionStore.removeTileListener(this);
+		if (imageDisplay != null)
+			imageDisplay.removePropertyChangeListener(displayListener);
 		// Set the server to null
 		setImageData(null);
 		// Notify listeners
 		for (QuPathViewerListener listener : listeners)
 			listener.viewerClosed(this);
+		if (renderPool != null) {
+			renderPool.shutdown();
+			renderPool = null;
+		}
 	}
 
 
@@ -1316,7 +1494,112 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	}
 
 
+	/**
+	 * Paint the viewer using its current state, including the current selection.
+	 * <p>
+	 * This should be called from the thread that modifies the viewer location; the viewer itself 
+	 * renders using a snapshot of its state on a background thread, and paints the selection 
+	 * once rendering is complete.
+	 * 
+	 * @param g
+	 * @param w
+	 * @param h
+	 */
 	protected void paintViewer(Graphics g, int w, int h) {
+		// If the size changed, ensure the AffineTransform is up-to-date
+		if (imgBuffer == null || imgBuffer.getWidth() != w || imgBuffer.getHeight() != h)
+			updateAffineTransform();
+		RenderState state = createRenderState(w, h);
+		paintViewer(g, state);
+		if (g instanceof Graphics2D)
+			paintSelection((Graphics2D)g, state);
+		if (state.shapeChanged)
+			fireVisibleRegionChangedEvent(state.shapeRegion);
+	}
+	
+	
+	/**
+	 * Create a snapshot of everything needed to render the viewer, so that rendering can happen on another thread.
+	 * <p>
+	 * This also resets the flags indicating that the image needs to be updated, records the visible shape, 
+	 * and sets the preferred color of the overlays - so that the render thread doesn't need to change them.
+	 * 
+	 * @param w
+	 * @param h
+	 * @return
+	 */
+	private RenderState createRenderState(final int w, final int h) {
+		Shape shapeRegion = getDisplayedRegionShape();
+		// The visible shape must have changed if there wasn't one previously...
+		// Otherwise check if it has changed & update accordingly
+		// This will be used to notify listeners once the frame has been painted
+		boolean shapeChanged = lastVisibleShape == null || !lastVisibleShape.equals(shapeRegion);
+		lastVisibleShape = shapeRegion;
+		boolean updateImage = imageUpdated || locationUpdated;
+		// Set flags that image no longer requiring an update
+		imageUpdated = false;
+		locationUpdated = false;
+		RenderState state = new RenderState(this, w, h, shapeRegion, shapeChanged, updateImage);
+		for (PathOverlay overlay : state.overlayLayers)
+			overlay.setPreferredOverlayColor(state.overlayColor);
+		return state;
+	}
+	
+	
+	/**
+	 * The state of a viewer required to paint it, captured at the time painting was requested.
+	 * <p>
+	 * The selected objects are not included, since they are painted on the application thread after rendering.
+	 */
+	private static class RenderState {
+		
+		private final ImageServer<BufferedImage> server;
+		private final ImageRegion serverBounds;
+		private final int width, height;
+		private final AffineTransform transform;
+		private final Shape shapeRegion;
+		private final boolean shapeChanged;
+		private final boolean updateImage;
+		private final double downsample;
+		private final int z, t;
+		private final boolean fasterRepaint;
+		private final boolean thumbnailIsFullImage;
+		private final BufferedImage imgThumbnailRGB;
+		private final List<PathOverlay> overlayLayers;
+		private final boolean showMainOverlay;
+		private final Color overlayColor;
+		private final float opacity;
+		private final ImageDisplay imageDisplay;
+		
+		RenderState(final QuPathViewer viewer, final int width, final int height, final Shape shapeRegion, final boolean shapeChanged, final boolean updateImage) {
+			this.server = viewer.getServer();
+			this.serverBounds = viewer.getServerBounds();
+			this.width = width;
+			this.height = height;
+			this.transform = new AffineTransform(viewer.transform);
+			this.shapeRegion = shapeRegion;
+			this.shapeChanged = shapeChanged;
+			this.updateImage = updateImage;
+			this.downsample = viewer.downsampleFactor;
+			this.z = viewer.getZPosition();
+			this.t = viewer.getTPosition();
+			this.fasterRepaint = viewer.doFasterRepaint;
+			this.thumbnailIsFullImage = viewer.thumbnailIsFullImage;
+			this.imgThumbnailRGB = viewer.imgThumbnailRGB;
+			this.overlayLayers = new ArrayList<>(viewer.overlayLayers);
+			this.showMainOverlay = viewer.showMainOverlay;
+			this.overlayColor = viewer.getSuggestedOverlayColor();
+			this.opacity = viewer.overlayOptions.getOpacity();
+			this.imageDisplay = viewer.imageDisplay;
+		}
+		
+	}
+	
+	
+	private void paintViewer(Graphics g, final RenderState state) {
+		
+		int w = state.width;
+		int h = state.height;
 		
 //		if (!SwingUtilities.isEventDispatchThread()) {
 //			logger.warn("Repainting called from the wrong thread!");
@@ -1329,7 +1612,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			lastRepaintTimestamp = timestamp;
 		}
 		
-		ImageServer<BufferedImage> server = getServer();
+		ImageServer<BufferedImage> server = state.server;
 		if (server == null) {
 			g.setColor(background);
 			g.fillRect(0, 0, w, h);
@@ -1350,36 +1633,22 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			clipFull = clip.x == 0 && clip.y == 0 && clip.width == w && clip.height == h;
 
 		// Ensure we have a sufficiently-large buffer
+		boolean updateImage = state.updateImage;
 		if (imgBuffer == null || imgBuffer.getWidth() != w || imgBuffer.getHeight() != h) {
 			// Create buffered images & buffers for RGB pixel values
 			imgBuffer = createBufferedImage(w, h);
 			imgBuffer.setAccelerationPriority(1f);
 			logger.trace("New buffered image created: {}", imgBuffer);
 			//			imgVolatile = createVolatileImage(w, h);
-			imageUpdated = true;
-			// If the size changed, ensure the AffineTransform is up-to-date
-			updateAffineTransform();
+			updateImage = true;
 		}
 
-		// Get the displayed region
-		Shape shapeRegion = getDisplayedRegionShape();
-
-		// The visible shape must have changed if there wasn't one previously...
-		// Otherwise check if it has changed & update accordingly
-		// This will be used to notify listeners soon
-		boolean shapeChanged = lastVisibleShape == null || !lastVisibleShape.equals(shapeRegion);
-
 		long t1 = System.currentTimeMillis();
 
 		// Only repaint the image if this is requested, otherwise only overlays need to be repainted
-		if (imageUpdated || locationUpdated) {// || imgVolatile.contentsLost()) {
-			// Set flags that image no longer requiring an update
-			// By setting them early, they might still be reset during this run... in which case we don't want to thwart the re-run
-			imageUpdated = false;
-			locationUpdated = false;
-
+		if (updateImage) {// || imgVolatile.contentsLost()) {
 			//			updateBufferedImage(imgVolatile, shapeRegion, w, h);
-			updateBufferedImage(imgBuffer, shapeRegion, w, h);
+			updateBufferedImage(imgBuffer, state);
 		}
 
 		//		if (imageUpdated || locationUpdated) {
@@ -1394,9 +1663,6 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		//			imgVolatile.createGraphics().drawImage(imgBuffer, 0, 0, this);
 		//		}
 
-		// Store the last shape visible
-		lastVisibleShape = shapeRegion;
-
 		// Draw the image from the buffer
 		// The call to super.paintComponent is delayed until here to try to stop occasional flickering on Apple's Java 6
 		g.setColor(background);
@@ -1417,40 +1683,57 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		}
 
 		// Really useful only for debugging graphics
-		if (!(g instanceof Graphics2D)) {
-			imageUpdated = false;
-			// Notify any listeners of shape changes
-			if (shapeChanged)
-				fireVisibleRegionChangedEvent(lastVisibleShape);
+		if (!(g instanceof Graphics2D))
 			return;
-		}
 
-		float opacity = overlayOptions.getOpacity();
+		double downsampleFactor = state.downsample;
+		float opacity = state.opacity;
 		Graphics2D g2d = (Graphics2D)g.create();
 		// Apply required transform to the graphics object (rotation, scaling, shifting...)
-		g2d.transform(transform);
-		Composite previousComposite = g2d.getComposite();
-		boolean paintCompletely = thumbnailIsFullImage || !doFasterRepaint;
-		if (showMainOverlay && opacity > 0) {
+		g2d.transform(state.transform);
+		boolean paintCompletely = state.thumbnailIsFullImage || !state.fasterRepaint;
+		if (state.showMainOverlay && opacity > 0) {
 			if (opacity < 1) {
 				AlphaComposite composite = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity);
 				g2d.setComposite(composite);			
 			}
-
-			Color color = getSuggestedOverlayColor();
-			for (PathOverlay overlay : overlayLayers) {
-				overlay.setPreferredOverlayColor(color);
-				overlay.paintOverlay(g2d, getServerBounds(), downsampleFactor, null, paintCompletely);
-			}
+			for (PathOverlay overlay : state.overlayLayers)
+				overlay.paintOverlay(g2d, state.serverBounds, downsampleFactor, null, paintCompletely);
 		}
+		g2d.dispose();
+	}
+	
+	
+	/**
+	 * Paint the selected objects, along with the handles of the ROI being edited.
+	 * <p>
+	 * This must be called on the application thread, since the selection &amp; handles are changed there.
+	 * 
+	 * @param g
+	 * @param state the state used to render the frame beneath the selection
+	 */
+	private void paintSelection(final Graphics2D g, final RenderState state) {
+		if (state.server == null)
+			return;
+		PathObjectHierarchy hierarchy = getHierarchy();
+		if (hierarchy == null)
+			return;
+		
+		double downsampleFactor = state.downsample;
+		float opacity = state.opacity;
+		Shape shapeRegion = state.shapeRegion;
+		Graphics2D g2d = (Graphics2D)g.create();
+		g2d.transform(state.transform);
+		Composite previousComposite = g2d.getComposite();
+		if (state.showMainOverlay && opacity > 0 && opacity < 1)
+			g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
 		
 		// Paint the selected object
-		PathObjectHierarchy hierarchy = getHierarchy();
 		PathObject mainSelectedObject = getSelectedObject();
 		Rectangle2D boundsShape = null;
 		for (PathObject selectedObject : hierarchy.getSelectionModel().getSelectedObjects().toArray(new PathObject[0])) {
 			// TODO: Simplify this...
-			if (selectedObject != null && selectedObject.hasROI() && selectedObject.getROI().getZ() == getZPosition() && selectedObject.getROI().getT() == getTPosition()) {
+			if (selectedObject != null && selectedObject.hasROI() && selectedObject.getROI().getZ() == state.z && selectedObject.getROI().getT() == state.t) {
 				
 				if (!selectedObject.isDetection()) {
 					// Ensure a selected ROI can be seen clearly
@@ -1473,7 +1756,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 //							Math.round(boundsShape.getHeight()/downsampleFactor)*downsampleFactor+2*downsampleFactor);
 					
 //					boundsShape.setFrame(boundsShape.getX()-downsampleFactor, boundsShape.getY()-downsampleFactor, boundsShape.getWidth()+2*downsampleFactor, boundsShape.getHeight()+2*downsampleFactor);
-					PathHierarchyPaintingHelper.paintShape(boundsShape, g2d, getSuggestedOverlayColor(), PathHierarchyPaintingHelper.getCachedStroke(Math.max(downsampleFactor, 1)*2), null, downsampleFactor);
+					PathHierarchyPaintingHelper.paintShape(boundsShape, g2d, state.overlayColor, PathHierarchyPaintingHelper.getCachedStroke(Math.max(downsampleFactor, 1)*2), null, downsampleFactor);
 //					boundsShape.setFrame(boundsShape.getX()+downsampleFactor, boundsShape.getY()-downsampleFactor, boundsShape.getWidth(), boundsShape.getHeight());
 //					PathHierarchyPaintingHelper.paintShape(boundsShape, g2d, new Color(1f, 1f, 1f, 0.75f), PathHierarchyPaintingHelper.getCachedStroke(Math.max(downsampleFactor, 1)*2), null, downsampleFactor);
 				}
@@ -1495,6 +1778,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 				}
 			}
 		}
+		g2d.dispose();
 
 //		// Paint the selected object
 //		PathObject selectedObject = getSelectedObject();
@@ -1530,10 +1814,6 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 //				PathHierarchyPaintingHelper.paintHandles(roiEditor, g2d, size, color, ColorToolsAwt.getTranslucentColor(color));
 //			}
 //		}
-
-		// Notify any listeners of shape changes
-		if (shapeChanged)
-			fireVisibleRegionChangedEvent(lastVisibleShape);
 	}
 
 	
@@ -1554,34 +1834,37 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	//		gBuffered.dispose();
 	//	}
 
-	private void updateBufferedImage(final BufferedImage imgBuffer, final Shape shapeRegion, final int w, final int h) {
+	private void updateBufferedImage(final BufferedImage imgBuffer, final RenderState state) {
 		Graphics2D gBuffered = imgBuffer.createGraphics();
-		updateBufferedImage(gBuffered, shapeRegion, w, h);
+		updateBufferedImage(gBuffered, state);
 		gBuffered.dispose();		
 	}
 
 	//	private void updateBufferedImage(final BufferedImage imgBuffer, final Shape shapeRegion) {
-	private void updateBufferedImage(final Graphics2D gBuffered, final Shape shapeRegion, final int w, final int h) {
+	private void updateBufferedImage(final Graphics2D gBuffered, final RenderState state) {
 		// Check if we are doing a simple shift (scroll) - if so, we can reuse some previous painting
 		// TODO: Verify that the 'scroll only' test is sufficiently reliable
-		Shape shapeToUpdate = shapeRegion;
+		Shape shapeToUpdate = state.shapeRegion;
 		// Set all image pixels to be the background color
 		gBuffered.setColor(background);
-		gBuffered.fillRect(0, 0, w, h);
+		gBuffered.fillRect(0, 0, state.width, state.height);
 
 		// Apply the transform so we don't need to worry about converting coordinates so much
-		gBuffered.transform(transform);
+		gBuffered.transform(state.transform);
 		gBuffered.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
 
 		// Get the server width & height
-		ImageServer<BufferedImage> server = getServer();
+		ImageServer<BufferedImage> server = state.server;
 		int serverWidth = server.getWidth();
 		int serverHeight = server.getHeight();
+		double downsampleFactor = state.downsample;
+		int z = state.z;
+		int t = state.t;
 
 		// Check if we require tiling the image, or if the low-resolution version does all we need
-		BufferedImage imgThumbnail = regionStore.getThumbnail(server, getZPosition(), getTPosition(), true);
+		BufferedImage imgThumbnail = regionStore.getThumbnail(server, z, t, true);
 		double lowResolutionDownsample = 0.5 * ((double)serverWidth / imgThumbnail.getWidth() + (double)serverHeight / imgThumbnail.getHeight());
-		boolean requiresTiling = !thumbnailIsFullImage && lowResolutionDownsample > Math.max(downsampleFactor, 1);
+		boolean requiresTiling = !state.thumbnailIsFullImage && lowResolutionDownsample > Math.max(downsampleFactor, 1);
 
 		// Check if we will be painting some background beyond the image edge
 		Rectangle shapeBounds = shapeToUpdate.getBounds();
@@ -1594,7 +1877,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 			// TODO: Consider removing faster repaint?
 			double downsample = downsampleFactor;
-			if (doFasterRepaint)
+			if (state.fasterRepaint)
 				downsample = downsampleFactor * 1.5;
 
 
@@ -1604,18 +1887,19 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			// *However* this shouldn't be applied if the region we are viewing extends beyond the image boundary, as it means we would be color-transforming the background color.
 			// For a non-RGB image, or if the viewed region is over the image boundary, the transform should be applied in advance to the thumbnail, and then tile-by-tile during painting.
 			if (server.isRGB() && !overBoundary) {
-				regionStore.paintRegion(server, gBuffered, shapeToUpdate, getZPosition(), getTPosition(), downsample, imgThumbnail, null, null);
+				regionStore.paintRegion(server, gBuffered, shapeToUpdate, z, t, downsample, imgThumbnail, null, null, this);
 				gBuffered.dispose();
+				ImageDisplay imageDisplay = state.imageDisplay;
 				if (imageDisplay != null)
 //					imgBuffer = imageDisplay.applyTransforms(imgBuffer, imgBuffer);
 //					 More benchmarking required... but reusing imgBuffer was killing performance for RGB transform on Java 8 (JavaFX)... possibly
 					imgBuffer = imageDisplay.applyTransforms(imgBuffer, null);
 			} else {
-				regionStore.paintRegion(server, gBuffered, shapeToUpdate, getZPosition(), getTPosition(), downsample, imgThumbnail, null, imageDisplay);
+				regionStore.paintRegion(server, gBuffered, shapeToUpdate, z, t, downsample, imgThumbnail, null, state.imageDisplay, this);
 			}
 		} else {
 			// Just paint the 'thumbnail' version, which has already (potentially) been color-transformed
-			paintThumbnail(gBuffered, imgThumbnailRGB, serverWidth, serverHeight, this);
+			paintThumbnail(gBuffered, state.imgThumbnailRGB, serverWidth, serverHeight, this);
 		}
 	}
 
@@ -2287,16 +2571,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		else {
 			List<PathObject> pathObjects = event.getChangedObjects();
 			List<PathObject> pathDetectionObjects = PathObjectTools.getObjectsOfClass(pathObjects, PathDetectionObject.class);
-			if (pathDetectionObjects.size() <= 50) {
-				// TODO: PUT THIS LISTENER INTO THE HIERARCHY OVERLAY ITSELF?  But then the order of events is uncertain... hierarchy would need to be able to call repaint as well
-				// (or possibly post an event?)
-				for (PathObject temp : pathDetectionObjects) {
-					if (temp.hasROI())
-						hierarchyOverlay.clearCachedOverlayForRegion(ImageRegion.createInstance(temp.getROI()));
-				}
-			} else {
-				hierarchyOverlay.clearCachedOverlay();
-			}
+			// TODO: PUT THIS LISTENER INTO THE HIERARCHY OVERLAY ITSELF?  But then the order of events is uncertain... hierarchy would need to be able to call repaint as well
+			// (or possibly post an event?)
+			hierarchyOverlay.clearCachedOverlayForObjects(pathDetectionObjects);
 		}
 
 		// Just in case, make sure the handles are updated in any ROIEditor
@@ -31,6 +31,8 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -77,6 +79,11 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 	private boolean smallImage = false; // If the image is small enough, objects should be drawn directly
 	
 	transient private DetectionComparator comparator = new DetectionComparator();
+	
+	/**
+	 * Maximum number of changed objects for which cached tiles will be invalidated individually.
+	 */
+	final private static int MAX_INDIVIDUAL_INVALIDATIONS = 1000;
 
 	public HierarchyOverlay(final DefaultImageRegionStore regionStore, final OverlayOptions overlayOptions, final ImageData<BufferedImage> imageData) {
 		super(overlayOptions, imageData);
@@ -172,7 +179,7 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 				}
 				else {
 ////											System.out.println("Painting PROGRESSIVELY");
-					regionStore.paintRegion(overlayServer, g2d, shapeRegion, z, t, downsampleFactor, null, observer, null);
+					regionStore.paintRegion(overlayServer, g2d, shapeRegion, z, t, downsampleFactor, null, observer, null, this);
 				}
 			}
 		}
@@ -192,6 +199,8 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 
 	
 	public void clearCachedOverlay() {
+		if (overlayServer != null)
+			overlayServer.clearCachedDensityLevels();
 		if (regionStore != null && overlayServer != null)
 			regionStore.clearCacheForServer(overlayServer);
 	}
@@ -203,6 +212,45 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 	}
 	
 	
+	/**
+	 * Clear any cached overlay tiles that could be impacted by changes to the specified objects.
+	 * <p>
+	 * For a small number of objects, only tiles overlapping each object are removed. 
+	 * Otherwise, tiles overlapping the bounding box of all objects (for each z-slice &amp; timepoint) are removed.
+	 * 
+	 * @param pathObjects
+	 */
+	public void clearCachedOverlayForObjects(Collection<PathObject> pathObjects) {
+		if (regionStore == null || overlayServer == null)
+			return;
+		if (pathObjects.size() <= MAX_INDIVIDUAL_INVALIDATIONS) {
+			for (PathObject temp : pathObjects) {
+				if (temp.hasROI())
+					clearCachedOverlayForRegion(ImageRegion.createInstance(temp.getROI()));
+			}
+			return;
+		}
+		Map<String, ImageRegion> planeBounds = new LinkedHashMap<>();
+		for (PathObject temp : pathObjects) {
+			if (!temp.hasROI())
+				continue;
+			ImageRegion region = ImageRegion.createInstance(temp.getROI());
+			String key = region.getZ() + ":" + region.getT();
+			ImageRegion previous = planeBounds.get(key);
+			if (previous != null) {
+				int x1 = Math.min(previous.getX(), region.getX());
+				int y1 = Math.min(previous.getY(), region.getY());
+				int x2 = Math.max(previous.getX() + previous.getWidth(), region.getX() + region.getWidth());
+				int y2 = Math.max(previous.getY() + previous.getHeight(), region.getY() + region.getHeight());
+				region = ImageRegion.createInstance(x1, y1, x2 - x1, y2 - y1, region.getZ(), region.getT());
+			}
+			planeBounds.put(key, region);
+		}
+		for (ImageRegion region : planeBounds.values())
+			clearCachedOverlayForRegion(region);
+	}
+	
+	
 	@Override
 	public boolean supportsImageDataChange() {
 		return true;
@@ -23,11 +23,15 @@
 
 package qupath.lib.gui.viewer.tools;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.awt.geom.Area;
 import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.ImageObserver;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,14 +43,18 @@ import javafx.scene.image.Image;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Ellipse;
+import qupath.lib.awt.color.ColorToolsAwt;
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.viewer.ModeWrapper;
 import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathTileObject;
+import qupath.lib.objects.helpers.PathObjectColorToolsAwt;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.AWTAreaROI;
 import qupath.lib.roi.AreaROI;
 import qupath.lib.roi.ROIHelpers;
@@ -82,6 +90,11 @@ public class BrushTool extends AbstractPathROITool {
 	
 	private SnapshotParameters snapshotParameters = new SnapshotParameters();
 	
+	/**
+	 * Brush stroke currently in progress (may be null)
+	 */
+	private BrushStroke stroke = null;
+	
 	public BrushTool(ModeWrapper modes) {
 		super(modes);
 		snapshotParameters.setFill(Color.TRANSPARENT);
@@ -151,6 +164,9 @@ public class BrushTool extends AbstractPathROITool {
             return;
         }
 		
+		// Make sure nothing is left over from a previous stroke
+		commitStroke();
+		
 		ensureCursorType(getRequestedCursor());
 		
 		PathObjectHierarchy hierarchy = viewer.getHierarchy();
@@ -244,12 +260,8 @@ public class BrushTool extends AbstractPathROITool {
 
 		PathShape shapeROI = (PathShape)currentROI;
 		
-		PathObject pathObjectUpdated = getUpdatedObject(e, shapeROI, pathObject, -1);
-//		if (pathObject == pathObjectUpdated)
-//			viewer.repaint();
-//		else
-			viewer.setSelectedObject(pathObjectUpdated);
-//		System.out.println("REPAINT CALLED!");
+		if (addToStroke(e, shapeROI, (PathAnnotationObject)pathObject))
+			viewer.repaint();
 	}
 	
 	
@@ -259,6 +271,69 @@ public class BrushTool extends AbstractPathROITool {
 	}
 	
 	
+	/**
+	 * Add the brush stamp for a drag event to the current stroke, starting a new stroke if necessary.
+	 * <p>
+	 * The annotation itself is not changed until the stroke is committed; until then, the stroke is painted 
+	 * separately by a {@link BrushStroke}.  This means each drag event only needs to append the stamp, 
+	 * rather than combining it with the (possibly very complex) annotation ROI.
+	 * 
+	 * @param e
+	 * @param shapeROI
+	 * @param currentObject
+	 * @return true if the stroke was changed, false otherwise
+	 */
+	private boolean addToStroke(MouseEvent e, PathShape shapeROI, PathAnnotationObject currentObject) {
+		Point2D p = viewer.componentPointToImagePoint(e.getX(), e.getY(), null, true);
+		Shape shapeDrawn = createShape(p.getX(), p.getY(), PathPrefs.getUseTileBrush() && !e.isShiftDown());
+		if (shapeDrawn == null)
+			return false;
+		
+		boolean subtract = isSubtractMode(e);
+		if (stroke != null && (stroke.getPathObject() != currentObject || stroke.isSubtract() != subtract)) {
+			commitStroke();
+			shapeROI = (PathShape)currentObject.getROI();
+		}
+		// Nothing to subtract if we're outside the ROI bounds
+		if (subtract && (stroke == null || stroke.isEmpty()) && !AwtTools.getBounds2D(shapeROI, null).intersects(shapeDrawn.getBounds2D()))
+			return false;
+		if (stroke == null) {
+			stroke = new BrushStroke(currentObject, subtract);
+			viewer.addOverlay(stroke);
+		}
+		stroke.addStamp(shapeDrawn);
+		return true;
+	}
+	
+	
+	/**
+	 * Combine any stroke currently in progress with its annotation.
+	 */
+	private void commitStroke() {
+		if (stroke == null)
+			return;
+		viewer.removeOverlay(stroke);
+		PathAnnotationObject pathObject = stroke.getPathObject();
+		ROI roi = pathObject.getROI();
+		if (!stroke.isEmpty() && roi instanceof PathShape) {
+			PathShape shapeROI = (PathShape)roi;
+			PathShape shapeStroke = new AWTAreaROI(stroke.getArea(), shapeROI.getC(), shapeROI.getZ(), shapeROI.getT());
+			PathShape shapeNew = PathROIToolsAwt.combineROIs(shapeROI, shapeStroke,
+					stroke.isSubtract() ? PathROIToolsAwt.CombineOp.SUBTRACT : PathROIToolsAwt.CombineOp.ADD, -1);
+			pathObject.setROI(toAreaIfComplex(shapeNew));
+		}
+		stroke = null;
+	}
+	
+	
+	private static PathShape toAreaIfComplex(PathShape shape) {
+		// Convert complete polygons to areas
+		if (shape instanceof PolygonROI && ((PolygonROI)shape).nVertices() > 50)
+			return new AWTAreaROI(PathROIToolsAwt.getShape(shape), shape.getC(), shape.getZ(), shape.getT());
+		return shape;
+	}
+	
+	
 	private PathObject getUpdatedObject(MouseEvent e, PathShape shapeROI, PathObject currentObject, double flatness) {
 		Point2D p = viewer.componentPointToImagePoint(e.getX(), e.getY(), null, true);
 		PathShape shapeNew;
@@ -272,10 +347,7 @@ public class BrushTool extends AbstractPathROITool {
 				return currentObject;
 			shapeNew = PathROIToolsAwt.combineROIs(shapeROI,
 					new AWTAreaROI(shapeDrawn, shapeROI.getC(), shapeROI.getZ(), shapeROI.getT()), subtractMode ? PathROIToolsAwt.CombineOp.SUBTRACT : PathROIToolsAwt.CombineOp.ADD, flatness);
-			// Convert complete polygons to areas
-			if (shapeNew instanceof PolygonROI && ((PolygonROI)shapeNew).nVertices() > 50) {
-				shapeNew = new AWTAreaROI(PathROIToolsAwt.getShape(shapeNew), shapeNew.getC(), shapeNew.getZ(), shapeNew.getT());
-			}
+			shapeNew = toAreaIfComplex(shapeNew);
 		} else {
 			shapeNew = new AWTAreaROI(shapeDrawn, -1, viewer.getZPosition(), viewer.getTPosition());
 		}
@@ -302,6 +374,8 @@ public class BrushTool extends AbstractPathROITool {
 		
 		ensureCursorType(Cursor.DEFAULT);
 		
+		commitStroke();
+		
 		if (e.isConsumed())
 			return;
 
@@ -409,4 +483,95 @@ public class BrushTool extends AbstractPathROITool {
 //		return new PathPolygonROI(x, y, -1, z, t);
 	}
 	
+	
+	/**
+	 * Brush stroke that is in progress, painted as an overlay until it is committed.
+	 * <p>
+	 * Recent stamps are appended to a path, filled using the non-zero winding rule so that overlapping 
+	 * stamps are painted as their union without any boolean operations being required.  Every 
+	 * {@link #STAMPS_PER_AREA} stamps, the path is merged into an Area representing the stroke so far.  
+	 * This keeps the cost of painting - and of committing the stroke - bounded by the complexity 
+	 * of the stroke outline, rather than growing with the number of stamps.
+	 * <p>
+	 * Stamps are added on the application thread, but the overlay may be painted from elsewhere - 
+	 * so access to the stroke is synchronized.
+	 */
+	static class BrushStroke extends AbstractOverlay {
+		
+		static final int STAMPS_PER_AREA = 32;
+		
+		private final PathAnnotationObject pathObject;
+		private final boolean subtract;
+		private final Area area = new Area();
+		private final Path2D pending = new Path2D.Double(Path2D.WIND_NON_ZERO);
+		private int nPending = 0;
+		private boolean isEmpty = true;
+		
+		BrushStroke(final PathAnnotationObject pathObject, final boolean subtract) {
+			this.pathObject = pathObject;
+			this.subtract = subtract;
+		}
+		
+		PathAnnotationObject getPathObject() {
+			return pathObject;
+		}
+		
+		boolean isSubtract() {
+			return subtract;
+		}
+		
+		synchronized boolean isEmpty() {
+			return isEmpty;
+		}
+		
+		/**
+		 * Append a stamp to the stroke.
+		 * <p>
+		 * The stamp is converted to an Area first, so that all stamps have a consistent orientation 
+		 * (otherwise the winding rule could leave holes where they overlap).
+		 * 
+		 * @param stamp
+		 */
+		synchronized void addStamp(final Shape stamp) {
+			pending.append(new Area(stamp), false);
+			isEmpty = false;
+			if (++nPending >= STAMPS_PER_AREA)
+				mergePending();
+		}
+		
+		private void mergePending() {
+			if (nPending == 0)
+				return;
+			area.add(new Area(pending));
+			pending.reset();
+			nPending = 0;
+		}
+		
+		/**
+		 * Get the union of all stamps.
+		 * @return
+		 */
+		synchronized Area getArea() {
+			mergePending();
+			return new Area(area);
+		}
+		
+		@Override
+		public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageObserver observer, boolean paintCompletely) {
+			if (isInvisible())
+				return;
+			java.awt.Color color = subtract ? ColorToolsAwt.TRANSLUCENT_BLACK : ColorToolsAwt.getTranslucentColor(PathObjectColorToolsAwt.getDisplayedColorAWT(pathObject));
+			Graphics2D g = (Graphics2D)g2d.create();
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setColor(color);
+			synchronized (this) {
+				g.fill(area);
+				if (nPending > 0)
+					g.fill(pending);
+			}
+			g.dispose();
+		}
+		
+	}
+	
 }
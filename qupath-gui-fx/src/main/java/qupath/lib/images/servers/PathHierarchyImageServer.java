@@ -23,10 +23,12 @@
 
 package qupath.lib.images.servers;
 
+import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.GraphicsConfiguration;
 import java.awt.GraphicsEnvironment;
 import java.awt.Transparency;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.ArrayList;
@@ -49,6 +51,7 @@ import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectConnections;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
 
 
 /**
@@ -71,6 +74,27 @@ public class PathHierarchyImageServer implements GeneratingImageServer<BufferedI
 	private PathObjectHierarchy hierarchy;
 //	private PathHierarchyPainter painter;
 	
+	/**
+	 * If a typical detection covers fewer than DENSITY_PIXELS_PER_OBJECT pixels at a downsample level, 
+	 * individual objects can't really be seen - so a density map is painted instead.
+	 */
+	final private static int DENSITY_PIXELS_PER_OBJECT = 16;
+	
+	/**
+	 * Maximum number of detections used to estimate the typical detection area.
+	 */
+	final private static int MAX_AREA_SAMPLES = 1000;
+	
+	/**
+	 * Typical (mean) bounding box area of a detection, in full-resolution pixels - or NaN if it hasn't been computed.
+	 */
+	private volatile double typicalDetectionArea = Double.NaN;
+	
+	/**
+	 * Size of each bin (in tile pixels) used when painting a density map.
+	 */
+	final private static int DENSITY_BIN_SIZE = 4;
+	
 	public PathHierarchyImageServer(final ImageData<BufferedImage> imageData, final OverlayOptions options) {
 		this(DEFAULT_PREFIX + " " + counter + "::", imageData, imageData.getServer(), imageData.getHierarchy(), options);
 	}
@@ -100,7 +124,7 @@ public class PathHierarchyImageServer implements GeneratingImageServer<BufferedI
 
 	@Override
 	public double[] getPreferredDownsamples() {
-		return new double[]{1, 4, 32, 64, 128};
+		return new double[]{1, 4, 8, 16, 32, 64, 128};
 //		return new double[]{4, 32, 1024};
 //		return new double[]{1, 4, 32};
 //		return server.getPreferredDownsamples();
@@ -231,6 +255,8 @@ public class PathHierarchyImageServer implements GeneratingImageServer<BufferedI
 		PathObjectConnections connections = (o instanceof PathObjectConnections) ? (PathObjectConnections)o : null;
 		
 		List<PathObject> pathObjects = new ArrayList<>(getObjectsToPaint(request));
+		// Remove objects with hidden classifications, so they aren't included in any density map either
+		pathObjects.removeIf(p -> options.isPathClassHidden(p.getPathClass()));
 		if (pathObjects == null || pathObjects.isEmpty()) {
 			// We can only return null if no connections - otherwise we might still need to draw something
 			if (connections == null) {
@@ -254,8 +280,12 @@ public class PathHierarchyImageServer implements GeneratingImageServer<BufferedI
 		g2d.scale(scale, scale);
 		g2d.translate(-request.getX(), -request.getY());
 		// Note we don't want to pass a selection model, as selections shouldn't be included
-		if (pathObjects != null && !pathObjects.isEmpty())
-			PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, AwtTools.getBounds(request), pathObjects, options, null, downsampleFactor);
+		if (pathObjects != null && !pathObjects.isEmpty()) {
+			if (useDensityMap(downsampleFactor))
+				paintDensity(g2d, request, pathObjects);
+			else
+				PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, AwtTools.getBounds(request), pathObjects, options, null, downsampleFactor);
+		}
 		
 		// See if we have any connections to draw
 		if (connections != null) {
@@ -270,6 +300,111 @@ public class PathHierarchyImageServer implements GeneratingImageServer<BufferedI
 		return img;
 	}
 
+	/**
+	 * Check whether a density map should be painted at a specified downsample, rather than painting individual objects.
+	 * <p>
+	 * This is decided for the whole level (based upon the typical detection size), rather than for each tile, 
+	 * so that neighboring tiles are always painted in the same way.
+	 * 
+	 * @param downsample
+	 * @return
+	 */
+	boolean useDensityMap(final double downsample) {
+		double area = getTypicalDetectionArea();
+		if (Double.isNaN(area))
+			return false;
+		return area / (downsample * downsample) < DENSITY_PIXELS_PER_OBJECT;
+	}
+	
+	/**
+	 * Clear the cached information used to decide whether density maps should be painted.
+	 * This should be called whenever the hierarchy structure changes.
+	 */
+	public void clearCachedDensityLevels() {
+		typicalDetectionArea = Double.NaN;
+	}
+	
+	private double getTypicalDetectionArea() {
+		double area = typicalDetectionArea;
+		if (!Double.isNaN(area))
+			return area;
+		List<PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+		if (detections.isEmpty())
+			return Double.NaN;
+		int step = Math.max(1, detections.size() / MAX_AREA_SAMPLES);
+		double sum = 0;
+		int n = 0;
+		for (int i = 0; i < detections.size(); i += step) {
+			ROI roi = detections.get(i).getROI();
+			if (roi == null)
+				continue;
+			sum += roi.getBoundsWidth() * roi.getBoundsHeight();
+			n++;
+		}
+		if (n == 0)
+			return Double.NaN;
+		area = sum / n;
+		typicalDetectionArea = area;
+		return area;
+	}
+
+	/**
+	 * Paint a density map summarizing objects within a region, rather than painting the objects individually.
+	 * <p>
+	 * Each bin shows the mean color of the objects whose centroids fall inside it, with an opacity 
+	 * determined by the (approximate) proportion of the bin covered by objects.
+	 * 
+	 * @param g2d graphics object, transformed so that it uses the full-resolution image coordinates
+	 * @param request
+	 * @param pathObjects
+	 */
+	private void paintDensity(final Graphics2D g2d, final RegionRequest request, final Collection<PathObject> pathObjects) {
+		double binSize = DENSITY_BIN_SIZE * request.getDownsample();
+		int nx = (int)Math.ceil(request.getWidth() / binSize);
+		int ny = (int)Math.ceil(request.getHeight() / binSize);
+		double[] sumArea = new double[nx * ny];
+		double[] sumRed = new double[nx * ny];
+		double[] sumGreen = new double[nx * ny];
+		double[] sumBlue = new double[nx * ny];
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = pathObject.getROI();
+			if (roi == null)
+				continue;
+			Integer rgb = PathHierarchyPaintingHelper.getDetectionColorRGB(pathObject, options);
+			if (rgb == null)
+				continue;
+			int x = (int)((roi.getCentroidX() - request.getX()) / binSize);
+			int y = (int)((roi.getCentroidY() - request.getY()) / binSize);
+			if (x < 0 || y < 0 || x >= nx || y >= ny)
+				continue;
+			// Approximate the area using an ellipse inside the bounding box, since computing exact areas would be too slow
+			double area = Math.max(1.0, roi.getBoundsWidth() * roi.getBoundsHeight() * Math.PI / 4.0);
+			int ind = y * nx + x;
+			sumArea[ind] += area;
+			sumRed[ind] += ColorTools.red(rgb) * area;
+			sumGreen[ind] += ColorTools.green(rgb) * area;
+			sumBlue[ind] += ColorTools.blue(rgb) * area;
+		}
+		double binArea = binSize * binSize;
+		for (int y = 0; y < ny; y++) {
+			for (int x = 0; x < nx; x++) {
+				int ind = y * nx + x;
+				double area = sumArea[ind];
+				if (area == 0)
+					continue;
+				int alpha = (int)Math.min(255, Math.round(area / binArea * 255));
+				if (alpha == 0)
+					continue;
+				g2d.setColor(new Color(
+						(int)(sumRed[ind] / area),
+						(int)(sumGreen[ind] / area),
+						(int)(sumBlue[ind] / area),
+						alpha));
+				g2d.fill(new Rectangle2D.Double(request.getX() + x * binSize, request.getY() + y * binSize, binSize, binSize));
+			}
+		}
+	}
+
 	@Override
 	public int getBitsPerPixel() {
 		return 8; // Only 8-bit RGB images provided
@@ -28,15 +28,20 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +64,13 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	
 	static Logger logger = LoggerFactory.getLogger(DefaultImageRegionStore.class);
 	
+	// Most recent region painted for each view (e.g. viewer), used to measure the time taken to paint the region completely
+	private Map<Object, ViewState> viewStates = Collections.synchronizedMap(new WeakHashMap<>());
+	
+	private volatile long lastTimeToFullFrameNanos = 0;
+	private LongAdder totalTimeToFullFrameNanos = new LongAdder();
+	private LongAdder fullFrameCount = new LongAdder();
+	
 	protected DefaultImageRegionStore(int thumbnailWidth, long tileCacheSize) {
 		super(new BufferedImageSizeEstimator(), thumbnailWidth, tileCacheSize);
 	}
@@ -138,6 +150,16 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 					imgTile = worker.get();//(10, TimeUnit.SECONDS); // TODO: Consider timeout?
 				RegionRequest region = worker.getRequest();
 				g2d.drawImage(imgTile, region.getX(), region.getY(), region.getWidth(), region.getHeight(), null);
+			} catch (CancellationException e) {
+				// Another caller gave up waiting for the tile & read it directly
+				RegionRequest region = worker.getRequest();
+				BufferedImage imgCached = cache.get(region);
+				if (imgCached == null && !cache.containsKey(region)) {
+					logger.debug("Tile request cancelled for {}... will request image from server instead", server.getPath());
+					imgCached = server.readBufferedImage(region);
+				}
+				if (imgCached != null)
+					g2d.drawImage(imgCached, region.getX(), region.getY(), region.getWidth(), region.getHeight(), null);
 			} catch (Exception e) {
 //				logger.warn("{}", e);
 				if (nullIfTimeout) {
@@ -248,18 +270,115 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 
 	
 	public void paintRegion(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageDisplay imageDisplay) {
+		paintRegion(server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay, null);
+	}
+	
+	
+	/**
+	 * Paint a region, requesting any missing tiles &amp; painting lower-resolution tiles in their place if available.
+	 * <p>
+	 * If a view key is provided, then any queued requests previously made for the same view that are no longer 
+	 * visible are cancelled, and the time taken until the view can be painted completely is recorded.
+	 * 
+	 * @param server
+	 * @param g
+	 * @param clipShapeVisible
+	 * @param zPosition
+	 * @param tPosition
+	 * @param downsampleFactor
+	 * @param imgThumbnail
+	 * @param observer
+	 * @param imageDisplay
+	 * @param viewKey object identifying the view being painted (e.g. the viewer), or null
+	 */
+	public void paintRegion(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageDisplay imageDisplay, Object viewKey) {
+		// Discard any queued requests for tiles that can no longer be seen
+		Rectangle visibleBounds = clipShapeVisible.getBounds();
+		cancelInvisibleRequests(viewKey, server.getPath(), visibleBounds, zPosition, tPosition);
+		
+		ViewState previousState = null;
+		if (viewKey != null) {
+			long startTime = System.nanoTime();
+			ViewState state = new ViewState(server.getPath(), visibleBounds, downsampleFactor, zPosition, tPosition, startTime);
+			previousState = viewStates.get(viewKey);
+			if (previousState == null || !previousState.sameView(state)) {
+				viewStates.put(viewKey, state);
+				previousState = state;
+			}
+		}
+		
 		registerRequest(null, server, clipShapeVisible, downsampleFactor, zPosition, tPosition);
-		paintRegionInternal(server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay);
+		boolean complete = paintRegionInternal(server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay, viewKey);
+		
+		// Record how long it took before every tile needed at the requested resolution could be painted
+		if (complete && previousState != null && !previousState.complete) {
+			previousState.complete = true;
+			long elapsed = System.nanoTime() - previousState.startTime;
+			lastTimeToFullFrameNanos = elapsed;
+			totalTimeToFullFrameNanos.add(elapsed);
+			fullFrameCount.increment();
+			logger.trace("Time to full frame: {} ms", elapsed / 1e6);
+		}
+	}
+	
+	
+	/**
+	 * Get the time taken between a new region first being requested by {@link #paintRegion} and all the tiles 
+	 * at the requested resolution being available to paint, for the most recent region that was painted completely.
+	 * 
+	 * @return time in milliseconds, or NaN if no region has yet been painted completely
+	 */
+	public double getLastTimeToFullFrameMillis() {
+		return fullFrameCount.sum() == 0 ? Double.NaN : lastTimeToFullFrameNanos / 1e6;
+	}
+	
+	/**
+	 * Get the mean time taken between a new region first being requested by {@link #paintRegion} and all the tiles 
+	 * at the requested resolution being available to paint.
+	 * 
+	 * @return time in milliseconds, or NaN if no region has yet been painted completely
+	 * @see #getLastTimeToFullFrameMillis()
+	 */
+	public double getMeanTimeToFullFrameMillis() {
+		long n = fullFrameCount.sum();
+		return n == 0 ? Double.NaN : totalTimeToFullFrameNanos.sum() / 1e6 / n;
+	}
+	
+	/**
+	 * Get the number of regions requested by {@link #paintRegion} that have been painted completely, 
+	 * i.e. the number of measurements used to calculate {@link #getMeanTimeToFullFrameMillis()}.
+	 * 
+	 * @return
+	 */
+	public long getFullFrameCount() {
+		return fullFrameCount.sum();
+	}
+	
+	/**
+	 * Reset the time-to-full-frame measurements.
+	 */
+	public void resetFullFrameMetrics() {
+		fullFrameCount.reset();
+		totalTimeToFullFrameNanos.reset();
+		lastTimeToFullFrameNanos = 0;
 	}
 
 	
-	private void paintRegionInternal(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageDisplay imageDisplay) {
+	/**
+	 * Paint a region, requesting any missing tiles &amp; painting lower-resolution tiles in their place if available.
+	 * 
+	 * @return true if all the tiles at the requested downsample were available, false otherwise
+	 */
+	private boolean paintRegionInternal(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageDisplay imageDisplay, Object viewKey) {
 
 //		// We don't need it... but try to request the thumbnail to keep it present in the cache, if it is there
 //		cache.get(getThumbnailRequest(server, zPosition, tPosition));
 		
 		// Check if we have all the regions required for this request
 		List<RegionRequest> requests = ImageRegionStoreHelpers.getTilesToRequest(server, clipShapeVisible, downsampleFactor, zPosition, tPosition, null);
+		Rectangle2D boundsVisible = clipShapeVisible.getBounds2D();
+		double xCenter = boundsVisible.getCenterX();
+		double yCenter = boundsVisible.getCenterY();
 		
 //		System.out.println("Requesting tiles: " + requests.size());
 //		System.out.println("Requesting tiles " + server.getServerPath() + ": " + requests.size());
@@ -292,7 +411,7 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 				// Get the next downsample level if we can
 				if (nextDownsample > 0)
 //					paintRegion(server, g, clipShapeVisible, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay);
-					paintRegionInternal(server, g, missingBounds, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay);
+					paintRegionInternal(server, g, missingBounds, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay, viewKey);
 				else if (imgThumbnail != null) {
 					// The best we can do is paint the thumbnail
 					if (imageDisplay != null) {
@@ -308,14 +427,18 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 
 		// Loop through and draw whatever tiles we've got
 		BufferedImage imgTemp = null;
+		boolean complete = true;
 		for (RegionRequest request : requests) {
 			// Load the image
-			BufferedImage img = getCachedRegion(server, request);
+			BufferedImage img = getCachedRegion(server, request, xCenter, yCenter, viewKey);
 			
 			// If there is no image tile, try to get a lower-resolution version to draw - 
 			// this can actually paint over previously-available regions, but they will be repainted again when this region's request comes through
-			if (img == null)
+			if (img == null) {
+				if (!cache.containsKey(request))
+					complete = false;
 				continue;
+			}
 
 			// If we have an image, paint it & record coordinates
 			// Apply any required color transformations
@@ -330,7 +453,7 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 			
 			g.drawImage(img, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
 		}
-		
+		return complete;
 	}
 	
 	
@@ -340,4 +463,33 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	}
 	
 	
+	/**
+	 * Region requested by paintRegion, along with when it was first requested.
+	 */
+	private static class ViewState {
+		
+		private final String serverPath;
+		private final Rectangle bounds;
+		private final double downsample;
+		private final int z;
+		private final int t;
+		private final long startTime;
+		private volatile boolean complete = false;
+		
+		ViewState(final String serverPath, final Rectangle bounds, final double downsample, final int z, final int t, final long startTime) {
+			this.serverPath = serverPath;
+			this.bounds = bounds;
+			this.downsample = downsample;
+			this.z = z;
+			this.t = t;
+			this.startTime = startTime;
+		}
+		
+		boolean sameView(final ViewState state) {
+			return serverPath.equals(state.serverPath) && bounds.equals(state.bounds) && downsample == state.downsample && z == state.z && t == state.t;
+		}
+		
+	}
+	
+	
 }
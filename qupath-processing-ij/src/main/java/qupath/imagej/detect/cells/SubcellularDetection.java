@@ -31,9 +31,12 @@ import java.awt.image.DataBufferByte;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -90,6 +93,11 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 	
 	private final static Logger logger = LoggerFactory.getLogger(SubcellularDetection.class);
 	
+	/**
+	 * Size of the (square) tiles used to group cells, so that the pixels for neighboring cells can be read together.
+	 */
+	final static int DEFAULT_TILE_SIZE = 1024;
+	
 	transient private ImageRegionStore<BufferedImage> regionStore;
 	
 
@@ -123,7 +131,71 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 	@Override
 	protected void addRunnableTasks(final ImageData<BufferedImage> imageData, final PathObject parentObject, List<Runnable> tasks) {
 		final ParameterList params = getParameterList(imageData);
-		tasks.add(new SubcellularDetectionRunnable(imageData, parentObject, params, regionStore));
+		addRunnableTasks(imageData, parentObject, params, regionStore, DEFAULT_TILE_SIZE, tasks);
+	}
+	
+	/**
+	 * Add tasks to detect subcellular objects within all the cells of a parent object.
+	 * 
+	 * If tileSize &gt; 0, the cells are grouped according to the image tile containing their centroid, 
+	 * and one task is created per group.  Each task then reads the pixels for all of its cells in one request, 
+	 * rather than requesting a separate (and often overlapping) region for every cell.
+	 * 
+	 * If tileSize &lt;= 0, a single task is created that requests the pixels for each cell separately.
+	 * <p>
+	 * Either way, the measurement list of the parent object is closed once, by whichever task finishes last.
+	 * 
+	 * @param imageData
+	 * @param parentObject
+	 * @param params
+	 * @param store
+	 * @param tileSize
+	 * @param tasks
+	 */
+	static void addRunnableTasks(final ImageData<BufferedImage> imageData, final PathObject parentObject, final ParameterList params, final ImageRegionStore<BufferedImage> store, final int tileSize, final List<Runnable> tasks) {
+		List<PathObject> cellObjects;
+		if (parentObject instanceof PathCellObject)
+			cellObjects = Collections.singletonList(parentObject);
+		else
+			cellObjects = PathObjectTools.getFlattenedObjectList(parentObject, null, false).stream().filter(p -> p instanceof PathCellObject).collect(Collectors.toList());
+		if (tileSize <= 0 || cellObjects.size() <= 1) {
+			tasks.add(new SubcellularDetectionRunnable(imageData, parentObject, cellObjects, false, params, store, new AtomicInteger(1)));
+			return;
+		}
+		Collection<List<PathObject>> batches = groupByTile(cellObjects, tileSize);
+		AtomicInteger remainingTasks = new AtomicInteger(batches.size());
+		for (List<PathObject> batch : batches)
+			tasks.add(new SubcellularDetectionRunnable(imageData, parentObject, batch, true, params, store, remainingTasks));
+	}
+	
+	/**
+	 * Group objects according to the tile containing the centroid of their ROI.
+	 * 
+	 * Objects without a ROI are returned together in a single group.
+	 * 
+	 * @param pathObjects
+	 * @param tileSize
+	 * @return
+	 */
+	static Collection<List<PathObject>> groupByTile(final Collection<PathObject> pathObjects, final int tileSize) {
+		Map<String, List<PathObject>> map = new LinkedHashMap<>();
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = pathObject.getROI();
+			String key;
+			if (roi == null)
+				key = "";
+			else
+				key = roi.getZ() + ":" + roi.getT() + ":" + 
+						(int)Math.floor(roi.getCentroidX() / tileSize) + ":" + 
+						(int)Math.floor(roi.getCentroidY() / tileSize);
+			List<PathObject> list = map.get(key);
+			if (list == null) {
+				list = new ArrayList<>();
+				map.put(key, list);
+			}
+			list.add(pathObject);
+		}
+		return map.values();
 	}
 	
 	
@@ -156,13 +228,30 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 		private ImageData<BufferedImage> imageData;
 		private ParameterList params;
 		private PathObject parentObject;
+		private List<PathObject> cellObjects;
+		private boolean readAsBatch;
 		private ImageRegionStore<BufferedImage> store;
+		private AtomicInteger remainingTasks;
 		
-		public SubcellularDetectionRunnable(final ImageData<BufferedImage> imageData, final PathObject parentObject, final ParameterList params, final ImageRegionStore<BufferedImage> store) {
+		/**
+		 * Constructor.
+		 * 
+		 * @param imageData
+		 * @param parentObject
+		 * @param cellObjects the cells to process
+		 * @param readAsBatch if true, read the pixels for all the cells in a single request; otherwise read pixels per cell
+		 * @param params
+		 * @param store
+		 * @param remainingTasks the number of tasks for the same parent object that have not yet finished; the last to finish closes the parent's measurement list
+		 */
+		public SubcellularDetectionRunnable(final ImageData<BufferedImage> imageData, final PathObject parentObject, final List<PathObject> cellObjects, final boolean readAsBatch, final ParameterList params, final ImageRegionStore<BufferedImage> store, final AtomicInteger remainingTasks) {
 			this.imageData = imageData;
 			this.parentObject = parentObject;
+			this.cellObjects = cellObjects;
+			this.readAsBatch = readAsBatch;
 			this.params = params;
 			this.store = store;
+			this.remainingTasks = remainingTasks;
 		}
 
 		@Override
@@ -178,10 +267,13 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 			try {
 				if (store != null)
 					store.addTileListener(this);
-				if (parentObject instanceof PathCellObject)
-					processObject(parentObject, params, new ImageWrapper(imageData, store));
-				else {
-					List<PathObject> cellObjects = PathObjectTools.getFlattenedObjectList(parentObject, null, false).stream().filter(p -> p instanceof PathCellObject).collect(Collectors.toList());
+				if (readAsBatch) {
+					// Read the pixels for all cells once, then reuse the same wrapper (and its buffers) for every cell
+					ImageWrapper imageWrapper = new ImageWrapper(imageData, store);
+					imageWrapper.setBatchRegion(getBatchRegion(imageData.getServer(), cellObjects));
+					for (PathObject cell : cellObjects)
+						processObject(cell, params, imageWrapper);
+				} else {
 					for (PathObject cell : cellObjects)
 						processObject(cell, params, new ImageWrapper(imageData, store));
 				}
@@ -190,9 +282,11 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 			} finally {
 				if (store != null)
 					store.removeTileListener(this);
-				parentObject.getMeasurementList().closeList();
+				if (remainingTasks.decrementAndGet() == 0)
+					parentObject.getMeasurementList().closeList();
 				imageData = null;
 				params = null;
+				cellObjects = null;
 				store = null;
 			}
 		}
@@ -206,6 +300,54 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 		
 	}
 	
+	/**
+	 * Get the region that needs to be requested to process a single cell, 
+	 * including a 1 pixel border and clipped to the image bounds.
+	 * 
+	 * @param server
+	 * @param pathROI
+	 * @return the region, or null if no valid region could be determined
+	 */
+	static RegionRequest getCellRegion(final ImageServer<BufferedImage> server, final ROI pathROI) {
+		if (pathROI == null || pathROI.isEmpty())
+			return null;
+		int xStart = (int)Math.max(0, pathROI.getBoundsX() - 1);
+		int yStart = (int)Math.max(0, pathROI.getBoundsY() - 1);
+		int width = (int)Math.min(server.getWidth()-1, pathROI.getBoundsX() + pathROI.getBoundsWidth() + 1.5) - xStart;
+		int height = (int)Math.min(server.getHeight()-1, pathROI.getBoundsY() + pathROI.getBoundsHeight() + 1.5) - yStart;
+		if (width <= 0 || height <= 0)
+			return null;
+		return RegionRequest.createInstance(server.getPath(), 1.0, xStart, yStart, width, height, pathROI.getT(), pathROI.getZ());
+	}
+	
+	/**
+	 * Get the smallest region containing the regions required for all the specified cells.
+	 * 
+	 * @param server
+	 * @param cellObjects
+	 * @return the region, or null if no valid region could be determined for any cell
+	 */
+	static RegionRequest getBatchRegion(final ImageServer<BufferedImage> server, final Collection<PathObject> cellObjects) {
+		RegionRequest first = null;
+		int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE, x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+		for (PathObject cell : cellObjects) {
+			RegionRequest region = getCellRegion(server, cell.getROI());
+			if (region == null)
+				continue;
+			if (first == null)
+				first = region;
+			else if (region.getZ() != first.getZ() || region.getT() != first.getT())
+				continue;
+			x1 = Math.min(x1, region.getX());
+			y1 = Math.min(y1, region.getY());
+			x2 = Math.max(x2, region.getX() + region.getWidth());
+			y2 = Math.max(y2, region.getY() + region.getHeight());
+		}
+		if (first == null)
+			return null;
+		return RegionRequest.createInstance(server.getPath(), 1.0, x1, y1, x2 - x1, y2 - y1, first.getZ(), first.getT());
+	}
+	
 	/**
 	 * Initial version of subcellular detection processing.
 	 * 
@@ -263,18 +405,14 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 		boolean splitByShape = Boolean.TRUE.equals(params.getBooleanParameterValue("splitByShape"));
 		
 		// Get region to request - give a pixel as border
-		int xStart = (int)Math.max(0, pathROI.getBoundsX() - 1);
-		int yStart = (int)Math.max(0, pathROI.getBoundsY() - 1);
-		int width = (int)Math.min(server.getWidth()-1, pathROI.getBoundsX() + pathROI.getBoundsWidth() + 1.5) - xStart;
-		int height = (int)Math.min(server.getHeight()-1, pathROI.getBoundsY() + pathROI.getBoundsHeight() + 1.5) - yStart;
-
-		if (width <= 0 || height <= 0) {
+		RegionRequest region = getCellRegion(server, pathROI);
+		if (region == null) {
 			logger.error("Negative ROI size for {}", pathROI);
 			pathObject.setPathClass(baseClass);
 			return false;
 		}
-
-		RegionRequest region = RegionRequest.createInstance(server.getPath(), 1.0, xStart, yStart, width, height, pathROI.getT(), pathROI.getZ());
+		int xStart = region.getX();
+		int yStart = region.getY();
 
 		// Mask to indicate pixels within the cell
 		byte[] cellMask = null;
@@ -538,6 +676,10 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 		private final ImageRegionStore<BufferedImage> regionStore;
 		private Map<RegionRequest, BufferedImage> cachedRegions = new HashMap<>();
 		
+		private RegionRequest batchRegion;
+		private float[][] batchPixels;
+		private float[] buffer;
+		
 		public ImageWrapper(final ImageData<BufferedImage> imageData, final ImageRegionStore<BufferedImage> regionStore) {
 			this.imageData = imageData;
 			this.regionStore = regionStore;
@@ -547,6 +689,21 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 			return imageData.getServer();
 		}
 		
+		/**
+		 * Set a region that contains all (or most) of the regions that will subsequently be requested.
+		 * 
+		 * The pixels for this region are read once, and each channel is extracted at most once.
+		 * Requests for regions falling inside it are then cropped from these pixels, 
+		 * using a buffer that is reused between requests - so any image returned by getRegion 
+		 * is only valid until the next call.
+		 * 
+		 * @param region the batch region, or null if regions should be requested individually
+		 */
+		public void setBatchRegion(final RegionRequest region) {
+			this.batchRegion = region;
+			this.batchPixels = region == null ? null : new float[nChannels()][];
+		}
+		
 		/**
 		 * Request pixels for a specified channel.
 		 * 
@@ -574,7 +731,40 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 		 * @return
 		 */
 		public SimpleImage getRegion(final RegionRequest region, final int channel) {
+			if (batchRegion != null && containsRegion(batchRegion, region))
+				return cropBatchRegion(region, channel);
 			BufferedImage img = getBufferedImage(region);
+			return new FloatArraySimpleImage(getChannelPixels(img, channel), img.getWidth(), img.getHeight());
+		}
+		
+		private static boolean containsRegion(final RegionRequest outer, final RegionRequest inner) {
+			return outer.getDownsample() == inner.getDownsample() &&
+					outer.getZ() == inner.getZ() && outer.getT() == inner.getT() &&
+					inner.getX() >= outer.getX() && inner.getY() >= outer.getY() &&
+					inner.getX() + inner.getWidth() <= outer.getX() + outer.getWidth() &&
+					inner.getY() + inner.getHeight() <= outer.getY() + outer.getHeight();
+		}
+		
+		private SimpleImage cropBatchRegion(final RegionRequest region, final int channel) {
+			BufferedImage img = getBufferedImage(batchRegion);
+			float[] pixels = batchPixels[channel];
+			if (pixels == null) {
+				pixels = getChannelPixels(img, channel);
+				batchPixels[channel] = pixels;
+			}
+			int w = region.getWidth();
+			int h = region.getHeight();
+			if (buffer == null || buffer.length < w * h)
+				buffer = new float[w * h];
+			int batchWidth = img.getWidth();
+			int x = region.getX() - batchRegion.getX();
+			int y = region.getY() - batchRegion.getY();
+			for (int yy = 0; yy < h; yy++)
+				System.arraycopy(pixels, (y + yy) * batchWidth + x, buffer, yy * w, w);
+			return new FloatArraySimpleImage(buffer, w, h);
+		}
+		
+		private float[] getChannelPixels(final BufferedImage img, final int channel) {
 			ColorDeconvolutionStains stains = imageData.getColorDeconvolutionStains();
 			float[] pixels = null;
 			int w = img.getWidth();
@@ -583,9 +773,9 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 				int[] buf = img.getRGB(0, 0, w, h, null, 0, w);
 				pixels = ColorDeconvolution.colorDeconvolveRGBArray(buf, stains, channel, pixels);
 			} else {
-				pixels = img.getData().getSamples(0, 0, w, h, channel, pixels);
+				pixels = img.getRaster().getSamples(0, 0, w, h, channel, pixels);
 			}
-			return new FloatArraySimpleImage(pixels, w, h);
+			return pixels;
 		}
 		
 		/**
@@ -28,11 +28,10 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -55,6 +54,7 @@ import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import qupath.imagej.processing.ROILabeling;
 
 
@@ -69,21 +69,76 @@ import qupath.imagej.processing.ROILabeling;
 public class TMADearrayer {
 
 	
+	/**
+	 * Compute the proportion of foreground pixels within a circular neighbourhood (diameter coreDiameterPx) of each grid point.
+	 * <p>
+	 * This gives the same result as applying a RankFilters mean filter to the binary image and sampling at each grid point 
+	 * (including the handling of image boundaries), but only visits the pixels surrounding each point.
+	 * 
+	 * @param bp binary image, where foreground pixels are non-zero
+	 * @param polyGrid grid points
+	 * @param coreDiameterPx core diameter, in pixels
+	 * @return density for each grid point, or 0 if the point is outside the image
+	 */
 	public static double[] computeDensities(ByteProcessor bp, Polygon polyGrid, double coreDiameterPx) {
-		RankFilters rf = new RankFilters();
-		FloatProcessor fp = bp.convertToFloatProcessor();
-		fp.max(1.0);
-		rf.rank(fp, coreDiameterPx*0.5, RankFilters.MEAN);
+		int[] lineRadii = makeLineRadii(coreDiameterPx * 0.5);
+		int kRadius = lineRadii[lineRadii.length - 1];
+		int nPoints = lineRadii[lineRadii.length - 2];
+		int width = bp.getWidth();
+		int height = bp.getHeight();
+		byte[] pixels = (byte[])bp.getPixels();
 		double[] densities = new double[polyGrid.npoints];
 		for (int i = 0; i < densities.length; i++) {
 			int x = polyGrid.xpoints[i];
 			int y = polyGrid.ypoints[i];
-			if (x >= 0 && y >= 0 && x < bp.getWidth() && y < bp.getHeight())
-				densities[i] = fp.getf(x, y);
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				continue;
+			// Pixels outside the image are padded by duplicating the nearest edge pixel
+			int count = 0;
+			for (int dy = -kRadius; dy <= kRadius; dy++) {
+				int row = Math.min(Math.max(y + dy, 0), height - 1) * width;
+				int dx = lineRadii[2*(kRadius + dy) + 1];
+				for (int xx = x - dx; xx <= x + dx; xx++) {
+					if (pixels[row + Math.min(Math.max(xx, 0), width - 1)] != 0)
+						count++;
+				}
+			}
+			densities[i] = (float)((double)count / nPoints);
 		}
 		return densities;
 	}
 	
+	/**
+	 * Create the circular kernel used by ImageJ's RankFilters for a specified radius.
+	 * 
+	 * @param radius
+	 * @return array containing pairs of (-dx, dx) for each row of the kernel, followed by the number of points &amp; kernel radius
+	 */
+	private static int[] makeLineRadii(double radius) {
+		if (radius >= 1.5 && radius < 1.75)
+			radius = 1.75;
+		else if (radius >= 2.5 && radius < 2.85)
+			radius = 2.85;
+		int r2 = (int)(radius*radius) + 1;
+		int kRadius = (int)(Math.sqrt(r2 + 1e-10));
+		int kHeight = 2*kRadius + 1;
+		int[] kernel = new int[2*kHeight + 2];
+		kernel[2*kRadius] = -kRadius;
+		kernel[2*kRadius+1] = kRadius;
+		int nPoints = 2*kRadius + 1;
+		for (int y = 1; y <= kRadius; y++) {
+			int dx = (int)(Math.sqrt(r2 - y*y + 1e-10));
+			kernel[2*(kRadius-y)] = -dx;
+			kernel[2*(kRadius-y)+1] = dx;
+			kernel[2*(kRadius+y)] = -dx;
+			kernel[2*(kRadius+y)+1] = dx;
+			nPoints += 4*dx + 2;
+		}
+		kernel[kernel.length-2] = nPoints;
+		kernel[kernel.length-1] = kRadius;
+		return kernel;
+	}
+	
 	
 	/**
 	 * Detect TMA cores from a (low-resolution) whole slide image that has been thresholded to give a binary image.
@@ -197,6 +252,88 @@ public class TMADearrayer {
 	
 	
 	
+	/**
+	 * Refine the centre &amp; diameter of a single TMA core, using an image of the region surrounding it 
+	 * (typically at a higher resolution than was used to detect the grid).
+	 * <p>
+	 * The image is thresholded using Otsu's method, and the connected region closest to the estimated centre 
+	 * (and with an area compatible with the expected core diameter) is used.
+	 * 
+	 * @param ip - image containing the core
+	 * @param xCenter - estimated x-coordinate of the core centre, in pixels
+	 * @param yCenter - estimated y-coordinate of the core centre, in pixels
+	 * @param coreDiameterPx - expected core diameter, in pixels
+	 * @param isFluorescence - true if this is a fluorescence image, false if it is brightfield
+	 * @return array containing the refined x &amp; y coordinates of the centre and the core diameter, or null if no suitable region was found
+	 */
+	public static double[] refineCore(ImageProcessor ip, double xCenter, double yCenter, double coreDiameterPx, boolean isFluorescence) {
+		// Create a smoothed, scaled grayscale image, with the core brighter than the background
+		FloatProcessor fp = ip instanceof ColorProcessor ? ip.convertToByte(false).convertToFloatProcessor() : ip.convertToFloatProcessor();
+		fp.blurGaussian(Math.max(1.0, coreDiameterPx * 0.01));
+		ByteProcessor bpGray = fp.convertToByteProcessor(true);
+		if (!isFluorescence)
+			bpGray.invert();
+		bpGray.setAutoThreshold(AutoThresholder.Method.Otsu, true, ImageProcessor.NO_LUT_UPDATE);
+		double threshold = bpGray.getMinThreshold();
+		
+		// Threshold, clean & fill holes
+		ByteProcessor bp = new ByteProcessor(bpGray.getWidth(), bpGray.getHeight());
+		byte[] pxGray = (byte[])bpGray.getPixels();
+		byte[] pxBinary = (byte[])bp.getPixels();
+		for (int i = 0; i < pxBinary.length; i++)
+			pxBinary[i] = (pxGray[i] & 0xff) > threshold ? (byte)255 : 0;
+		double filterRadius = Math.max(1.0, coreDiameterPx * 0.02);
+		RankFilters rf = new RankFilters();
+		rf.rank(bp, filterRadius, RankFilters.MIN);
+		rf.rank(bp, filterRadius, RankFilters.MAX);
+		ROILabeling.fillHoles(bp);
+		
+		// Compute the area & centroid of each connected region
+		ShortProcessor ipLabels = ROILabeling.labelImage(bp, false);
+		short[] labels = (short[])ipLabels.getPixels();
+		int width = ipLabels.getWidth();
+		int nLabels = 0;
+		for (short label : labels)
+			nLabels = Math.max(nLabels, label & 0xffff);
+		long[] counts = new long[nLabels + 1];
+		double[] sumX = new double[nLabels + 1];
+		double[] sumY = new double[nLabels + 1];
+		for (int i = 0; i < labels.length; i++) {
+			int label = labels[i] & 0xffff;
+			if (label == 0)
+				continue;
+			counts[label]++;
+			sumX[label] += i % width;
+			sumY[label] += i / width;
+		}
+		
+		// Find the closest region of a plausible size
+		double expectedArea = Math.PI * coreDiameterPx * coreDiameterPx * 0.25;
+		double maxDistSq = coreDiameterPx * coreDiameterPx * 0.25;
+		int bestLabel = -1;
+		double bestDistSq = Double.POSITIVE_INFINITY;
+		for (int label = 1; label <= nLabels; label++) {
+			if (counts[label] < expectedArea * 0.25 || counts[label] > expectedArea * 2.0)
+				continue;
+			double dx = sumX[label] / counts[label] + 0.5 - xCenter;
+			double dy = sumY[label] / counts[label] + 0.5 - yCenter;
+			double distSq = dx*dx + dy*dy;
+			if (distSq < maxDistSq && distSq < bestDistSq) {
+				bestDistSq = distSq;
+				bestLabel = label;
+			}
+		}
+		if (bestLabel < 0)
+			return null;
+		return new double[]{
+				sumX[bestLabel] / counts[bestLabel] + 0.5,
+				sumY[bestLabel] / counts[bestLabel] + 0.5,
+				Math.sqrt(counts[bestLabel] * 4 / Math.PI)
+		};
+	}
+	
+	
+	
 	/**
 	 * Identify regions in a binary image likely to correspond to complete TMA cores,
 	 * based both on size and circularity.
@@ -297,6 +434,9 @@ public class TMADearrayer {
 			ip2 = ip2.resize(ip.getWidth(), ip.getHeight());
 //			long end = System.currentTimeMillis();
 //			System.err.println("Duration: " + (end - start));
+		} else {
+			rf.rank(ip2, filterRadius, RankFilters.MIN);
+			rf.rank(ip2, filterRadius, RankFilters.MAX);
 		}
 		ip.copyBits(ip2, 0, 0, Blitter.SUBTRACT);
 		
@@ -334,43 +474,6 @@ public class TMADearrayer {
 	
 	
 	
-	private static boolean pointTooCloseX(Collection<Point> points, Point newPoint, double minDistance) {
-		for (Point p : points)
-			if (Math.abs(p.x - newPoint.x) < minDistance)
-				return true;
-		return false;
-	}
-	
-	private static List<Point> processTopRowOfPoints(List<Point> sortedPoints, double coreDiameterPx, int nPointsPerRow) {
-		// Take the first point and add it to the row being processed
-		ArrayList<Point> pointRow = new ArrayList<>(nPointsPerRow);
-		pointRow.add(sortedPoints.remove(0));
-		// Continue adding points until we have enough, making sure adequate spacing or at least one core diameter between them
-		Iterator<Point> iter = sortedPoints.iterator();
-		while (iter.hasNext()) {
-			Point p = iter.next();
-			// Any point with an x-coordinate within 1 core diameter is too close - must be from a lower row
-			if (!pointTooCloseX(pointRow, p, coreDiameterPx)) {
-				iter.remove();
-				pointRow.add(p);
-				// We might have enough points now
-				if (pointRow.size() == nPointsPerRow) {
-					break;
-				}
-			}
-		}
-		// Sort the points by x coordinate
-		Collections.sort(pointRow, new Comparator<Point>() {
-			@Override
-			public int compare(Point p1, Point p2) {
-				return new Integer(p1.x).compareTo(p2.x);
-			}
-		});
-			
-		return pointRow;
-	}
-	
-	
 	/**
 	 * Given a polygon representing TMA core centroids in any order, fit this to a coordinate grid.
 	 * Essentially this amounts to sorting the points starting from the top left,
@@ -378,6 +481,12 @@ public class TMADearrayer {
 	 * In practice the process is more complicated (and less certain to be correct...)
 	 * because coordinates in the same TMA row cannot be trusted to occur with the same image y coordinate,
 	 * similarly coordinates in the same TMA column can have different x coordinates.
+	 * <p>
+	 * Rows are built by taking the top-most remaining point, then adding the next points (in order of y) 
+	 * whose x-coordinate is at least one core diameter away from all points already in the row.
+	 * Remaining points are kept in a linked list &amp; the row x-coordinates in a sorted set, 
+	 * so that each test requires O(log n) rather than O(n) operations.
+	 * 
 	 * @param poly - The original centroid coordinates; this should have exactly nHorizontal * nVertical points.
 	 * @param coreDiameterPx - Approximate diameter of one TMA core (used to determine potential variability between core centroids)
 	 * @param nHorizontal - The number of cores in each row
@@ -387,29 +496,54 @@ public class TMADearrayer {
 	 */
 	public static Polygon fitCorePolygonToGrid(Polygon poly, double coreDiameterPx, int nHorizontal, int nVertical) {
 		// Extract the points & check we have the right number
-		if (poly.npoints != (nHorizontal * nVertical)) {
+		int n = poly.npoints;
+		if (n != (nHorizontal * nVertical)) {
 			return null;
 		}
 		
-		// Sort the points, top to bottom
-		ArrayList<Point> points = new ArrayList<>();
-		for (int i = 0; i < poly.npoints; i++)
-			points.add(new Point(poly.xpoints[i], poly.ypoints[i]));
-		Collections.sort(points, new Comparator<Point>() {
-			@Override
-			public int compare(Point p1, Point p2) {
-				return new Integer(p1.y).compareTo(p2.y);
-			}
-		});
+		// Sort the points, top to bottom (stable, so ties retain their original order)
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, (i1, i2) -> Integer.compare(poly.ypoints[i1], poly.ypoints[i2]));
+		
+		// Doubly-linked list of remaining points, in order of y (with index n as the head)
+		int head = n;
+		int[] next = new int[n + 1];
+		int[] previous = new int[n + 1];
+		for (int i = 0; i <= n; i++) {
+			next[i] = (i + 1) % (n + 1);
+			previous[i] = (i + n) % (n + 1);
+		}
 		
 		// Loop through the rows, constructing a polygon with the coords in order
 		Polygon poly2 = new Polygon();
+		NavigableSet<Integer> rowX = new TreeSet<>();
+		List<Point> pointRow = new ArrayList<>(nHorizontal);
 		for (int j = 0; j < nVertical; j++) {
-			List<Point> pointRow = processTopRowOfPoints(points, coreDiameterPx, nHorizontal);
-			for (int i = 0; i < pointRow.size(); i++) {
-				Point p = pointRow.get(i);
-				poly2.addPoint(p.x, p.y);
+			rowX.clear();
+			pointRow.clear();
+			// Take the first point, then continue adding points until we have enough, 
+			// making sure of at least one core diameter between them
+			for (int k = next[head]; k != head && pointRow.size() < nHorizontal; k = next[k]) {
+				int ind = order[k];
+				int x = poly.xpoints[ind];
+				// Any point with an x-coordinate within 1 core diameter is too close - must be from a lower row
+				if (!pointRow.isEmpty()) {
+					Integer floor = rowX.floor(x);
+					Integer ceiling = rowX.ceiling(x);
+					if ((floor != null && x - floor < coreDiameterPx) || (ceiling != null && ceiling - x < coreDiameterPx))
+						continue;
+				}
+				rowX.add(x);
+				pointRow.add(new Point(x, poly.ypoints[ind]));
+				next[previous[k]] = next[k];
+				previous[next[k]] = previous[k];
 			}
+			// Sort the points by x coordinate
+			Collections.sort(pointRow, (p1, p2) -> Integer.compare(p1.x, p2.x));
+			for (Point p : pointRow)
+				poly2.addPoint(p.x, p.y);
 		}
 		return poly2;
 	}
@@ -417,14 +551,23 @@ public class TMADearrayer {
 	
 	
 	private static double estimateRotation(Polygon poly, double coreDiameterPx) {
+		// Sort by x, so that only nearby points need to be checked for potential neighbours to the right
+		int n = poly.npoints;
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, (i1, i2) -> Integer.compare(poly.xpoints[i1], poly.xpoints[i2]));
+		
 		ArrayList<Double> angles = new ArrayList<>();
-		for (int i = 0; i < poly.npoints; i++) {
-			int x = poly.xpoints[i];
-			int y = poly.ypoints[i];
-			for (int j = 0; j < poly.npoints; j++) {
-				int x2 = poly.xpoints[j];
-				int y2 = poly.ypoints[j];
-				if ((x2 > x) && (x2 - x) < coreDiameterPx*2 && Math.abs(y - y2) < coreDiameterPx) {
+		for (int i = 0; i < n; i++) {
+			int x = poly.xpoints[order[i]];
+			int y = poly.ypoints[order[i]];
+			for (int j = i + 1; j < n; j++) {
+				int x2 = poly.xpoints[order[j]];
+				if ((x2 - x) >= coreDiameterPx*2)
+					break;
+				int y2 = poly.ypoints[order[j]];
+				if ((x2 > x) && Math.abs(y - y2) < coreDiameterPx) {
 					double angle = (180.0/Math.PI) * Math.atan2(y2 - y, x2 - x);
 					angles.add(angle);
 				}
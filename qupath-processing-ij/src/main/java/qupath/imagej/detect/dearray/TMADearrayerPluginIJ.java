@@ -26,9 +26,12 @@ package qupath.imagej.detect.dearray;
 import java.awt.Polygon;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +58,7 @@ import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.plugins.workflow.SimplePluginWorkflowStep;
 import qupath.lib.plugins.workflow.WorkflowStep;
+import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.interfaces.ROI;
 
 
@@ -98,6 +102,8 @@ public class TMADearrayerPluginIJ extends AbstractInteractivePlugin<BufferedImag
 //		gd.addMessage("Choose a scaling factor for the core ROIs.");
 //		gd.addMessage("1 means the ROI will have the same diameter as the core specified above; higher values add padding.");
 		params.addIntParameter("boundsScale", "Bounds scale factor", 105, "%", 50, 150, "Scaling factor to adjust the core size.\nA scale factor of 100% will give cores with the diameter specified above.\nA higher scale factor will increase the size, a lower factor will decrease the size.");
+		
+		params.addBooleanParameter("refineCores", "Refine cores", true, "Refine the centre & diameter of each core using a higher-resolution image.\nThis is slower, but can improve the accuracy of the core locations.");
 
 	}
 	
@@ -175,7 +181,13 @@ public class TMADearrayerPluginIJ extends AbstractInteractivePlugin<BufferedImag
 		
 		private String lastMessage = null;
 		
+		/**
+		 * Approximate core diameter, in pixels, at the resolution used for refining each core.
+		 */
+		private final static double REFINED_CORE_DIAMETER_PX = 200;
+		
 		private double fullCoreDiameterPx, downsample;
+		private int nRefined = 0;
 		private boolean isFluorescence;
 		private String[] hLabels, vLabels;
 		
@@ -230,16 +242,7 @@ public class TMADearrayerPluginIJ extends AbstractInteractivePlugin<BufferedImag
 
 			// Read the image
 			PathImage<ImagePlus> pathImage = PathImagePlus.createPathImage(server, downsample);
-			ImagePlus imp = pathImage.getImage();
-
-			if (imp.getType() == ImagePlus.COLOR_RGB || imp.getNChannels() == 1)
-				ip = imp.getProcessor();
-			else {
-				ZProjector zProjector = new ZProjector(imp);
-				zProjector.setMethod(ZProjector.AVG_METHOD);
-				zProjector.doProjection();
-				ip = zProjector.getProjection().getProcessor();
-			}
+			ip = getProcessor(pathImage.getImage());
 			bp = null;
 				
 			String[] hLabelsSplit = PathObjectTools.parseTMALabelString(horizontalLabels);
@@ -248,11 +251,78 @@ public class TMADearrayerPluginIJ extends AbstractInteractivePlugin<BufferedImag
 			updateGrid(tmaGrid, downsample);
 			tmaGrid = doDearraying(fullCoreDiameterPx, downsample, densityThreshold, roiScaleFactor, isFluorescence, hLabelsSplit, vLabelsSplit, horizontalLabelFirst);
 			
+			// Refine the cores at a higher resolution, if this could help
+			if (tmaGrid != null && params.getBooleanParameterValue("refineCores")) {
+				double refineDownsample = Math.max(1, fullCoreDiameterPx / REFINED_CORE_DIAMETER_PX);
+				if (refineDownsample < downsample * 0.75) {
+					int nCores = tmaGrid.nCores();
+					tmaGrid = refineCores(server, tmaGrid, fullCoreDiameterPx, roiScaleFactor, refineDownsample, isFluorescence);
+					if (tmaGrid == null)
+						return null;
+					lastMessage = String.format("%s, %d of %d cores refined", lastMessage, nRefined, nCores);
+				}
+			}
+			
 			return tmaGrid == null ? null : new ArrayList<>(tmaGrid.getTMACoreList());
 		}
 		
 		
 		
+		/**
+		 * Refine the centre &amp; diameter of all cores that aren't missing, in parallel, 
+		 * using images read for each core individually at a higher resolution than was used to detect the grid.
+		 * <p>
+		 * Refined diameters are constrained to be within 25% of the expected diameter; 
+		 * where refinement fails, the original core is kept.
+		 * 
+		 * @param server
+		 * @param tmaGrid grid containing cores detected at a low resolution
+		 * @param fullCoreDiameterPx expected core diameter, in full-resolution pixels
+		 * @param roiScaleFactor scale factor to apply to the diameter of each core ROI
+		 * @param refineDownsample downsample factor at which to read each core
+		 * @param isFluorescence
+		 * @return a new TMAGrid containing the refined cores, or null if the thread was interrupted
+		 */
+		TMAGrid refineCores(final ImageServer<BufferedImage> server, final TMAGrid tmaGrid, final double fullCoreDiameterPx, final double roiScaleFactor, final double refineDownsample, final boolean isFluorescence) {
+			List<TMACoreObject> cores = tmaGrid.getTMACoreList();
+			TMACoreObject[] refined = cores.toArray(new TMACoreObject[cores.size()]);
+			AtomicInteger counter = new AtomicInteger();
+			Thread caller = Thread.currentThread();
+			double coreDiameterPx = fullCoreDiameterPx * roiScaleFactor;
+			IntStream.range(0, refined.length).parallel().forEach(i -> {
+				TMACoreObject core = refined[i];
+				if (core.isMissing() || caller.isInterrupted())
+					return;
+				// Read a region large enough to contain the core, even if the initial estimate is a little off
+				ROI roi = core.getROI();
+				double xCenter = roi.getCentroidX();
+				double yCenter = roi.getCentroidY();
+				int x = (int)Math.max(0, xCenter - coreDiameterPx * 0.8);
+				int y = (int)Math.max(0, yCenter - coreDiameterPx * 0.8);
+				int width = (int)Math.min(server.getWidth(), xCenter + coreDiameterPx * 0.8) - x;
+				int height = (int)Math.min(server.getHeight(), yCenter + coreDiameterPx * 0.8) - y;
+				if (width <= 0 || height <= 0)
+					return;
+				RegionRequest request = RegionRequest.createInstance(server.getPath(), refineDownsample, x, y, width, height);
+				ImageProcessor ipCore = getProcessor(PathImagePlus.createPathImage(server, request).getImage());
+				double[] result = TMADearrayer.refineCore(ipCore, (xCenter - x) / refineDownsample, (yCenter - y) / refineDownsample, fullCoreDiameterPx / refineDownsample, isFluorescence);
+				if (result == null)
+					return;
+				double diameter = result[2] * refineDownsample * roiScaleFactor;
+				diameter = Math.max(coreDiameterPx * 0.75, Math.min(coreDiameterPx * 1.25, diameter));
+				TMACoreObject coreRefined = new TMACoreObject(x + result[0] * refineDownsample, y + result[1] * refineDownsample, diameter, false);
+				coreRefined.setName(core.getName());
+				refined[i] = coreRefined;
+				counter.incrementAndGet();
+			});
+			if (caller.isInterrupted())
+				return null;
+			nRefined = counter.get();
+			return new DefaultTMAGrid(Arrays.asList(refined), tmaGrid.getGridWidth());
+		}
+		
+		
+		
 		public boolean updateGrid(TMAGrid tmaGrid, double downsample) {
 			if (tmaGrid == null)
 				return false;
@@ -360,6 +430,20 @@ public class TMADearrayerPluginIJ extends AbstractInteractivePlugin<BufferedImag
 		
 		
 		
+		/**
+		 * Get a single-channel processor for an image, averaging channels if necessary (RGB images are returned unchanged).
+		 */
+		static ImageProcessor getProcessor(final ImagePlus imp) {
+			if (imp.getType() == ImagePlus.COLOR_RGB || imp.getNChannels() == 1)
+				return imp.getProcessor();
+			ZProjector zProjector = new ZProjector(imp);
+			zProjector.setMethod(ZProjector.AVG_METHOD);
+			zProjector.doProjection();
+			return zProjector.getProjection().getProcessor();
+		}
+		
+		
+		
 		public TMAGrid getTMAGrid() {
 			return tmaGrid;
 		}
@@ -23,7 +23,13 @@
 
 package qupath.imagej.detect.tissue;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -32,20 +38,19 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.filter.ThresholdToSelection;
 import ij.process.ByteProcessor;
-import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
-import qupath.lib.color.ColorDeconvolution;
 import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorTransformer;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.PathImage;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClassFactory;
@@ -54,11 +59,14 @@ import qupath.lib.plugins.DetectionPluginTools;
 import qupath.lib.plugins.ObjectDetector;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.PathROIToolsAwt;
 import qupath.lib.roi.RectangleROI;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
  * Simple command to detect regions with positive staining.
+ * <p>
+ * Large regions are processed tile by tile, so that memory use is bounded by the tile size rather than the region size.
  * 
  * @author Pete Bankhead
  *
@@ -67,16 +75,29 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 	
 	private final static Logger logger = LoggerFactory.getLogger(PositivePixelCounterIJ.class);
 	
+	/**
+	 * Default tile width &amp; height, in pixels at the requested downsample.
+	 */
+	final static int DEFAULT_TILE_SIZE = 1024;
+	
 	transient private PositivePixelDetector detector;
 	
 	
+	/**
+	 * Detector that processes the parent ROI in tiles, so that memory use does not depend upon the size of the ROI.
+	 * <p>
+	 * Tiles are read with a margin (to avoid boundary artifacts when smoothing), processed in parallel, 
+	 * and then the counts (and optionally the positive &amp; negative areas) are merged.
+	 */
 	static class PositivePixelDetector implements ObjectDetector<BufferedImage> {
 		
 		private final PathObject parent;
+		private final int tileSize;
 		private String lastMessage = null;
 		
-		PositivePixelDetector(final PathObject parent) {
+		PositivePixelDetector(final PathObject parent, final int tileSize) {
 			this.parent = parent;
+			this.tileSize = tileSize;
 		}
 	
 		@Override
@@ -84,107 +105,98 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 			// Reset any detected objects
 			List< PathObject> pathObjects = new ArrayList<>();
 			
-			
 			// Parse parameters
-			double downsample = Math.max(1, params.getIntParameterValue("downsampleFactor"));
+			int downsampleFactor = Math.max(1, params.getIntParameterValue("downsampleFactor"));
+			double downsample = downsampleFactor;
 			
 			double thresholdStain1 = params.getDoubleParameterValue("thresholdStain1");
 			double thresholdStain2 = params.getDoubleParameterValue("thresholdStain2");
 			double gaussianSigmaMicrons = params.getDoubleParameterValue("gaussianSigmaMicrons");
+			boolean createAreaObjects = params.getBooleanParameterValue("createAreaObjects");
 			
 			// Derive more useful values
-			double pixelSize = imageData.getServer().getAveragedPixelSizeMicrons() * downsample;
+			ImageServer<BufferedImage> server = imageData.getServer();
+			double pixelSize = server.getAveragedPixelSizeMicrons() * downsample;
 			double gaussianSigma = gaussianSigmaMicrons / pixelSize;
 			
-			// Read the image, if necessary
-			RegionRequest request = RegionRequest.createInstance(imageData.getServerPath(), downsample, pathROI);
-			PathImage<ImagePlus> pathImage = PathImagePlus.createPathImage(imageData.getServer(), request);
-			ImagePlus imp = pathImage.getImage();
-			
-			int w = imp.getWidth();
-			int h = imp.getHeight();
-			
 			// Extract the color deconvolved channels
 			// TODO: Support alternative stain vectors
 			ColorDeconvolutionStains stains = imageData.getColorDeconvolutionStains();
-//			boolean isH_DAB = stains.isH_DAB() && imp.getType() == ImagePlus.COLOR_RGB;
-			boolean isRGB = stains != null && imp.getType() == ImagePlus.COLOR_RGB;
+			boolean isRGB = stains != null && server.isRGB();
 			if (!isRGB) {
 				logger.error("Only brightfield RGB images are supported!");
 				return Collections.emptyList();
 			}
-			ColorProcessor cp = (ColorProcessor)imp.getProcessor();
-			int[] rgb = (int[])cp.getPixels();
 			
-			float[] pxHematoxylin = ColorDeconvolution.colorDeconvolveRGBArray(rgb, stains, 0, null);
-			float[] pxDAB = ColorDeconvolution.colorDeconvolveRGBArray(rgb, stains, 1, null);
-			
-			// Create images
-			FloatProcessor fpHematoxylin = new FloatProcessor(w, h, pxHematoxylin);
-			FloatProcessor fpDAB = new FloatProcessor(w, h, pxDAB);
-					
-			// Apply Gaussian filter
-			fpHematoxylin.blurGaussian(gaussianSigma);
-			fpDAB.blurGaussian(gaussianSigma);
-			
-			// Threshold
-			ByteProcessor bpH = new ByteProcessor(w, h);
-			ByteProcessor bpDAB = new ByteProcessor(w, h);
-			// Apply mask, if necessary
-			if (pathROI != null && !(pathROI instanceof RectangleROI)) {
-				bpH.set(1);
-				Roi roi = ROIConverterIJ.convertToIJRoi(pathROI, pathImage);
-				bpH.setValue(0);
-				bpH.fill(roi);
+			// Determine the tiles, aligned to the ROI bounds - but snapped to a multiple of the downsample, 
+			// so that all tiles sample pixels from the same grid
+			int x1 = 0, y1 = 0, x2 = server.getWidth(), y2 = server.getHeight();
+			int z = 0, t = 0;
+			if (pathROI != null) {
+				x1 = Math.max(x1, (int)pathROI.getBoundsX() / downsampleFactor * downsampleFactor);
+				y1 = Math.max(y1, (int)pathROI.getBoundsY() / downsampleFactor * downsampleFactor);
+				x2 = Math.min(x2, (int)Math.ceil(pathROI.getBoundsX() + pathROI.getBoundsWidth()));
+				y2 = Math.min(y2, (int)Math.ceil(pathROI.getBoundsY() + pathROI.getBoundsHeight()));
+				z = pathROI.getZ();
+				t = pathROI.getT();
 			}
-			int nNegative = 0;
-			int nPositive = 0;
-			double sumPositive = 0;
-			double sumNegative = 0;
-			for (int i = 0; i < w*h; i++) {
-				// Check mask
-				if (bpH.get(i) != (byte)0)
-					continue;
-				float valH = fpHematoxylin.getf(i);
-				float valDAB = fpDAB.getf(i);
-				if (valDAB >= thresholdStain2) {
-//					if (valDAB > valH) {
-						bpDAB.set(i, (byte)255);
-						sumPositive += valDAB;
-						nPositive++;
-//					} else {
-//						bpH.set(i, (byte)255);
-//						nStained++;
-//					}
-				} else if (valH >= thresholdStain1) {
-					bpH.set(i, (byte)255);
-					sumNegative += valH;
-					nNegative++;
+			Shape shape = pathROI == null || pathROI instanceof RectangleROI ? null : PathROIToolsAwt.getShape(pathROI);
+			int tileSizeFull = tileSize * downsampleFactor;
+			// Blur margin, in downsampled pixels - the kernel is (comfortably) within 4 sigma, and an extra 
+			// 2 pixels allow for interpolation at the edge of the request
+			// Converting to full resolution afterwards keeps the margin a multiple of the downsample
+			int margin = (int)Math.ceil(gaussianSigma * 4 + 2) * downsampleFactor;
+			List<TileTask> tiles = new ArrayList<>();
+			for (int y = y1; y < y2; y += tileSizeFull) {
+				for (int x = x1; x < x2; x += tileSizeFull) {
+					Rectangle core = new Rectangle(x, y, Math.min(tileSizeFull, x2 - x), Math.min(tileSizeFull, y2 - y));
+					if (shape != null && !shape.intersects(core))
+						continue;
+					Rectangle bounds = new Rectangle(core);
+					bounds.grow(margin, margin);
+					bounds = bounds.intersection(new Rectangle(x1, y1, x2 - x1, y2 - y1));
+					RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample, bounds.x, bounds.y, bounds.width, bounds.height, z, t);
+					tiles.add(new TileTask(request, core, shape != null && !shape.contains(core)));
 				}
 			}
 			
-			bpH.setThreshold(128, Double.MAX_VALUE, ImageProcessor.NO_LUT_UPDATE);
-			bpDAB.setThreshold(128, Double.MAX_VALUE, ImageProcessor.NO_LUT_UPDATE);
-			Roi roiStained = nNegative > 0 ? new ThresholdToSelection().convert(bpH) : null;
-			Roi roiDAB = nPositive > 0 ? new ThresholdToSelection().convert(bpDAB) : null;
+			// Process tiles in parallel, merging the results as we go
+			final Thread caller = Thread.currentThread();
+			final int zPos = z, tPos = t;
+			PixelCounts counts = tiles.parallelStream()
+					.map(tile -> caller.isInterrupted() ? new PixelCounts() :
+						processTile(server, tile, shape, stains, gaussianSigma, thresholdStain1, thresholdStain2, createAreaObjects, zPos, tPos))
+					.reduce((c1, c2) -> c1.add(c2))
+					.orElse(new PixelCounts());
+			if (caller.isInterrupted()) {
+				lastMessage = "Positive pixel detection interrupted";
+				return Collections.emptyList();
+			}
 			
-			double meanPositive = nPositive == 0 ? Double.NaN : sumPositive / nPositive;
-			double meanNegative = nNegative == 0 ? Double.NaN : sumNegative / nNegative;
+			int nNegative = counts.nNegative;
+			int nPositive = counts.nPositive;
+			double meanPositive = nPositive == 0 ? Double.NaN : counts.sumPositive / nPositive;
+			double meanNegative = nNegative == 0 ? Double.NaN : counts.sumNegative / nNegative;
 			
-			if (roiStained != null) {
-				ROI roiTissue = ROIConverterIJ.convertToPathROI(roiStained, pathImage);
-				PathObject pathObject = new PathDetectionObject(roiTissue, PathClassFactory.getNegative(null, PathClassFactory.COLOR_NEGATIVE));
-				pathObject.getMeasurementList().addMeasurement("Num pixels", nNegative);
-				pathObject.getMeasurementList().addMeasurement("Mean hematoxylin OD", meanNegative);
-				pathObjects.add(pathObject);
-			}
-			if (roiDAB != null) {
-				ROI roiPositive = ROIConverterIJ.convertToPathROI(roiDAB, pathImage);
-//				roiDAB = ShapeSimplifierAwt.simplifyShape(roiDAB, simplifyAmount);
-				PathObject pathObject = new PathDetectionObject(roiPositive, PathClassFactory.getPositive(null, PathClassFactory.COLOR_POSITIVE));
-				pathObject.getMeasurementList().addMeasurement("Num pixels", nPositive);
-				pathObject.getMeasurementList().addMeasurement("Mean DAB OD", meanPositive);
-				pathObjects.get(0).addPathObject(pathObject);
+			if (createAreaObjects) {
+				PathObject pathObjectNegative = null;
+				if (nNegative > 0) {
+					ROI roiTissue = PathROIToolsAwt.getShapeROI(counts.areaNegative, -1, z, t);
+					pathObjectNegative = new PathDetectionObject(roiTissue, PathClassFactory.getNegative(null, PathClassFactory.COLOR_NEGATIVE));
+					pathObjectNegative.getMeasurementList().addMeasurement("Num pixels", nNegative);
+					pathObjectNegative.getMeasurementList().addMeasurement("Mean hematoxylin OD", meanNegative);
+					pathObjects.add(pathObjectNegative);
+				}
+				if (nPositive > 0) {
+					ROI roiPositive = PathROIToolsAwt.getShapeROI(counts.areaPositive, -1, z, t);
+					PathObject pathObject = new PathDetectionObject(roiPositive, PathClassFactory.getPositive(null, PathClassFactory.COLOR_POSITIVE));
+					pathObject.getMeasurementList().addMeasurement("Num pixels", nPositive);
+					pathObject.getMeasurementList().addMeasurement("Mean DAB OD", meanPositive);
+					if (pathObjectNegative != null)
+						pathObjectNegative.addPathObject(pathObject);
+					else
+						pathObjects.add(pathObject);
+				}
 			}
 			
 			boolean addMeasurements = params.getBooleanParameterValue("addSummaryMeasurements");
@@ -204,6 +216,100 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 		}
 		
 		
+		private PixelCounts processTile(final ImageServer<BufferedImage> server, final TileTask tile, final Shape shape, final ColorDeconvolutionStains stains,
+				final double gaussianSigma, final double thresholdStain1, final double thresholdStain2, final boolean createAreas, final int z, final int t) {
+			
+			PixelCounts counts = new PixelCounts();
+			RegionRequest request = tile.request;
+			// Read directly from the server: these requests are large, have margins & aren't tile-aligned, 
+			// so putting them in the viewer's region store would only evict tiles that are actually being displayed
+			BufferedImage img = server.readBufferedImage(request);
+			if (img == null) {
+				logger.warn("Unable to read {}", request);
+				return counts;
+			}
+			
+			int w = img.getWidth();
+			int h = img.getHeight();
+			int[] rgb = img.getRGB(0, 0, w, h, null, 0, w);
+			
+			float[][] pxDeconvolved = ColorTransformer.getTransformedPixels(rgb, 
+					new ColorTransformMethod[]{ColorTransformMethod.Stain_1, ColorTransformMethod.Stain_2}, null, stains);
+			
+			// Create images & apply Gaussian filter
+			FloatProcessor fpHematoxylin = new FloatProcessor(w, h, pxDeconvolved[0]);
+			FloatProcessor fpDAB = new FloatProcessor(w, h, pxDeconvolved[1]);
+			fpHematoxylin.blurGaussian(gaussianSigma);
+			fpDAB.blurGaussian(gaussianSigma);
+			
+			// Determine the part of the image excluding the margin
+			double downsample = request.getDownsample();
+			int cx1 = (int)Math.round((tile.core.x - request.getX()) / downsample);
+			int cy1 = (int)Math.round((tile.core.y - request.getY()) / downsample);
+			int cx2 = Math.min(w, (int)Math.round((tile.core.x + tile.core.width - request.getX()) / downsample));
+			int cy2 = Math.min(h, (int)Math.round((tile.core.y + tile.core.height - request.getY()) / downsample));
+			
+			// Apply mask, if necessary
+			// This is drawn with Java2D rather than ImageJ, since ImageJ rounds the ROI bounds to whole pixels - 
+			// which would depend upon the tile origin, and give slightly different masks for different tiles
+			double xOrigin = -request.getX() / downsample;
+			double yOrigin = -request.getY() / downsample;
+			byte[] mask = null;
+			if (tile.requiresMask) {
+				BufferedImage imgMask = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+				Graphics2D g2d = imgMask.createGraphics();
+				g2d.scale(1.0/downsample, 1.0/downsample);
+				g2d.translate(-request.getX(), -request.getY());
+				g2d.setColor(Color.WHITE);
+				g2d.fill(shape);
+				g2d.dispose();
+				mask = ((DataBufferByte)imgMask.getRaster().getDataBuffer()).getData();
+			}
+			
+			// Threshold
+			ByteProcessor bpH = createAreas ? new ByteProcessor(w, h) : null;
+			ByteProcessor bpDAB = createAreas ? new ByteProcessor(w, h) : null;
+			for (int y = cy1; y < cy2; y++) {
+				for (int x = cx1; x < cx2; x++) {
+					int i = y * w + x;
+					// Check mask
+					if (mask != null && mask[i] == 0)
+						continue;
+					float valH = fpHematoxylin.getf(i);
+					float valDAB = fpDAB.getf(i);
+					if (valDAB >= thresholdStain2) {
+						if (bpDAB != null)
+							bpDAB.set(i, 255);
+						counts.sumPositive += valDAB;
+						counts.nPositive++;
+					} else if (valH >= thresholdStain1) {
+						if (bpH != null)
+							bpH.set(i, 255);
+						counts.sumNegative += valH;
+						counts.nNegative++;
+					}
+				}
+			}
+			
+			if (createAreas) {
+				Calibration cal = new Calibration();
+				cal.xOrigin = xOrigin;
+				cal.yOrigin = yOrigin;
+				if (counts.nNegative > 0)
+					counts.areaNegative.add(getArea(bpH, cal, downsample, z, t));
+				if (counts.nPositive > 0)
+					counts.areaPositive.add(getArea(bpDAB, cal, downsample, z, t));
+			}
+			return counts;
+		}
+		
+		
+		private static Area getArea(final ByteProcessor bp, final Calibration cal, final double downsample, final int z, final int t) {
+			bp.setThreshold(128, Double.MAX_VALUE, ImageProcessor.NO_LUT_UPDATE);
+			Roi roi = new ThresholdToSelection().convert(bp);
+			return PathROIToolsAwt.getArea(ROIConverterIJ.convertToPathROI(roi, cal, downsample, -1, z, t));
+		}
+		
 		
 		@Override
 		public String getLastResultsDescription() {
@@ -214,6 +320,50 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 	}
 	
 	
+	private static class TileTask {
+		
+		private final RegionRequest request;
+		private final Rectangle core;
+		private final boolean requiresMask;
+		
+		TileTask(final RegionRequest request, final Rectangle core, final boolean requiresMask) {
+			this.request = request;
+			this.core = core;
+			this.requiresMask = requiresMask;
+		}
+		
+	}
+	
+	
+	/**
+	 * Counts &amp; areas for one or more tiles.
+	 */
+	private static class PixelCounts {
+		
+		private int nPositive = 0;
+		private int nNegative = 0;
+		private double sumPositive = 0;
+		private double sumNegative = 0;
+		private Area areaPositive = new Area();
+		private Area areaNegative = new Area();
+		
+		/**
+		 * Add the counts from another object to this one, returning this object.
+		 */
+		PixelCounts add(final PixelCounts counts) {
+			nPositive += counts.nPositive;
+			nNegative += counts.nNegative;
+			sumPositive += counts.sumPositive;
+			sumNegative += counts.sumNegative;
+			if (!counts.areaPositive.isEmpty())
+				areaPositive.add(counts.areaPositive);
+			if (!counts.areaNegative.isEmpty())
+				areaNegative.add(counts.areaNegative);
+			return this;
+		}
+		
+	}
+	
 	
 	
 
@@ -224,7 +374,8 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 				.addDoubleParameter("gaussianSigmaMicrons", "Gaussian sigma", 2, GeneralTools.micrometerSymbol(), "Gaussian filter size - higher values give a smoother (less-detailed) result")
 				.addDoubleParameter("thresholdStain1", "Hematoxylin threshold", 0.1, "OD units", "Threshold to use for hemtaoxylin detection")
 				.addDoubleParameter("thresholdStain2", "DAB threshold", 0.3, "OD units", "Threshold to use for DAB stain detection")
-				.addBooleanParameter("addSummaryMeasurements", "Add summary measurements", true, "Add summary measurements to parent objects");
+				.addBooleanParameter("addSummaryMeasurements", "Add summary measurements", true, "Add summary measurements to parent objects")
+				.addBooleanParameter("createAreaObjects", "Create area objects", true, "Create objects representing positive & negative areas - turn off to compute summary measurements only (faster & uses less memory for large regions)");
 		
 //		double thresholdStain1 = 0.1;
 //		double thresholdStain2 = 0.1;
@@ -269,7 +420,7 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 	@Override
 	protected void addRunnableTasks(ImageData<BufferedImage> imageData, PathObject parentObject, List<Runnable> tasks) {
 //		if (detector == null)
-			detector = new PositivePixelDetector(parentObject);
+			detector = new PositivePixelDetector(parentObject, DEFAULT_TILE_SIZE);
 		tasks.add(DetectionPluginTools.createRunnableTask(detector, getParameterList(imageData), imageData, parentObject));
 	}
 
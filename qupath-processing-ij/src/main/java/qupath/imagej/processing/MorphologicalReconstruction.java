@@ -53,6 +53,8 @@ public class MorphologicalReconstruction {
 	 * 
 	 * Overall, this appears to be about 20% faster than MorphologicalReconstruction using Point objects (rather than a primitive int array).
 	 * 
+	 * The implementation itself is shared with qupath.lib.analysis.algorithms.MorphologicalReconstruction.
+	 * 
 	 */
 	
 	
@@ -88,225 +90,45 @@ public class MorphologicalReconstruction {
 	
 	
 	
-	private static int dilateAndCompare(final ImageProcessor ipMarker, final ImageProcessor ipMask, final boolean reverse, final IntDequeue queue) {
-		int inc, hStart, vStart, hEnd, vEnd;
-		Rectangle rect = ipMarker.getRoi();
-		if (reverse) {
-			inc = -1;
-			hStart = rect.x + rect.width - 1;
-			vStart = rect.y + rect.height - 1;
-			hEnd = rect.x - 1;
-			vEnd = rect.y - 1;
-		} else {
-			inc = 1;
-			hStart = rect.x;
-			vStart = rect.y;
-			hEnd = rect.x + rect.width;
-			vEnd = rect.y + rect.height;
-		}
-		final boolean populateQueue = queue != null;
-		final int width = ipMarker.getWidth();
-		
-		// Apply horizontal propagating dilation
-		int changes = 0;
-		// valPrevious is the last processed value, valP1-3 are those from the previous row
-		float valPrevious, valP1, valP2, valP3, valCurrent;
-		boolean firstRow = true;
-		for (int y = vStart; y != vEnd; y += inc) {
-			// Initialize previous 4 neighbours
-			valPrevious = ipMarker.getf(hStart, y);
-			if (firstRow) {
-				valP1 = valPrevious;
-				valP2 = valPrevious;
-				valP3 = valPrevious;
-			} else {
-				valP2 = ipMarker.getf(hStart, y-inc);
-				valP1 = valP2;
-			}
-
-			boolean firstColumn = true;
-
-			for (int x = hStart; x != hEnd; x += inc) {
-				// Get the current value from the marker image
-				valCurrent = ipMarker.getf(x, y);
-				
-				if (firstRow) {
-					valP1 = valCurrent;
-					valP2 = valCurrent;
-					valP3 = valCurrent;
-				} else if (x+inc != hEnd)
-					valP3 = ipMarker.getf(x+inc, y-inc);
-				else
-					valP3 = valCurrent;
-				
-				// Get the neighbourhood maximum
-//				float valNeighbourMax = Math.max(Math.max(valP1, valP2), Math.max(valP3, valPrevious));
-				float valNeighbourMax = (valP1 >= valP2) ? valP1 : valP2;
-				valNeighbourMax = (valNeighbourMax >= valP3) ? valNeighbourMax : valP3;
-				valNeighbourMax = (valNeighbourMax >= valPrevious) ? valNeighbourMax : valPrevious;
-				
-				// If the current value is less than the neighbourhood maximum, try to update it while remaining under the mask
-				if (valCurrent < valNeighbourMax) {
-					float valMask = ipMask.getf(x, y);
-//					float valNew = Math.min(valMask, valNeighbourMax);
-					// Get the minimum
-					float valNew = (valNeighbourMax >= valMask) ? valMask : valNeighbourMax;
-					if (valNew > valCurrent) {
-						valCurrent = valNew;
-						ipMarker.setf(x, y, valCurrent);
-						changes++;
-					}
-				}
-				
-				// If there are neighbours with lower values than we have just updated, and we have a queue,
-				// test whether to add the neighbours to the queue
-				if (populateQueue) {
-					boolean addToQueue = false;
-					if (valPrevious < valCurrent && valPrevious < ipMask.getf(x-inc, y)) {
-						addToQueue = true;
-					}
-					else if (!firstRow) {
-						if (!firstColumn && valP1 < valCurrent && valP1 < ipMask.getf(x-inc, y-inc)) {
-							addToQueue = true;
-						}
-						else if (valP2 < valCurrent && valP2 < ipMask.getf(x, y-inc)) {
-							addToQueue = true;
-						}
-						else if (valP3 < valCurrent && valP3 < ipMask.getf(x+inc, y-inc)) {
-							addToQueue = true;
-						}
-					}
-					if (addToQueue) {
-						queue.add(y*width + x);
-					}
-				}
-				
-				// Update previous neighbours
-				valPrevious = valCurrent;
-				valP1 = valP2;
-				valP2 = valP3;
-				firstColumn = false;
-			}
-			firstRow = false;
-		}
-		return changes;
-	}
-	
-	private static void processPoint(final ImageProcessor ipMarker, final ImageProcessor ipMask, final int ind, final float val, final IntDequeue queue) {
-		final float valTempMarker = ipMarker.getf(ind);
-		if (valTempMarker < val) {
-			final float valTempMask = ipMask.getf(ind);
-			if (valTempMarker < valTempMask) {
-//				ipMarker.setf(x, y, Math.min(val, valTempMask));
-				ipMarker.setf(ind, valTempMask <= val ? valTempMask : val);
-				queue.add(ind);
-			}
-		}
-	}
-	
-	
-	private static boolean processQueue(final ImageProcessor ipMarker, final ImageProcessor ipMask, final IntDequeue queue) {
+	/**
+	 * Apply morphological reconstruction within the ROI bounds of the marker, updating the marker in-place.
+	 * <p>
+	 * The work is delegated to qupath.lib.analysis.algorithms.MorphologicalReconstruction, which splits large images 
+	 * into blocks that are processed in parallel.  Float processors are used directly; other types are converted.
+	 * 
+	 * @param ipMarker marker image
+	 * @param ipMask mask image, with the same dimensions as the marker
+	 * @return true if the reconstruction completed, false if the calling thread was interrupted
+	 */
+	public static boolean morphologicalReconstruction(final ImageProcessor ipMarker, final ImageProcessor ipMask) {
 		final Rectangle rect = ipMarker.getRoi();
-		final int x1 = rect.x;
-		final int y1 = rect.y;
-		final int x2 = x1 + rect.width;
-		final int y2 = y1 + rect.height;
-		
-		long counter = 0;
 		final int width = ipMarker.getWidth();
-		
-		final Thread currentThread = Thread.currentThread();
-		
-		while (!queue.isEmpty()) {
-			counter++;
-
-			// If we were interrupted, stop
-			if (counter % 2500 == 0 && currentThread.isInterrupted())
-				return false;
-			
-			final int ind = queue.remove();
-			final int x = ind % width;
-			final int y = ind / width;
-			
-			// Test 8-neighbours
-			final float val = ipMarker.getf(ind);
-			
-//			for (int yy = Math.max(y-1, y1); yy < Math.min(y+2, y2); yy++) {
-//				for (int xx = Math.max(x-1, x1); xx < Math.min(x+2, x2); xx++) {
-//					if (xx != x || yy != y)
-//						processPoint(ipMarker, ipMask, yy*width+xx, val, queue);
-//				}
-//			}
-			
-			if (x > x1) {
-				processPoint(ipMarker, ipMask, ind-1, val, queue);
-				if (y > y1)
-					processPoint(ipMarker, ipMask, ind-width-1, val, queue);
-				if (y < y2-1)
-					processPoint(ipMarker, ipMask, ind+width-1, val, queue);
-			}
-			if (x < x2-1) {
-				processPoint(ipMarker, ipMask, ind+1, val, queue);
-				if (y > y1)
-					processPoint(ipMarker, ipMask, ind-width+1, val, queue);
-				if (y < y2-1)
-					processPoint(ipMarker, ipMask, ind+width+1, val, queue);
+		final float[] marker = getFloatPixels(ipMarker);
+		final float[] mask = getFloatPixels(ipMask);
+		final boolean result = qupath.lib.analysis.algorithms.MorphologicalReconstruction.morphologicalReconstruction(
+				marker, mask, width, rect.x, rect.y, rect.width, rect.height);
+		// Write back if the marker was converted
+		if (!(ipMarker instanceof FloatProcessor)) {
+			for (int y = rect.y; y < rect.y + rect.height; y++) {
+				for (int x = rect.x; x < rect.x + rect.width; x++) {
+					final int ind = y * width + x;
+					ipMarker.setf(ind, marker[ind]);
+				}
 			}
-			if (y > y1)
-				processPoint(ipMarker, ipMask, ind-width, val, queue);
-			if (y < y2-1)
-				processPoint(ipMarker, ipMask, ind+width, val, queue);
 		}
-		
-		return true;
+		return result;
 	}
 	
-
-	public static boolean morphologicalReconstruction(final ImageProcessor ipMarker, final ImageProcessor ipMask) {
-		// Really we just need one round of forward propagation, followed by one round of backward
-		// propagation filling in the queue... but working with the queue is slow, so it is better to
-		// repeat propagation steps so long as they are changing a sufficiently high proportion of the pixels
-		// at each step (here, 10%)
-		
-//		long startTime = System.currentTimeMillis();
-		final int nPixels = ipMarker.getWidth() * ipMarker.getHeight();
-		// Apply forward propagation, counting the number of pixels that changed
-		int nChanges = dilateAndCompare(ipMarker, ipMask, false, null);
-		// For as long as > ?% pixels change, continue propagations
-//		int counter = 0;
-		while (nChanges/(double)nPixels > 0.1) {
-//			System.out.println(String.format("Changes as propagation iteration %d: %.2f%%", counter++, 100.*nChanges/nPixels));
-			// Apply backwards propagation
-			dilateAndCompare(ipMarker, ipMask, true, null);
-			// Apply forward propagation again
-			nChanges = dilateAndCompare(ipMarker, ipMask, false, null);			
-		}
-//		System.out.println(String.format("Changes as propagation iteration %d: %.2f%%", counter++, 100.*nChanges/nPixels));
-		// Apply backwards propagation, filling the queue
-		final IntDequeue queue = new IntDequeue(nPixels/4);
-		dilateAndCompare(ipMarker, ipMask, true, queue);
-//		long endTime = System.currentTimeMillis();
-//		System.out.println("Queue setup time: " + (endTime - startTime)/1000.);
-		
-//		startTime = System.currentTimeMillis();
-		processQueue(ipMarker, ipMask, queue);
-//		endTime = System.currentTimeMillis();
-//		System.out.println("Queue process time: " + (endTime - startTime)/1000.);
-		// Process pixels in the queue (FIFO)
-		return processQueue(ipMarker, ipMask, queue);
+	private static float[] getFloatPixels(final ImageProcessor ip) {
+		if (ip instanceof FloatProcessor)
+			return (float[])ip.getPixels();
+		final int n = ip.getWidth() * ip.getHeight();
+		final float[] pixels = new float[n];
+		for (int i = 0; i < n; i++)
+			pixels[i] = ip.getf(i);
+		return pixels;
 	}
 	
-//	// More conventional approach...
-//	public static boolean morphologicalReconstruction(ImageProcessor ipMarker, ImageProcessor ipMask) {
-//		// Apply forward propagation
-//		dilateAndCompare(ipMarker, ipMask, false, null);
-//		// Apply backwards propagation, filling the queue
-//		IntDequeue queue = new IntDequeue(ipMarker.getWidth()*ipMarker.getHeight()/4);
-//		dilateAndCompare(ipMarker, ipMask, true, queue);
-//		// Process pixels in the queue (FIFO)
-//		return processQueue(ipMarker, ipMask, queue);
-//	}
-	
 	
 	// Ensure dimensions are the same
 	// If they are, use copyBits to make sure that ipMarker pixel values all <= ipMask
@@ -333,25 +155,6 @@ public class MorphologicalReconstruction {
 		return null;
 	}
 	
-//	public static boolean morphologicalReconstruction(ImageProcessor ipMarker, ImageProcessor ipMask) {
-//		// Apply forward propagation
-//		long t1 = System.currentTimeMillis();
-//		dilateAndCompare(ipMarker, ipMask, false, null);
-//		long t2 = System.currentTimeMillis();
-//		// Apply backwards propagation, filling the queue
-//		Queue<Point> queue = new ArrayDeque<>();
-//		dilateAndCompare(ipMarker, ipMask, true, queue);
-//		long t3 = System.currentTimeMillis();
-//		// Process pixels in the queue (FIFO)
-//		boolean result = processQueue(ipMarker, ipMask, queue);
-//		long t4 = System.currentTimeMillis();
-//		IJ.log("ORIGINAL");
-//		IJ.log("Time 1: " + (t2-t1));
-//		IJ.log("Time 2: " + (t3-t2));
-//		IJ.log("Time queue: " + (t4-t3));
-//		return result;
-//	}
-	
 	/**
 	 * Somewhat awkwardly, two ip.invert()'s in ImageJ do not necessarily 
 	 * @param ip
@@ -477,65 +280,4 @@ public class MorphologicalReconstruction {
 ////		fp.fill(roi);
 //	}
 
-	
-	
-	private static class IntDequeue {
-		
-		final private static int MAX_EXPANSION = 1024*10;
-		
-		private int[] array;
-		private int head = 0; // Points to location of first element in queue
-		private int tail = 0; // Points to location of *next* insert
-		
-		private IntDequeue(int capacity) {
-//			IJ.log("Using INT DEQUE!");
-			array = new int[capacity];
-			head = 0;
-			tail = 0;
-		}
-		
-		public boolean isEmpty() {
-			return tail == head;
-		}
-		
-		/**
-		 * Performs no check that the output will be valid (caller should use isEmpty first to check this)
-		 * @return
-		 */
-		private int remove() {
-//			return array[head++];
-			head++;
-			return array[head-1];
-		}
-		
-		private void add(int val) {
-			// Do a normal add if we can
-			if (tail < array.length) {
-				array[tail] = val;
-				tail++;
-				return;
-			}
-			// Shift everything back if that's an option
-			if (head != 0) {
-//				IJ.log("Shifting with head at " + head);
-				if (tail > head)
-					System.arraycopy(array, head, array, 0, tail-head);
-				tail -= head;
-				head = 0;
-				array[tail] = val;
-				tail++;
-				return;
-			}
-			// We need to expand the array
-			int[] array2 = new int[Math.max(array.length*2, MAX_EXPANSION)];
-			System.arraycopy(array, 0, array2, 0, array.length);
-			array = array2;
-			array[tail] = val;
-			tail++;
-//			IJ.log("Expanding IntDeque to length " + array.length);
-//			System.out.println("Expanding IntDeque to length " + array.length);
-		}
-		
-	}
-
 }
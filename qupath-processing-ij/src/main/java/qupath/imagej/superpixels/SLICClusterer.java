@@ -0,0 +1,415 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.imagej.superpixels;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Local k-means clustering used to compute SLIC superpixels.
+ * <p>
+ * Cluster labels, distances and centers are stored in primitive arrays.  Each iteration assigns pixels 
+ * to their closest nearby cluster center (in parallel, by bands of rows) and then updates the centers 
+ * by accumulating the coordinates and features of their pixels.  Iterations stop early once the mean 
+ * displacement of the centers falls below a threshold.
+ */
+class SLICClusterer {
+	
+	/**
+	 * Stop iterating when the mean displacement of cluster centers is below this proportion of the spacing.
+	 */
+	private static final double RESIDUAL_ERROR_THRESHOLD = 0.01;
+	
+	private final float[][] features;
+	private final int nFeatures;
+	private final int width, height;
+	private final int s;
+	private final boolean adaptRegularization;
+	
+	private final int nClusters;
+	private final int widthClusters;
+	private final double[] centerX, centerY;
+	private final double[] centerFeatures;
+	private final double[] mSquared;
+	private final int[] counts;
+	
+	private final int[] labels;
+	private final float[] distances;
+	
+	private int iterations = 0;
+	private double residualError = Double.NaN;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param features feature images, each with length width * height
+	 * @param width
+	 * @param height
+	 * @param s spacing between initial cluster centers
+	 * @param m regularization parameter
+	 * @param adaptRegularization if true, adapt the regularization for each cluster based on its color variation
+	 */
+	SLICClusterer(final float[][] features, final int width, final int height, final int s, final double m, final boolean adaptRegularization) {
+		this.features = features;
+		this.nFeatures = features.length;
+		this.width = width;
+		this.height = height;
+		this.s = s;
+		this.adaptRegularization = adaptRegularization;
+		
+		int nx = 0;
+		for (int x = s/2; x < width; x += s)
+			nx++;
+		int ny = 0;
+		for (int y = s/2; y < height; y += s)
+			ny++;
+		this.widthClusters = nx;
+		this.nClusters = nx * ny;
+		
+		centerX = new double[nClusters];
+		centerY = new double[nClusters];
+		centerFeatures = new double[nClusters * nFeatures];
+		mSquared = new double[nClusters];
+		counts = new int[nClusters];
+		Arrays.fill(mSquared, m*m);
+		
+		labels = new int[width * height];
+		Arrays.fill(labels, -1);
+		distances = new float[width * height];
+		
+		// Initialize centers from single pixels on a grid
+		int k = 0;
+		for (int y = s/2; y < height; y += s) {
+			for (int x = s/2; x < width; x += s) {
+				int ind = y * width + x;
+				centerX[k] = x;
+				centerY[k] = y;
+				for (int f = 0; f < nFeatures; f++)
+					centerFeatures[k * nFeatures + f] = features[f][ind];
+				counts[k] = 1;
+				labels[ind] = k;
+				k++;
+			}
+		}
+	}
+	
+	/**
+	 * Run up to the specified number of iterations.
+	 * 
+	 * @param maxIterations
+	 * @return the number of iterations actually performed
+	 */
+	int run(final int maxIterations) {
+		for (int i = 0; i < maxIterations; i++) {
+			assignLabels();
+			residualError = updateCenters();
+			iterations++;
+			if (residualError < RESIDUAL_ERROR_THRESHOLD * s)
+				break;
+		}
+		return iterations;
+	}
+	
+	/**
+	 * Get the cluster label for each pixel.
+	 * 
+	 * @return
+	 */
+	int[] getLabels() {
+		return labels;
+	}
+	
+	int nClusters() {
+		return nClusters;
+	}
+	
+	/**
+	 * Get the number of clusters in each row of the initial grid.
+	 * 
+	 * @return
+	 */
+	int getWidthClusters() {
+		return widthClusters;
+	}
+	
+	/**
+	 * Get the mean displacement of cluster centers during the last iteration.
+	 * 
+	 * @return
+	 */
+	double getResidualError() {
+		return residualError;
+	}
+	
+	
+	private void assignLabels() {
+		int bandHeight = Math.max(1, s);
+		int nBands = (height + bandHeight - 1) / bandHeight;
+		IntStream.range(0, nBands).parallel().forEach(b -> assignLabels(b * bandHeight, Math.min(height, (b + 1) * bandHeight)));
+	}
+	
+	/**
+	 * Assign labels for all pixels within a band of rows; each band can be processed independently.
+	 * 
+	 * @param yStartBand
+	 * @param yEndBand
+	 */
+	private void assignLabels(final int yStartBand, final int yEndBand) {
+		Arrays.fill(distances, yStartBand * width, yEndBand * width, Float.POSITIVE_INFINITY);
+		double invSpacingSquared = 1.0 / ((double)s * s);
+		for (int k = 0; k < nClusters; k++) {
+			if (counts[k] == 0)
+				continue;
+			double cx = centerX[k];
+			double cy = centerY[k];
+			int yStart = Math.max(yStartBand, (int)Math.max(0, cy - s));
+			int yEnd = Math.min(yEndBand, (int)Math.min(height, cy + s));
+			if (yStart >= yEnd)
+				continue;
+			int xStart = (int)Math.max(0, cx - s);
+			int xEnd = (int)Math.min(width, cx + s);
+			double invM = 1.0 / mSquared[k];
+			int offset = k * nFeatures;
+			if (nFeatures == 3) {
+				assignLabels3(k, xStart, xEnd, yStart, yEnd, invM, invSpacingSquared);
+				continue;
+			}
+			for (int y = yStart; y < yEnd; y++) {
+				double dy = cy - y;
+				double dy2 = dy * dy;
+				int row = y * width;
+				for (int x = xStart; x < xEnd; x++) {
+					int ind = row + x;
+					double dx = cx - x;
+					double dc2 = 0;
+					for (int f = 0; f < nFeatures; f++) {
+						double d = features[f][ind] - centerFeatures[offset + f];
+						if (Double.isFinite(d))
+							dc2 += d * d;
+					}
+					double distance = dc2 * invM + (dx * dx + dy2) * invSpacingSquared;
+					if (distance < distances[ind]) {
+						distances[ind] = (float)distance;
+						labels[ind] = k;
+					}
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Assign labels within the window of a cluster for the common case of three features (e.g. CIELAB or color deconvolved).
+	 */
+	private void assignLabels3(final int k, final int xStart, final int xEnd, final int yStart, final int yEnd, final double invM, final double invSpacingSquared) {
+		float[] f0 = features[0];
+		float[] f1 = features[1];
+		float[] f2 = features[2];
+		double c0 = centerFeatures[k * 3];
+		double c1 = centerFeatures[k * 3 + 1];
+		double c2 = centerFeatures[k * 3 + 2];
+		double cx = centerX[k];
+		double cy = centerY[k];
+		for (int y = yStart; y < yEnd; y++) {
+			double dy = cy - y;
+			double dy2 = dy * dy;
+			int row = y * width;
+			for (int x = xStart; x < xEnd; x++) {
+				int ind = row + x;
+				double dx = cx - x;
+				double d0 = f0[ind] - c0;
+				double d1 = f1[ind] - c1;
+				double d2 = f2[ind] - c2;
+				double dc2 = d0 * d0 + d1 * d1 + d2 * d2;
+				// Handle NaNs as in the general case (rare, so only check when required)
+				if (!Double.isFinite(dc2)) {
+					dc2 = 0;
+					if (Double.isFinite(d0))
+						dc2 += d0 * d0;
+					if (Double.isFinite(d1))
+						dc2 += d1 * d1;
+					if (Double.isFinite(d2))
+						dc2 += d2 * d2;
+				}
+				double distance = dc2 * invM + (dx * dx + dy2) * invSpacingSquared;
+				if (distance < distances[ind]) {
+					distances[ind] = (float)distance;
+					labels[ind] = k;
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Update cluster centers based on the current labels.
+	 * 
+	 * @return the mean displacement of the (non-empty) cluster centers
+	 */
+	private double updateCenters() {
+		// Accumulate in parallel by bands of rows, then combine
+		int stride = nFeatures + 2;
+		int nBands = Math.max(1, Math.min(height, Runtime.getRuntime().availableProcessors()));
+		int bandHeight = (height + nBands - 1) / nBands;
+		double[][] sums = new double[nBands][];
+		int[][] bandCounts = new int[nBands][];
+		IntStream.range(0, nBands).parallel().forEach(b -> {
+			double[] bandSums = new double[nClusters * stride];
+			int[] bandCount = new int[nClusters];
+			int yEnd = Math.min(height, (b + 1) * bandHeight);
+			for (int y = b * bandHeight; y < yEnd; y++) {
+				for (int x = 0; x < width; x++) {
+					int ind = y * width + x;
+					int k = labels[ind];
+					if (k < 0)
+						continue;
+					int offset = k * stride;
+					bandSums[offset] += x;
+					bandSums[offset + 1] += y;
+					for (int f = 0; f < nFeatures; f++)
+						bandSums[offset + 2 + f] += features[f][ind];
+					bandCount[k]++;
+				}
+			}
+			sums[b] = bandSums;
+			bandCounts[b] = bandCount;
+		});
+		
+		double displacement = 0;
+		int nNonEmpty = 0;
+		for (int k = 0; k < nClusters; k++) {
+			int count = 0;
+			for (int b = 0; b < nBands; b++)
+				count += bandCounts[b][k];
+			counts[k] = count;
+			if (count == 0)
+				continue;
+			int offset = k * stride;
+			double sumX = 0, sumY = 0;
+			for (int b = 0; b < nBands; b++) {
+				sumX += sums[b][offset];
+				sumY += sums[b][offset + 1];
+			}
+			double x = sumX / count;
+			double y = sumY / count;
+			double dx = x - centerX[k];
+			double dy = y - centerY[k];
+			displacement += Math.sqrt(dx*dx + dy*dy);
+			nNonEmpty++;
+			centerX[k] = x;
+			centerY[k] = y;
+			for (int f = 0; f < nFeatures; f++) {
+				double sum = 0;
+				for (int b = 0; b < nBands; b++)
+					sum += sums[b][offset + 2 + f];
+				centerFeatures[k * nFeatures + f] = sum / count;
+			}
+		}
+		
+		if (adaptRegularization)
+			updateRegularization();
+		
+		return nNonEmpty == 0 ? 0 : displacement / nNonEmpty;
+	}
+	
+	/**
+	 * Set the regularization for each cluster according to the maximum color distance of any of its pixels.
+	 */
+	private void updateRegularization() {
+		double[] maxDistances = new double[nClusters];
+		for (int ind = 0; ind < labels.length; ind++) {
+			int k = labels[ind];
+			if (k < 0)
+				continue;
+			int offset = k * nFeatures;
+			double dc2 = 0;
+			for (int f = 0; f < nFeatures; f++) {
+				double d = features[f][ind] - centerFeatures[offset + f];
+				if (Double.isFinite(d))
+					dc2 += d * d;
+			}
+			if (dc2 > maxDistances[k])
+				maxDistances[k] = dc2;
+		}
+		for (int k = 0; k < nClusters; k++) {
+			if (maxDistances[k] > 0)
+				mSquared[k] = maxDistances[k];
+		}
+	}
+	
+	
+	/**
+	 * Merge neighboring clusters (according to the initial grid) if the Euclidean distance between their features 
+	 * is below a threshold.
+	 * 
+	 * @param mergeThreshold
+	 * @return the number of merges
+	 */
+	int mergeSimilarClusters(final double mergeThreshold) {
+		int[] primaryLabels = new int[nClusters];
+		for (int k = 0; k < nClusters; k++)
+			primaryLabels[k] = k;
+		int nMerges = 0;
+		for (int i = 0; i < nClusters; i++) {
+			int xc = i % widthClusters;
+			// Check for horizontal link
+			if (xc < widthClusters - 1)
+				nMerges += maybeMergeClusters(i, i+1, primaryLabels, mergeThreshold) ? 1 : 0;
+			// Check for vertical link
+			if (i < nClusters - widthClusters) {
+				nMerges += maybeMergeClusters(i, i+widthClusters, primaryLabels, mergeThreshold) ? 1 : 0;
+				// Check for diagonal links
+				if (xc < widthClusters - 1)
+					nMerges += maybeMergeClusters(i, i+widthClusters+1, primaryLabels, mergeThreshold) ? 1 : 0;
+				if (xc > 0)
+					nMerges += maybeMergeClusters(i, i+widthClusters-1, primaryLabels, mergeThreshold) ? 1 : 0;
+			}
+		}
+		if (nMerges > 0) {
+			for (int ind = 0; ind < labels.length; ind++) {
+				int k = labels[ind];
+				if (k >= 0)
+					labels[ind] = primaryLabels[k];
+			}
+		}
+		return nMerges;
+	}
+	
+	private boolean maybeMergeClusters(final int k1, final int k2, final int[] primaryLabels, final double mergeThreshold) {
+		if (counts[k1] == 0 || counts[k2] == 0)
+			return false;
+		double dist = 0;
+		for (int f = 0; f < nFeatures; f++) {
+			double d = centerFeatures[k1 * nFeatures + f] - centerFeatures[k2 * nFeatures + f];
+			dist += d * d;
+		}
+		if (Math.sqrt(dist) <= mergeThreshold) {
+			primaryLabels[k2] = primaryLabels[k1];
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -33,9 +33,7 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -45,7 +43,6 @@ import qupath.imagej.color.ColorDeconvolutionIJ;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.processing.ROILabeling;
-import qupath.lib.analysis.stats.RunningStatistics;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.PathImage;
@@ -228,82 +225,21 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 					fp.blurGaussian(sigma);
 			}
 			
-			// Initialize centres and distances
+			// Perform local k-means clustering
 			int w = imp.getWidth();
 			int h = imp.getHeight();
-			short[] labels = new short[w*h];
-			Arrays.fill(labels, (short)-1);
-			double[] distances = new double[w*h];
-			Arrays.fill(distances, Double.POSITIVE_INFINITY);
-			
 			int s = PREFERRED_PIXEL_SPACING;
-			List<ClusterCenter> centers = new ArrayList<>();
-			int widthClusters = 0; // Used to help figure out which clusters are side by side
-			for (int y = s/2; y < h; y += s) {
-				widthClusters = 0;
-			    for (int x = s/2; x < w; x += s) {
-			    	short label = (short)centers.size();
-			    	ClusterCenter center = new ClusterCenter(ipColor, label, s, m, adaptRegularization, w, h);
-			    	center.addLabel(y*w+x);
-			        labels[y*w+x] = label;	
-			        centers.add(center);
-			        widthClusters++;
-			    }
-			}
-			
-			// Loop through and perform local k-means clustering
-			for (int i = 0; i < maxIterations; i++) {
-			    int centerLabel = 0;
-			    for (ClusterCenter center : centers) {
-			        center.updateFeatures();
-			        for (int label : center.getNearbyClusters()) {
-			            double distance = center.distanceSquared(label);
-			            if (distance < distances[label]) {
-			            	int currentLabel = labels[label];
-			            	if (currentLabel == centerLabel)
-			            		continue;
-			            	if (currentLabel != (short)-1)
-			            		centers.get(currentLabel).removeLabel(label);
-			            	center.addLabel(label);
-			            	distances[label] = distance;
-			            	labels[label] = (short)centerLabel;
-			            }
-			        }
-			        centerLabel++;
-			    }
-			}
+			float[][] features = new float[ipColor.length][];
+			for (int i = 0; i < ipColor.length; i++)
+				features[i] = (float[])ipColor[i].convertToFloatProcessor().getPixels();
+			SLICClusterer clusterer = new SLICClusterer(features, w, h, s, m, adaptRegularization);
+			int nIterations = clusterer.run(maxIterations);
+			logger.debug("SLIC clustering completed after {} iterations (residual error {})", nIterations, clusterer.getResidualError());
 			
 			// Merge clusters if required
-			if (Boolean.TRUE.equals(params.getBooleanParameterValue("doMerge"))) {
-				for (int i = 0; i < centers.size(); i++) {
-					ClusterCenter center = centers.get(i);
-					center.updateFeatures();
-					
-					int xc = i % widthClusters;
-					// Check for horizontal link
-					if (xc < widthClusters - 1) {
-						ClusterCenter center2 = centers.get(i+1);
-						maybeMergeClusters(center, center2, labels, mergeThreshold);
-					}
-					// Check for vertical link
-					if (i < centers.size() - widthClusters) {
-						ClusterCenter center2 = centers.get(i+widthClusters);
-						maybeMergeClusters(center, center2, labels, mergeThreshold);
-						
-						// Check for diagonal forward link
-						if (xc < widthClusters - 1) {
-							center2 = centers.get(i+widthClusters+1);
-							maybeMergeClusters(center, center2, labels, mergeThreshold);
-						}
-						
-						// Check for backwards forward link
-						if (xc > 0) {
-							center2 = centers.get(i+widthClusters-1);
-							maybeMergeClusters(center, center2, labels, mergeThreshold);
-						}
-					}
-				}
-			}
+			if (Boolean.TRUE.equals(params.getBooleanParameterValue("doMerge")))
+				clusterer.mergeSimilarClusters(mergeThreshold);
+			int[] labels = clusterer.getLabels();
 			
 			
 			// Enforce connectivity and merge small objects
@@ -313,7 +249,7 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 			int minSize = s*s/4;
 			for (int y = 0; y < h; y++) {
 				// Maintain a reference to the previous label
-				short lastNewLabel = y > 0 ? labels[(y-1)*w] : 1;
+				short lastNewLabel = y > 0 ? newLabels[(y-1)*w] : 1;
 				for (int x = 0; x < w; x++) {
 					int i = y*w+x;
 					// Check if we've already labelled this
@@ -324,7 +260,7 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 					}
 					
 					// Determine pixels for the current region
-					short currentOldLabel = labels[i];
+					int currentOldLabel = labels[i];
 					int count = 1;
 					xyCurrent[0] = i;
 					newLabels[i] = label;
@@ -427,55 +363,6 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 		
 		
 		
-		static boolean maybeMergeClusters(final ClusterCenter center, final ClusterCenter center2, final short[] labels, final double mergeThreshold) {
-			// Check merge based on euclidean distance
-			double distanceThreshold = mergeThreshold;//0.02;
-			double dist = 0;
-			for (int i = 0; i < center.features.length; i++) {
-				double f1 = center.features[i];
-				double f2 = center2.features[i];
-				dist += (f1-f2)*(f1-f2);
-			}
-			dist = Math.sqrt(dist);
-//			System.err.println(dist);
-			boolean doMerge = dist <= distanceThreshold;
-						
-						
-//			// Check merge based on cosine distance
-//			double distanceThreshold = 0.9999;
-//			double dist = 0;
-//			double mag1 = 0;
-//			double mag2 = 0;
-//			for (int i = 0; i < center.features.length; i++) {
-//				double f1 = center.features[i];
-//				mag1 += f1*f1;
-//				double f2 = center2.features[i];
-//				mag2 += f2*f2;				
-//				dist += f1*f2;
-//			}
-//			dist = dist / (Math.sqrt(mag1) * Math.sqrt(mag2));
-////			dist = 1-2*Math.acos(dist)/Math.PI;
-//			boolean doMerge = dist >= distanceThreshold;
-						
-//			// Check merge based on distance standard deviations within each cluster
-//			double distanceThreshold = Math.min(center.getColorDistanceStdDev(), center2.getColorDistanceStdDev());
-//			double dist = center.colorDistance(center2.features);
-//			boolean doMerge = dist < distanceThreshold;
-			
-			// Perform the merge
-			if (doMerge) {
-				for (int label : center2.getLabels())
-					labels[label] = center.primaryLabel;
-				center2.primaryLabel = center.primaryLabel;
-//				center2.labels.addAll(center.labels);
-				return true;
-			}
-			return false;
-		}
-		
-		
-		
-		
 		static double getSigma(final PathImage<?> pathImage, final ParameterList params) {
 			double pixelSizeMicrons = .5 * (pathImage.getPixelWidthMicrons() + pathImage.getPixelHeightMicrons());
 			if (Double.isNaN(pixelSizeMicrons)) {
@@ -551,150 +438,5 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 		return parents;
 	}
 	
-
-	static class ClusterCenter {
-		
-		private ImageProcessor[] featuresImages;
-
-	    private List<Integer> labels = new ArrayList<>();
-	    private short primaryLabel;
-	    private double[] features = null;
-	    private double x;
-	    private double y;
-	    
-	    private boolean adaptRegularization;
-	    private double s, mSquared;
-	    
-	    private int width;
-	    private int height;
-	    
-	    ClusterCenter(final ImageProcessor[] featuresImages, final short primaryLabel, final double s, final double m, final boolean adaptRegularization, final int width, final int height) {
-	    	this.featuresImages = featuresImages;
-	    	this.primaryLabel = primaryLabel;
-	    	this.s = s;
-	    	this.adaptRegularization = adaptRegularization;
-	    	this.mSquared = m*m;
-	    	this.width = width;
-	    	this.height = height;
-	    }
-
-	    public List<Integer> getLabels() {
-	        return Collections.unmodifiableList(labels);
-	    }
-
-	    public void addLabel(final Integer label) {
-	        this.labels.add(label);
-	    }
-
-
-	    public void removeLabel(final Integer label) {
-	        this.labels.remove(label);
-	    }
-
-
-	    public List<Integer> getNearbyClusters() {
-	        if (labels.isEmpty())
-	            return Collections.emptyList();
-
-	        List<Integer> list = new ArrayList<>();
-	        for (int yy = (int)Math.max(0, y-s); yy < (int)Math.min(height, y+s); yy++) {
-	            for (int xx = (int)Math.max(0, x-s); xx < (int)Math.min(width, x+s); xx++) {
-	                list.add(yy*width + xx);
-	            }
-	        }
-	        return list;
-	    }
-
-
-	    public void updateFeatures() {
-	        if (labels.isEmpty()) {
-	            x = Double.NaN;
-	            y = Double.NaN;
-	            features = null;
-	        }
-	        int n = labels.size();
-	        x = 0;
-	        y = 0;
-	        features = new double[featuresImages.length];
-	        for (int label : labels) {
-	        	double xx = label % width;
-	        	double yy = label / width;
-	            x += xx/n;
-	            y += yy/n;
-	            for (int i = 0; i < features.length; i++)
-	                features[i] += featuresImages[i].getf(label)/n;
-	        }
-	        updateM();
-	    }
-	    
-	    private void updateM() {
-	    	if (!adaptRegularization)
-	    		return;
-	    	double maxDistanceSquared = 0;
-	    	for (int label : labels) {
-	    		double dist = colorDistanceSquared(label);
-	    		if (dist > maxDistanceSquared)
-	    			maxDistanceSquared = dist;
-	    	}
-	    	if (maxDistanceSquared > 0)
-	    		this.mSquared = maxDistanceSquared;
-	    }
-	    
-	    
-	    private double getColorDistanceStdDev() {
-	    	RunningStatistics stats = new RunningStatistics();
-	    	for (int label : getLabels()) {
-	    		stats.addValue(Math.sqrt(colorDistanceSquared(label)));
-	    	}
-	    	return stats.getStdDev();
-	    }
-	    
-	    
-	    private double colorDistanceSquared(final int ind) {
-	    	double DC2 = 0;
-	        for (int i = 0; i < featuresImages.length; i++) {
-	            double d = featuresImages[i].getf(ind) - features[i];
-	            if (Double.isFinite(d))
-	                DC2 += d*d;
-	        }
-	        return DC2;
-	    }
-	    
-	    
-	    public double colorDistance(final double[] features) {
-	    	double distanceSquared = 0;
-	    	for (int i = 0; i < features.length; i++) {
-	    		double d = features[i] - this.features[i];
-	    		distanceSquared += d*d;
-	    	}
-	    	return Math.sqrt(distanceSquared);
-	    }
-	    
-
-	    public double distanceSquared(final int ind) {
-	        if (features == null)
-	            return Double.POSITIVE_INFINITY;
-
-	        // Get coordinates from label
-	        double xx = ind % width;
-        	double yy = ind / width;
-        	
-	        // Calculate spatial distance squared
-	        double dx = x - xx;
-	        double dy = y - yy;
-
-	        double DS2 = dx*dx + dy*dy;
-
-	        // Calculate feature distance squared
-	        double DC2 = colorDistanceSquared(ind);
-	        
-	        // Compute distance
-	        double distanceSquared = DC2/mSquared + DS2/(s*s);
-	        
-	        return distanceSquared;
-	    }
-
-	}
-	
 	
 }
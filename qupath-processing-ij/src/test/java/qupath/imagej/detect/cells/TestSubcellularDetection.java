@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+package qupath.imagej.detect.cells;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.ImageData.ImageType;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.DoubleParameter;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.RectangleROI;
+
+/**
+ * Check that tile-batched subcellular detection gives the same results as processing cells individually 
+ * on a densely-packed fluorescence image.
+ */
+public class TestSubcellularDetection {
+	
+	private static final String BENCHMARK_PROPERTY = "qupath.benchmark";
+	
+	private static final int WIDTH = 1600;
+	private static final int HEIGHT = 1200;
+	private static final int CELL_SPACING = 16;
+	
+	@Test
+	public void test_tileBatchedDetection() throws Exception {
+		ImageData<BufferedImage> imageData = createImageData(WIDTH, HEIGHT);
+		ParameterList params = createParameters(imageData);
+		
+		PathObject parentCells = createCells(WIDTH, HEIGHT);
+		PathObject parentBatched = createCells(WIDTH, HEIGHT);
+		int nCells = parentCells.nChildObjects();
+		
+		runTasks(imageData, parentCells, params, 0);
+		runTasks(imageData, parentBatched, params, SubcellularDetection.DEFAULT_TILE_SIZE);
+		
+		// Results should be identical
+		List<PathObject> cells = new ArrayList<>(parentCells.getChildObjects());
+		List<PathObject> batched = new ArrayList<>(parentBatched.getChildObjects());
+		int nSpots = 0;
+		for (int i = 0; i < nCells; i++) {
+			PathObject cell = cells.get(i);
+			PathObject cellBatched = batched.get(i);
+			assertEquals(cell.nChildObjects(), cellBatched.nChildObjects());
+			MeasurementList ml = cell.getMeasurementList();
+			MeasurementList mlBatched = cellBatched.getMeasurementList();
+			assertEquals(ml.getMeasurementNames(), mlBatched.getMeasurementNames());
+			for (String name : ml.getMeasurementNames())
+				assertEquals(name, ml.getMeasurementValue(name), mlBatched.getMeasurementValue(name), 0.0);
+			nSpots += cell.nChildObjects();
+		}
+		assertTrue(nSpots > nCells);
+	}
+	
+	/**
+	 * This only runs if the system property {@code qupath.benchmark} is true, 
+	 * e.g. {@code mvn test -Dqupath.benchmark=true}.
+	 */
+	@Test
+	public void benchmark_tileBatchedDetection() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+		
+		ImageData<BufferedImage> imageData = createImageData(WIDTH, HEIGHT);
+		ParameterList params = createParameters(imageData);
+		
+		PathObject parentCells = createCells(WIDTH, HEIGHT);
+		PathObject parentBatched = createCells(WIDTH, HEIGHT);
+		int nCells = parentCells.nChildObjects();
+		
+		// Warm up
+		runTasks(imageData, parentCells, params, 0);
+		runTasks(imageData, parentBatched, params, SubcellularDetection.DEFAULT_TILE_SIZE);
+		
+		long startTime = System.currentTimeMillis();
+		runTasks(imageData, parentCells, params, 0);
+		long cellTime = System.currentTimeMillis() - startTime;
+		
+		startTime = System.currentTimeMillis();
+		runTasks(imageData, parentBatched, params, SubcellularDetection.DEFAULT_TILE_SIZE);
+		long batchTime = System.currentTimeMillis() - startTime;
+		
+		System.out.println(String.format("Subcellular detection for %d cells: per cell %.1f cells/s, tile-batched %.1f cells/s", 
+				nCells, nCells * 1000.0 / Math.max(cellTime, 1), nCells * 1000.0 / Math.max(batchTime, 1)));
+	}
+	
+	
+	private static ParameterList createParameters(final ImageData<BufferedImage> imageData) {
+		ParameterList params = new SubcellularDetection().getDefaultParameterList(imageData);
+		((DoubleParameter)params.getParameters().get("detection[Channel 1]")).setValue(100.0);
+		((DoubleParameter)params.getParameters().get("detection[Channel 2]")).setValue(100.0);
+		return params;
+	}
+	
+	private static void runTasks(final ImageData<BufferedImage> imageData, final PathObject parent, final ParameterList params, final int tileSize) throws InterruptedException {
+		List<Runnable> tasks = new ArrayList<>();
+		SubcellularDetection.addRunnableTasks(imageData, parent, params, null, tileSize, tasks);
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		for (Runnable task : tasks)
+			pool.submit(task);
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(5, TimeUnit.MINUTES));
+	}
+	
+	/**
+	 * Create a grid of tightly-packed cells.
+	 */
+	private static PathObject createCells(int width, int height) {
+		PathObject parent = new PathAnnotationObject(new RectangleROI(0, 0, width, height));
+		double d = CELL_SPACING - 1;
+		for (int y = 0; y + CELL_SPACING <= height; y += CELL_SPACING) {
+			for (int x = 0; x + CELL_SPACING <= width; x += CELL_SPACING) {
+				parent.addPathObject(new PathCellObject(
+						new EllipseROI(x, y, d, d),
+						new EllipseROI(x + d/4, y + d/4, d/2, d/2),
+						null));
+			}
+		}
+		return parent;
+	}
+	
+	/**
+	 * Create a fluorescence image containing small spots in the first two channels.
+	 */
+	private static ImageData<BufferedImage> createImageData(int width, int height) {
+		Random rand = new Random(50L);
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.setColor(new Color(20, 20, 60));
+		g2d.fillRect(0, 0, width, height);
+		int nSpots = width * height / 40;
+		for (int i = 0; i < nSpots; i++) {
+			g2d.setColor(rand.nextBoolean() ? new Color(220, 20, 60) : new Color(20, 220, 60));
+			int r = 2 + rand.nextInt(3);
+			g2d.fillOval(rand.nextInt(width), rand.nextInt(height), r, r);
+		}
+		g2d.dispose();
+		
+		ImageIoImageServer server = new ImageIoImageServer("subcellular", "subcellular", img);
+		server.setMetadata(new ImageServerMetadata.Builder(server.getOriginalMetadata())
+				.setPixelSizeMicrons(0.5, 0.5)
+				.build());
+		return new ImageData<>(server, ImageType.FLUORESCENCE);
+	}
+
+}
@@ -0,0 +1,336 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.imagej.detect.dearray;
+
+import static org.junit.Assert.*;
+
+import java.awt.Point;
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import qupath.imagej.detect.dearray.TMADearrayer.TMAGridShape;
+
+/**
+ * Tests for TMA dearraying, using synthetic TMA images.
+ */
+public class TestTMADearrayer {
+	
+	private static final String BENCHMARK_PROPERTY = "qupath.benchmark";
+	
+	@Test
+	public void test_detectSyntheticGrid() {
+		// Slightly rotated grid of 24 x 22 cores, with a few missing
+		int nHorizontal = 24;
+		int nVertical = 22;
+		double coreDiameterPx = 20;
+		double spacing = 28;
+		double angle = 2 * Math.PI / 180;
+		Random rand = new Random(46L);
+		
+		int width = (int)(nHorizontal * spacing + 100);
+		int height = (int)(nVertical * spacing + 100);
+		ByteProcessor bp = new ByteProcessor(width, height);
+		bp.setValue(230);
+		bp.fill();
+		double[][] centers = new double[nHorizontal * nVertical][];
+		bp.setValue(80);
+		for (int j = 0; j < nVertical; j++) {
+			for (int i = 0; i < nHorizontal; i++) {
+				double dx = (i - nHorizontal/2.0) * spacing + rand.nextGaussian();
+				double dy = (j - nVertical/2.0) * spacing + rand.nextGaussian();
+				double x = width/2.0 + dx * Math.cos(angle) - dy * Math.sin(angle);
+				double y = height/2.0 + dx * Math.sin(angle) + dy * Math.cos(angle);
+				// Always keep the first row & column, so that the grid can be found
+				if (i > 0 && j > 0 && rand.nextInt(20) == 0)
+					continue;
+				centers[j * nHorizontal + i] = new double[]{x, y};
+				bp.fillOval((int)(x - coreDiameterPx/2 + 0.5), (int)(y - coreDiameterPx/2 + 0.5), (int)coreDiameterPx, (int)coreDiameterPx);
+			}
+		}
+		for (int i = 0; i < width * height; i++)
+			bp.set(i, Math.max(0, Math.min(255, bp.get(i) + (int)(rand.nextGaussian() * 10))));
+		
+		ByteProcessor bpBinary = TMADearrayer.makeBinaryImage(bp, coreDiameterPx, null, false);
+		TMAGridShape grid = TMADearrayer.detectTMACoresFromBinary(bpBinary, coreDiameterPx, nHorizontal, nVertical, null);
+		double[] densities = TMADearrayer.computeDensities(bpBinary, grid.polyGrid, coreDiameterPx);
+		
+		assertEquals(nHorizontal, grid.nHorizontal);
+		assertEquals(nVertical, grid.nVertical);
+		for (int i = 0; i < centers.length; i++) {
+			double x = grid.polyGrid.xpoints[i];
+			double y = grid.polyGrid.ypoints[i];
+			if (centers[i] == null) {
+				assertTrue(densities[i] < 0.05);
+			} else {
+				assertTrue(densities[i] > 0.5);
+				assertEquals(centers[i][0], x, coreDiameterPx * 0.25);
+				assertEquals(centers[i][1], y, coreDiameterPx * 0.25);
+			}
+		}
+	}
+	
+	@Test
+	public void test_refineCore() {
+		// Core imaged at a higher resolution, with an initial estimate that is a bit off
+		Random rand = new Random(47L);
+		double coreDiameterPx = 200;
+		int size = 320;
+		for (int k = 0; k < 5; k++) {
+			double x = size/2.0 + rand.nextDouble() * 40 - 20;
+			double y = size/2.0 + rand.nextDouble() * 40 - 20;
+			double diameter = coreDiameterPx * (0.9 + rand.nextDouble() * 0.2);
+			ColorProcessor cp = new ColorProcessor(size, size);
+			for (int yy = 0; yy < size; yy++) {
+				for (int xx = 0; xx < size; xx++) {
+					double dx = xx + 0.5 - x;
+					double dy = yy + 0.5 - y;
+					boolean inside = dx*dx + dy*dy <= diameter*diameter/4;
+					int noise = (int)(rand.nextGaussian() * 15);
+					int r = clip((inside ? 150 : 235) + noise);
+					int g = clip((inside ? 90 : 230) + noise);
+					int b = clip((inside ? 160 : 235) + noise);
+					cp.set(xx, yy, (r << 16) + (g << 8) + b);
+				}
+			}
+			double[] result = TMADearrayer.refineCore(cp, size/2.0, size/2.0, coreDiameterPx, false);
+			assertNotNull(result);
+			assertEquals(x, result[0], 1.0);
+			assertEquals(y, result[1], 1.0);
+			assertEquals(diameter, result[2], diameter * 0.02);
+		}
+	}
+	
+	@Test
+	public void test_fitCorePolygonToGrid() {
+		Random rand = new Random(48L);
+		int nHorizontal = 30;
+		int nVertical = 30;
+		double coreDiameterPx = 20;
+		double spacing = 32;
+		for (int k = 0; k < 5; k++) {
+			List<Point> points = createGridPoints(nHorizontal, nVertical, spacing, rand);
+			Polygon poly = createShuffledPolygon(points, rand);
+			
+			Polygon expected = legacyFitCorePolygonToGrid(poly, coreDiameterPx, nHorizontal, nVertical);
+			Polygon actual = TMADearrayer.fitCorePolygonToGrid(poly, coreDiameterPx, nHorizontal, nVertical);
+			
+			assertEquals(expected.npoints, actual.npoints);
+			for (int i = 0; i < actual.npoints; i++) {
+				assertEquals(expected.xpoints[i], actual.xpoints[i]);
+				assertEquals(expected.ypoints[i], actual.ypoints[i]);
+				assertEquals(points.get(i), new Point(actual.xpoints[i], actual.ypoints[i]));
+			}
+		}
+		assertNull(TMADearrayer.fitCorePolygonToGrid(new Polygon(new int[]{1, 2}, new int[]{1, 2}, 2), coreDiameterPx, 2, 2));
+	}
+	
+	/**
+	 * This only runs if the system property {@code qupath.benchmark} is true, 
+	 * e.g. {@code mvn test -Dqupath.benchmark=true}.
+	 */
+	@Test
+	public void benchmark_fitCorePolygonToGrid() {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+		
+		Random rand = new Random(48L);
+		int nHorizontal = 30;
+		int nVertical = 30;
+		double coreDiameterPx = 20;
+		Polygon poly = createShuffledPolygon(createGridPoints(nHorizontal, nVertical, 32, rand), rand);
+		
+		// Warm up
+		legacyFitCorePolygonToGrid(poly, coreDiameterPx, nHorizontal, nVertical);
+		TMADearrayer.fitCorePolygonToGrid(poly, coreDiameterPx, nHorizontal, nVertical);
+		
+		long startTime = System.nanoTime();
+		legacyFitCorePolygonToGrid(poly, coreDiameterPx, nHorizontal, nVertical);
+		long timeLegacy = System.nanoTime() - startTime;
+		
+		startTime = System.nanoTime();
+		TMADearrayer.fitCorePolygonToGrid(poly, coreDiameterPx, nHorizontal, nVertical);
+		long timeNew = System.nanoTime() - startTime;
+		
+		System.out.println(String.format("Fit %d cores to grid: original %.2f ms, sorted %.2f ms", poly.npoints, timeLegacy / 1e6, timeNew / 1e6));
+	}
+	
+	/**
+	 * Create a jittered, slightly rotated grid of points, in row order.
+	 */
+	private static List<Point> createGridPoints(final int nHorizontal, final int nVertical, final double spacing, final Random rand) {
+		double angle = (rand.nextDouble() - 0.5) * Math.PI / 180;
+		List<Point> points = new ArrayList<>();
+		for (int j = 0; j < nVertical; j++) {
+			for (int i = 0; i < nHorizontal; i++) {
+				double dx = i * spacing + rand.nextGaussian();
+				double dy = j * spacing + rand.nextGaussian();
+				points.add(new Point(
+						(int)(100 + dx * Math.cos(angle) - dy * Math.sin(angle)),
+						(int)(100 + dx * Math.sin(angle) + dy * Math.cos(angle))));
+			}
+		}
+		return points;
+	}
+	
+	private static Polygon createShuffledPolygon(final List<Point> points, final Random rand) {
+		List<Point> shuffled = new ArrayList<>(points);
+		Collections.shuffle(shuffled, rand);
+		Polygon poly = new Polygon();
+		for (Point p : shuffled)
+			poly.addPoint(p.x, p.y);
+		return poly;
+	}
+	
+	@Test
+	public void test_computeDensities() {
+		Random rand = new Random(49L);
+		int width = 211;
+		int height = 187;
+		ByteProcessor bp = new ByteProcessor(width, height);
+		for (int i = 0; i < width * height; i++)
+			bp.set(i, rand.nextInt(3) == 0 ? 255 : 0);
+		for (double coreDiameterPx : new double[]{3, 5.5, 20, 41}) {
+			Polygon poly = new Polygon();
+			for (int i = 0; i < 200; i++)
+				poly.addPoint(rand.nextInt(width + 20) - 10, rand.nextInt(height + 20) - 10);
+			
+			// Original implementation - filter the whole image
+			FloatProcessor fp = bp.convertToFloatProcessor();
+			fp.max(1.0);
+			new RankFilters().rank(fp, coreDiameterPx*0.5, RankFilters.MEAN);
+			
+			double[] densities = TMADearrayer.computeDensities(bp, poly, coreDiameterPx);
+			for (int i = 0; i < poly.npoints; i++) {
+				int x = poly.xpoints[i];
+				int y = poly.ypoints[i];
+				double expected = x >= 0 && y >= 0 && x < width && y < height ? fp.getf(x, y) : 0;
+				assertEquals(expected, densities[i], 1e-5);
+			}
+		}
+	}
+	
+	private static int clip(int val) {
+		return Math.max(0, Math.min(255, val));
+	}
+	
+	
+	/*
+	 * Original implementation of fitCorePolygonToGrid, for comparison
+	 */
+	
+	private static boolean pointTooCloseX(Collection<Point> points, Point newPoint, double minDistance) {
+		for (Point p : points)
+			if (Math.abs(p.x - newPoint.x) < minDistance)
+				return true;
+		return false;
+	}
+	
+	private static List<Point> processTopRowOfPoints(List<Point> sortedPoints, double coreDiameterPx, int nPointsPerRow) {
+		// Take the first point and add it to the row being processed
+		ArrayList<Point> pointRow = new ArrayList<>(nPointsPerRow);
+		pointRow.add(sortedPoints.remove(0));
+		// Continue adding points until we have enough, making sure adequate spacing or at least one core diameter between them
+		Iterator<Point> iter = sortedPoints.iterator();
+		while (iter.hasNext()) {
+			Point p = iter.next();
+			// Any point with an x-coordinate within 1 core diameter is too close - must be from a lower row
+			if (!pointTooCloseX(pointRow, p, coreDiameterPx)) {
+				iter.remove();
+				pointRow.add(p);
+				// We might have enough points now
+				if (pointRow.size() == nPointsPerRow) {
+					break;
+				}
+			}
+		}
+		// Sort the points by x coordinate
+		Collections.sort(pointRow, new Comparator<Point>() {
+			@Override
+			public int compare(Point p1, Point p2) {
+				return new Integer(p1.x).compareTo(p2.x);
+			}
+		});
+			
+		return pointRow;
+	}
+	
+	
+	/**
+	 * Given a polygon representing TMA core centroids in any order, fit this to a coordinate grid.
+	 * Essentially this amounts to sorting the points starting from the top left,
+	 * continuing along each row.
+	 * In practice the process is more complicated (and less certain to be correct...)
+	 * because coordinates in the same TMA row cannot be trusted to occur with the same image y coordinate,
+	 * similarly coordinates in the same TMA column can have different x coordinates.
+	 * @param poly - The original centroid coordinates; this should have exactly nHorizontal * nVertical points.
+	 * @param coreDiameterPx - Approximate diameter of one TMA core (used to determine potential variability between core centroids)
+	 * @param nHorizontal - The number of cores in each row
+	 * @param nVertical - The number of cores in each column
+	 * @return A polygon of TMA cores, with the order going from top-left, one row at a time.
+	 * If the input polygon has the wrong number of points, null is returned.
+	 */
+	private static Polygon legacyFitCorePolygonToGrid(Polygon poly, double coreDiameterPx, int nHorizontal, int nVertical) {
+		// Extract the points & check we have the right number
+		if (poly.npoints != (nHorizontal * nVertical)) {
+			return null;
+		}
+		
+		// Sort the points, top to bottom
+		ArrayList<Point> points = new ArrayList<>();
+		for (int i = 0; i < poly.npoints; i++)
+			points.add(new Point(poly.xpoints[i], poly.ypoints[i]));
+		Collections.sort(points, new Comparator<Point>() {
+			@Override
+			public int compare(Point p1, Point p2) {
+				return new Integer(p1.y).compareTo(p2.y);
+			}
+		});
+		
+		// Loop through the rows, constructing a polygon with the coords in order
+		Polygon poly2 = new Polygon();
+		for (int j = 0; j < nVertical; j++) {
+			List<Point> pointRow = processTopRowOfPoints(points, coreDiameterPx, nHorizontal);
+			for (int i = 0; i < pointRow.size(); i++) {
+				Point p = pointRow.get(i);
+				poly2.addPoint(p.x, p.y);
+			}
+		}
+		return poly2;
+	}
+	
+	
+}
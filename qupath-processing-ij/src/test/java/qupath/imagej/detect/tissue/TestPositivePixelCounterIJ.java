@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.imagej.detect.tissue;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.imagej.detect.tissue.PositivePixelCounterIJ.PositivePixelDetector;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.ImageData.ImageType;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.BooleanParameter;
+import qupath.lib.plugins.parameters.IntParameter;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Check that tiled positive pixel counting gives the same result as processing the whole region at once.
+ */
+public class TestPositivePixelCounterIJ {
+	
+	@Test
+	public void test_tiledCounts() {
+		ImageData<BufferedImage> imageData = createImageData(600, 500);
+		PositivePixelCounterIJ plugin = new PositivePixelCounterIJ();
+		ParameterList params = plugin.getDefaultParameterList(imageData);
+		((IntParameter)params.getParameters().get("downsampleFactor")).setValue(1);
+		
+		ROI roi = new EllipseROI(20, 30, 550, 430);
+		
+		PathObject parentSingle = new PathAnnotationObject(roi);
+		List<PathObject> single = new ArrayList<>(new PositivePixelDetector(parentSingle, 4096).runDetection(imageData, params, roi));
+
+		// Use tiles that don't divide the region evenly
+		PathObject parentTiled = new PathAnnotationObject(roi);
+		List<PathObject> tiled = new ArrayList<>(new PositivePixelDetector(parentTiled, 97).runDetection(imageData, params, roi));
+		
+		MeasurementList mlSingle = parentSingle.getMeasurementList();
+		MeasurementList mlTiled = parentTiled.getMeasurementList();
+		assertTrue(mlSingle.getMeasurementValue("Positive pixel count") > 0);
+		assertTrue(mlSingle.getMeasurementValue("Negative pixel count") > 0);
+		for (String name : mlSingle.getMeasurementNames()) {
+			assertEquals(name, mlSingle.getMeasurementValue(name), mlTiled.getMeasurementValue(name), 1e-6);
+		}
+		
+		// Merged areas should match too
+		assertEquals(1, single.size());
+		assertEquals(1, tiled.size());
+		assertEquals(getArea(single.get(0)), getArea(tiled.get(0)), 1e-3);
+		assertEquals(getArea(single.get(0).getChildObjects().iterator().next()), getArea(tiled.get(0).getChildObjects().iterator().next()), 1e-3);
+		
+		// Summary measurements only
+		((BooleanParameter)params.getParameters().get("createAreaObjects")).setValue(Boolean.FALSE);
+		PathObject parentStats = new PathAnnotationObject(roi);
+		Collection<PathObject> stats = new PositivePixelDetector(parentStats, 97).runDetection(imageData, params, roi);
+		assertTrue(stats.isEmpty());
+		for (String name : mlSingle.getMeasurementNames()) {
+			assertEquals(name, mlSingle.getMeasurementValue(name), parentStats.getMeasurementList().getMeasurementValue(name), 1e-6);
+		}
+	}
+	
+	
+	@Test
+	public void test_tiledCountsDownsampled() {
+		ImageData<BufferedImage> imageData = createImageData(600, 500);
+		PositivePixelCounterIJ plugin = new PositivePixelCounterIJ();
+		ParameterList params = plugin.getDefaultParameterList(imageData);
+		((IntParameter)params.getParameters().get("downsampleFactor")).setValue(4);
+		
+		// Use a ROI that isn't aligned to the downsample, and tiles that don't divide it evenly
+		ROI roi = new EllipseROI(21, 31, 550, 430);
+		
+		PathObject parentSingle = new PathAnnotationObject(roi);
+		List<PathObject> single = new ArrayList<>(new PositivePixelDetector(parentSingle, 4096).runDetection(imageData, params, roi));
+
+		PathObject parentTiled = new PathAnnotationObject(roi);
+		List<PathObject> tiled = new ArrayList<>(new PositivePixelDetector(parentTiled, 23).runDetection(imageData, params, roi));
+		
+		MeasurementList mlSingle = parentSingle.getMeasurementList();
+		MeasurementList mlTiled = parentTiled.getMeasurementList();
+		assertTrue(mlSingle.getMeasurementValue("Positive pixel count") > 0);
+		assertTrue(mlSingle.getMeasurementValue("Negative pixel count") > 0);
+		assertEquals(mlSingle.getMeasurementValue("Positive pixel count"), mlTiled.getMeasurementValue("Positive pixel count"), 0);
+		assertEquals(mlSingle.getMeasurementValue("Negative pixel count"), mlTiled.getMeasurementValue("Negative pixel count"), 0);
+		
+		// Negative and positive areas
+		assertEquals(1, single.size());
+		assertEquals(1, tiled.size());
+		assertEquals(getArea(single.get(0)), getArea(tiled.get(0)), 1e-3);
+		assertEquals(getArea(single.get(0).getChildObjects().iterator().next()), getArea(tiled.get(0).getChildObjects().iterator().next()), 1e-3);
+	}
+	
+	
+	private static double getArea(PathObject pathObject) {
+		return ((PathArea)pathObject.getROI()).getArea();
+	}
+	
+	/**
+	 * Create an image containing hematoxylin-like and DAB-like blobs.
+	 */
+	private static ImageData<BufferedImage> createImageData(int width, int height) {
+		Random rand = new Random(45L);
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.setColor(Color.WHITE);
+		g2d.fillRect(0, 0, width, height);
+		for (int i = 0; i < 300; i++) {
+			g2d.setColor(rand.nextBoolean() ? new Color(110, 90, 170) : new Color(140, 80, 30));
+			int r = 3 + rand.nextInt(15);
+			g2d.fillOval(rand.nextInt(width), rand.nextInt(height), r, r);
+		}
+		g2d.dispose();
+		
+		ImageIoImageServer server = new ImageIoImageServer("positive-pixels", "positive-pixels", img);
+		server.setMetadata(new ImageServerMetadata.Builder(server.getOriginalMetadata())
+				.setPixelSizeMicrons(0.5, 0.5)
+				.build());
+		return new ImageData<>(server, ImageType.BRIGHTFIELD_H_DAB);
+	}
+
+}
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.imagej.superpixels;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class TestSLICClusterer {
+	
+	private static final String BENCHMARK_PROPERTY = "qupath.benchmark";
+	
+	@Test
+	public void test_boundaries() {
+		// Two regions with very different features, plus a little noise
+		int w = 200;
+		int h = 150;
+		int boundary = 87;
+		float[][] features = createFeatures(w, h, boundary, 1L);
+		SLICClusterer clusterer = new SLICClusterer(features, w, h, 20, 10, false);
+		clusterer.run(10);
+		
+		int[] labels = clusterer.getLabels();
+		int[] sides = new int[clusterer.nClusters()];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int k = labels[y*w+x];
+				assertTrue(k >= 0 && k < clusterer.nClusters());
+				// Record which side of the boundary each cluster is found, and check it is only ever found on one side
+				int side = x < boundary ? 1 : 2;
+				assertTrue(sides[k] == 0 || sides[k] == side);
+				sides[k] = side;
+			}
+		}
+	}
+	
+	@Test
+	public void test_earlyTermination() {
+		int w = 256;
+		int h = 256;
+		float[][] features = new float[3][w * h];
+		SLICClusterer clusterer = new SLICClusterer(features, w, h, 20, 10, false);
+		int maxIterations = 100;
+		int nIterations = clusterer.run(maxIterations);
+		assertTrue(nIterations < maxIterations);
+		assertTrue(clusterer.getResidualError() < 0.2);
+	}
+	
+	/**
+	 * This only runs if the system property {@code qupath.benchmark} is true, 
+	 * e.g. {@code mvn test -Dqupath.benchmark=true}.
+	 */
+	@Test
+	public void benchmark_superpixels() {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+		
+		int w = 2048;
+		int h = 2048;
+		float[][] features = createFeatures(w, h, w/2, 2L);
+		long startTime = System.nanoTime();
+		SLICClusterer clusterer = new SLICClusterer(features, w, h, 20, 10, false);
+		int nIterations = clusterer.run(10);
+		long time = System.nanoTime() - startTime;
+		System.out.println(String.format("SLIC (%dx%d, %d iterations): %d superpixels in %.1f ms (%.0f superpixels/s)", 
+				w, h, nIterations, clusterer.nClusters(), time / 1e6, clusterer.nClusters() / (time / 1e9)));
+	}
+	
+	
+	private static float[][] createFeatures(final int w, final int h, final int boundary, final long seed) {
+		Random rand = new Random(seed);
+		float[][] features = new float[3][w * h];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int ind = y * w + x;
+				float base = x < boundary ? 20 : 80;
+				features[0][ind] = base + (float)rand.nextGaussian();
+				features[1][ind] = -base / 2 + (float)rand.nextGaussian();
+				features[2][ind] = (float)rand.nextGaussian();
+			}
+		}
+		return features;
+	}
+
+}
@@ -23,6 +23,7 @@
 
 package qupath.opencv.classify;
 
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Scalar;
@@ -103,6 +104,15 @@ public class NeuralNetworksClassifier extends ParameterizableOpenCvClassifier<AN
 //		lastDescription = getName() + "\n\nMain parameters:\n  " + DefaultPluginWorkflowStep.getParameterListJSON(params, "\n  ") + "\n\nTermination criteria:\n  " + crit.toString();
 	}
 
+	/**
+	 * The network has one output per class, so the predicted class is the one with the largest response.
+	 */
+	@Override
+	protected int predictClassIndex(final ANN_MLP classifier, final Mat sample, final Mat results) {
+		classifier.predict(sample, results, 0);
+		return (int)Core.minMaxLoc(results).maxLoc.x;
+	}
+	
 	@Override
 	protected ParameterList createParameterList() {
 		ParameterList params = new ParameterList();
@@ -38,9 +38,9 @@ import java.util.List;
 import java.util.Map;
 
 import qupath.lib.analysis.stats.RunningStatistics;
+import qupath.lib.classifiers.FeatureIndexCache;
 import qupath.lib.classifiers.Normalization;
 import qupath.lib.classifiers.PathObjectClassifier;
-import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassFactory;
@@ -78,6 +78,9 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 	private double[] normOffset;
 	transient T classifier;
 	
+	// Avoid looking up each measurement by name when extracting features
+	private transient FeatureIndexCache featureCache;
+	
 	List<String> measurements = new ArrayList<>();
 	// We can't serialize directly, so instead save all training data so classifier can be rebuilt as required
 	float[] arrayTraining = null; // Array of training data
@@ -139,22 +142,26 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 		arrayTraining = new float[n * nMeasurements];
 		arrayResponses = new int[n];
 
+		FeatureIndexCache cache = getFeatureCache();
+		RunningStatistics[] statsArray = new RunningStatistics[nMeasurements];
+		for (int i = 0; i < nMeasurements; i++)
+			statsArray[i] = statsMap.get(measurements.get(i));
+		double[] values = new double[nMeasurements];
+		
 		int row = 0;
 		int nnan = 0;
 		for (PathClass pathClass : pathClasses) {
 			List<PathObject> list = map.get(pathClass);
 			int classIndex = pathClasses.indexOf(pathClass);
 			for (int i = 0; i < list.size(); i++) {
-				MeasurementList measurementList = list.get(i).getMeasurementList();
-				int col = 0;
-				for (String m : measurements) {
-					double value = measurementList.getMeasurementValue(m);
+				cache.getFeatureValues(list.get(i).getMeasurementList(), values);
+				for (int col = 0; col < nMeasurements; col++) {
+					double value = values[col];
 					if (Double.isNaN(value))
 						nnan++;
 					else
-						statsMap.get(m).addValue(value);
+						statsArray[col].addValue(value);
 					arrayTraining[row * nMeasurements + col] = (float)value;
-					col++;
 				}
 				arrayResponses[row] = classIndex;
 				row++;
@@ -165,29 +172,10 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 		// Normalise, if required
 		if (normalization != null && normalization != Normalization.NONE) {
 			logger.debug("Training classifier with normalization: {}", normalization);
-			int numMeasurements = measurements.size();
-			normOffset = new double[numMeasurements];
-			normScale = new double[numMeasurements];
-			for (int i = 0; i < numMeasurements; i++) {
-				RunningStatistics stats = statsMap.get(measurements.get(i));
-				if (normalization == Normalization.MEAN_VARIANCE) {
-					normOffset[i] = -stats.getMean();
-					if (stats.getStdDev() > 0)
-						normScale[i] = 1.0 / stats.getStdDev();
-				} else if (normalization == Normalization.MIN_MAX){
-					normOffset[i] = -stats.getMin();
-					if (stats.getRange() > 0)
-						normScale[i] = 1.0 / (stats.getMax() - stats.getMin());					
-					else
-						normScale[i] = 1.0;
-				}
-			}
-			
-			// Apply normalisation
-			for (int i = 0; i < arrayTraining.length; i++) {
-				int k = i % numMeasurements;
-				arrayTraining[i] = (float)((arrayTraining[i] + normOffset[k]) * normScale[k]);
-			}
+			normOffset = new double[nMeasurements];
+			normScale = new double[nMeasurements];
+			computeNormalization(normalization, statsArray, normOffset, normScale);
+			applyNormalization(arrayTraining, normOffset, normScale);
 			this.normalization = normalization;
 			
 		} else {
@@ -226,6 +214,123 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 	
 	
 	
+	/**
+	 * Compute the offset &amp; scale required to normalize each feature, given its statistics.
+	 * 
+	 * @param normalization
+	 * @param stats
+	 * @param offset array to store the offset for each feature
+	 * @param scale array to store the scale for each feature
+	 */
+	static void computeNormalization(final Normalization normalization, final RunningStatistics[] stats, final double[] offset, final double[] scale) {
+		for (int i = 0; i < stats.length; i++) {
+			if (normalization == Normalization.MEAN_VARIANCE) {
+				offset[i] = -stats[i].getMean();
+				if (stats[i].getStdDev() > 0)
+					scale[i] = 1.0 / stats[i].getStdDev();
+			} else if (normalization == Normalization.MIN_MAX){
+				offset[i] = -stats[i].getMin();
+				if (stats[i].getRange() > 0)
+					scale[i] = 1.0 / (stats[i].getMax() - stats[i].getMin());					
+				else
+					scale[i] = 1.0;
+			}
+		}
+	}
+	
+	/**
+	 * Apply normalization in-place to a row-major array of features.
+	 * 
+	 * @param array
+	 * @param offset
+	 * @param scale
+	 */
+	static void applyNormalization(final float[] array, final double[] offset, final double[] scale) {
+		int numMeasurements = offset.length;
+		for (int i = 0; i < array.length; i++) {
+			int k = i % numMeasurements;
+			array[i] = (float)((array[i] + offset[k]) * scale[k]);
+		}
+	}
+	
+	
+	/**
+	 * Train a new classifier using arrays of features (which should already be normalized, if required) and class indices.
+	 * 
+	 * This bypasses the extraction of features from objects, so that classifiers can be evaluated efficiently
+	 * on subsets of the same training data.  The classifier should not be used to classify objects afterwards.
+	 * 
+	 * @param pathClasses
+	 * @param measurements
+	 * @param arrayTraining row-major array of features
+	 * @param arrayResponses index of the class for each row
+	 */
+	void trainClassifier(final List<PathClass> pathClasses, final List<String> measurements, final float[] arrayTraining, final int[] arrayResponses) {
+		this.pathClasses = new ArrayList<>(pathClasses);
+		this.measurements = new ArrayList<>(measurements);
+		this.arrayTraining = arrayTraining;
+		this.arrayResponses = arrayResponses;
+		this.normalization = Normalization.NONE;
+		this.normOffset = null;
+		this.normScale = null;
+		createAndTrainClassifier();
+		timestamp = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Predict the class index for each row of a matrix of samples, using the current classifier.
+	 * 
+	 * @param samples
+	 * @return the index into {@link #getPathClasses()} for each row, or -1 if the prediction failed
+	 */
+	int[] predictClassIndices(final Mat samples) {
+		int[] predictions = new int[samples.rows()];
+		Mat results = new Mat();
+		for (int i = 0; i < predictions.length; i++) {
+			Mat sample = samples.row(i);
+			try {
+				predictions[i] = predictClassIndex(classifier, sample, results);
+			} catch (Exception e) {
+				predictions[i] = -1;
+			}
+			sample.release();
+		}
+		results.release();
+		return predictions;
+	}
+	
+	/**
+	 * Predict the index of the class for a single sample.
+	 * 
+	 * This should be consistent with the classification set by {@link #setPredictedClass(StatModel, List, Mat, Mat, PathObject)}.
+	 * 
+	 * @param classifier
+	 * @param sample
+	 * @param results
+	 * @return
+	 */
+	protected int predictClassIndex(final T classifier, final Mat sample, final Mat results) {
+		return (int)classifier.predict(sample);
+	}
+	
+	
+	/**
+	 * Get a cache to extract the current measurements from each object.
+	 * 
+	 * Indices are retained between calls while the measurements are unchanged, so that retraining with
+	 * the same features (but different objects or labels) does not need to look up measurements by name.
+	 * 
+	 * @return
+	 */
+	private synchronized FeatureIndexCache getFeatureCache() {
+		if (featureCache == null)
+			featureCache = new FeatureIndexCache(measurements);
+		else
+			featureCache.setFeatures(measurements);
+		return featureCache;
+	}
+	
+	
 	protected void createAndTrainClassifier() {
 		
 		// Create the required Mats
@@ -288,22 +393,22 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 		
 		
 		int counter = 0;
+		FeatureIndexCache cache = getFeatureCache();
+		double[] values = new double[measurements.size()];
 		float[] array = new float[measurements.size()];
 		Mat samples = new Mat(1, array.length, CvType.CV_32FC1);
 
 		Mat results = new Mat();
 
 		for (PathObject pathObject : pathObjects) {
-			MeasurementList measurementList = pathObject.getMeasurementList();
-			int idx = 0;
-			for (String m : measurements) {
-				double value = measurementList.getMeasurementValue(m);
+			cache.getFeatureValues(pathObject.getMeasurementList(), values);
+			for (int idx = 0; idx < array.length; idx++) {
+				double value = values[idx];
 				
 				if (normScale != null && normOffset != null)
 					value = (value + normOffset[idx]) * normScale[idx];
 				
 				array[idx] = (float)value;
-				idx++;
 			}
 			
 			samples.put(0, 0, array);
@@ -0,0 +1,570 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.opencv.classify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.analysis.stats.RunningStatistics;
+import qupath.lib.classifiers.FeatureIndexCache;
+import qupath.lib.classifiers.Normalization;
+import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.plugins.parameters.ParameterList;
+
+/**
+ * Evaluate OpenCV classifiers using k-fold cross-validation, optionally across a grid of parameter values.
+ * 
+ * Features are extracted once for all training objects; each fold then uses a subset of the rows.
+ * Any normalization is computed from the training rows of each fold only, and then applied to the test rows - 
+ * so that the test samples do not influence the classifier being evaluated.
+ * 
+ * Every combination of configuration and fold is trained with a new classifier instance, using a fixed number of threads.
+ */
+public class OpenCvClassifierEvaluator {
+	
+	final private static Logger logger = LoggerFactory.getLogger(OpenCvClassifierEvaluator.class);
+	
+	private List<PathClass> pathClasses;
+	private List<String> features;
+	private Normalization normalization;
+	
+	private int nSamples;
+	private float[] arrayFeatures; // Row-major features, without normalization
+	private int[] arrayResponses; // Index of the class for each row
+	
+	/**
+	 * Create an evaluator for the specified training objects and features.
+	 * 
+	 * @param map training objects for each class, as passed to {@link OpenCvClassifier#updateClassifier(Map, List, Normalization)}
+	 * @param features
+	 * @param normalization
+	 */
+	public OpenCvClassifierEvaluator(final Map<PathClass, List<PathObject>> map, final List<String> features, final Normalization normalization) {
+		this.pathClasses = new ArrayList<>(map.keySet());
+		Collections.sort(pathClasses);
+		this.features = Collections.unmodifiableList(new ArrayList<>(features));
+		this.normalization = normalization == null ? Normalization.NONE : normalization;
+		
+		for (List<PathObject> list : map.values())
+			nSamples += list.size();
+		int nFeatures = features.size();
+		arrayFeatures = new float[nSamples * nFeatures];
+		arrayResponses = new int[nSamples];
+		
+		FeatureIndexCache cache = new FeatureIndexCache(features);
+		double[] values = new double[nFeatures];
+		int row = 0;
+		for (int classIndex = 0; classIndex < pathClasses.size(); classIndex++) {
+			for (PathObject pathObject : map.get(pathClasses.get(classIndex))) {
+				cache.getFeatureValues(pathObject.getMeasurementList(), values);
+				for (int k = 0; k < nFeatures; k++)
+					arrayFeatures[row * nFeatures + k] = (float)values[k];
+				arrayResponses[row] = classIndex;
+				row++;
+			}
+		}
+	}
+	
+	/**
+	 * Get the classes, in the order used for the rows &amp; columns of confusion matrices.
+	 * 
+	 * @return
+	 */
+	public List<PathClass> getPathClasses() {
+		return Collections.unmodifiableList(pathClasses);
+	}
+	
+	/**
+	 * Get the features used for evaluation.
+	 * 
+	 * @return
+	 */
+	public List<String> getFeatures() {
+		return features;
+	}
+	
+	/**
+	 * Get the total number of training objects.
+	 * 
+	 * @return
+	 */
+	public int nSamples() {
+		return nSamples;
+	}
+	
+	
+	/**
+	 * Assign each sample to one of nFolds folds, stratified by class so that each fold has a similar proportion of every class.
+	 * 
+	 * @param nFolds
+	 * @param seed seed for the random assignment of samples within each class
+	 * @return the fold index for each sample
+	 */
+	int[] createFolds(final int nFolds, final long seed) {
+		if (nFolds < 2 || nFolds > nSamples)
+			throw new IllegalArgumentException("Number of folds must be between 2 and the number of samples (" + nSamples + "), but was " + nFolds);
+		int[] folds = new int[nSamples];
+		Random random = new Random(seed);
+		int start = 0;
+		int offset = 0;
+		while (start < nSamples) {
+			int end = start;
+			while (end < nSamples && arrayResponses[end] == arrayResponses[start])
+				end++;
+			List<Integer> rows = new ArrayList<>();
+			for (int i = start; i < end; i++)
+				rows.add(i);
+			Collections.shuffle(rows, random);
+			// Continue from the fold after the last class ended, so that fold sizes stay balanced
+			for (int i = 0; i < rows.size(); i++)
+				folds[rows.get(i)] = (offset + i) % nFolds;
+			offset = (offset + rows.size()) % nFolds;
+			start = end;
+		}
+		return folds;
+	}
+	
+	
+	/**
+	 * Evaluate each configuration using k-fold cross-validation.
+	 * 
+	 * @param configurations the classifiers (and parameters) to evaluate
+	 * @param nFolds number of folds
+	 * @param seed seed used to assign samples to folds; the same folds are used for all configurations
+	 * @param nThreads maximum number of classifiers to train at the same time
+	 * @return a result for each configuration, in the same order
+	 * @throws InterruptedException if interrupted while waiting for training to complete
+	 */
+	public List<EvaluationResult> crossValidate(final List<Configuration> configurations, final int nFolds, final long seed, final int nThreads) throws InterruptedException {
+		int[] folds = createFolds(nFolds, seed);
+		
+		long startTime = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads), new SimpleThreadFactory("classifier-evaluation-", true));
+		List<List<Future<FoldResult>>> futures = new ArrayList<>();
+		try {
+			for (Configuration configuration : configurations) {
+				List<Future<FoldResult>> configurationFutures = new ArrayList<>();
+				for (int f = 0; f < nFolds; f++) {
+					int fold = f;
+					configurationFutures.add(pool.submit(() -> evaluateFold(configuration, folds, fold)));
+				}
+				futures.add(configurationFutures);
+			}
+			
+			List<EvaluationResult> results = new ArrayList<>();
+			for (int c = 0; c < configurations.size(); c++) {
+				EvaluationResult result = new EvaluationResult(configurations.get(c), pathClasses, nFolds);
+				for (Future<FoldResult> future : futures.get(c)) {
+					try {
+						result.addFold(future.get());
+					} catch (ExecutionException e) {
+						logger.warn("Evaluation failed for {}: {}", configurations.get(c), e.getCause().getLocalizedMessage());
+						logger.debug("", e.getCause());
+						result.setFailed(e.getCause());
+					}
+				}
+				results.add(result);
+			}
+			logger.info(String.format("Evaluated %d configurations with %d-fold cross-validation in %.2f seconds",
+					configurations.size(), nFolds, (System.currentTimeMillis() - startTime)/1000.0));
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	
+	private FoldResult evaluateFold(final Configuration configuration, final int[] folds, final int fold) {
+		int nFeatures = features.size();
+		int nTest = 0;
+		for (int f : folds) {
+			if (f == fold)
+				nTest++;
+		}
+		int nTrain = nSamples - nTest;
+		float[] training = new float[nTrain * nFeatures];
+		int[] responses = new int[nTrain];
+		float[] test = new float[nTest * nFeatures];
+		int[] testResponses = new int[nTest];
+		int iTrain = 0;
+		int iTest = 0;
+		for (int i = 0; i < nSamples; i++) {
+			if (folds[i] == fold) {
+				System.arraycopy(arrayFeatures, i * nFeatures, test, iTest * nFeatures, nFeatures);
+				testResponses[iTest++] = arrayResponses[i];
+			} else {
+				System.arraycopy(arrayFeatures, i * nFeatures, training, iTrain * nFeatures, nFeatures);
+				responses[iTrain++] = arrayResponses[i];
+			}
+		}
+		normalize(normalization, training, test, nFeatures);
+		
+		OpenCvClassifier<?> classifier = configuration.createClassifier();
+		long startTime = System.nanoTime();
+		classifier.trainClassifier(pathClasses, features, training, responses);
+		long trainingTime = System.nanoTime() - startTime;
+		
+		Mat matTest = new Mat(nTest, nFeatures, CvType.CV_32FC1);
+		matTest.put(0, 0, test);
+		startTime = System.nanoTime();
+		int[] predictions = classifier.predictClassIndices(matTest);
+		long predictionTime = System.nanoTime() - startTime;
+		matTest.release();
+		
+		int nClasses = pathClasses.size();
+		int[][] confusion = new int[nClasses][nClasses];
+		for (int i = 0; i < nTest; i++) {
+			int prediction = predictions[i];
+			if (prediction >= 0 && prediction < nClasses)
+				confusion[testResponses[i]][prediction]++;
+		}
+		return new FoldResult(confusion, nTest, trainingTime, predictionTime);
+	}
+	
+	
+	
+	/**
+	 * Normalize training and test features in-place, using statistics computed from the training features only.
+	 * 
+	 * @param normalization
+	 * @param training row-major training features
+	 * @param test row-major test features
+	 * @param nFeatures number of features in each row
+	 */
+	static void normalize(final Normalization normalization, final float[] training, final float[] test, final int nFeatures) {
+		if (normalization == null || normalization == Normalization.NONE)
+			return;
+		RunningStatistics[] stats = new RunningStatistics[nFeatures];
+		for (int k = 0; k < nFeatures; k++)
+			stats[k] = new RunningStatistics();
+		for (int i = 0; i < training.length; i++) {
+			float value = training[i];
+			if (!Float.isNaN(value))
+				stats[i % nFeatures].addValue(value);
+		}
+		double[] offset = new double[nFeatures];
+		double[] scale = new double[nFeatures];
+		OpenCvClassifier.computeNormalization(normalization, stats, offset, scale);
+		OpenCvClassifier.applyNormalization(training, offset, scale);
+		OpenCvClassifier.applyNormalization(test, offset, scale);
+	}
+	
+	
+	/**
+	 * Create a configuration that uses a classifier with its current (or default) parameters.
+	 * 
+	 * @param supplier
+	 * @return
+	 */
+	public static Configuration createConfiguration(final Supplier<? extends OpenCvClassifier<?>> supplier) {
+		return new Configuration(supplier, Collections.emptyMap());
+	}
+	
+	/**
+	 * Create configurations for every combination of the specified parameter values.
+	 * 
+	 * Values are converted to Strings and parsed in the same way as parameters specified in scripts.
+	 * 
+	 * @param supplier supplier of new classifier instances
+	 * @param parameterValues map of parameter keys to the values that should be tried
+	 * @return
+	 */
+	public static List<Configuration> createParameterGrid(final Supplier<? extends ParameterizableOpenCvClassifier<?>> supplier, final Map<String, ? extends List<?>> parameterValues) {
+		List<Map<String, String>> grid = new ArrayList<>();
+		grid.add(new LinkedHashMap<>());
+		for (Map.Entry<String, ? extends List<?>> entry : parameterValues.entrySet()) {
+			List<Map<String, String>> gridNew = new ArrayList<>();
+			for (Map<String, String> previous : grid) {
+				for (Object value : entry.getValue()) {
+					Map<String, String> map = new LinkedHashMap<>(previous);
+					map.put(entry.getKey(), value.toString());
+					gridNew.add(map);
+				}
+			}
+			grid = gridNew;
+		}
+		List<Configuration> configurations = new ArrayList<>();
+		for (Map<String, String> values : grid)
+			configurations.add(new Configuration(supplier, values));
+		return configurations;
+	}
+	
+	/**
+	 * Get the result with the highest accuracy, ignoring any failed configurations.
+	 * 
+	 * @param results
+	 * @return the best result, or null if all configurations failed
+	 */
+	public static EvaluationResult getBestResult(final List<EvaluationResult> results) {
+		EvaluationResult best = null;
+		for (EvaluationResult result : results) {
+			if (!result.isFailed() && (best == null || result.getAccuracy() > best.getAccuracy()))
+				best = result;
+		}
+		return best;
+	}
+	
+	
+	
+	/**
+	 * A classifier type, together with parameter values that should be applied to it.
+	 */
+	public static class Configuration {
+		
+		private Supplier<? extends OpenCvClassifier<?>> supplier;
+		private String name;
+		private Map<String, String> parameterValues;
+		
+		private Configuration(final Supplier<? extends OpenCvClassifier<?>> supplier, final Map<String, String> parameterValues) {
+			this.supplier = supplier;
+			this.name = supplier.get().getName();
+			this.parameterValues = Collections.unmodifiableMap(new LinkedHashMap<>(parameterValues));
+		}
+		
+		/**
+		 * Get the parameter values that are changed from the defaults in this configuration.
+		 * 
+		 * @return
+		 */
+		public Map<String, String> getParameterValues() {
+			return parameterValues;
+		}
+		
+		/**
+		 * Create a new, untrained classifier with the parameters for this configuration.
+		 * 
+		 * @return
+		 */
+		public OpenCvClassifier<?> createClassifier() {
+			OpenCvClassifier<?> classifier = supplier.get();
+			if (!parameterValues.isEmpty()) {
+				if (!(classifier instanceof ParameterizableOpenCvClassifier))
+					throw new IllegalArgumentException(classifier.getName() + " does not support parameters");
+				ParameterList params = ((ParameterizableOpenCvClassifier<?>)classifier).getParameterList();
+				ParameterList.updateParameterList(params, parameterValues, Locale.US);
+			}
+			return classifier;
+		}
+		
+		@Override
+		public String toString() {
+			if (parameterValues.isEmpty())
+				return name;
+			return name + " " + ParameterList.getParameterListJSON(parameterValues, " ");
+		}
+		
+	}
+	
+	
+	private static class FoldResult {
+		
+		private final int[][] confusion;
+		private final int nTested;
+		private final long trainingTime;
+		private final long predictionTime;
+		
+		FoldResult(final int[][] confusion, final int nTested, final long trainingTime, final long predictionTime) {
+			this.confusion = confusion;
+			this.nTested = nTested;
+			this.trainingTime = trainingTime;
+			this.predictionTime = predictionTime;
+		}
+		
+	}
+	
+	
+	/**
+	 * Results of cross-validation for a single configuration, combined across all folds.
+	 */
+	public static class EvaluationResult {
+		
+		private Configuration configuration;
+		private List<PathClass> pathClasses;
+		private int[][] confusion;
+		private double[] foldAccuracies;
+		private int nFolds = 0;
+		private int nTested = 0;
+		private long trainingTime = 0;
+		private long predictionTime = 0;
+		private Throwable error;
+		
+		private EvaluationResult(final Configuration configuration, final List<PathClass> pathClasses, final int nFolds) {
+			this.configuration = configuration;
+			this.pathClasses = pathClasses;
+			this.confusion = new int[pathClasses.size()][pathClasses.size()];
+			this.foldAccuracies = new double[nFolds];
+		}
+		
+		private void addFold(final FoldResult result) {
+			int nCorrect = 0;
+			for (int i = 0; i < confusion.length; i++) {
+				for (int j = 0; j < confusion.length; j++)
+					confusion[i][j] += result.confusion[i][j];
+				nCorrect += result.confusion[i][i];
+			}
+			foldAccuracies[nFolds] = result.nTested == 0 ? Double.NaN : (double)nCorrect / result.nTested;
+			nFolds++;
+			nTested += result.nTested;
+			trainingTime += result.trainingTime;
+			predictionTime += result.predictionTime;
+		}
+		
+		private void setFailed(final Throwable error) {
+			this.error = error;
+		}
+		
+		/**
+		 * Get the configuration that was evaluated.
+		 * 
+		 * @return
+		 */
+		public Configuration getConfiguration() {
+			return configuration;
+		}
+		
+		/**
+		 * Returns true if training or prediction failed for any fold.
+		 * 
+		 * @return
+		 */
+		public boolean isFailed() {
+			return error != null;
+		}
+		
+		/**
+		 * Get the exception that caused the evaluation to fail, or null if it succeeded.
+		 * 
+		 * @return
+		 */
+		public Throwable getError() {
+			return error;
+		}
+		
+		/**
+		 * Get the proportion of samples that were correctly classified, across all folds.
+		 * 
+		 * @return
+		 */
+		public double getAccuracy() {
+			if (nTested == 0)
+				return Double.NaN;
+			int nCorrect = 0;
+			for (int i = 0; i < confusion.length; i++)
+				nCorrect += confusion[i][i];
+			return (double)nCorrect / nTested;
+		}
+		
+		/**
+		 * Get the accuracy for each fold.
+		 * 
+		 * @return
+		 */
+		public double[] getFoldAccuracies() {
+			return foldAccuracies.clone();
+		}
+		
+		/**
+		 * Get the confusion matrix, where rows correspond to the true class &amp; columns to the predicted class.
+		 * 
+		 * Samples for which the prediction failed are not included.
+		 * 
+		 * @return
+		 */
+		public int[][] getConfusionMatrix() {
+			int[][] copy = new int[confusion.length][];
+			for (int i = 0; i < confusion.length; i++)
+				copy[i] = confusion[i].clone();
+			return copy;
+		}
+		
+		/**
+		 * Get the total training time across all folds, in milliseconds.
+		 * 
+		 * @return
+		 */
+		public double getTrainingTimeMillis() {
+			return trainingTime / 1e6;
+		}
+		
+		/**
+		 * Get the total prediction time across all folds, in milliseconds.
+		 * 
+		 * @return
+		 */
+		public double getPredictionTimeMillis() {
+			return predictionTime / 1e6;
+		}
+		
+		/**
+		 * Get a summary of the result, including the confusion matrix.
+		 * 
+		 * @return
+		 */
+		public String getSummary() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(configuration).append("\n");
+			if (isFailed()) {
+				sb.append("  Failed: ").append(error.getLocalizedMessage()).append("\n");
+				return sb.toString();
+			}
+			sb.append(String.format("  Accuracy: %.2f%% (%d samples, %d folds)\n", getAccuracy() * 100, nTested, nFolds));
+			sb.append(String.format("  Training time: %.1f ms, prediction time: %.1f ms\n", getTrainingTimeMillis(), getPredictionTimeMillis()));
+			sb.append("  Confusion matrix (rows = true class, columns = predicted class):\n");
+			for (int i = 0; i < confusion.length; i++) {
+				sb.append("    ").append(pathClasses.get(i));
+				for (int j = 0; j < confusion.length; j++)
+					sb.append("\t").append(confusion[i][j]);
+				sb.append("\n");
+			}
+			return sb.toString();
+		}
+		
+		@Override
+		public String toString() {
+			if (isFailed())
+				return configuration + ": failed";
+			return String.format("%s: %.2f%%", configuration, getAccuracy() * 100);
+		}
+		
+	}
+
+}
@@ -298,8 +298,8 @@ public class DelaunayClusteringPlugin<T> extends AbstractInteractivePlugin<T> {
 			
 			DelaunayTriangulation dt = new DelaunayTriangulation(pathObjects, pixelWidth, pixelHeight, distanceThresholdPixels, limitByClass);
 			
-			DefaultPathObjectConnectionGroup result = new DefaultPathObjectConnectionGroup(dt);
-			pathObjects = new ArrayList<>(result.getPathObjects());
+			// Store only the compact connection group (not the triangulation itself)
+			PathObjectConnectionGroup result = dt.getConnectionGroup();
 
 			
 			
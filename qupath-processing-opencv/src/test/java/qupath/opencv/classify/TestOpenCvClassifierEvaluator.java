@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2018 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.opencv.classify;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.opencv.ml.StatModel;
+
+import qupath.lib.classifiers.Normalization;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.plugins.parameters.ParameterList;
+
+/**
+ * Tests for the parts of classifier evaluation that do not require OpenCV itself.
+ */
+public class TestOpenCvClassifierEvaluator {
+	
+	private static final List<String> FEATURES = Arrays.asList("Feature 1", "Feature 2");
+	
+	@Test
+	public void test_createFolds() {
+		int[] classSizes = {23, 10, 7};
+		OpenCvClassifierEvaluator evaluator = new OpenCvClassifierEvaluator(createTrainingMap(classSizes, 51L), FEATURES, Normalization.NONE);
+		assertEquals(40, evaluator.nSamples());
+		
+		for (int nFolds : new int[]{2, 3, 5, 7}) {
+			int[] folds = evaluator.createFolds(nFolds, 52L);
+			assertEquals(evaluator.nSamples(), folds.length);
+			
+			// Folds should differ in size by at most 1 sample overall...
+			int[] foldSizes = new int[nFolds];
+			for (int f : folds) {
+				assertTrue(f >= 0 && f < nFolds);
+				foldSizes[f]++;
+			}
+			checkBalanced(foldSizes);
+			
+			// ...and for each class (samples are ordered by class)
+			int start = 0;
+			for (int size : classSizes) {
+				int[] classFoldSizes = new int[nFolds];
+				for (int i = start; i < start + size; i++)
+					classFoldSizes[folds[i]]++;
+				checkBalanced(classFoldSizes);
+				start += size;
+			}
+			
+			// Folds should be reproducible
+			assertArrayEquals(folds, evaluator.createFolds(nFolds, 52L));
+		}
+		assertFalse(Arrays.equals(evaluator.createFolds(5, 52L), evaluator.createFolds(5, 53L)));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void test_tooFewFolds() {
+		new OpenCvClassifierEvaluator(createTrainingMap(new int[]{5, 5}, 54L), FEATURES, Normalization.NONE).createFolds(1, 0L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_tooManyFolds() {
+		new OpenCvClassifierEvaluator(createTrainingMap(new int[]{5, 5}, 55L), FEATURES, Normalization.NONE).createFolds(11, 0L);
+	}
+	
+	@Test
+	public void test_createParameterGrid() {
+		Map<String, List<?>> values = new LinkedHashMap<>();
+		values.put("count", Arrays.asList(1, 2, 3));
+		values.put("scale", Arrays.asList(0.5, 1.5));
+		values.put("depth", Arrays.asList(4));
+		List<OpenCvClassifierEvaluator.Configuration> configurations = OpenCvClassifierEvaluator.createParameterGrid(() -> new TestClassifier(), values);
+		
+		// Every combination should occur exactly once
+		assertEquals(3 * 2 * 1, configurations.size());
+		Set<List<Object>> combinations = new HashSet<>();
+		for (OpenCvClassifierEvaluator.Configuration configuration : configurations) {
+			assertEquals(values.keySet(), configuration.getParameterValues().keySet());
+			ParameterList params = ((TestClassifier)configuration.createClassifier()).getParameterList();
+			combinations.add(Arrays.asList(
+					params.getIntParameterValue("count"),
+					params.getDoubleParameterValue("scale"),
+					params.getIntParameterValue("depth")));
+		}
+		for (Object count : values.get("count")) {
+			for (Object scale : values.get("scale"))
+				assertTrue(combinations.contains(Arrays.asList(count, scale, 4)));
+		}
+		assertEquals(configurations.size(), combinations.size());
+		
+		// No parameters gives a single configuration, using the defaults
+		configurations = OpenCvClassifierEvaluator.createParameterGrid(() -> new TestClassifier(), new TreeMap<>());
+		assertEquals(1, configurations.size());
+		assertEquals(10, ((TestClassifier)configurations.get(0).createClassifier()).getParameterList().getIntParameterValue("count").intValue());
+	}
+	
+	@Test
+	public void test_normalizeFromTraining() {
+		Random rand = new Random(56L);
+		int nFeatures = 3;
+		float[] training = new float[100 * nFeatures];
+		for (int i = 0; i < training.length; i++)
+			training[i] = (float)(rand.nextGaussian() * (i % nFeatures + 1) + 10);
+		float[] test = {10f, 12f, 14f, 20f, 0f, 10f};
+		float[] trainingOriginal = training.clone();
+		float[] testOriginal = test.clone();
+		
+		OpenCvClassifierEvaluator.normalize(Normalization.MEAN_VARIANCE, training, test, nFeatures);
+		for (int k = 0; k < nFeatures; k++) {
+			double sum = 0, sumSquares = 0;
+			double sumOriginal = 0, sumSquaresOriginal = 0;
+			for (int i = k; i < training.length; i += nFeatures) {
+				sum += training[i];
+				sumSquares += training[i] * training[i];
+				sumOriginal += trainingOriginal[i];
+				sumSquaresOriginal += trainingOriginal[i] * trainingOriginal[i];
+			}
+			int n = training.length / nFeatures;
+			// Training features should now have zero mean & unit variance
+			assertEquals(0, sum / n, 1e-4);
+			assertEquals(1, (sumSquares - sum * sum / n) / (n - 1), 1e-4);
+			// Test features should be normalized using the training statistics
+			double mean = sumOriginal / n;
+			double sd = Math.sqrt((sumSquaresOriginal - sumOriginal * sumOriginal / n) / (n - 1));
+			for (int i = k; i < test.length; i += nFeatures)
+				assertEquals((testOriginal[i] - mean) / sd, test[i], 1e-4);
+		}
+		
+		// No normalization should leave the values unchanged
+		float[] trainingCopy = trainingOriginal.clone();
+		OpenCvClassifierEvaluator.normalize(Normalization.NONE, trainingCopy, testOriginal, nFeatures);
+		assertArrayEquals(trainingOriginal, trainingCopy, 0f);
+	}
+	
+	
+	private static void checkBalanced(final int[] counts) {
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int c : counts) {
+			min = Math.min(min, c);
+			max = Math.max(max, c);
+		}
+		assertTrue("Unbalanced counts: " + Arrays.toString(counts), max - min <= 1);
+	}
+	
+	private static Map<PathClass, List<PathObject>> createTrainingMap(final int[] classSizes, final long seed) {
+		Random rand = new Random(seed);
+		Map<PathClass, List<PathObject>> map = new TreeMap<>();
+		for (int c = 0; c < classSizes.length; c++) {
+			List<PathObject> list = new ArrayList<>();
+			for (int i = 0; i < classSizes[c]; i++) {
+				MeasurementList measurements = MeasurementListFactory.createMeasurementList(FEATURES.size(), MeasurementList.TYPE.FLOAT);
+				for (String feature : FEATURES)
+					measurements.addMeasurement(feature, rand.nextDouble() + c);
+				measurements.closeList();
+				list.add(new PathDetectionObject(null, null, measurements));
+			}
+			map.put(PathClassFactory.getPathClass("Class " + c), list);
+		}
+		return map;
+	}
+	
+	
+	/**
+	 * Classifier that only provides parameters, and can't be trained.
+	 */
+	static class TestClassifier extends ParameterizableOpenCvClassifier<StatModel> {
+		
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected StatModel createClassifier() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected ParameterList createParameterList() {
+			return new ParameterList()
+					.addIntParameter("count", "Count", 10)
+					.addDoubleParameter("scale", "Scale", 1.0)
+					.addIntParameter("depth", "Depth", 2);
+		}
+
+		@Override
+		public String getName() {
+			return "Test classifier";
+		}
+
+		@Override
+		public boolean supportsAutoUpdate() {
+			return false;
+		}
+		
+	}
+
+}